@@ -16,41 +16,203 @@
  */
 package ninja.leaping.permissionsex;
 
+import com.google.common.base.Objects;
 import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.SimpleConfigurationNode;
 import ninja.leaping.permissionsex.backends.DataStore;
+import ninja.leaping.permissionsex.backends.DataStoreMigration;
 import ninja.leaping.permissionsex.backends.memory.MemoryDataStore;
+import ninja.leaping.permissionsex.backends.tiered.TieredDataStore;
 import ninja.leaping.permissionsex.config.PermissionsExConfiguration;
+import ninja.leaping.permissionsex.data.OffHeapSubjectStore;
 import ninja.leaping.permissionsex.data.SubjectCache;
 import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+import ninja.leaping.permissionsex.util.IOExecutor;
 import org.slf4j.Logger;
 
+import javax.annotation.Nullable;
 import javax.sql.DataSource;
 import java.io.File;
+import java.util.List;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class PermissionsEx implements ImplementationInterface {
+    private static final long IO_SHUTDOWN_TIMEOUT = 30;
     private final PermissionsExConfiguration config;
     private final ImplementationInterface impl;
-    private DataStore activeDataStore;
+    private final DataStore activeDataStore;
+    private volatile boolean activeDataStoreOwned;
     private final ConcurrentMap<String, SubjectCache> subjectCaches = new ConcurrentHashMap<>(), transientSubjectCaches = new ConcurrentHashMap<>();
     private final MemoryDataStore transientData;
+    private volatile boolean transientDataOwned;
+    // The manager this one will take over from, until it does
+    private volatile PermissionsEx previous;
+    private final boolean reuseBackend;
+    private final OffHeapSubjectStore offHeapData;
+    private final IOExecutor ioExecutor;
 
     public PermissionsEx(PermissionsExConfiguration config, ImplementationInterface impl) throws PermissionsLoadingException {
+        this(config, impl, null);
+    }
+
+    /**
+     * Create a manager that will replace a previous manager.
+     *
+     * Transient data is always kept. If the previous manager's active backend is configured identically, the backend
+     * and its subject caches are kept as well, and are reloaded by {@link #takeOver()} so that only subjects whose
+     * stored data changed are refreshed. The previous manager keeps ownership of anything shared, unchanged, until
+     * then, so if this manager is closed before taking over the previous manager can continue to be used.
+     *
+     * @param config The configuration for the new manager
+     * @param impl The implementation PermissionsEx is running in
+     * @param previous The manager being replaced, or null
+     * @throws PermissionsLoadingException if the active backend could not be loaded
+     */
+    public PermissionsEx(PermissionsExConfiguration config, ImplementationInterface impl, @Nullable PermissionsEx previous) throws PermissionsLoadingException {
         this.config = config;
         this.impl = impl;
-        this.transientData = new MemoryDataStore();
-        this.transientData.initialize(this);
-        this.activeDataStore = config.getDefaultDataStore();
-        this.activeDataStore.initialize(this);
-        getSubjects("group").cacheAll();
+        this.ioExecutor = new IOExecutor("PermissionsEx I/O", config.getIOThreads(), config.getIOQueueSize(), config.getIOBackpressure(),
+                config.useIOVirtualThreads());
+        if (config.useIOVirtualThreads() && !ioExecutor.isUsingVirtualThreads()) {
+            impl.getLogger().warn("Virtual threads are not supported by this Java runtime, using platform threads for backend I/O");
+        }
+        try {
+            reuseBackend = previous != null && previous.activeDataStoreOwned
+                    && isSameBackend(previous.config, previous.config.getDefaultDataStore(), config, config.getDefaultDataStore());
+            if (reuseBackend) {
+                this.activeDataStore = previous.activeDataStore;
+                if (previous.config.getOffHeapCacheSize() == config.getOffHeapCacheSize()) {
+                    this.offHeapData = previous.offHeapData;
+                    this.subjectCaches.putAll(previous.subjectCaches);
+                } else {
+                    this.offHeapData = createOffHeapStore(config);
+                }
+            } else {
+                this.offHeapData = createOffHeapStore(config);
+                this.activeDataStore = config.getDefaultDataStore();
+                this.activeDataStore.initialize(this);
+                this.activeDataStoreOwned = true;
+            }
+        } catch (PermissionsLoadingException | RuntimeException e) {
+            ioExecutor.shutdown(0, TimeUnit.SECONDS);
+            throw e;
+        }
+
+        if (previous != null) {
+            this.transientData = previous.transientData;
+            this.transientSubjectCaches.putAll(previous.transientSubjectCaches);
+            this.previous = previous;
+        } else {
+            this.transientData = new MemoryDataStore();
+            this.transientData.initialize(this);
+            this.transientDataOwned = true;
+        }
+    }
+
+    /**
+     * Take ownership of the state shared with the manager this one replaces, reloading a kept backend and its subject
+     * caches. Shared backends use this manager from now on. Call this when this manager is published in place of the
+     * previous one, which should then be closed and discarded.
+     *
+     * @throws PermissionsLoadingException if a kept backend could not be reloaded, in which case nothing is taken over
+     */
+    public void takeOver() throws PermissionsLoadingException {
+        final PermissionsEx previous = this.previous;
+        if (previous == null) {
+            return;
+        }
+        if (reuseBackend) {
+            // Only reloaded now so anything listening to the shared backend hears of changes once this manager is in use
+            activeDataStore.reload();
+            for (SubjectCache cache : subjectCaches.values()) {
+                cache.reload();
+            }
+        }
+        this.transientDataOwned = previous.transientDataOwned;
+        previous.transientDataOwned = false;
+        this.transientData.setManager(this);
+        if (reuseBackend) {
+            this.activeDataStoreOwned = previous.activeDataStoreOwned;
+            previous.activeDataStoreOwned = false;
+            this.activeDataStore.setManager(this);
+        }
+        this.previous = null;
+    }
+
+    /**
+     * Load every group into the cache as configured, so the first permission checks do not have to wait for groups to be read
+     *
+     * @throws PermissionsLoadingException if any group could not be read
+     */
+    public void preloadGroups() throws PermissionsLoadingException {
+        final SubjectCache groups = getSubjects("group");
+        switch (config.getGroupPreload()) {
+            case LAZY:
+                break;
+            case SERIAL:
+                groups.cacheAll();
+                break;
+            case PARALLEL:
+                final ExecutorService executor = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                        new ThreadFactoryBuilder().setNameFormat("PermissionsEx group preload #%d").setDaemon(true).build());
+                try {
+                    groups.cacheAll(executor);
+                } catch (ExecutionException e) {
+                    throw new PermissionsLoadingException("While preloading groups", e.getCause());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new PermissionsLoadingException("Interrupted while preloading groups", e);
+                } finally {
+                    executor.shutdown();
+                }
+                break;
+        }
+    }
+
+    @Nullable
+    private static OffHeapSubjectStore createOffHeapStore(PermissionsExConfiguration config) {
+        return config.getOffHeapCacheSize() > 0 ? new OffHeapSubjectStore(config.getOffHeapCacheSize()) : null;
+    }
+
+    /**
+     * Check whether two backends have the same configuration, so one can stand in for the other
+     *
+     * @param aConfig The configuration the first backend is defined in
+     * @param a The first backend
+     * @param bConfig The configuration the second backend is defined in
+     * @param b The second backend
+     */
+    private static boolean isSameBackend(PermissionsExConfiguration aConfig, @Nullable DataStore a,
+                                         PermissionsExConfiguration bConfig, @Nullable DataStore b) throws PermissionsLoadingException {
+        if (a == null || b == null) {
+            return a == b;
+        }
+        final ConfigurationNode aNode = SimpleConfigurationNode.root(), bNode = SimpleConfigurationNode.root();
+        if (!a.serialize(aNode).equals(b.serialize(bNode)) || !Objects.equal(aNode.getValue(), bNode.getValue())) {
+            return false;
+        }
+        if (a instanceof TieredDataStore) { // Tiers are only referred to by name, so their own configuration must match too
+            for (String tier : ((TieredDataStore) a).getTierNames()) {
+                if (!isSameBackend(aConfig, aConfig.getDataStore(tier), bConfig, bConfig.getDataStore(tier))) {
+                    return false;
+                }
+            }
+        }
+        return true;
     }
 
     public SubjectCache getSubjects(String type) {
         Preconditions.checkNotNull(type, "type");
         SubjectCache cache = subjectCaches.get(type);
         if (cache == null) {
-            cache = new SubjectCache(type, activeDataStore);
+            cache = new SubjectCache(type, activeDataStore, offHeapData);
             SubjectCache newCache = subjectCaches.putIfAbsent(type, cache);
             if (newCache != null) {
                 cache = newCache;
@@ -72,12 +234,83 @@ public class PermissionsEx implements ImplementationInterface {
         return cache;
     }
 
+    /**
+     * Copy all subjects of the given types between two configured backends.
+     * Backends other than the active one are initialized for the duration of the migration.
+     *
+     * @param sourceName The name of the backend to copy from
+     * @param targetName The name of the backend to copy to
+     * @param types The subject types to copy
+     * @param checkpoint File to record progress in so an interrupted migration can be resumed, or null
+     * @return Statistics for the migration
+     * @throws PermissionsLoadingException if either backend does not exist or the migration fails
+     */
+    public DataStoreMigration.Result migrate(String sourceName, String targetName, List<String> types, File checkpoint) throws PermissionsLoadingException {
+        final DataStore source = getBackend(sourceName), target = getBackend(targetName);
+        if (source == target) {
+            throw new PermissionsLoadingException("Cannot migrate backend " + sourceName + " to itself");
+        }
+        boolean sourceInitialized = false, targetInitialized = false;
+        try {
+            if (source != activeDataStore) {
+                source.initialize(this);
+                sourceInitialized = true;
+            }
+            if (target != activeDataStore) {
+                target.initialize(this);
+                targetInitialized = true;
+            }
+            return new DataStoreMigration(this, source, target, types, checkpoint).run();
+        } finally {
+            if (sourceInitialized) {
+                source.close();
+            }
+            if (targetInitialized) {
+                target.close();
+            }
+        }
+    }
+
+    /**
+     * Get a configured backend, using the live instance for the active backend
+     */
+    private DataStore getBackend(String name) throws PermissionsLoadingException {
+        Preconditions.checkNotNull(name, "name");
+        final DataStore ret = config.getDataStore(name);
+        if (ret == null) {
+            throw new PermissionsLoadingException("Backend " + name + " does not exist");
+        }
+        if (ret == config.getDefaultDataStore()) {
+            return activeDataStore; // May have been kept from a previous manager, in place of the instance in this configuration
+        }
+        return ret;
+    }
+
     public boolean hasDebugMode() {
         return config.isDebugEnabled();
     }
 
     public void close() {
-        this.activeDataStore.close();
+        if (this.activeDataStoreOwned) {
+            this.activeDataStore.close();
+        }
+        if (this.transientDataOwned) {
+            this.transientData.close();
+        }
+        if (!this.ioExecutor.shutdown(IO_SHUTDOWN_TIMEOUT, TimeUnit.SECONDS)) {
+            getLogger().warn("Backend I/O did not finish within " + IO_SHUTDOWN_TIMEOUT + " seconds of shutting down: " + ioExecutor.getStatistics());
+        } else if (hasDebugMode()) {
+            getLogger().info("Backend I/O: " + ioExecutor.getStatistics());
+        }
+    }
+
+    /**
+     * Get the executor backend I/O is performed on. The statistics it keeps show how busy backends are.
+     *
+     * @return The I/O executor
+     */
+    public IOExecutor getIOExecutor() {
+        return ioExecutor;
     }
 
     @Override
@@ -95,9 +328,14 @@ public class PermissionsEx implements ImplementationInterface {
         return impl.getDataSourceForURL(url);
     }
 
+    /**
+     * Run a backend I/O task on the I/O executor
+     *
+     * @param run The task to be run
+     */
     @Override
     public void executeAsyncronously(Runnable run) {
-        impl.executeAsyncronously(run);
+        ioExecutor.execute(run);
     }
 
     public PermissionsExConfiguration getConfig() {
@@ -18,28 +18,60 @@ package ninja.leaping.permissionsex.backends;
 
 import com.google.common.base.Function;
 import com.google.common.base.Preconditions;
+import com.google.common.base.Predicate;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.SettableFuture;
 import ninja.leaping.configurate.ConfigurationNode;
 import ninja.leaping.configurate.objectmapping.ObjectMapper;
 import ninja.leaping.configurate.objectmapping.ObjectMappingException;
+import ninja.leaping.configurate.objectmapping.Setting;
+import ninja.leaping.configurate.objectmapping.serialize.TypeSerializers;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.backends.bus.ChangeBus;
+import ninja.leaping.permissionsex.backends.memory.MemoryOptionSubjectData;
+import ninja.leaping.permissionsex.config.ChangeBusSerializer;
 import ninja.leaping.permissionsex.data.CacheListenerHolder;
 import ninja.leaping.permissionsex.data.Caching;
 import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.data.PermissionIndex;
+import ninja.leaping.permissionsex.data.SubjectRef;
 import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
 
 import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Base implementation of a data store that provides common points for other data stores to hook into.
  */
 public abstract class AbstractDataStore implements DataStore {
+    static {
+        TypeSerializers.registerSerializer(new ChangeBusSerializer());
+    }
+
     private final Factory factory;
     private final CacheListenerHolder<Map.Entry<String, String>> listeners = new CacheListenerHolder<>();
+    @Setting(value = "change-bus", comment = "Channel used to tell other servers sharing this data store about changes")
+    private ChangeBus changeBus;
+    private final AtomicLong revision = new AtomicLong();
+    // Revision of the last change to each subject changed since this data store was loaded
+    private final ConcurrentMap<Map.Entry<String, String>, Long> subjectRevisions = new ConcurrentHashMap<>();
+    private volatile PermissionsEx core;
+    private final Object indexLock = new Object();
+    private volatile PermissionIndex permissionIndex; // Published before it is filled, so updates made while filling are kept
+    private volatile boolean permissionIndexReady;
+    // Writes to subjects with a write in progress
+    private final ConcurrentMap<Map.Entry<String, String>, WriteQueue> writeQueues = new ConcurrentHashMap<>();
 
     protected AbstractDataStore(Factory factory) {
         if (!factory.expectedClazz.equals(getClass())) {
@@ -48,6 +80,97 @@ public abstract class AbstractDataStore implements DataStore {
         this.factory = factory;
     }
 
+    @Override
+    public final void initialize(PermissionsEx core) throws PermissionsLoadingException {
+        this.core = core;
+        initializeInternal(core);
+        if (changeBus != null) {
+            changeBus.start(core, new ChangeBus.Listener() {
+                @Override
+                public void onRemoteChange(String type, String identifier, long revision) {
+                    refresh(type, identifier);
+                }
+            });
+        }
+    }
+
+    protected abstract void initializeInternal(PermissionsEx core) throws PermissionsLoadingException;
+
+    @Override
+    public final void setManager(PermissionsEx core) {
+        Preconditions.checkNotNull(core, "core");
+        this.core = core;
+        setManagerInternal(core);
+    }
+
+    /**
+     * Move anything else referring to the manager to a replacement. Does nothing by default.
+     *
+     * @param core The replacement manager
+     */
+    protected void setManagerInternal(PermissionsEx core) {
+    }
+
+    /**
+     * Get the manager this data store is currently used by
+     *
+     * @return The manager
+     */
+    protected final PermissionsEx getManager() {
+        return core;
+    }
+
+    @Override
+    public final void close() {
+        if (changeBus != null) {
+            changeBus.close();
+        }
+        closeInternal();
+    }
+
+    protected abstract void closeInternal();
+
+    /**
+     * Does nothing by default, for data stores that read through to their backing storage.
+     */
+    @Override
+    public void reload() throws PermissionsLoadingException {
+    }
+
+    /**
+     * Pass the current data for a subject changed outside of {@link #setData} to anything caching the subject
+     *
+     * @param type The type of the changed subject
+     * @param identifier The identifier of the changed subject
+     */
+    protected final void refresh(String type, String identifier) {
+        try {
+            final Map.Entry<String, String> lookupKey = Maps.immutableEntry(type, identifier);
+            final long newRevision = nextRevision(lookupKey);
+            final ImmutableOptionSubjectData data = getDataInternal(type, identifier);
+            updateIndex(type, identifier, data);
+            listeners.call(lookupKey, data, newRevision);
+        } catch (PermissionsLoadingException e) {
+            core.getLogger().warn("Unable to refresh remotely changed subject " + type + ":" + identifier, e);
+        }
+    }
+
+    /**
+     * Pass data for a subject changed outside of {@link #setData}, already known by the caller, to anything caching
+     * the subject
+     *
+     * @param type The type of the changed subject
+     * @param identifier The identifier of the changed subject
+     * @param data The subject's current data
+     */
+    protected final void refresh(String type, String identifier, ImmutableOptionSubjectData data) {
+        Preconditions.checkNotNull(data, "data");
+        final Map.Entry<String, String> lookupKey = Maps.immutableEntry(type, identifier);
+        final long newRevision = nextRevision(lookupKey);
+        updateIndex(type, identifier, data);
+        listeners.call(lookupKey, data, newRevision);
+    }
+
     @Override
     public final ImmutableOptionSubjectData getData(String type, String identifier, Caching listener) {
         Preconditions.checkNotNull(type, "type");
@@ -64,17 +187,132 @@ public abstract class AbstractDataStore implements DataStore {
         }
     }
 
+    /**
+     * Writes to one subject are applied one at a time, in the order they were made.
+     *
+     * <p>For data stores that apply writes as soon as {@link #setDataInternal} returns, each write starts once the
+     * previous one has been applied, without waiting for it to be persisted, and listeners are told of it then.</p>
+     *
+     * <p>Otherwise, writes made while a write to the same subject is in progress are merged, so only the most recent
+     * data is written once the current write completes. The futures of all merged writes complete with the result
+     * of that write.</p>
+     */
     @Override
-    public final ListenableFuture<ImmutableOptionSubjectData> setData(String type, String identifier, ImmutableOptionSubjectData data) {
+    public final ListenableFuture<ImmutableOptionSubjectData> setData(final String type, final String identifier, ImmutableOptionSubjectData data) {
         Preconditions.checkNotNull(type, "type");
         Preconditions.checkNotNull(identifier, "identifier");
 
         final Map.Entry<String, String> lookupKey = Maps.immutableEntry(type, identifier);
-        ListenableFuture<ImmutableOptionSubjectData> ret = setDataInternal(type, identifier, data);
+        return isAppliedOnWrite() ? apply(lookupKey, data) : enqueue(lookupKey, data);
+    }
+
+    /**
+     * Whether writes are applied by the time {@link #setDataInternal} returns, so they are seen by
+     * {@link #getDataInternal} while only persisting them remains. False by default, for data stores that apply
+     * writes asynchronously.
+     *
+     * @return Whether writes are applied synchronously
+     */
+    protected boolean isAppliedOnWrite() {
+        return false;
+    }
+
+    private WriteQueue getWriteQueue(Map.Entry<String, String> lookupKey) {
+        WriteQueue ret = writeQueues.get(lookupKey);
+        if (ret == null) {
+            ret = new WriteQueue();
+            final WriteQueue existing = writeQueues.putIfAbsent(lookupKey, ret);
+            if (existing != null) {
+                ret = existing;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Mark a queue as no longer in use, once it has nothing left to write. Only call while holding the queue's lock.
+     */
+    private void release(Map.Entry<String, String> lookupKey, WriteQueue queue) {
+        queue.released = true;
+        writeQueues.remove(lookupKey, queue);
+    }
+
+    private ListenableFuture<ImmutableOptionSubjectData> apply(Map.Entry<String, String> lookupKey, ImmutableOptionSubjectData data) {
+        final String type = lookupKey.getKey(), identifier = lookupKey.getValue();
+        while (true) {
+            final WriteQueue queue = getWriteQueue(lookupKey);
+            final ListenableFuture<ImmutableOptionSubjectData> ret;
+            final long newRevision;
+            synchronized (queue) {
+                if (queue.released) {
+                    continue; // Finished with while waiting for it
+                }
+                try {
+                    ret = setDataInternal(type, identifier, data);
+                } catch (RuntimeException e) {
+                    return Futures.immediateFailedFuture(e);
+                } finally {
+                    release(lookupKey, queue);
+                }
+                newRevision = nextRevision(lookupKey);
+                updateIndex(type, identifier, data);
+            }
+            // Listeners drop data older than what they have already seen, so this can be done outside the lock
+            listeners.call(lookupKey, data == null ? MemoryOptionSubjectData.EMPTY : data, newRevision);
+            if (changeBus != null) {
+                Futures.addCallback(ret, new FutureCallback<ImmutableOptionSubjectData>() {
+                    @Override
+                    public void onSuccess(@Nullable ImmutableOptionSubjectData result) {
+                        changeBus.publish(type, identifier, newRevision); // Only once other servers can read the change
+                    }
+
+                    @Override
+                    public void onFailure(Throwable t) {
+                    }
+                });
+            }
+            return ret;
+        }
+    }
+
+    private ListenableFuture<ImmutableOptionSubjectData> enqueue(Map.Entry<String, String> lookupKey, ImmutableOptionSubjectData data) {
+        while (true) {
+            final WriteQueue queue = getWriteQueue(lookupKey);
+            synchronized (queue) {
+                if (queue.released) {
+                    continue;
+                }
+                if (queue.writing) {
+                    queue.next = data;
+                    if (queue.nextResult == null) {
+                        queue.nextResult = SettableFuture.create();
+                    }
+                    return queue.nextResult;
+                }
+                queue.writing = true;
+            }
+            return write(lookupKey, queue, data);
+        }
+    }
+
+    private ListenableFuture<ImmutableOptionSubjectData> write(final Map.Entry<String, String> lookupKey, final WriteQueue queue, ImmutableOptionSubjectData data) {
+        final String type = lookupKey.getKey(), identifier = lookupKey.getValue();
+        ListenableFuture<ImmutableOptionSubjectData> ret;
+        try {
+            ret = setDataInternal(type, identifier, data);
+        } catch (RuntimeException e) {
+            ret = Futures.immediateFailedFuture(e); // Still move on to the next write
+        }
         Futures.addCallback(ret, new FutureCallback<ImmutableOptionSubjectData>() {
             @Override
             public void onSuccess(@Nullable ImmutableOptionSubjectData newData) {
-                listeners.call(lookupKey, newData);
+                final long newRevision = nextRevision(lookupKey);
+                if (changeBus != null) {
+                    changeBus.publish(type, identifier, newRevision);
+                }
+                updateIndex(type, identifier, newData);
+                // Removed subjects complete with null, and read back as empty
+                listeners.call(lookupKey, newData == null ? MemoryOptionSubjectData.EMPTY : newData, newRevision);
             }
 
             @Override
@@ -82,9 +320,97 @@ public abstract class AbstractDataStore implements DataStore {
 
             }
         });
+        ret.addListener(new Runnable() {
+            @Override
+            public void run() {
+                writeNext(lookupKey, queue);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return ret;
+    }
+
+    /**
+     * Start the write queued behind a write that has just completed, if there is one
+     */
+    private void writeNext(Map.Entry<String, String> lookupKey, WriteQueue queue) {
+        final ImmutableOptionSubjectData data;
+        final SettableFuture<ImmutableOptionSubjectData> result;
+        synchronized (queue) {
+            if (queue.nextResult == null) {
+                release(lookupKey, queue);
+                return;
+            }
+            data = queue.next;
+            result = queue.nextResult;
+            queue.next = null;
+            queue.nextResult = null;
+        }
+        Futures.addCallback(write(lookupKey, queue, data), new FutureCallback<ImmutableOptionSubjectData>() {
+            @Override
+            public void onSuccess(@Nullable ImmutableOptionSubjectData newData) {
+                result.set(newData);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                result.setException(t);
+            }
+        });
+    }
+
+    /**
+     * The writes to one subject: the one in progress, and the one waiting to follow it. A queue is discarded once
+     * released, and a new one is used for later writes.
+     */
+    private static class WriteQueue {
+        private boolean released; // guarded by this
+        private boolean writing; // guarded by this
+        private ImmutableOptionSubjectData next; // guarded by this
+        private SettableFuture<ImmutableOptionSubjectData> nextResult; // guarded by this, null while no write is waiting
+    }
+
+    /**
+     * Assign a new revision to a subject that has changed
+     */
+    private long nextRevision(Map.Entry<String, String> lookupKey) {
+        final long ret = revision.incrementAndGet();
+        Long existing;
+        do {
+            existing = subjectRevisions.get(lookupKey);
+            if (existing != null && existing >= ret) {
+                return ret; // A later change has already been recorded
+            }
+        } while (existing == null ? subjectRevisions.putIfAbsent(lookupKey, ret) != null : !subjectRevisions.replace(lookupKey, existing, ret));
         return ret;
     }
 
+    /**
+     * Subjects that have not changed since this data store was loaded have revision 0.
+     */
+    @Override
+    public final long getRevision(String type, String identifier) {
+        Preconditions.checkNotNull(type, "type");
+        Preconditions.checkNotNull(identifier, "identifier");
+        final Long ret = subjectRevisions.get(Maps.immutableEntry(type, identifier));
+        return ret == null ? 0 : ret;
+    }
+
+    @Override
+    public final boolean hasChangedSince(String type, String identifier, long revision) {
+        return !isChangeTracked() || getRevision(type, identifier) > revision;
+    }
+
+    /**
+     * Whether every change to subjects in this data store is seen by it, either because it is made through
+     * {@link #setData} or because it is passed to {@link #refresh}. When this is false, subjects are always treated as
+     * possibly changed. By default this is true when a change bus is configured.
+     *
+     * @return Whether subject revisions can be relied on to detect changes
+     */
+    protected boolean isChangeTracked() {
+        return changeBus != null;
+    }
+
     protected abstract ImmutableOptionSubjectData getDataInternal(String type, String identifier) throws PermissionsLoadingException;
 
     protected abstract ListenableFuture<ImmutableOptionSubjectData> setDataInternal(String type, String identifier, ImmutableOptionSubjectData data);
@@ -101,6 +427,74 @@ public abstract class AbstractDataStore implements DataStore {
         });
     }
 
+    @Override
+    public final PermissionIndex getPermissionIndex() {
+        if (permissionIndexReady) {
+            return permissionIndex;
+        }
+        synchronized (indexLock) {
+            if (!permissionIndexReady) {
+                final PermissionIndex index = new PermissionIndex();
+                permissionIndex = index;
+                for (String type : getRegisteredTypes()) {
+                    for (Map.Entry<String, ImmutableOptionSubjectData> ent : getAll(type)) {
+                        index.load(type, ent.getKey(), ent.getValue());
+                    }
+                }
+                permissionIndexReady = true;
+            }
+            return permissionIndex;
+        }
+    }
+
+    /**
+     * Find matching subjects using this data store's permission index to narrow the subjects that are checked.
+     * Data stores able to search their storage directly should override this.
+     */
+    @Override
+    public Iterable<SubjectRef> query(final SubjectQuery query) {
+        Preconditions.checkNotNull(query, "query");
+        final List<SubjectRef> candidates = new ArrayList<>();
+        if (query.hasDataFilter()) {
+            final PermissionIndex index = getPermissionIndex();
+            if (query.getParent() != null) {
+                candidates.addAll(index.getChildren(query.getParent()));
+            } else if (query.getOptionKey() != null) {
+                candidates.addAll(index.getSubjectsWithOption(query.getOptionKey()));
+            } else {
+                candidates.addAll(index.getSubjectsSetting(query.getPermission()));
+            }
+        } else {
+            for (String type : query.getType() == null ? getRegisteredTypes() : Collections.singleton(query.getType())) {
+                for (String identifier : getAllIdentifiers(type)) {
+                    candidates.add(SubjectRef.of(type, identifier));
+                }
+            }
+        }
+        Collections.sort(candidates);
+
+        Iterable<SubjectRef> ret = Iterables.filter(candidates, new Predicate<SubjectRef>() {
+            @Override
+            public boolean apply(SubjectRef input) {
+                return query.matches(input.getType(), getData(input.getType(), input.getIdentifier(), null));
+            }
+        });
+        if (query.getOffset() > 0) {
+            ret = Iterables.skip(ret, query.getOffset());
+        }
+        if (query.getLimit() > 0) {
+            ret = Iterables.limit(ret, query.getLimit());
+        }
+        return ret;
+    }
+
+    private void updateIndex(String type, String identifier, @Nullable ImmutableOptionSubjectData data) {
+        final PermissionIndex index = permissionIndex;
+        if (index != null) {
+            index.update(type, identifier, data);
+        }
+    }
+
     @Override
     @SuppressWarnings("unchecked") // Corect types are verified in the constructor
     public String serialize(ConfigurationNode node) throws PermissionsLoadingException {
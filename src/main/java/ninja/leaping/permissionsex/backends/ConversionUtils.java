@@ -16,6 +16,8 @@
  */
 package ninja.leaping.permissionsex.backends;
 
+import com.google.common.collect.Iterables;
+import ninja.leaping.permissionsex.backends.memory.MemoryOptionSubjectData;
 import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
 
 import java.util.List;
@@ -40,6 +42,9 @@ public class ConversionUtils {
     }
 
     public static ImmutableOptionSubjectData transfer(ImmutableOptionSubjectData old, ImmutableOptionSubjectData newData) {
+        if (newData instanceof MemoryOptionSubjectData && Iterables.isEmpty(newData.getActiveContexts())) {
+            return ((MemoryOptionSubjectData) newData).copyFrom(old);
+        }
         for (Map.Entry<Set<Map.Entry<String, String>>, Map<String, Integer>> ent : old.getAllPermissions().entrySet()) {
             newData = newData.setPermissions(ent.getKey(), ent.getValue());
         }
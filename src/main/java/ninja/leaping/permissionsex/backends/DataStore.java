@@ -21,6 +21,8 @@ import ninja.leaping.configurate.ConfigurationNode;
 import ninja.leaping.permissionsex.PermissionsEx;
 import ninja.leaping.permissionsex.data.Caching;
 import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.data.PermissionIndex;
+import ninja.leaping.permissionsex.data.SubjectRef;
 import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
 
 import java.util.Map;
@@ -35,11 +37,26 @@ public interface DataStore {
      */
     void initialize(PermissionsEx core) throws PermissionsLoadingException;
 
+    /**
+     * Move this data store to a manager replacing the one it was initialized by, so the previous manager can be discarded
+     *
+     * @param core The replacement manager
+     */
+    void setManager(PermissionsEx core);
+
     /**
      * Free any resources this backend may be using
      */
     void close();
 
+    /**
+     * Pick up changes made to the backing storage of this data store outside of PermissionsEx.
+     * Listeners are notified for any subjects whose data changed.
+     *
+     * @throws PermissionsLoadingException If the backing data cannot be loaded
+     */
+    void reload() throws PermissionsLoadingException;
+
 
     ImmutableOptionSubjectData getData(String type, String identifier, Caching listener);
 
@@ -58,6 +75,51 @@ public interface DataStore {
 
     Iterable<String> getAllIdentifiers(String type);
 
+    /**
+     * Get every subject type this data store holds at least one subject of
+     *
+     * @return The known subject types
+     */
+    Iterable<String> getRegisteredTypes();
+
+    /**
+     * Get the revision of a subject's data. Revisions are assigned by the data store whenever it sees a subject change,
+     * and increase with every change.
+     *
+     * @param type The type of subject
+     * @param identifier The identifier of the subject
+     * @return The revision of the subject's current data
+     */
+    long getRevision(String type, String identifier);
+
+    /**
+     * Check whether a subject may have changed since a revision, without reading its data.
+     * Data stores that cannot see every change made to their storage always report subjects as changed.
+     *
+     * @param type The type of subject
+     * @param identifier The identifier of the subject
+     * @param revision The revision last seen
+     * @return Whether the subject's data may be different from the data at that revision
+     */
+    boolean hasChangedSince(String type, String identifier, long revision);
+
+    /**
+     * Get an index of the permissions and inheritance of every subject in this data store, kept up to date as
+     * subject data changes.
+     *
+     * @return The permission index
+     */
+    PermissionIndex getPermissionIndex();
+
+    /**
+     * Find the subjects matching a query, including those not currently loaded.
+     * Results are fetched as the returned iterable is iterated.
+     *
+     * @param query The query to run
+     * @return The matching subjects, ordered by type then identifier
+     */
+    Iterable<SubjectRef> query(SubjectQuery query);
+
     /**
      * Serialize the configuration state of this data store to a configuration node
      *
@@ -18,7 +18,10 @@ package ninja.leaping.permissionsex.backends;
 
 import com.google.common.base.Optional;
 import ninja.leaping.permissionsex.backends.file.FileDataStore;
+import ninja.leaping.permissionsex.backends.journal.JournalDataStore;
 import ninja.leaping.permissionsex.backends.memory.MemoryDataStore;
+import ninja.leaping.permissionsex.backends.sql.SqlDataStore;
+import ninja.leaping.permissionsex.backends.tiered.TieredDataStore;
 
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
@@ -29,6 +32,9 @@ public class DataStoreFactories {
     static {
         register("file", FileDataStore.FACTORY);
         register("memory", MemoryDataStore.FACTORY);
+        register("journal", JournalDataStore.FACTORY);
+        register("sql", SqlDataStore.FACTORY);
+        register("tiered", TieredDataStore.FACTORY);
     }
 
     private DataStoreFactories() {
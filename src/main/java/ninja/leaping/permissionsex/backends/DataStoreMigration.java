@@ -0,0 +1,395 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends;
+
+import com.google.common.base.Charsets;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Copies subjects from one data store to another.
+ *
+ * Identifiers are streamed from the source in batches that are copied by a fixed number of worker threads.
+ * Only a bounded number of batches are queued at once, so the producer waits while the workers are behind
+ * rather than reading the whole source into memory. Completed batches are recorded in an optional checkpoint
+ * file, which lets an interrupted migration continue where it left off.
+ */
+public class DataStoreMigration {
+    private static final long REPORT_INTERVAL = TimeUnit.SECONDS.toMillis(5);
+    private static final String CHECKPOINT_SUBJECT = "s", CHECKPOINT_TYPE = "t";
+
+    private final PermissionsEx core;
+    private final DataStore source, target;
+    private final List<String> types;
+    private final File checkpoint;
+    private int batchSize = 256;
+    private int parallelism = 4;
+
+    private final AtomicLong migrated = new AtomicLong();
+    private final AtomicLong lastReport = new AtomicLong();
+    private final AtomicReference<Throwable> failure = new AtomicReference<>();
+    private long startTime;
+    private int pendingBatches; // Guarded by this
+    private Writer checkpointWriter;
+
+    /**
+     * Create a new migration. Both data stores must already be initialized.
+     *
+     * @param core The PermissionsEx instance to report progress through
+     * @param source The data store to read subjects from
+     * @param target The data store to write subjects to
+     * @param types The subject types to copy
+     * @param checkpoint The file to record progress in, or null to not record progress
+     */
+    public DataStoreMigration(PermissionsEx core, DataStore source, DataStore target, List<String> types, File checkpoint) {
+        Preconditions.checkNotNull(core, "core");
+        Preconditions.checkNotNull(source, "source");
+        Preconditions.checkNotNull(target, "target");
+        Preconditions.checkNotNull(types, "types");
+        Preconditions.checkArgument(source != target, "Cannot migrate a data store to itself");
+        this.core = core;
+        this.source = source;
+        this.target = target;
+        this.types = ImmutableList.copyOf(types);
+        this.checkpoint = checkpoint;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        Preconditions.checkArgument(batchSize > 0, "batchSize must be positive");
+        this.batchSize = batchSize;
+    }
+
+    public int getParallelism() {
+        return parallelism;
+    }
+
+    public void setParallelism(int parallelism) {
+        Preconditions.checkArgument(parallelism > 0, "parallelism must be positive");
+        this.parallelism = parallelism;
+    }
+
+    /**
+     * Copy every subject of the configured types, blocking until the migration is complete.
+     * If a checkpoint file from an earlier attempt exists, subjects it lists as complete are skipped.
+     * The checkpoint file is removed once all types have been copied.
+     *
+     * @return The statistics for this run
+     * @throws PermissionsLoadingException if any subject could not be copied
+     */
+    public Result run() throws PermissionsLoadingException {
+        final Map<String, Set<String>> completed = readCheckpoint();
+        final ThreadPoolExecutor workers = new ThreadPoolExecutor(parallelism, parallelism, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(parallelism * 2),
+                new ThreadFactoryBuilder()
+                        .setNameFormat("PermissionsEx migration worker #%d")
+                        .setDaemon(true)
+                        .build(),
+                new ThreadPoolExecutor.CallerRunsPolicy()); // A full queue makes the producer copy a batch itself
+        startTime = System.currentTimeMillis();
+        lastReport.set(startTime);
+        migrated.set(0);
+        failure.set(null);
+        try {
+            openCheckpoint();
+            for (String type : types) {
+                Set<String> done = completed.get(type);
+                if (done == null) {
+                    done = new HashSet<>();
+                } else if (done == COMPLETED_TYPE) {
+                    continue;
+                }
+                produce(workers, type, done);
+                if (failure.get() != null) {
+                    break;
+                }
+            }
+            workers.shutdown();
+            while (!workers.awaitTermination(1, TimeUnit.SECONDS)) {
+                // Wait for the remaining batches to finish
+            }
+        } catch (InterruptedException e) {
+            workers.shutdownNow();
+            Thread.currentThread().interrupt();
+            throw new PermissionsLoadingException("Interrupted while migrating data", e);
+        } catch (IOException e) {
+            workers.shutdownNow();
+            throw new PermissionsLoadingException("Unable to write migration checkpoint to " + checkpoint, e);
+        } finally {
+            closeCheckpoint();
+        }
+
+        final Throwable error = failure.get();
+        if (error != null) {
+            throw new PermissionsLoadingException("Error while migrating data" + (checkpoint == null ? "" : ", progress has been saved to " + checkpoint), error);
+        }
+        if (checkpoint != null && checkpoint.exists() && !checkpoint.delete()) {
+            core.getLogger().warn("Unable to delete migration checkpoint " + checkpoint);
+        }
+        final Result ret = new Result(migrated.get(), System.currentTimeMillis() - startTime);
+        core.getLogger().info("Migrated " + ret.getSubjectCount() + " subjects in " + ret.getElapsedMillis() + "ms (" + ret.getSubjectsPerSecond() + " subjects/s)");
+        return ret;
+    }
+
+    private void produce(ThreadPoolExecutor workers, final String type, Set<String> done) throws IOException {
+        List<String> batch = new ArrayList<>(batchSize);
+        for (String identifier : source.getAllIdentifiers(type)) {
+            if (failure.get() != null) {
+                return;
+            }
+            if (done.contains(identifier)) {
+                continue;
+            }
+            batch.add(identifier);
+            if (batch.size() >= batchSize) {
+                submit(workers, type, batch);
+                batch = new ArrayList<>(batchSize);
+            }
+        }
+        if (!batch.isEmpty()) {
+            submit(workers, type, batch);
+        }
+        // Batches of this type must all be written before the type can be recorded as complete
+        synchronized (this) {
+            while (pendingBatches > 0) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for batches of " + type);
+                }
+            }
+        }
+        if (failure.get() == null) {
+            writeCheckpoint(CHECKPOINT_TYPE + " " + encode(type));
+        }
+    }
+
+    private void submit(ThreadPoolExecutor workers, final String type, final List<String> batch) {
+        synchronized (this) {
+            ++pendingBatches;
+        }
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    if (failure.get() == null) {
+                        copyBatch(type, batch);
+                    }
+                } catch (Throwable t) {
+                    failure.compareAndSet(null, t);
+                } finally {
+                    synchronized (DataStoreMigration.this) {
+                        --pendingBatches;
+                        DataStoreMigration.this.notifyAll();
+                    }
+                }
+            }
+        });
+    }
+
+    private void copyBatch(String type, List<String> batch) throws ExecutionException, InterruptedException, IOException {
+        final List<ListenableFuture<ImmutableOptionSubjectData>> writes = new ArrayList<>(batch.size());
+        for (String identifier : batch) {
+            writes.add(target.setData(type, identifier, source.getData(type, identifier, null)));
+        }
+        Futures.allAsList(writes).get();
+
+        final StringBuilder lines = new StringBuilder();
+        final String encodedType = encode(type);
+        for (String identifier : batch) {
+            lines.append(CHECKPOINT_SUBJECT).append(' ').append(encodedType).append(' ').append(encode(identifier)).append('\n');
+        }
+        writeCheckpoint(lines.toString());
+        reportProgress(migrated.addAndGet(batch.size()));
+    }
+
+    private void reportProgress(long count) {
+        final long now = System.currentTimeMillis(), last = lastReport.get();
+        if (now - last >= REPORT_INTERVAL && lastReport.compareAndSet(last, now)) {
+            core.getLogger().info("Migrated " + count + " subjects so far (" + Result.rate(count, now - startTime) + " subjects/s)");
+        }
+    }
+
+    // -- Checkpointing
+
+    /**
+     * Marker for a type that has been entirely copied
+     */
+    private static final Set<String> COMPLETED_TYPE = new HashSet<>();
+
+    private Map<String, Set<String>> readCheckpoint() throws PermissionsLoadingException {
+        final Map<String, Set<String>> ret = new HashMap<>();
+        if (checkpoint == null || !checkpoint.isFile()) {
+            return ret;
+        }
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(checkpoint), Charsets.UTF_8))) {
+            // The last line may have only been partly written if the previous run was interrupted
+            final boolean lastLineComplete = endsWithNewline(checkpoint);
+            String line = reader.readLine();
+            while (line != null) {
+                final String next = reader.readLine();
+                if (next == null && !lastLineComplete) {
+                    break;
+                }
+                final String[] parts = line.split(" ");
+                if (parts.length == 2 && parts[0].equals(CHECKPOINT_TYPE)) {
+                    ret.put(decode(parts[1]), COMPLETED_TYPE);
+                } else if (parts.length == 3 && parts[0].equals(CHECKPOINT_SUBJECT)) {
+                    final String type = decode(parts[1]);
+                    Set<String> done = ret.get(type);
+                    if (done == null) {
+                        done = new HashSet<>();
+                        ret.put(type, done);
+                    }
+                    if (done != COMPLETED_TYPE) {
+                        done.add(decode(parts[2]));
+                    }
+                }
+                line = next;
+            }
+        } catch (IOException | IllegalArgumentException e) {
+            throw new PermissionsLoadingException("Unable to read migration checkpoint " + checkpoint, e);
+        }
+        if (!ret.isEmpty()) {
+            core.getLogger().info("Resuming migration from checkpoint " + checkpoint);
+        }
+        return ret;
+    }
+
+    private static boolean endsWithNewline(File file) throws IOException {
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            if (raf.length() == 0) {
+                return true;
+            }
+            raf.seek(raf.length() - 1);
+            return raf.read() == '\n';
+        }
+    }
+
+    private void openCheckpoint() throws IOException {
+        if (checkpoint != null) {
+            final File parent = checkpoint.getAbsoluteFile().getParentFile();
+            if (parent != null && !parent.isDirectory() && !parent.mkdirs()) {
+                throw new IOException("Unable to create directory " + parent);
+            }
+            checkpointWriter = new OutputStreamWriter(new FileOutputStream(checkpoint, true), Charsets.UTF_8);
+        }
+    }
+
+    private synchronized void writeCheckpoint(String lines) throws IOException {
+        if (checkpointWriter != null) {
+            checkpointWriter.write(lines);
+            if (!lines.endsWith("\n")) {
+                checkpointWriter.write('\n');
+            }
+            checkpointWriter.flush();
+        }
+    }
+
+    private synchronized void closeCheckpoint() {
+        if (checkpointWriter != null) {
+            try {
+                checkpointWriter.close();
+            } catch (IOException e) {
+                core.getLogger().warn("Unable to close migration checkpoint " + checkpoint, e);
+            }
+            checkpointWriter = null;
+        }
+    }
+
+    private static String encode(String value) {
+        try {
+            return URLEncoder.encode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e); // UTF-8 is always supported
+        }
+    }
+
+    private static String decode(String value) {
+        try {
+            return URLDecoder.decode(value, "UTF-8");
+        } catch (UnsupportedEncodingException e) {
+            throw new Error(e); // UTF-8 is always supported
+        }
+    }
+
+    /**
+     * Statistics for a completed migration
+     */
+    public static class Result {
+        private final long subjectCount, elapsedMillis;
+
+        Result(long subjectCount, long elapsedMillis) {
+            this.subjectCount = subjectCount;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        static long rate(long count, long millis) {
+            return millis <= 0 ? count : count * 1000 / millis;
+        }
+
+        /**
+         * @return The number of subjects copied in this run, not counting subjects skipped from a checkpoint
+         */
+        public long getSubjectCount() {
+            return subjectCount;
+        }
+
+        public long getElapsedMillis() {
+            return elapsedMillis;
+        }
+
+        public long getSubjectsPerSecond() {
+            return rate(subjectCount, elapsedMillis);
+        }
+    }
+}
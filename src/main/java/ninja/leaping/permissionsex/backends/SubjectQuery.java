@@ -0,0 +1,215 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterables;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.data.SubjectRef;
+
+import javax.annotation.Nullable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A search for subjects in a data store by the data they hold. Every filter that is set must match for a subject to
+ * be included. When contexts are given, filters only match data set in exactly that context set, otherwise data in any
+ * context set matches.
+ *
+ * Results are ordered by subject type, then identifier, so {@link #getOffset()} and {@link #getLimit()} can be used
+ * to page through them.
+ */
+public final class SubjectQuery {
+    @Nullable private final String type;
+    @Nullable private final String permission;
+    @Nullable private final String optionKey, optionValue;
+    @Nullable private final SubjectRef parent;
+    @Nullable private final Set<Map.Entry<String, String>> contexts;
+    private final int offset, limit;
+
+    private SubjectQuery(Builder builder) {
+        this.type = builder.type;
+        this.permission = builder.permission;
+        this.optionKey = builder.optionKey;
+        this.optionValue = builder.optionValue;
+        this.parent = builder.parent;
+        this.contexts = builder.contexts;
+        this.offset = builder.offset;
+        this.limit = builder.limit;
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    @Nullable
+    public String getType() {
+        return type;
+    }
+
+    @Nullable
+    public String getPermission() {
+        return permission;
+    }
+
+    @Nullable
+    public String getOptionKey() {
+        return optionKey;
+    }
+
+    /**
+     * @return The value the option must have, or null if any value matches
+     */
+    @Nullable
+    public String getOptionValue() {
+        return optionValue;
+    }
+
+    @Nullable
+    public SubjectRef getParent() {
+        return parent;
+    }
+
+    @Nullable
+    public Set<Map.Entry<String, String>> getContexts() {
+        return contexts;
+    }
+
+    /**
+     * @return Whether any filter on subject data is set
+     */
+    public boolean hasDataFilter() {
+        return permission != null || optionKey != null || parent != null;
+    }
+
+    public int getOffset() {
+        return offset;
+    }
+
+    /**
+     * @return The maximum number of results to return, or 0 for no limit
+     */
+    public int getLimit() {
+        return limit;
+    }
+
+    /**
+     * Check whether a subject matches this query
+     *
+     * @param type The type of the subject
+     * @param data The subject's data
+     * @return Whether the subject matches every filter of this query
+     */
+    public boolean matches(String type, ImmutableOptionSubjectData data) {
+        if (this.type != null && !this.type.equals(type)) {
+            return false;
+        }
+        if (!hasDataFilter()) {
+            return contexts == null || Iterables.contains(data.getActiveContexts(), contexts);
+        }
+
+        final Iterable<Set<Map.Entry<String, String>>> segments = contexts == null ? data.getActiveContexts() : Collections.singleton(contexts);
+        boolean permissionMatched = permission == null, optionMatched = optionKey == null, parentMatched = parent == null;
+        for (Set<Map.Entry<String, String>> segment : segments) {
+            if (!permissionMatched) {
+                final Integer value = data.getPermissions(segment).get(permission);
+                permissionMatched = value != null && value != 0;
+            }
+            if (!optionMatched) {
+                final Map<String, String> options = data.getOptions(segment);
+                optionMatched = options.containsKey(optionKey) && (optionValue == null || optionValue.equals(options.get(optionKey)));
+            }
+            if (!parentMatched) {
+                parentMatched = data.getParents(segment).contains(parent);
+            }
+        }
+        return permissionMatched && optionMatched && parentMatched;
+    }
+
+    @Override
+    public String toString() {
+        return Objects.toStringHelper(this)
+                .omitNullValues()
+                .add("type", type)
+                .add("permission", permission)
+                .add("optionKey", optionKey)
+                .add("optionValue", optionValue)
+                .add("parent", parent)
+                .add("contexts", contexts)
+                .add("offset", offset)
+                .add("limit", limit)
+                .toString();
+    }
+
+    public static class Builder {
+        private String type;
+        private String permission;
+        private String optionKey, optionValue;
+        private SubjectRef parent;
+        private Set<Map.Entry<String, String>> contexts;
+        private int offset, limit;
+
+        private Builder() {
+        }
+
+        public Builder type(String type) {
+            this.type = type;
+            return this;
+        }
+
+        public Builder permission(String permission) {
+            this.permission = permission;
+            return this;
+        }
+
+        public Builder option(String key, @Nullable String value) {
+            Preconditions.checkNotNull(key, "key");
+            this.optionKey = key;
+            this.optionValue = value;
+            return this;
+        }
+
+        public Builder parent(String type, String identifier) {
+            this.parent = SubjectRef.of(type, identifier);
+            return this;
+        }
+
+        public Builder contexts(Set<Map.Entry<String, String>> contexts) {
+            this.contexts = ImmutableSet.copyOf(contexts);
+            return this;
+        }
+
+        public Builder offset(int offset) {
+            Preconditions.checkArgument(offset >= 0, "offset must not be negative");
+            this.offset = offset;
+            return this;
+        }
+
+        public Builder limit(int limit) {
+            Preconditions.checkArgument(limit >= 0, "limit must not be negative");
+            this.limit = limit;
+            return this;
+        }
+
+        public SubjectQuery build() {
+            return new SubjectQuery(this);
+        }
+    }
+}
@@ -0,0 +1,64 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.bus;
+
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+
+/**
+ * A channel that tells every server sharing a data store which subjects have changed, so each server can refresh
+ * only those subjects.
+ */
+public interface ChangeBus {
+    /**
+     * Receiver for changes made by other servers
+     */
+    interface Listener {
+        /**
+         * Called when a subject has been changed by another server
+         *
+         * @param type The type of the changed subject
+         * @param identifier The identifier of the changed subject
+         * @param revision The revision the change was published with
+         */
+        void onRemoteChange(String type, String identifier, long revision);
+    }
+
+    /**
+     * Start listening for changes from other servers.
+     *
+     * @param core The PermissionsEx instance this bus is for
+     * @param listener The listener to pass remote changes to
+     * @throws PermissionsLoadingException if the bus could not be connected to
+     */
+    void start(PermissionsEx core, Listener listener) throws PermissionsLoadingException;
+
+    /**
+     * Tell other servers that a subject has been changed. Changes published by this bus are not passed to its own
+     * listener.
+     *
+     * @param type The type of the changed subject
+     * @param identifier The identifier of the changed subject
+     * @param revision The revision of the data store after the change
+     */
+    void publish(String type, String identifier, long revision);
+
+    /**
+     * Stop listening for changes and free any resources used by this bus
+     */
+    void close();
+}
@@ -0,0 +1,51 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.bus;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.BiMap;
+import com.google.common.collect.HashBiMap;
+import com.google.common.collect.Maps;
+import ninja.leaping.permissionsex.backends.sql.SqlChangeBus;
+
+/**
+ * Registry of the types of change bus that can be configured
+ */
+public class ChangeBuses {
+    private static final BiMap<String, Class<? extends ChangeBus>> REGISTRY = Maps.synchronizedBiMap(HashBiMap.<String, Class<? extends ChangeBus>>create());
+
+    static {
+        register("loopback", LoopbackChangeBus.class);
+        register("file", FileChangeBus.class);
+        register("sql", SqlChangeBus.class);
+    }
+
+    private ChangeBuses() {
+    }
+
+    public static void register(String type, Class<? extends ChangeBus> clazz) {
+        REGISTRY.put(type, clazz);
+    }
+
+    public static Optional<Class<? extends ChangeBus>> get(String type) {
+        return Optional.<Class<? extends ChangeBus>>fromNullable(REGISTRY.get(type));
+    }
+
+    public static Optional<String> getType(Class<? extends ChangeBus> clazz) {
+        return Optional.fromNullable(REGISTRY.inverse().get(clazz));
+    }
+}
@@ -0,0 +1,265 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.bus;
+
+import ninja.leaping.configurate.objectmapping.Setting;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * A change bus using a file shared between servers. Each change is appended to the file as one line.
+ *
+ * <p>The file starts with a header holding its generation and the sequence number of the last change written.
+ * Once the file grows past its maximum size, changes older than the retention period are removed and the generation
+ * is increased, so readers know to look for their place from the start of the file again.</p>
+ */
+public class FileChangeBus extends PollingChangeBus {
+    private static final Object FILE_LOCK = new Object(); // File locks are held by the whole JVM, so users within it must take turns
+    private static final int HEADER_LENGTH = 40;
+
+    @Setting(comment = "File to share changes through. Relative paths are resolved against the PermissionsEx directory")
+    private String file = "changes.log";
+    @Setting(value = "max-size", comment = "Size in bytes the file can reach before changes older than the retention period are removed")
+    private long maxSize = 1024 * 1024;
+    @Setting(comment = "How long changes are kept in the file once it reaches its maximum size, in milliseconds")
+    private long retention = 5 * 60 * 1000;
+
+    private File changesFile;
+    private FileChannel channel;
+    private long generation, lastSequence, readPosition; // guarded by FILE_LOCK
+
+    @Override
+    protected void open(PermissionsEx core) throws PermissionsLoadingException {
+        changesFile = new File(file);
+        if (!changesFile.isAbsolute()) {
+            changesFile = new File(core.getBaseDirectory(), file);
+        }
+        try {
+            channel = FileChannel.open(changesFile.toPath(), StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            synchronized (FILE_LOCK) {
+                final FileLock lock = channel.lock();
+                try {
+                    final long[] header = readOrResetHeader();
+                    generation = header[0];
+                    lastSequence = header[1];
+                    readPosition = channel.size();
+                } finally {
+                    lock.release();
+                }
+            }
+        } catch (IOException e) {
+            throw new PermissionsLoadingException("While opening change bus file " + changesFile, e);
+        }
+    }
+
+    /**
+     * Read the generation and last sequence number from the header, starting a new file if the header is missing
+     * or invalid. Must be called holding an exclusive lock on the file.
+     */
+    private long[] readOrResetHeader() throws IOException {
+        long[] header = readHeader();
+        if (header == null) {
+            header = new long[] {System.currentTimeMillis(), 0};
+            channel.truncate(0);
+            writeHeader(header[0], header[1]);
+        }
+        return header;
+    }
+
+    /**
+     * Read the generation and last sequence number from the header
+     *
+     * @return The header values, or null if the file has no valid header
+     */
+    private long[] readHeader() throws IOException {
+        final ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH);
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, buf.position()) < 0) {
+                return null;
+            }
+        }
+        final String[] parts = new String(buf.array(), StandardCharsets.UTF_8).trim().split(" ");
+        if (parts.length != 2) {
+            return null;
+        }
+        try {
+            return new long[] {Long.parseLong(parts[0]), Long.parseLong(parts[1])};
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    private void writeHeader(long generation, long sequence) throws IOException {
+        write(String.format(Locale.ROOT, "%019d %019d\n", generation, sequence).getBytes(StandardCharsets.UTF_8), 0);
+    }
+
+    private long write(byte[] data, long position) throws IOException {
+        final ByteBuffer buf = ByteBuffer.wrap(data);
+        while (buf.hasRemaining()) {
+            position += channel.write(buf, position);
+        }
+        return position;
+    }
+
+    /**
+     * Read the complete lines between a position and the end of the file
+     */
+    private String readLines(long position) throws IOException {
+        final long size = channel.size();
+        if (size <= position) {
+            return "";
+        }
+        final ByteBuffer buf = ByteBuffer.allocate((int) Math.min(size - position, Integer.MAX_VALUE));
+        while (buf.hasRemaining()) {
+            if (channel.read(buf, position + buf.position()) < 0) {
+                break;
+            }
+        }
+        final String contents = new String(buf.array(), 0, buf.position(), StandardCharsets.UTF_8);
+        return contents.substring(0, contents.lastIndexOf('\n') + 1);
+    }
+
+    /**
+     * Remove changes older than the retention period, and start a new generation.
+     * Must be called holding an exclusive lock on the file.
+     *
+     * @return The generation of the file once compacted
+     */
+    private long compact(long oldGeneration, long sequence) throws IOException {
+        final long cutoff = System.currentTimeMillis() - retention;
+        final String lines = readLines(HEADER_LENGTH);
+        final StringBuilder kept = new StringBuilder();
+        for (String line : lines.split("\n")) {
+            final String[] parts = line.split(" ");
+            try {
+                if (parts.length == 6 && Long.parseLong(parts[5]) >= cutoff) {
+                    kept.append(line).append('\n');
+                }
+            } catch (NumberFormatException ignore) {
+            }
+        }
+        if (kept.length() == lines.length()) {
+            return oldGeneration; // Nothing old enough to remove yet
+        }
+        final long newGeneration = oldGeneration + 1;
+        channel.truncate(write(kept.toString().getBytes(StandardCharsets.UTF_8), HEADER_LENGTH));
+        writeHeader(newGeneration, sequence);
+        return newGeneration;
+    }
+
+    @Override
+    public void publish(String type, String identifier, long revision) {
+        final String change;
+        try {
+            change = getOrigin() + " " + URLEncoder.encode(type, "UTF-8") + " " + URLEncoder.encode(identifier, "UTF-8") + " " + revision
+                    + " " + System.currentTimeMillis() + "\n";
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e); // UTF-8 is always supported
+        }
+
+        synchronized (FILE_LOCK) {
+            try {
+                final FileLock lock = channel.lock();
+                try {
+                    final long[] header = readOrResetHeader();
+                    long fileGeneration = header[0];
+                    final long sequence = header[1] + 1;
+                    if (channel.size() > maxSize) {
+                        fileGeneration = compact(fileGeneration, header[1]);
+                    }
+                    write((sequence + " " + change).getBytes(StandardCharsets.UTF_8), channel.size());
+                    writeHeader(fileGeneration, sequence);
+                } finally {
+                    lock.release();
+                }
+            } catch (IOException e) {
+                getLogger().warn("Unable to publish change to " + type + ":" + identifier + " to " + changesFile, e);
+            }
+        }
+    }
+
+    @Override
+    protected void poll() throws IOException {
+        final List<String[]> changes = new ArrayList<>();
+        synchronized (FILE_LOCK) {
+            final FileLock lock = channel.lock(0, Long.MAX_VALUE, true);
+            try {
+                final long[] header = readHeader();
+                if (header == null) {
+                    return; // Replaced with a new file by the next write
+                }
+                if (header[0] != generation) { // Changes have been moved, so find our place again
+                    generation = header[0];
+                    readPosition = HEADER_LENGTH;
+                }
+                if (header[1] == lastSequence) {
+                    return;
+                }
+
+                final String contents = readLines(readPosition);
+                for (String line : contents.split("\n")) {
+                    final String[] parts = line.split(" ");
+                    try {
+                        if (parts.length == 6 && Long.parseLong(parts[0]) > lastSequence) {
+                            lastSequence = Long.parseLong(parts[0]);
+                            changes.add(parts);
+                        }
+                    } catch (NumberFormatException e) {
+                        getLogger().warn("Invalid line in change bus file " + changesFile + ": " + line);
+                    }
+                }
+                readPosition += contents.getBytes(StandardCharsets.UTF_8).length;
+            } finally {
+                lock.release();
+            }
+        }
+
+        // Listeners may be slow, so they are called once other servers can use the file again
+        for (String[] parts : changes) {
+            try {
+                receive(parts[1], URLDecoder.decode(parts[2], "UTF-8"), URLDecoder.decode(parts[3], "UTF-8"), Long.parseLong(parts[4]));
+            } catch (IllegalArgumentException e) {
+                getLogger().warn("Invalid change in change bus file " + changesFile + ": " + parts[2] + " " + parts[3]);
+            }
+        }
+    }
+
+    @Override
+    protected void closeInternal() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                getLogger().warn("Unable to close change bus file " + changesFile, e);
+            }
+        }
+    }
+}
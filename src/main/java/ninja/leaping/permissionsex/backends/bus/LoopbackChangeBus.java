@@ -0,0 +1,68 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.bus;
+
+import ninja.leaping.configurate.objectmapping.Setting;
+import ninja.leaping.permissionsex.PermissionsEx;
+
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A change bus that only reaches other buses on the same channel in this JVM. Used for testing.
+ */
+public class LoopbackChangeBus implements ChangeBus {
+    private static final ConcurrentMap<String, Set<LoopbackChangeBus>> CHANNELS = new ConcurrentHashMap<>();
+
+    @Setting(comment = "Name of the channel to share changes on")
+    private String channel = "default";
+    private volatile Listener listener;
+
+    private static Set<LoopbackChangeBus> getChannel(String name) {
+        Set<LoopbackChangeBus> ret = CHANNELS.get(name);
+        if (ret == null) {
+            ret = Collections.newSetFromMap(new ConcurrentHashMap<LoopbackChangeBus, Boolean>());
+            final Set<LoopbackChangeBus> existing = CHANNELS.putIfAbsent(name, ret);
+            if (existing != null) {
+                ret = existing;
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public void start(PermissionsEx core, Listener listener) {
+        this.listener = listener;
+        getChannel(channel).add(this);
+    }
+
+    @Override
+    public void publish(String type, String identifier, long revision) {
+        for (LoopbackChangeBus bus : getChannel(channel)) {
+            if (bus != this) {
+                bus.listener.onRemoteChange(type, identifier, revision);
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        getChannel(channel).remove(this);
+    }
+}
@@ -0,0 +1,112 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.bus;
+
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import ninja.leaping.configurate.objectmapping.Setting;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+import org.slf4j.Logger;
+
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A change bus that checks a shared location for changes from other servers at a fixed interval.
+ *
+ * <p>Every published change is tagged with an origin unique to this bus, so changes can be recognized and skipped
+ * when they are read back.</p>
+ */
+public abstract class PollingChangeBus implements ChangeBus {
+    @Setting(value = "poll-interval", comment = "How often to check for changes from other servers, in milliseconds")
+    private long pollInterval = 1000;
+
+    private final String origin = UUID.randomUUID().toString();
+    private Logger logger;
+    private Listener listener;
+    private ScheduledExecutorService poller;
+
+    @Override
+    public final void start(PermissionsEx core, Listener listener) throws PermissionsLoadingException {
+        this.logger = core.getLogger(); // Kept rather than the manager, which may be replaced while this bus is running
+        this.listener = listener;
+        open(core);
+        poller = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                .setNameFormat("PermissionsEx change poller (" + getClass().getSimpleName() + ")")
+                .setDaemon(true)
+                .build());
+        poller.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    poll();
+                } catch (Exception e) {
+                    logger.warn("Unable to check for changes from other servers", e);
+                }
+            }
+        }, pollInterval, pollInterval, TimeUnit.MILLISECONDS);
+    }
+
+    protected final Logger getLogger() {
+        return logger;
+    }
+
+    protected final String getOrigin() {
+        return origin;
+    }
+
+    /**
+     * Pass a change that has been read to this bus's listener, unless it was published by this bus.
+     */
+    protected final void receive(String origin, String type, String identifier, long revision) {
+        if (!this.origin.equals(origin)) {
+            listener.onRemoteChange(type, identifier, revision);
+        }
+    }
+
+    @Override
+    public final void close() {
+        if (poller != null) {
+            poller.shutdown();
+            try {
+                poller.awaitTermination(pollInterval, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        closeInternal();
+    }
+
+    /**
+     * Connect to the shared location. Changes published before this point will not be received.
+     *
+     * @param core The PermissionsEx instance this bus is for
+     * @throws PermissionsLoadingException if the shared location could not be connected to
+     */
+    protected abstract void open(PermissionsEx core) throws PermissionsLoadingException;
+
+    /**
+     * Read any changes published since the last poll and pass them to {@link #receive(String, String, String, long)}
+     *
+     * @throws Exception if changes could not be read
+     */
+    protected abstract void poll() throws Exception;
+
+    protected abstract void closeInternal();
+}
@@ -0,0 +1,344 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.file;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.SimpleConfigurationNode;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * A compact binary copy of a permissions file, used to skip parsing and schema updates on startup.
+ *
+ * <p>The snapshot consists of a header holding the checksum of the file it was generated from, a table of every
+ * string used in the file, and the file's contents. Top-level sections containing subjects are stored as one
+ * length-prefixed record per subject.</p>
+ */
+final class BinarySnapshot {
+    private static final int MAGIC = 0x50455853; // PEXS
+    private static final int VERSION = 1;
+
+    private static final byte TAG_NULL = 0,
+            TAG_STRING = 1,
+            TAG_INT = 2,
+            TAG_LONG = 3,
+            TAG_DOUBLE = 4,
+            TAG_TRUE = 5,
+            TAG_FALSE = 6,
+            TAG_LIST = 7,
+            TAG_MAP = 8;
+
+    private BinarySnapshot() {
+    }
+
+    /**
+     * Calculate the checksum a snapshot of the given file has to match.
+     *
+     * @param file The source file
+     * @return The file's checksum
+     * @throws IOException if the file could not be read
+     */
+    public static long checksum(File file) throws IOException {
+        final CRC32 crc = new CRC32();
+        final byte[] buffer = new byte[64 * 1024];
+        try (InputStream in = new FileInputStream(file)) {
+            int read;
+            while ((read = in.read(buffer)) != -1) {
+                crc.update(buffer, 0, read);
+            }
+        }
+        return crc.getValue();
+    }
+
+    /**
+     * Write a snapshot of {@code root}. The snapshot file is replaced atomically.
+     *
+     * @param snapshotFile The file to write to
+     * @param sourceChecksum The checksum of the file {@code root} was read from or written to
+     * @param root The node to store
+     * @throws IOException if the snapshot could not be written
+     */
+    public static void write(File snapshotFile, long sourceChecksum, ConfigurationNode root) throws IOException {
+        final SymbolTable symbols = new SymbolTable();
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream bodyOut = new DataOutputStream(body);
+
+        final List<ConfigurationNode> globals = new ArrayList<>(), sections = new ArrayList<>();
+        for (ConfigurationNode child : root.getChildrenMap().values()) {
+            (isSection(child) ? sections : globals).add(child);
+        }
+
+        bodyOut.writeInt(globals.size());
+        for (ConfigurationNode global : globals) {
+            bodyOut.writeInt(symbols.get(global.getKey().toString()));
+            writeValue(bodyOut, global, symbols);
+        }
+
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        final DataOutputStream recordOut = new DataOutputStream(record);
+        bodyOut.writeInt(sections.size());
+        for (ConfigurationNode section : sections) {
+            bodyOut.writeInt(symbols.get(section.getKey().toString()));
+            bodyOut.writeInt(section.getChildrenMap().size());
+            for (ConfigurationNode subject : section.getChildrenMap().values()) {
+                record.reset();
+                writeValue(recordOut, subject, symbols);
+                bodyOut.writeInt(symbols.get(subject.getKey().toString()));
+                bodyOut.writeInt(record.size());
+                record.writeTo(bodyOut);
+            }
+        }
+
+        final File tempFile = new File(snapshotFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(sourceChecksum);
+            out.writeInt(symbols.size());
+            for (String symbol : symbols.values()) {
+                writeString(out, symbol);
+            }
+            body.writeTo(out);
+        }
+        try {
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    /**
+     * Read a snapshot, if it is present and was generated from a file with the expected checksum.
+     *
+     * @param snapshotFile The file to read from
+     * @param expectedChecksum The checksum of the current source file
+     * @return The stored node, or null if the snapshot is missing or out of date
+     * @throws IOException if the snapshot could not be read
+     */
+    public static ConfigurationNode read(File snapshotFile, long expectedChecksum) throws IOException {
+        if (!snapshotFile.isFile()) {
+            return null;
+        }
+
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(snapshotFile)))) {
+            if (!readHeader(in, expectedChecksum)) {
+                return null;
+            }
+            final String[] symbols = readSymbols(in);
+            final ConfigurationNode root = SimpleConfigurationNode.root();
+
+            final int globalCount = in.readInt();
+            for (int i = 0; i < globalCount; ++i) {
+                readValue(in, root.getNode(symbols[in.readInt()]), symbols);
+            }
+
+            final int sectionCount = in.readInt();
+            for (int i = 0; i < sectionCount; ++i) {
+                final ConfigurationNode section = root.getNode(symbols[in.readInt()]);
+                final int subjectCount = in.readInt();
+                for (int j = 0; j < subjectCount; ++j) {
+                    final ConfigurationNode subject = section.getNode(symbols[in.readInt()]);
+                    in.readInt(); // Record length, only needed when skipping records
+                    readValue(in, subject, symbols);
+                }
+            }
+            return root;
+        } catch (EOFException e) {
+            throw new IOException("Snapshot " + snapshotFile + " is truncated", e);
+        }
+    }
+
+    /**
+     * Read the snapshot header.
+     *
+     * @param in The input to read from
+     * @param expectedChecksum The checksum of the current source file
+     * @return Whether the header is valid and matches the expected checksum
+     * @throws IOException if the header could not be read
+     */
+    static boolean readHeader(DataInput in, long expectedChecksum) throws IOException {
+        return in.readInt() == MAGIC && in.readInt() == VERSION && in.readLong() == expectedChecksum;
+    }
+
+    /**
+     * A top-level node is stored as a section if all its children are subjects -- lists or maps.
+     */
+    static boolean isSection(ConfigurationNode node) {
+        if (!node.hasMapChildren()) {
+            return false;
+        }
+        for (ConfigurationNode child : node.getChildrenMap().values()) {
+            if (!child.hasListChildren() && !child.hasMapChildren()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static void writeValue(DataOutput out, ConfigurationNode node, SymbolTable symbols) throws IOException {
+        if (node.hasMapChildren()) {
+            final Map<Object, ? extends ConfigurationNode> children = node.getChildrenMap();
+            out.writeByte(TAG_MAP);
+            out.writeInt(children.size());
+            for (Map.Entry<Object, ? extends ConfigurationNode> ent : children.entrySet()) {
+                out.writeInt(symbols.get(ent.getKey().toString()));
+                writeValue(out, ent.getValue(), symbols);
+            }
+        } else if (node.hasListChildren()) {
+            final List<? extends ConfigurationNode> children = node.getChildrenList();
+            out.writeByte(TAG_LIST);
+            out.writeInt(children.size());
+            for (ConfigurationNode child : children) {
+                writeValue(out, child, symbols);
+            }
+        } else {
+            final Object value = node.getValue();
+            if (value == null) {
+                out.writeByte(TAG_NULL);
+            } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                out.writeByte(TAG_INT);
+                out.writeInt(((Number) value).intValue());
+            } else if (value instanceof Long) {
+                out.writeByte(TAG_LONG);
+                out.writeLong((Long) value);
+            } else if (value instanceof Number) {
+                out.writeByte(TAG_DOUBLE);
+                out.writeDouble(((Number) value).doubleValue());
+            } else if (value instanceof Boolean) {
+                out.writeByte((Boolean) value ? TAG_TRUE : TAG_FALSE);
+            } else if (value instanceof Map || value instanceof List) { // Empty collections
+                out.writeByte(value instanceof Map ? TAG_MAP : TAG_LIST);
+                out.writeInt(0);
+            } else {
+                out.writeByte(TAG_STRING);
+                out.writeInt(symbols.get(value.toString()));
+            }
+        }
+    }
+
+    static void readValue(DataInput in, ConfigurationNode node, String[] symbols) throws IOException {
+        final byte tag = in.readByte();
+        switch (tag) {
+            case TAG_NULL:
+                node.setValue(null);
+                break;
+            case TAG_STRING:
+                node.setValue(symbols[in.readInt()]);
+                break;
+            case TAG_INT:
+                node.setValue(in.readInt());
+                break;
+            case TAG_LONG:
+                node.setValue(in.readLong());
+                break;
+            case TAG_DOUBLE:
+                node.setValue(in.readDouble());
+                break;
+            case TAG_TRUE:
+                node.setValue(true);
+                break;
+            case TAG_FALSE:
+                node.setValue(false);
+                break;
+            case TAG_LIST: {
+                final int count = in.readInt();
+                if (count == 0) {
+                    node.setValue(Collections.emptyList());
+                }
+                for (int i = 0; i < count; ++i) {
+                    readValue(in, node.getAppendedNode(), symbols);
+                }
+                break;
+            }
+            case TAG_MAP: {
+                final int count = in.readInt();
+                if (count == 0) {
+                    node.setValue(Collections.emptyMap());
+                }
+                for (int i = 0; i < count; ++i) {
+                    readValue(in, node.getNode(symbols[in.readInt()]), symbols);
+                }
+                break;
+            }
+            default:
+                throw new IOException("Unknown value type " + tag + " in snapshot");
+        }
+    }
+
+    static String[] readSymbols(DataInput in) throws IOException {
+        final String[] symbols = new String[in.readInt()];
+        for (int i = 0; i < symbols.length; ++i) {
+            symbols[i] = readString(in);
+        }
+        return symbols;
+    }
+
+    private static void writeString(DataOutput out, String str) throws IOException {
+        final byte[] bytes = str.getBytes(StandardCharsets.UTF_8);
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(DataInput in) throws IOException {
+        final byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static class SymbolTable {
+        private final Map<String, Integer> indices = new LinkedHashMap<>();
+
+        public int get(String symbol) {
+            Integer index = indices.get(symbol);
+            if (index == null) {
+                index = indices.size();
+                indices.put(symbol, index);
+            }
+            return index;
+        }
+
+        public int size() {
+            return indices.size();
+        }
+
+        public Iterable<String> values() {
+            return indices.keySet();
+        }
+    }
+}
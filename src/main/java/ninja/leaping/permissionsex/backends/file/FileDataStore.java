@@ -18,11 +18,18 @@ package ninja.leaping.permissionsex.backends.file;
 
 import com.google.common.base.Function;
 import com.google.common.base.Functions;
+import com.google.common.base.Objects;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.io.CharSink;
+import com.google.common.util.concurrent.SettableFuture;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import ninja.leaping.configurate.ConfigurationNode;
 import ninja.leaping.configurate.ConfigurationOptions;
+import ninja.leaping.configurate.SimpleConfigurationNode;
 import ninja.leaping.configurate.hocon.HoconConfigurationLoader;
 import ninja.leaping.configurate.loader.ConfigurationLoader;
 import ninja.leaping.configurate.objectmapping.ObjectMappingException;
@@ -38,24 +45,92 @@ import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
 
 import javax.annotation.Nullable;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
-import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+import java.util.zip.CheckedOutputStream;
 
 import static ninja.leaping.configurate.transformation.ConfigurationTransformation.WILDCARD_OBJECT;
 
 
 public class FileDataStore extends AbstractDataStore {
     public static final Factory FACTORY = new Factory("file", FileDataStore.class);
+    private static final long WATCH_SETTLE_TIME = 100;
 
     @Setting("file")
     private String file;
+    @Setting(value = "save-interval", comment = "Minimum time in milliseconds between writes of the permissions file. Changes made in between are saved together. Set to 0 to save on every change")
+    private long saveInterval = 0;
+    @Setting(value = "max-unsaved-changes", comment = "Number of unsaved changes that will trigger a save before the save interval has passed")
+    private int maxUnsavedChanges = 100;
+    @Setting(value = "durability", comment = "When a save counts as complete. NONE: as soon as it is queued, WRITE: once the file has been replaced, SYNC: once the file has also been flushed to disk")
+    private Durability durability = Durability.WRITE;
+    @Setting(value = "fast-load-cache", comment = "Keep a binary copy of the permissions file next to it, used to skip parsing the file on startup when it has not been changed")
+    private boolean fastLoadCache = true;
+    @Setting(value = "lazy-load", comment = "Only read subjects from the cached copy of the permissions file when they are requested, instead of keeping every subject in memory. Requires fast-load-cache")
+    private boolean lazyLoad = false;
+    @Setting(value = "watch-file", comment = "Reload subjects from the permissions file when it is edited outside of PermissionsEx. Starts a thread per file data store")
+    private boolean watchFile = false;
+    private File permissionsFile, tempFile, snapshotFile;
     private ConfigurationLoader permissionsFileLoader;
     private ConfigurationNode permissionsConfig;
-    private PermissionsEx manager;
+
+    private final Object dataLock = new Object(), writeLock = new Object();
+    private volatile SnapshotIndex snapshotIndex;
+    // Subjects held in permissionsConfig or removed since the snapshot was written, with the change count when they were last modified
+    private final Map<Map.Entry<String, String>, Long> unsnapshottedSubjects = new HashMap<>(); // guarded by dataLock
+    private final Set<Map.Entry<String, String>> removedSubjects = Collections.newSetFromMap(new ConcurrentHashMap<Map.Entry<String, String>, Boolean>());
+    private long changeCount; // guarded by dataLock
+    // Subjects changed in memory but not yet saved to the permissions file, with the write count when they were last changed
+    private final Map<Map.Entry<String, String>, Long> unsavedSubjects = new HashMap<>(); // guarded by dataLock
+    private long writeCount; // guarded by dataLock
+    private final Object saveLock = new Object();
+    private SettableFuture<Void> queuedSave; // guarded by saveLock
+    private boolean saveRunning; // guarded by saveLock
+    private ScheduledExecutorService saveScheduler;
+    private ScheduledFuture<?> scheduledFlush; // guarded by saveLock
+    private SettableFuture<Void> pendingSave; // guarded by saveLock
+    private int unsavedChanges; // guarded by saveLock
+    private WatchService watchService;
+    private volatile long lastChecksum; // Checksum of the permissions file as last read or written by this data store
+
+    /**
+     * Options for how far a save must have progressed before its future completes
+     */
+    public enum Durability {
+        NONE,
+        WRITE,
+        SYNC
+    }
 
     public FileDataStore() {
         super(FACTORY);
@@ -64,9 +139,14 @@ public class FileDataStore extends AbstractDataStore {
     private static ConfigurationTransformation.Builder tBuilder() {
         return ConfigurationTransformation.builder();
     }
-    public void initialize(final PermissionsEx permissionsEx) throws PermissionsLoadingException {
-        this.manager = permissionsEx;
-        File permissionsFile = new File(permissionsEx.getBaseDirectory(), file);
+    protected void initializeInternal(final PermissionsEx permissionsEx) throws PermissionsLoadingException {
+        if (saveInterval > 0) {
+            saveScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("PermissionsEx file saver (" + file + ")")
+                    .setDaemon(true)
+                    .build());
+        }
+        permissionsFile = new File(permissionsEx.getBaseDirectory(), file);
         if (file.endsWith(".yml")) {
             File legacyPermissionsFile = permissionsFile;
             ConfigurationLoader<ConfigurationNode> yamlLoader = YAMLConfigurationLoader.builder().setFile(permissionsFile).build();
@@ -83,6 +163,42 @@ public class FileDataStore extends AbstractDataStore {
         } else {
             permissionsFileLoader = HoconConfigurationLoader.builder().setFile(permissionsFile).build();
         }
+        tempFile = new File(permissionsFile.getPath() + ".tmp");
+        snapshotFile = new File(permissionsFile.getPath() + ".cache");
+        if (lazyLoad && !fastLoadCache) {
+            permissionsEx.getLogger().warn("Lazy loading for " + permissionsFile + " requires fast-load-cache, enabling it");
+            fastLoadCache = true;
+        }
+
+        loadPermissionsFile();
+        if (watchFile) {
+            startWatching();
+        }
+    }
+
+    private void loadPermissionsFile() throws PermissionsLoadingException {
+        final PermissionsEx permissionsEx = getManager();
+        long sourceChecksum = 0;
+        if (fastLoadCache && permissionsFile.isFile()) {
+            try {
+                sourceChecksum = BinarySnapshot.checksum(permissionsFile);
+                if (lazyLoad) {
+                    snapshotIndex = SnapshotIndex.open(snapshotFile, sourceChecksum);
+                    if (snapshotIndex != null) {
+                        permissionsConfig = SimpleConfigurationNode.root().setValue(snapshotIndex.getGlobals());
+                        return;
+                    }
+                } else {
+                    final ConfigurationNode cached = BinarySnapshot.read(snapshotFile, sourceChecksum);
+                    if (cached != null) {
+                        permissionsConfig = cached;
+                        return;
+                    }
+                }
+            } catch (IOException e) {
+                permissionsEx.getLogger().warn("Unable to load cached copy of permissions file " + permissionsFile + ", reading the file instead", e);
+            }
+        }
 
         try {
             permissionsConfig = permissionsFileLoader.load(ConfigurationOptions.defaults());//.setMapFactory(MapFactories.unordered()));
@@ -90,6 +206,57 @@ public class FileDataStore extends AbstractDataStore {
             throw new PermissionsLoadingException("While loading permissions file from " + permissionsFile, e);
         }
 
+        final long migrationStart = System.nanoTime();
+        ConfigurationTransformation versionUpdater = createSchemaUpdater();
+        int startVersion = permissionsConfig.getNode("schema-version").getInt(-1);
+        versionUpdater.apply(permissionsConfig);
+        int endVersion = permissionsConfig.getNode("schema-version").getInt();
+        if (lazyLoad) {
+            // Everything is in memory until it has been written to a snapshot we can index
+            for (ConfigurationNode section : permissionsConfig.getChildrenMap().values()) {
+                if (BinarySnapshot.isSection(section)) {
+                    for (Object identifier : section.getChildrenMap().keySet()) {
+                        unsnapshottedSubjects.put(Maps.immutableEntry(section.getKey().toString(), identifier.toString()), 0L);
+                    }
+                }
+            }
+        }
+
+        if (endVersion > startVersion) {
+            permissionsEx.getLogger().info(permissionsFile + " schema version updated from " + startVersion + " to " + endVersion
+                    + " in " + TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - migrationStart) + "ms");
+            if (lazyLoad) {
+                try {
+                    saveSync();
+                } catch (IOException e) {
+                    throw new PermissionsLoadingException("While saving updated permissions file " + permissionsFile, e);
+                }
+            } else {
+                save();
+            }
+        } else if (lazyLoad && permissionsFile.isFile()) {
+            synchronized (writeLock) {
+                writeSnapshot(permissionsConfig, sourceChecksum);
+                swapSnapshotIndex(sourceChecksum, 0);
+            }
+        } else if (fastLoadCache && permissionsFile.isFile()) {
+            final ConfigurationNode snapshot = SimpleConfigurationNode.root().setValue(permissionsConfig);
+            final long checksum = sourceChecksum;
+            permissionsEx.executeAsyncronously(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (writeLock) {
+                        writeSnapshot(snapshot, checksum);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Create the transformation that upgrades permissions data written by older versions to the current schema
+     */
+    private ConfigurationTransformation createSchemaUpdater() {
         final TransformAction movePrefixSuffixDefaultAction = new TransformAction() {
             @Override
             public Object[] visitPath(ConfigurationTransformation.NodePath nodePath, ConfigurationNode configurationNode) {
@@ -114,7 +281,7 @@ public class FileDataStore extends AbstractDataStore {
             }
         };
 
-        ConfigurationTransformation versionUpdater = ConfigurationTransformation.versionedBuilder()
+        return ConfigurationTransformation.versionedBuilder()
                 .setVersionKey("schema-version")
                 .addVersion(2, ConfigurationTransformation.chain(tBuilder()
                                 .addAction(new Object[]{WILDCARD_OBJECT, WILDCARD_OBJECT}, new TransformAction() {
@@ -157,7 +324,7 @@ public class FileDataStore extends AbstractDataStore {
                                             }
                                             permission = ConversionUtils.convertLegacyPermission(permission);
                                             if (permission.contains("*")) {
-                                                permissionsEx.getLogger().warn("The permission at " + Arrays.toString(configurationNode.getPath()) + " contains a now-illegal character '*'");
+                                                getManager().getLogger().warn("The permission at " + Arrays.toString(configurationNode.getPath()) + " contains a now-illegal character '*'");
                                             }
                                             configurationNode.getNode(permission).setValue(value);
                                         }
@@ -192,40 +359,546 @@ public class FileDataStore extends AbstractDataStore {
                         .addAction(new Object[]{WILDCARD_OBJECT, WILDCARD_OBJECT, "worlds", WILDCARD_OBJECT}, movePrefixSuffixDefaultAction)
                         .build())
                 .build();
-        int startVersion = permissionsConfig.getNode("schema-version").getInt(-1);
-        versionUpdater.apply(permissionsConfig);
-        int endVersion = permissionsConfig.getNode("schema-version").getInt();
-        if (endVersion > startVersion) {
-            permissionsEx.getLogger().info(permissionsFile + " schema version updated from " + startVersion + " to " + endVersion);
-            save();
+    }
+
+    /**
+     * Start a background thread that reloads the permissions file whenever it is changed by something else
+     */
+    private void startWatching() throws PermissionsLoadingException {
+        final Path directory = permissionsFile.getAbsoluteFile().getParentFile().toPath();
+        try {
+            synchronized (writeLock) {
+                if (permissionsFile.isFile()) {
+                    lastChecksum = BinarySnapshot.checksum(permissionsFile);
+                }
+            }
+            watchService = directory.getFileSystem().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        } catch (IOException e) {
+            throw new PermissionsLoadingException("Unable to watch permissions file " + permissionsFile + " for changes", e);
         }
+        final Thread watchThread = new ThreadFactoryBuilder()
+                .setNameFormat("PermissionsEx file watcher (" + file + ")")
+                .setDaemon(true)
+                .build().newThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        watch(watchService);
+                    }
+                });
+        watchThread.start();
     }
 
-    public void close() {
+    private void watch(WatchService watcher) {
+        final Path fileName = permissionsFile.toPath().getFileName();
+        try {
+            while (true) {
+                if (!isChanged(watcher.take(), fileName)) {
+                    continue;
+                }
+                // Editors often write a file in several steps, so wait until it has settled
+                WatchKey next;
+                while ((next = watcher.poll(WATCH_SETTLE_TIME, TimeUnit.MILLISECONDS)) != null) {
+                    isChanged(next, fileName);
+                }
+                try {
+                    reload();
+                } catch (PermissionsLoadingException e) {
+                    getManager().getLogger().warn("Unable to reload changed permissions file " + permissionsFile + ", keeping current data", e);
+                }
+            }
+        } catch (ClosedWatchServiceException | InterruptedException e) {
+            // Data store has been closed
+        }
+    }
 
+    private static boolean isChanged(WatchKey key, Path fileName) {
+        boolean ret = false;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == StandardWatchEventKinds.OVERFLOW || fileName.equals(event.context())) {
+                ret = true;
+            }
+        }
+        key.reset();
+        return ret;
     }
 
-    private ListenableFuture<Void> save() {
-        final ListenableFutureTask<Void> ret = ListenableFutureTask.create(new Callable<Void>() {
+    /**
+     * Read the permissions file again and apply every subject that differs from the data currently held by this data store.
+     * Listeners are only notified for subjects that changed. Subjects with changes that have not been saved yet keep their
+     * in-memory data. Nothing is done if the file is the same as the last time it was read or written by this data store.
+     *
+     * @throws PermissionsLoadingException if the file could not be read or parsed
+     */
+    @Override
+    public void reload() throws PermissionsLoadingException {
+        try {
+            reloadFile();
+        } catch (IOException e) {
+            throw new PermissionsLoadingException("While reloading permissions file " + permissionsFile, e);
+        }
+    }
+
+    private void reloadFile() throws IOException, PermissionsLoadingException {
+        final List<Map.Entry<String, String>> changed = new ArrayList<>();
+        synchronized (writeLock) {
+            if (!permissionsFile.isFile()) {
+                return;
+            }
+            final long checksum = BinarySnapshot.checksum(permissionsFile);
+            if (checksum == lastChecksum) {
+                return;
+            }
+
+            final ConfigurationNode newConfig;
+            try {
+                newConfig = permissionsFileLoader.load(ConfigurationOptions.defaults());
+            } catch (IOException e) {
+                throw new PermissionsLoadingException("While reloading permissions file from " + permissionsFile, e);
+            }
+            createSchemaUpdater().apply(newConfig);
+
+            final long reloadChangeCount;
+            synchronized (dataLock) {
+                final Set<String> sections = new HashSet<>(), globals = new HashSet<>();
+                for (ConfigurationNode node : Iterables.concat(permissionsConfig.getChildrenMap().values(), newConfig.getChildrenMap().values())) {
+                    (BinarySnapshot.isSection(node) ? sections : globals).add(node.getKey().toString());
+                }
+                final SnapshotIndex index = snapshotIndex;
+                if (index != null) {
+                    sections.addAll(index.getSections());
+                }
+                globals.removeAll(sections);
+                for (String key : globals) {
+                    permissionsConfig.getNode(key).setValue(newConfig.getNode(key));
+                }
+
+                for (String section : sections) {
+                    final Set<String> identifiers = new HashSet<>();
+                    for (Object identifier : Iterables.concat(permissionsConfig.getNode(section).getChildrenMap().keySet(),
+                            newConfig.getNode(section).getChildrenMap().keySet())) {
+                        identifiers.add(identifier.toString());
+                    }
+                    if (index != null) {
+                        identifiers.addAll(index.getIdentifiers(section));
+                    }
+
+                    for (String identifier : identifiers) {
+                        if (unsavedSubjects.containsKey(Maps.immutableEntry(section, identifier))) {
+                            continue; // Unsaved changes win, and will overwrite this subject in the file on the next save
+                        }
+                        final ConfigurationNode newNode = newConfig.getNode(section, identifier);
+                        if (!Objects.equal(normalizedValue(getSubjectNode(section, identifier)), normalizedValue(newNode))) {
+                            permissionsConfig.getNode(section, identifier).setValue(newNode.isVirtual() ? null : newNode);
+                            markChanged(section, identifier, newNode.isVirtual());
+                            changed.add(Maps.immutableEntry(section, identifier));
+                        }
+                    }
+                }
+                reloadChangeCount = changeCount;
+                lastChecksum = checksum;
+            }
+
+            if (fastLoadCache) {
+                writeSnapshot(newConfig, checksum);
+                if (lazyLoad) {
+                    swapSnapshotIndex(checksum, reloadChangeCount);
+                }
+            }
+        }
+
+        if (!changed.isEmpty()) {
+            getManager().getLogger().info("Reloaded " + changed.size() + " changed subjects from " + permissionsFile);
+        }
+        for (Map.Entry<String, String> subject : changed) {
+            final String section = subject.getKey();
+            refresh(sectionToType(section), subject.getValue());
+        }
+    }
+
+    /**
+     * Get the value of a subject's node as it would be written by this data store, so formatting differences between a
+     * hand-edited file and our own output do not count as changes.
+     */
+    private static Object normalizedValue(ConfigurationNode subject) throws PermissionsLoadingException {
+        if (subject.isVirtual()) {
+            return null;
+        }
+        final ConfigurationNode ret = SimpleConfigurationNode.root();
+        try {
+            FileOptionSubjectData.fromNode(subject).serialize(ret);
+        } catch (ObjectMappingException e) {
+            throw new PermissionsLoadingException("Invalid subject data at " + Arrays.toString(subject.getPath()), e);
+        }
+        return ret.getValue();
+    }
+
+    protected void closeInternal() {
+        if (watchService != null) {
+            try {
+                watchService.close();
+            } catch (IOException e) {
+                getManager().getLogger().warn("Unable to stop watching permissions file " + permissionsFile, e);
+            }
+        }
+        if (saveScheduler != null) {
+            saveScheduler.shutdown();
+        }
+
+        // Take over both the unflushed batch and any save still waiting for the async executor, which may no longer
+        // run tasks once we're closing, so everything outstanding is written by a single save
+        final SettableFuture<Void> batch, queued;
+        synchronized (saveLock) {
+            batch = takeBatch();
+            queued = queuedSave;
+            queuedSave = null;
+        }
+        if (batch != null || queued != null) {
+            try {
+                saveSync();
+                complete(batch, null);
+                complete(queued, null);
+            } catch (IOException e) {
+                getManager().getLogger().error("Unable to save permissions file " + file, e);
+                complete(batch, e);
+                complete(queued, e);
+            }
+        }
+
+        // Saving may have swapped in a new index, so only close it once nothing else will be written
+        final SnapshotIndex index;
+        synchronized (dataLock) {
+            index = snapshotIndex;
+            snapshotIndex = null;
+        }
+        closeIndex(index);
+    }
+
+    private static void complete(@Nullable SettableFuture<Void> future, @Nullable Throwable error) {
+        if (future == null) {
+            return;
+        }
+        if (error == null) {
+            future.set(null);
+        } else {
+            future.setException(error);
+        }
+    }
+
+    /**
+     * Record that the in-memory permissions data has changed. Depending on the configured save interval, this either
+     * saves immediately or waits for the next flush, which will write every change made since the previous one.
+     *
+     * @return A future that completes once the changes have been written
+     */
+    private ListenableFuture<Void> markDirty() {
+        if (saveScheduler == null) {
+            return save();
+        }
+
+        synchronized (saveLock) {
+            if (pendingSave == null) {
+                pendingSave = SettableFuture.create();
+            }
+            final ListenableFuture<Void> ret = pendingSave;
+            if (++unsavedChanges >= maxUnsavedChanges) {
+                flush();
+            } else if (scheduledFlush == null) {
+                scheduledFlush = saveScheduler.schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        flush();
+                    }
+                }, saveInterval, TimeUnit.MILLISECONDS);
+            }
+            return ret;
+        }
+    }
+
+    /**
+     * Take the future for every change made since the last flush, cancelling the scheduled flush. Must be called while
+     * holding {@link #saveLock}.
+     *
+     * @return The pending batch, or null if nothing has changed since the last flush
+     */
+    @Nullable
+    private SettableFuture<Void> takeBatch() {
+        if (scheduledFlush != null) {
+            scheduledFlush.cancel(false);
+            scheduledFlush = null;
+        }
+        final SettableFuture<Void> batch = pendingSave;
+        pendingSave = null;
+        unsavedChanges = 0;
+        return batch;
+    }
+
+    /**
+     * Queue a save of any pending changes, completing every future handed out since the last flush once it is written.
+     */
+    private void flush() {
+        final SettableFuture<Void> batch;
+        synchronized (saveLock) {
+            batch = takeBatch();
+        }
+        if (batch == null) {
+            return;
+        }
+
+        Futures.addCallback(save(), new FutureCallback<Void>() {
             @Override
-            public Void call() throws Exception {
-                permissionsFileLoader.save(permissionsConfig);
-                return null;
+            public void onSuccess(@Nullable Void result) {
+                batch.set(null);
+            }
+
+            @Override
+            public void onFailure(Throwable t) {
+                batch.setException(t);
             }
         });
-        manager.executeAsyncronously(ret);
-        return ret;
+    }
+
+    /**
+     * Queue a save of the permissions file. Only one save runs at a time -- a save requested while another is in progress
+     * is merged into the single queued save, which will write the latest state of the file once the running save is done.
+     *
+     * @return A future completing according to this data store's durability setting
+     */
+    private ListenableFuture<Void> save() {
+        final SettableFuture<Void> ret;
+        final boolean startSaving;
+        synchronized (saveLock) {
+            if (queuedSave == null) {
+                queuedSave = SettableFuture.create();
+            }
+            ret = queuedSave;
+            startSaving = !saveRunning;
+            saveRunning = true;
+        }
+
+        if (startSaving) {
+            getManager().executeAsyncronously(saveTask);
+        }
+        return durability == Durability.NONE ? Futures.<Void>immediateFuture(null) : ret;
+    }
+
+    private final Runnable saveTask = new Runnable() {
+        @Override
+        public void run() {
+            while (true) {
+                final SettableFuture<Void> current;
+                synchronized (saveLock) {
+                    current = queuedSave;
+                    queuedSave = null;
+                    if (current == null) {
+                        saveRunning = false;
+                        return;
+                    }
+                }
+
+                try {
+                    saveSync();
+                    current.set(null);
+                } catch (IOException e) {
+                    getManager().getLogger().error("Unable to save permissions file " + file, e);
+                    current.setException(e);
+                }
+            }
+        }
+    };
+
+    /**
+     * Write a snapshot of the current permissions data to a temporary file, then move it over the real file so a crash
+     * mid-write can never leave a truncated permissions file behind.
+     *
+     * @throws IOException if the file could not be written
+     */
+    private void saveSync() throws IOException {
+        synchronized (writeLock) {
+            final ConfigurationNode snapshot;
+            final SnapshotIndex index;
+            final long snapshotChangeCount, snapshotWriteCount;
+            synchronized (dataLock) {
+                snapshot = SimpleConfigurationNode.root().setValue(permissionsConfig);
+                index = snapshotIndex;
+                snapshotChangeCount = changeCount;
+                snapshotWriteCount = writeCount;
+            }
+            if (index != null) { // Fill in every subject that is only present in the previous snapshot
+                for (String section : index.getSections()) {
+                    for (String identifier : index.getIdentifiers(section)) {
+                        final ConfigurationNode subject = snapshot.getNode(section, identifier);
+                        if (subject.isVirtual() && !removedSubjects.contains(Maps.immutableEntry(section, identifier))) {
+                            subject.setValue(index.load(section, identifier));
+                        }
+                    }
+                }
+            }
+            final CRC32 checksum = new CRC32();
+            HoconConfigurationLoader.builder().setSink(new CharSink() {
+                @Override
+                public Writer openStream() throws IOException {
+                    return new OutputStreamWriter(new CheckedOutputStream(new FileOutputStream(tempFile), checksum), StandardCharsets.UTF_8);
+                }
+            }).build().save(snapshot);
+            lastChecksum = checksum.getValue();
+            if (durability == Durability.SYNC) {
+                try (FileChannel channel = FileChannel.open(tempFile.toPath(), StandardOpenOption.WRITE)) {
+                    channel.force(true);
+                }
+            }
+            try {
+                Files.move(tempFile.toPath(), permissionsFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(tempFile.toPath(), permissionsFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            }
+            if (durability == Durability.SYNC) { // The rename is only durable once the directory holding it is flushed
+                syncDirectory(permissionsFile.getAbsoluteFile().getParentFile());
+            }
+            synchronized (dataLock) {
+                for (Iterator<Long> it = unsavedSubjects.values().iterator(); it.hasNext();) {
+                    if (it.next() <= snapshotWriteCount) {
+                        it.remove();
+                    }
+                }
+            }
+            if (fastLoadCache) {
+                writeSnapshot(snapshot, checksum.getValue());
+                if (lazyLoad) {
+                    swapSnapshotIndex(checksum.getValue(), snapshotChangeCount);
+                }
+            }
+        }
+    }
+
+    private void syncDirectory(File directory) throws IOException {
+        final FileChannel channel;
+        try {
+            channel = FileChannel.open(directory.toPath(), StandardOpenOption.READ);
+        } catch (IOException e) {
+            return; // Some platforms, such as Windows, cannot open directories, and make renames durable themselves
+        }
+        try {
+            channel.force(true);
+        } finally {
+            channel.close();
+        }
+    }
+
+    /**
+     * Start reading subjects from a newly written snapshot, and drop in-memory copies of subjects it contains.
+     *
+     * @param sourceChecksum The checksum of the permissions file the snapshot was written for
+     * @param snapshotChangeCount The change count when the snapshot's contents were taken. Subjects modified after this
+     *                            point are kept in memory
+     */
+    private void swapSnapshotIndex(long sourceChecksum, long snapshotChangeCount) {
+        final SnapshotIndex newIndex;
+        try {
+            newIndex = SnapshotIndex.open(snapshotFile, sourceChecksum);
+        } catch (IOException e) {
+            getManager().getLogger().warn("Unable to index cached copy of permissions file " + permissionsFile, e);
+            return;
+        }
+        if (newIndex == null) { // Snapshot was not written
+            return;
+        }
+
+        final SnapshotIndex oldIndex;
+        synchronized (dataLock) {
+            oldIndex = snapshotIndex;
+            snapshotIndex = newIndex;
+            for (Iterator<Map.Entry<Map.Entry<String, String>, Long>> it = unsnapshottedSubjects.entrySet().iterator(); it.hasNext();) {
+                final Map.Entry<Map.Entry<String, String>, Long> ent = it.next();
+                if (ent.getValue() <= snapshotChangeCount) {
+                    permissionsConfig.getNode(ent.getKey().getKey()).removeChild(ent.getKey().getValue());
+                    removedSubjects.remove(ent.getKey());
+                    it.remove();
+                }
+            }
+        }
+        closeIndex(oldIndex);
+    }
+
+    private void closeIndex(SnapshotIndex index) {
+        if (index != null) {
+            try {
+                index.close();
+            } catch (IOException e) {
+                getManager().getLogger().warn("Unable to close cached copy of permissions file " + permissionsFile, e);
+            }
+        }
+    }
+
+    /**
+     * Get the node holding data for a single subject. When lazy loading, this is read from the snapshot unless the subject
+     * has been changed since the snapshot was written.
+     *
+     * @param section The section the subject is in
+     * @param identifier The subject's identifier
+     * @return The subject's node, which may be virtual if the subject does not exist
+     * @throws IOException if the subject could not be read from the snapshot
+     */
+    private ConfigurationNode getSubjectNode(String section, String identifier) throws IOException {
+        return getSubjectNode(section, identifier, true);
+    }
+
+    private ConfigurationNode getSubjectNode(String section, String identifier, boolean retry) throws IOException {
+        final ConfigurationNode node = permissionsConfig.getNode(section, identifier);
+        final SnapshotIndex index = snapshotIndex;
+        if (!node.isVirtual() || index == null || removedSubjects.contains(Maps.immutableEntry(section, identifier))) {
+            return node;
+        }
+
+        final ConfigurationNode stored;
+        try {
+            stored = index.load(section, identifier);
+        } catch (ClosedChannelException e) {
+            if (retry) { // The index was replaced while we were reading
+                return getSubjectNode(section, identifier, false);
+            }
+            throw e;
+        }
+        return stored == null ? node : stored;
+    }
+
+    /**
+     * Record a change to a subject's in-memory data. Must be called while holding {@link #dataLock}.
+     */
+    private void markChanged(String section, String identifier, boolean removed) {
+        if (!lazyLoad) {
+            return;
+        }
+        final Map.Entry<String, String> key = Maps.immutableEntry(section, identifier);
+        unsnapshottedSubjects.put(key, ++changeCount);
+        if (removed) {
+            removedSubjects.add(key);
+        } else {
+            removedSubjects.remove(key);
+        }
+    }
+
+    private void writeSnapshot(ConfigurationNode snapshot, long sourceChecksum) {
+        try {
+            BinarySnapshot.write(snapshotFile, sourceChecksum, snapshot);
+        } catch (IOException e) {
+            getManager().getLogger().warn("Unable to write cached copy of permissions file " + permissionsFile, e);
+        }
     }
 
     private String typeToSection(String type) {
         return type + "s";
     }
 
+    private String sectionToType(String section) {
+        return section.substring(0, section.length() - 1);
+    }
+
     @Override
     public ImmutableOptionSubjectData getDataInternal(String type, String identifier) throws PermissionsLoadingException {
         try {
-            return FileOptionSubjectData.fromNode(permissionsConfig.getNode(typeToSection(type), identifier));
-        } catch (ObjectMappingException e) {
+            return FileOptionSubjectData.fromNode(getSubjectNode(typeToSection(type), identifier));
+        } catch (ObjectMappingException | IOException e) {
             throw new PermissionsLoadingException("While deserializing subject data for " + type + ":" + identifier, e);
         }
     }
@@ -234,9 +907,12 @@ public class FileDataStore extends AbstractDataStore {
     protected ListenableFuture<ImmutableOptionSubjectData> setDataInternal(String type, String identifier, final ImmutableOptionSubjectData data) {
         try {
             if (data == null) {
-                permissionsConfig.getNode(typeToSection(type), identifier).setValue(null);
-                save();
-                return null;
+                synchronized (dataLock) {
+                    permissionsConfig.getNode(typeToSection(type), identifier).setValue(null);
+                    markChanged(typeToSection(type), identifier, true);
+                    unsavedSubjects.put(Maps.immutableEntry(typeToSection(type), identifier), ++writeCount);
+                }
+                return Futures.transform(markDirty(), Functions.<ImmutableOptionSubjectData>constant(null));
             }
 
             final FileOptionSubjectData fileData;
@@ -244,11 +920,14 @@ public class FileDataStore extends AbstractDataStore {
             if (data instanceof FileOptionSubjectData) {
                 fileData = (FileOptionSubjectData) data;
             } else {
-                fileData = new FileOptionSubjectData();
-                ConversionUtils.transfer(data, fileData);
+                fileData = (FileOptionSubjectData) ConversionUtils.transfer(data, new FileOptionSubjectData());
+            }
+            synchronized (dataLock) {
+                fileData.serialize(permissionsConfig.getNode(typeToSection(type), identifier));
+                markChanged(typeToSection(type), identifier, false);
+                unsavedSubjects.put(Maps.immutableEntry(typeToSection(type), identifier), ++writeCount);
             }
-            fileData.serialize(permissionsConfig.getNode(typeToSection(type), identifier));
-            return Futures.transform(save(), new Function<Void, ImmutableOptionSubjectData>() {
+            return Futures.transform(markDirty(), new Function<Void, ImmutableOptionSubjectData>() {
                 @Nullable
                 @Override
                 public ImmutableOptionSubjectData apply(Void input) {
@@ -262,12 +941,59 @@ public class FileDataStore extends AbstractDataStore {
 
     @Override
     public boolean isRegistered(String type, String identifier) {
-        return !permissionsConfig.getNode(typeToSection(type), identifier).isVirtual();
+        final String section = typeToSection(type);
+        if (!permissionsConfig.getNode(section, identifier).isVirtual()) {
+            return true;
+        }
+        final SnapshotIndex index = snapshotIndex;
+        return index != null && index.contains(section, identifier) && !removedSubjects.contains(Maps.immutableEntry(section, identifier));
     }
 
     @Override
     @SuppressWarnings("unchecked")
     public Iterable<String> getAllIdentifiers(String type) {
-        return (Set) this.permissionsConfig.getNode(typeToSection(type)).getChildrenMap().keySet();
+        final String section = typeToSection(type);
+        final Set<String> inMemory = (Set) this.permissionsConfig.getNode(section).getChildrenMap().keySet();
+        final SnapshotIndex index = snapshotIndex;
+        if (index == null) {
+            return inMemory;
+        }
+
+        final Set<String> ret = new HashSet<>(inMemory);
+        for (String identifier : index.getIdentifiers(section)) {
+            if (!removedSubjects.contains(Maps.immutableEntry(section, identifier))) {
+                ret.add(identifier);
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    protected boolean isAppliedOnWrite() {
+        return true; // Changes are made to the loaded file as they are written, and saved later
+    }
+
+    @Override
+    protected boolean isChangeTracked() {
+        return true; // Edits to the file are only seen after reload(), which refreshes every changed subject
+    }
+
+    @Override
+    public Iterable<String> getRegisteredTypes() {
+        final Set<String> ret = new HashSet<>();
+        synchronized (dataLock) {
+            for (ConfigurationNode node : permissionsConfig.getChildrenMap().values()) {
+                if (BinarySnapshot.isSection(node)) {
+                    ret.add(sectionToType(node.getKey().toString()));
+                }
+            }
+        }
+        final SnapshotIndex index = snapshotIndex;
+        if (index != null) {
+            for (String section : index.getSections()) {
+                ret.add(sectionToType(section));
+            }
+        }
+        return ret;
     }
 }
@@ -17,9 +17,11 @@
 package ninja.leaping.permissionsex.backends.file;
 
 import com.google.common.base.Function;
+import com.google.common.base.Functions;
 import com.google.common.collect.Collections2;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
 import com.google.common.collect.Maps;
 import ninja.leaping.configurate.ConfigurationNode;
 import ninja.leaping.configurate.objectmapping.ObjectMappingException;
@@ -35,6 +37,10 @@ import static java.util.Map.Entry;
 
 public class FileOptionSubjectData extends MemoryOptionSubjectData {
     private static final String KEY_CONTEXTS = "context";
+    private static final String KEY_PERMISSIONS = "permissions";
+    private static final String KEY_OPTIONS = "options";
+    private static final String KEY_PARENTS = "parents";
+    private static final String KEY_DEFAULT_VALUE = "permissions-default";
 
     static FileOptionSubjectData fromNode(ConfigurationNode node) throws ObjectMappingException {
         ImmutableMap.Builder<Set<Entry<String, String>>, DataEntry> map = ImmutableMap.builder();
@@ -92,13 +98,26 @@ public class FileOptionSubjectData extends MemoryOptionSubjectData {
                     contextsNode.getNode(context.getKey()).setValue(context.getValue());
                 }
             }
-            MAPPER.bind(ent.getValue()).serialize(contextSection);
+            serializeEntry(ent.getValue(), contextSection);
         }
         for (ConfigurationNode unused : existingSections.values()) {
             unused.setValue(null);
         }
     }
 
+    /**
+     * Write a single context section. Unlike the object mapper, this skips (and removes) any parts of the entry that are unset.
+     *
+     * @param entry The entry to write
+     * @param node The node to write to
+     */
+    private static void serializeEntry(DataEntry entry, ConfigurationNode node) {
+        node.getNode(KEY_PERMISSIONS).setValue(entry.getPermissions());
+        node.getNode(KEY_OPTIONS).setValue(entry.getOptions());
+        node.getNode(KEY_PARENTS).setValue(entry.getParents() == null ? null : Lists.transform(entry.getParents(), Functions.toStringFunction()));
+        node.getNode(KEY_DEFAULT_VALUE).setValue(entry.getDefaultValue() == 0 ? null : entry.getDefaultValue());
+    }
+
     @Override
     public String toString() {
         return "FileOptionSubjectData{" +
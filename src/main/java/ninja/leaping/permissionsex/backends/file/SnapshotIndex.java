@@ -0,0 +1,175 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.file;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.io.ByteStreams;
+import com.google.common.io.CountingInputStream;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.SimpleConfigurationNode;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * An index of the subject records in a {@link BinarySnapshot}, allowing single subjects to be read from the snapshot
+ * on demand without loading the rest of the file.
+ */
+final class SnapshotIndex implements Closeable {
+    private final FileChannel channel;
+    private final String[] symbols;
+    private final ConfigurationNode globals;
+    private final Map<String, Map<String, Record>> sections;
+
+    private static class Record {
+        private final long offset;
+        private final int length;
+
+        private Record(long offset, int length) {
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private SnapshotIndex(FileChannel channel, String[] symbols, ConfigurationNode globals, Map<String, Map<String, Record>> sections) {
+        this.channel = channel;
+        this.symbols = symbols;
+        this.globals = globals;
+        this.sections = sections;
+    }
+
+    /**
+     * Index the snapshot in {@code snapshotFile}, if it is present and was generated from a file with the expected checksum.
+     *
+     * @param snapshotFile The snapshot file
+     * @param expectedChecksum The checksum of the current source file
+     * @return The index, or null if the snapshot is missing or out of date
+     * @throws IOException if the snapshot could not be read
+     */
+    public static SnapshotIndex open(File snapshotFile, long expectedChecksum) throws IOException {
+        if (!snapshotFile.isFile()) {
+            return null;
+        }
+
+        final FileChannel channel = FileChannel.open(snapshotFile.toPath(), StandardOpenOption.READ);
+        boolean success = false;
+        try {
+            // The stream must not be closed here -- that would close the channel as well
+            final CountingInputStream counter = new CountingInputStream(new BufferedInputStream(Channels.newInputStream(channel)));
+            final DataInputStream in = new DataInputStream(counter);
+            if (!BinarySnapshot.readHeader(in, expectedChecksum)) {
+                return null;
+            }
+            final String[] symbols = BinarySnapshot.readSymbols(in);
+
+            final ConfigurationNode globals = SimpleConfigurationNode.root();
+            final int globalCount = in.readInt();
+            for (int i = 0; i < globalCount; ++i) {
+                BinarySnapshot.readValue(in, globals.getNode(symbols[in.readInt()]), symbols);
+            }
+
+            final ImmutableMap.Builder<String, Map<String, Record>> sections = ImmutableMap.builder();
+            final int sectionCount = in.readInt();
+            for (int i = 0; i < sectionCount; ++i) {
+                final String section = symbols[in.readInt()];
+                final ImmutableMap.Builder<String, Record> records = ImmutableMap.builder();
+                final int subjectCount = in.readInt();
+                for (int j = 0; j < subjectCount; ++j) {
+                    final String identifier = symbols[in.readInt()];
+                    final int length = in.readInt();
+                    records.put(identifier, new Record(counter.getCount(), length));
+                    ByteStreams.skipFully(in, length);
+                }
+                sections.put(section, records.build());
+            }
+            success = true;
+            return new SnapshotIndex(channel, symbols, globals, sections.build());
+        } catch (EOFException e) {
+            throw new IOException("Snapshot " + snapshotFile + " is truncated", e);
+        } finally {
+            if (!success) {
+                channel.close();
+            }
+        }
+    }
+
+    /**
+     * Get the values stored outside of any section (such as the schema version).
+     *
+     * @return A node containing every global value
+     */
+    public ConfigurationNode getGlobals() {
+        return globals;
+    }
+
+    public Set<String> getSections() {
+        return sections.keySet();
+    }
+
+    public boolean contains(String section, String identifier) {
+        final Map<String, Record> records = sections.get(section);
+        return records != null && records.containsKey(identifier);
+    }
+
+    public Set<String> getIdentifiers(String section) {
+        final Map<String, Record> records = sections.get(section);
+        return records == null ? ImmutableSet.<String>of() : records.keySet();
+    }
+
+    /**
+     * Read a single subject from the snapshot.
+     *
+     * @param section The section containing the subject
+     * @param identifier The subject's identifier
+     * @return A detached node holding the subject's data, or null if the subject is not present in the snapshot
+     * @throws IOException if the record could not be read
+     */
+    public ConfigurationNode load(String section, String identifier) throws IOException {
+        final Map<String, Record> records = sections.get(section);
+        final Record record = records == null ? null : records.get(identifier);
+        if (record == null) {
+            return null;
+        }
+
+        final ByteBuffer buffer = ByteBuffer.allocate(record.length);
+        while (buffer.hasRemaining()) {
+            if (channel.read(buffer, record.offset + buffer.position()) == -1) {
+                throw new EOFException("Snapshot ended while reading " + section + "/" + identifier);
+            }
+        }
+        final ConfigurationNode ret = SimpleConfigurationNode.root();
+        BinarySnapshot.readValue(new DataInputStream(new ByteArrayInputStream(buffer.array())), ret, symbols);
+        return ret;
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+}
@@ -0,0 +1,269 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.journal;
+
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * A memory-mapped file of subject records.
+ *
+ * <p>The file starts with a header holding its generation, and is followed by records of the form
+ * {@code [int length][int crc][byte operation][string type][string identifier][data]}. Strings are stored as an
+ * unsigned short length followed by their UTF-8 bytes. A length of zero marks the end of the file's records.
+ * Records are only ever appended, so any record that has been read remains valid while its buffer is referenced.</p>
+ */
+final class Journal implements Closeable {
+    static final byte OP_SET = 1, OP_REMOVE = 2;
+    private static final int MAGIC = 0x5045584a; // PEXJ
+    private static final int VERSION = 1;
+    private static final int HEADER_LENGTH = 16, RECORD_HEADER_LENGTH = 8;
+    private static final int INITIAL_SIZE = 1 << 20;
+
+    /**
+     * The location of a single subject's data
+     */
+    static final class Location {
+        private final ByteBuffer buffer;
+        private final int offset, length;
+
+        private Location(ByteBuffer buffer, int offset, int length) {
+            this.buffer = buffer;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        public byte[] getData() {
+            final ByteBuffer data = buffer.duplicate();
+            data.position(offset);
+            final byte[] ret = new byte[length];
+            data.get(ret);
+            return ret;
+        }
+    }
+
+    interface RecordHandler {
+        void handle(byte operation, String type, String identifier, Location location);
+    }
+
+    private final File file;
+    private final FileChannel channel;
+    private final long generation;
+    private final boolean writable;
+    private MappedByteBuffer buffer;
+    private int position;
+    private boolean closed;
+
+    private Journal(File file, FileChannel channel, long generation, boolean writable, MappedByteBuffer buffer, int position) {
+        this.file = file;
+        this.channel = channel;
+        this.generation = generation;
+        this.writable = writable;
+        this.buffer = buffer;
+        this.position = position;
+    }
+
+    /**
+     * Create a new, empty journal
+     *
+     * @param file The file to write to. Any existing contents are discarded
+     * @param generation The generation of this journal
+     * @return The journal, open for appending
+     * @throws IOException if the file could not be created
+     */
+    public static Journal create(File file, long generation) throws IOException {
+        final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                StandardOpenOption.READ, StandardOpenOption.WRITE);
+        final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_SIZE);
+        buffer.putInt(0, MAGIC);
+        buffer.putInt(4, VERSION);
+        buffer.putLong(8, generation);
+        return new Journal(file, channel, generation, true, buffer, HEADER_LENGTH);
+    }
+
+    /**
+     * Open an existing journal, passing every intact record to {@code handler}. Reading stops at the first
+     * incomplete or corrupted record, which is where new records will be appended.
+     *
+     * @param file The file to open
+     * @param writable Whether this journal will be appended to
+     * @param handler The handler to receive records
+     * @return The opened journal
+     * @throws IOException if the file could not be read or is not a journal
+     */
+    public static Journal open(File file, boolean writable, RecordHandler handler) throws IOException {
+        final FileChannel channel = writable ? FileChannel.open(file.toPath(), StandardOpenOption.READ, StandardOpenOption.WRITE)
+                : FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        try {
+            final long size = channel.size();
+            if (size < HEADER_LENGTH || size > Integer.MAX_VALUE) {
+                throw new IOException("Journal " + file + " has invalid length " + size);
+            }
+            final MappedByteBuffer buffer = channel.map(writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION) {
+                throw new IOException("File " + file + " is not a journal of a supported version");
+            }
+            final long generation = buffer.getLong(8);
+
+            final CRC32 crc = new CRC32();
+            int position = HEADER_LENGTH;
+            while (position + RECORD_HEADER_LENGTH <= size) {
+                final int length = buffer.getInt(position);
+                if (length <= 0 || position + RECORD_HEADER_LENGTH + length > size) {
+                    break;
+                }
+                final ByteBuffer record = buffer.duplicate();
+                record.position(position + RECORD_HEADER_LENGTH);
+                record.limit(position + RECORD_HEADER_LENGTH + length);
+                crc.reset();
+                crc.update(toArray(record.duplicate()));
+                if ((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    break;
+                }
+
+                final byte operation = record.get();
+                final String type = readString(record), identifier = readString(record);
+                handler.handle(operation, type, identifier, new Location(buffer, record.position(), record.remaining()));
+                position += RECORD_HEADER_LENGTH + length;
+            }
+            return new Journal(file, channel, generation, writable, buffer, position);
+        } catch (IOException | RuntimeException e) {
+            channel.close();
+            throw e;
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    public long getGeneration() {
+        return generation;
+    }
+
+    /**
+     * Get the number of bytes used by this journal's records
+     *
+     * @return The size of this journal
+     */
+    public int size() {
+        return position;
+    }
+
+    /**
+     * Append a record to the end of this journal. Not thread-safe.
+     *
+     * @param operation The operation being recorded
+     * @param type The subject's type
+     * @param identifier The subject's identifier
+     * @param data The subject's encoded data, or null for none
+     * @return The location of the appended data
+     * @throws IOException if the journal could not be extended
+     */
+    public Location append(byte operation, String type, String identifier, byte[] data) throws IOException {
+        if (!writable || closed) {
+            throw new IOException("Journal " + file + " is not open for writing");
+        }
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(bytes);
+        out.writeByte(operation);
+        writeString(out, type);
+        writeString(out, identifier);
+        final int dataOffset = out.size();
+        if (data != null) {
+            out.write(data);
+        }
+        final byte[] record = bytes.toByteArray();
+        final CRC32 crc = new CRC32();
+        crc.update(record);
+
+        final int end = position + RECORD_HEADER_LENGTH + record.length;
+        ensureCapacity(end + 4);
+        final ByteBuffer target = buffer.duplicate();
+        target.position(position);
+        target.putInt(record.length);
+        target.putInt((int) crc.getValue());
+        target.put(record);
+        target.putInt(0); // Terminate records in case there was garbage after a torn write
+        final Location ret = new Location(buffer, position + RECORD_HEADER_LENGTH + dataOffset, record.length - dataOffset);
+        position = end;
+        return ret;
+    }
+
+    private void ensureCapacity(long required) throws IOException {
+        if (required <= buffer.capacity()) {
+            return;
+        }
+        long newCapacity = buffer.capacity();
+        while (newCapacity < required) {
+            newCapacity *= 2;
+        }
+        if (newCapacity > Integer.MAX_VALUE) {
+            throw new IOException("Journal " + file + " is too large");
+        }
+        // Existing locations keep a reference to the previous mapping, which stays valid
+        buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, newCapacity);
+    }
+
+    /**
+     * Write any appended records to the storage device.
+     */
+    public void force() {
+        if (writable && !closed) {
+            buffer.force();
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (!closed) {
+            force();
+            closed = true;
+            channel.close();
+        }
+    }
+
+    private static byte[] toArray(ByteBuffer buffer) {
+        final byte[] ret = new byte[buffer.remaining()];
+        buffer.get(ret);
+        return ret;
+    }
+
+    private static void writeString(DataOutputStream out, String value) throws IOException {
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        if (bytes.length > 0xFFFF) {
+            throw new IOException("String " + value + " is too long to be stored in a journal");
+        }
+        out.writeShort(bytes.length);
+        out.write(bytes);
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getShort() & 0xFFFF];
+        buffer.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,325 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.journal;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.io.ByteArrayDataOutput;
+import com.google.common.io.ByteStreams;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import ninja.leaping.configurate.objectmapping.Setting;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.backends.AbstractDataStore;
+import ninja.leaping.permissionsex.backends.memory.MemoryOptionSubjectData;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.data.SubjectDataCodec;
+import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * A data store that appends every change to a memory-mapped journal, and periodically compacts the journal into a
+ * snapshot holding only the latest data for each subject.
+ *
+ * <p>An index of the location of each subject's latest data is kept in memory, and data is decoded from the mapped
+ * files when requested.</p>
+ */
+public class JournalDataStore extends AbstractDataStore {
+    public static final Factory FACTORY = new Factory("journal", JournalDataStore.class);
+    private static final String SNAPSHOT_FILE = "snapshot.dat";
+    private static final Pattern JOURNAL_FILE = Pattern.compile("journal-(\\d+)\\.log");
+
+    @Setting(comment = "Directory to store the journal and snapshot in")
+    private String directory = "journal";
+    @Setting(value = "compaction-threshold", comment = "Size in bytes the journal can reach before it is compacted into a snapshot")
+    private int compactionThreshold = 8 * 1024 * 1024;
+    @Setting(value = "sync-writes", comment = "Whether each change should be forced to disk before it is reported as saved")
+    private boolean syncWrites = false;
+
+    private File journalDirectory;
+    private final ConcurrentMap<String, ConcurrentMap<String, Journal.Location>> index = new ConcurrentHashMap<>();
+    private final Object writeLock = new Object();
+    private final AtomicBoolean compacting = new AtomicBoolean();
+    private Journal journal; // guarded by writeLock
+    private final List<Journal> previousJournals = new ArrayList<>(); // guarded by writeLock
+
+    public JournalDataStore() {
+        super(FACTORY);
+    }
+
+    @Override
+    protected void initializeInternal(PermissionsEx core) throws PermissionsLoadingException {
+        journalDirectory = new File(core.getBaseDirectory(), directory);
+        if (!journalDirectory.isDirectory() && !journalDirectory.mkdirs()) {
+            throw new PermissionsLoadingException("Unable to create journal directory " + journalDirectory);
+        }
+
+        final Journal.RecordHandler loader = new Journal.RecordHandler() {
+            @Override
+            public void handle(byte operation, String type, String identifier, Journal.Location location) {
+                if (operation == Journal.OP_SET) {
+                    getSubjects(type).put(identifier, location);
+                } else if (operation == Journal.OP_REMOVE) {
+                    getSubjects(type).remove(identifier);
+                }
+            }
+        };
+
+        try {
+            long generation = 0;
+            final File snapshotFile = new File(journalDirectory, SNAPSHOT_FILE);
+            if (snapshotFile.isFile()) {
+                final Journal snapshot = Journal.open(snapshotFile, false, loader);
+                snapshot.close();
+                generation = snapshot.getGeneration();
+            }
+
+            for (Map.Entry<Long, File> ent : getJournalFiles().entrySet()) {
+                if (ent.getKey() < generation) { // Already included in the snapshot
+                    deleteJournal(ent.getValue());
+                    continue;
+                }
+                if (journal != null) { // Only the latest journal is appended to
+                    journal.close();
+                    previousJournals.add(journal);
+                }
+                journal = Journal.open(ent.getValue(), true, loader);
+            }
+            if (journal == null) {
+                journal = Journal.create(getJournalFile(generation), generation);
+            }
+        } catch (IOException e) {
+            throw new PermissionsLoadingException("While loading journal from " + journalDirectory, e);
+        }
+    }
+
+    @Override
+    protected void closeInternal() {
+        synchronized (writeLock) {
+            if (journal != null) {
+                closeJournal(journal);
+            }
+            // Journals waiting for compaction are still mapped, and are replayed again on the next load
+            for (Journal previous : previousJournals) {
+                closeJournal(previous);
+            }
+            previousJournals.clear();
+        }
+    }
+
+    private void closeJournal(Journal journal) {
+        try {
+            journal.close();
+        } catch (IOException e) {
+            getManager().getLogger().warn("Unable to close journal " + journal.getFile(), e);
+        }
+    }
+
+    private ConcurrentMap<String, Journal.Location> getSubjects(String type) {
+        ConcurrentMap<String, Journal.Location> ret = index.get(type);
+        if (ret == null) {
+            ret = new ConcurrentHashMap<>();
+            final ConcurrentMap<String, Journal.Location> existing = index.putIfAbsent(type, ret);
+            if (existing != null) {
+                ret = existing;
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get journal files in the data directory, ordered by generation.
+     */
+    private Map<Long, File> getJournalFiles() {
+        final Map<Long, File> ret = new TreeMap<>();
+        final File[] files = journalDirectory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                final Matcher match = JOURNAL_FILE.matcher(file.getName());
+                if (match.matches()) {
+                    ret.put(Long.parseLong(match.group(1)), file);
+                }
+            }
+        }
+        return ret;
+    }
+
+    private File getJournalFile(long generation) {
+        return new File(journalDirectory, "journal-" + generation + ".log");
+    }
+
+    private void deleteJournal(File file) {
+        if (!file.delete()) { // Likely still mapped, will be removed on next startup
+            getManager().getLogger().debug("Unable to delete compacted journal " + file);
+        }
+    }
+
+    @Override
+    protected ImmutableOptionSubjectData getDataInternal(String type, String identifier) throws PermissionsLoadingException {
+        final Journal.Location location = getSubjects(type).get(identifier);
+        if (location == null) {
+            return MemoryOptionSubjectData.EMPTY;
+        }
+        try {
+            return SubjectDataCodec.read(ByteStreams.newDataInput(location.getData()));
+        } catch (IOException | IllegalStateException e) {
+            throw new PermissionsLoadingException("While reading journaled data for " + type + ":" + identifier, e);
+        }
+    }
+
+    @Override
+    protected ListenableFuture<ImmutableOptionSubjectData> setDataInternal(String type, String identifier, ImmutableOptionSubjectData data) {
+        final int journalSize;
+        try {
+            byte[] encoded = null;
+            if (data != null) {
+                final ByteArrayDataOutput out = ByteStreams.newDataOutput();
+                SubjectDataCodec.write(data, out);
+                encoded = out.toByteArray();
+            }
+
+            synchronized (writeLock) {
+                final Journal.Location location = journal.append(data == null ? Journal.OP_REMOVE : Journal.OP_SET, type, identifier, encoded);
+                if (data == null) {
+                    getSubjects(type).remove(identifier);
+                } else {
+                    getSubjects(type).put(identifier, location);
+                }
+                if (syncWrites) {
+                    journal.force();
+                }
+                journalSize = journal.size();
+            }
+        } catch (IOException e) {
+            return Futures.immediateFailedFuture(new PermissionsLoadingException("While journaling data for " + type + ":" + identifier, e));
+        }
+
+        if (journalSize > compactionThreshold && compacting.compareAndSet(false, true)) {
+            getManager().executeAsyncronously(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        compact();
+                    } catch (IOException e) {
+                        getManager().getLogger().error("Unable to compact journal in " + journalDirectory, e);
+                    } finally {
+                        compacting.set(false);
+                    }
+                }
+            });
+        }
+        return Futures.immediateFuture(data);
+    }
+
+    /**
+     * Write the latest data for every subject to a new snapshot, and start a new journal for changes made after
+     * the snapshot.
+     *
+     * @throws IOException if the snapshot could not be written
+     */
+    void compact() throws IOException {
+        final long generation;
+        final Map<String, Map<String, Journal.Location>> contents = new HashMap<>();
+        synchronized (writeLock) {
+            generation = journal.getGeneration() + 1;
+            previousJournals.add(journal);
+            if (!syncWrites) {
+                journal.force();
+            }
+            journal = Journal.create(getJournalFile(generation), generation);
+            for (Map.Entry<String, ConcurrentMap<String, Journal.Location>> ent : index.entrySet()) {
+                contents.put(ent.getKey(), new HashMap<>(ent.getValue()));
+            }
+        }
+
+        final File snapshotFile = new File(journalDirectory, SNAPSHOT_FILE),
+                tempFile = new File(journalDirectory, SNAPSHOT_FILE + ".tmp");
+        final Journal snapshot = Journal.create(tempFile, generation);
+        try {
+            for (Map.Entry<String, Map<String, Journal.Location>> type : contents.entrySet()) {
+                for (Map.Entry<String, Journal.Location> subject : type.getValue().entrySet()) {
+                    snapshot.append(Journal.OP_SET, type.getKey(), subject.getKey(), subject.getValue().getData());
+                }
+            }
+        } finally {
+            snapshot.close();
+        }
+        try {
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+
+        // Read subjects that have not changed since compaction started from the snapshot so older journals can be released
+        Journal.open(snapshotFile, false, new Journal.RecordHandler() {
+            @Override
+            public void handle(byte operation, String type, String identifier, Journal.Location location) {
+                getSubjects(type).replace(identifier, contents.get(type).get(identifier), location);
+            }
+        }).close();
+
+        final List<Journal> compacted;
+        synchronized (writeLock) {
+            compacted = ImmutableList.copyOf(previousJournals);
+            previousJournals.clear();
+        }
+        for (Journal old : compacted) {
+            old.close();
+            deleteJournal(old.getFile());
+        }
+    }
+
+    @Override
+    public boolean isRegistered(String type, String identifier) {
+        return getSubjects(type).containsKey(identifier);
+    }
+
+    @Override
+    public Iterable<String> getAllIdentifiers(String type) {
+        return Collections.unmodifiableSet(getSubjects(type).keySet());
+    }
+
+    @Override
+    protected boolean isAppliedOnWrite() {
+        return true; // Appended to the journal and indexed as they are written
+    }
+
+    @Override
+    protected boolean isChangeTracked() {
+        return true; // The journal is only ever written through this data store
+    }
+
+    @Override
+    public Iterable<String> getRegisteredTypes() {
+        return Collections.unmodifiableSet(index.keySet());
+    }
+}
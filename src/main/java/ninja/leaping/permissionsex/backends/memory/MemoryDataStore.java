@@ -16,10 +16,6 @@
  */
 package ninja.leaping.permissionsex.backends.memory;
 
-import com.google.common.base.Function;
-import com.google.common.base.Predicate;
-import com.google.common.collect.Iterables;
-import com.google.common.collect.Maps;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
 import ninja.leaping.configurate.objectmapping.Setting;
@@ -28,9 +24,10 @@ import ninja.leaping.permissionsex.backends.AbstractDataStore;
 import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
 import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
 
-import javax.annotation.Nullable;
+import java.util.Collections;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 /**
  * A data store backed entirely in memory
@@ -40,30 +37,49 @@ public class MemoryDataStore extends AbstractDataStore {
 
     @Setting(comment = "Whether or not this data store will store subjects being set") private boolean track = true;
 
-    private final ConcurrentHashMap<Map.Entry<String, String>, ImmutableOptionSubjectData> data = new ConcurrentHashMap<>();
+    private final ConcurrentMap<String, ConcurrentMap<String, ImmutableOptionSubjectData>> data = new ConcurrentHashMap<>();
 
     public MemoryDataStore() {
         super(FACTORY);
     }
 
     @Override
-    public void initialize(PermissionsEx core) throws PermissionsLoadingException {
+    protected void initializeInternal(PermissionsEx core) throws PermissionsLoadingException {
 
     }
 
     @Override
-    public void close() {
+    protected void closeInternal() {
 
     }
 
+    /**
+     * Get the subjects of a single type
+     *
+     * @param type The type to get subjects for
+     * @param create Whether to create the partition if no subjects of this type have been stored yet
+     * @return The partition, or null if it does not exist and {@code create} is false
+     */
+    private ConcurrentMap<String, ImmutableOptionSubjectData> getPartition(String type, boolean create) {
+        ConcurrentMap<String, ImmutableOptionSubjectData> ret = data.get(type);
+        if (ret == null && create) {
+            ret = new ConcurrentHashMap<>();
+            final ConcurrentMap<String, ImmutableOptionSubjectData> existing = data.putIfAbsent(type, ret);
+            if (existing != null) {
+                ret = existing;
+            }
+        }
+        return ret;
+    }
+
     @Override
     public ImmutableOptionSubjectData getDataInternal(String type, String identifier) {
-        final Map.Entry<String, String> key = Maps.immutableEntry(type, identifier);
-        ImmutableOptionSubjectData ret = data.get(key);
+        final ConcurrentMap<String, ImmutableOptionSubjectData> partition = getPartition(type, track);
+        ImmutableOptionSubjectData ret = partition == null ? null : partition.get(identifier);
         if (ret == null) {
-            ret = new MemoryOptionSubjectData();
+            ret = MemoryOptionSubjectData.EMPTY;
             if (track) {
-                final ImmutableOptionSubjectData existingData = data.putIfAbsent(key, ret);
+                final ImmutableOptionSubjectData existingData = partition.putIfAbsent(identifier, ret);
                 if (existingData != null) {
                     ret = existingData;
                 }
@@ -75,7 +91,14 @@ public class MemoryDataStore extends AbstractDataStore {
     @Override
     public ListenableFuture<ImmutableOptionSubjectData> setDataInternal(String type, String identifier, ImmutableOptionSubjectData data) {
         if (track) {
-            this.data.put(Maps.immutableEntry(type, identifier), data);
+            if (data == null) {
+                final ConcurrentMap<String, ImmutableOptionSubjectData> partition = getPartition(type, false);
+                if (partition != null) {
+                    partition.remove(identifier);
+                }
+            } else {
+                getPartition(type, true).put(identifier, data);
+            }
         }
 
         return Futures.immediateFuture(data);
@@ -83,22 +106,34 @@ public class MemoryDataStore extends AbstractDataStore {
 
     @Override
     public boolean isRegistered(String type, String identifier) {
-        return data.containsKey(Maps.immutableEntry(type, identifier));
+        final ConcurrentMap<String, ImmutableOptionSubjectData> partition = getPartition(type, false);
+        return partition != null && partition.containsKey(identifier);
     }
 
     @Override
     public Iterable<String> getAllIdentifiers(final String type) {
-        return Iterables.transform(Maps.filterKeys(data, new Predicate<Map.Entry<String, String>>() {
-            @Override
-            public boolean apply(@Nullable Map.Entry<String, String> input) {
-                return input.getKey().equals(type);
-            }
-        }).keySet(), new Function<Map.Entry<String, String>, String>() {
-            @Nullable
-            @Override
-            public String apply(@Nullable Map.Entry<String, String> input) {
-                return input.getValue();
-            }
-        });
+        final ConcurrentMap<String, ImmutableOptionSubjectData> partition = getPartition(type, false);
+        return partition == null ? Collections.<String>emptySet() : Collections.unmodifiableSet(partition.keySet());
+    }
+
+    @Override
+    protected boolean isAppliedOnWrite() {
+        return true; // Held in memory as soon as they are written
+    }
+
+    @Override
+    protected boolean isChangeTracked() {
+        return true; // Nothing else can change data held in memory
+    }
+
+    @Override
+    public Iterable<String> getRegisteredTypes() {
+        return Collections.unmodifiableSet(data.keySet());
+    }
+
+    @Override
+    public Iterable<Map.Entry<String, ImmutableOptionSubjectData>> getAll(String type) {
+        final ConcurrentMap<String, ImmutableOptionSubjectData> partition = getPartition(type, false);
+        return partition == null ? Collections.<Map.Entry<String, ImmutableOptionSubjectData>>emptySet() : Collections.unmodifiableMap(partition).entrySet();
     }
 }
@@ -27,12 +27,15 @@ import ninja.leaping.configurate.objectmapping.ObjectMapper;
 import ninja.leaping.configurate.objectmapping.ObjectMappingException;
 import ninja.leaping.configurate.objectmapping.Setting;
 import ninja.leaping.configurate.objectmapping.serialize.ConfigSerializable;
+import ninja.leaping.configurate.objectmapping.serialize.TypeSerializers;
+import ninja.leaping.permissionsex.config.SubjectRefSerializer;
 import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.data.SubjectRef;
+import ninja.leaping.permissionsex.util.PersistentMap;
 
 import javax.annotation.Nullable;
 import java.util.ArrayList;
 import java.util.Collections;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -42,6 +45,7 @@ import static java.util.Map.Entry;
 public class MemoryOptionSubjectData implements ImmutableOptionSubjectData {
     protected static final ObjectMapper<DataEntry> MAPPER;
     static {
+        TypeSerializers.registerSerializer(new SubjectRefSerializer());
         try {
             MAPPER = ObjectMapper.forClass(DataEntry.class);
         } catch (ObjectMappingException e) {
@@ -49,22 +53,36 @@ public class MemoryOptionSubjectData implements ImmutableOptionSubjectData {
         }
     }
 
+    /**
+     * Subject data with nothing set in any context
+     */
+    public static final MemoryOptionSubjectData EMPTY = new MemoryOptionSubjectData();
+
+    /**
+     * Get a copy of {@code input} with one key changed. Maps produced by this method share structure with each other,
+     * so a change only costs time proportional to the depth of the map rather than its size.
+     */
     protected static <K, V> Map<K, V> updateImmutable(Map<K, V> input, K newKey, V newVal) {
         if (input == null) {
-            return ImmutableMap.of(newKey, newVal);
+            return PersistentMap.<K, V>of().plus(newKey, newVal);
+        }
+        return PersistentMap.copyOf(input).plus(newKey, newVal);
+    }
+
+    protected static <K, V> Map<K, V> removeImmutable(Map<K, V> input, K key) {
+        if (input == null) {
+            return null;
         }
-        Map<K, V> ret = new HashMap<>(input);
-        ret.put(newKey, newVal);
-        return Collections.unmodifiableMap(ret);
+        return PersistentMap.copyOf(input).minus(key);
     }
     @ConfigSerializable
     protected static class DataEntry {
         @Setting private Map<String, Integer> permissions;
         @Setting private Map<String, String> options;
-        @Setting private List<String> parents;
+        @Setting private List<SubjectRef> parents;
         @Setting("permissions-default") private int defaultValue;
 
-        private DataEntry(Map<String, Integer> permissions, Map<String, String> options, List<String> parents, int defaultValue) {
+        private DataEntry(Map<String, Integer> permissions, Map<String, String> options, List<SubjectRef> parents, int defaultValue) {
             this.permissions = permissions;
             this.options = options;
             this.parents = parents;
@@ -74,23 +92,35 @@ public class MemoryOptionSubjectData implements ImmutableOptionSubjectData {
         private DataEntry() { // Objectmapper constructor
         }
 
+        public Map<String, Integer> getPermissions() {
+            return permissions;
+        }
+
+        public Map<String, String> getOptions() {
+            return options;
+        }
+
+        public List<SubjectRef> getParents() {
+            return parents;
+        }
+
+        public int getDefaultValue() {
+            return defaultValue;
+        }
+
         public DataEntry withOption(String key, String value) {
             return new DataEntry(permissions, updateImmutable(options, key, value), parents, defaultValue);
         }
 
         public DataEntry withoutOption(String key) {
-            if (!options.containsKey(key)) {
+            if (options == null || !options.containsKey(key)) {
                 return this;
             }
-
-            Map<String, String> newOptions = new HashMap<>(options);
-            newOptions.remove(key);
-            return new DataEntry(permissions, newOptions, parents, defaultValue);
-
+            return new DataEntry(permissions, removeImmutable(options, key), parents, defaultValue);
         }
 
         public DataEntry withOptions(Map<String, String> values) {
-            return new DataEntry(permissions, ImmutableMap.copyOf(values), parents, defaultValue);
+            return new DataEntry(permissions, PersistentMap.copyOf(values), parents, defaultValue);
         }
 
         public DataEntry withoutOptions() {
@@ -103,17 +133,14 @@ public class MemoryOptionSubjectData implements ImmutableOptionSubjectData {
         }
 
         public DataEntry withoutPermission(String permission) {
-            if (!permissions.containsKey(permission)) {
+            if (permissions == null || !permissions.containsKey(permission)) {
                 return this;
             }
-
-            Map<String, Integer> newPermissions = new HashMap<>(permissions);
-            newPermissions.remove(permission);
-            return new DataEntry(newPermissions, options, parents, defaultValue);
+            return new DataEntry(removeImmutable(permissions, permission), options, parents, defaultValue);
         }
 
         public DataEntry withPermissions(Map<String, Integer> values) {
-            return new DataEntry(ImmutableMap.copyOf(values), options, parents, defaultValue);
+            return new DataEntry(PersistentMap.copyOf(values), options, parents, defaultValue);
         }
 
         public DataEntry withoutPermissions() {
@@ -124,18 +151,24 @@ public class MemoryOptionSubjectData implements ImmutableOptionSubjectData {
             return new DataEntry(permissions, options, parents, defaultValue);
         }
 
-        public DataEntry withAddedParent(String parent) {
-                return new DataEntry(permissions, options, ImmutableList.<String>builder().add(parent).addAll(parents).build(), defaultValue);
+        public DataEntry withAddedParent(SubjectRef parent) {
+            if (parents == null) {
+                return new DataEntry(permissions, options, ImmutableList.of(parent), defaultValue);
+            }
+            return new DataEntry(permissions, options, ImmutableList.<SubjectRef>builder().add(parent).addAll(parents).build(), defaultValue);
         }
 
-        public DataEntry withRemovedParent(String parent) {
-            final List<String> newParents = new ArrayList<>(parents);
+        public DataEntry withRemovedParent(SubjectRef parent) {
+            if (parents == null) {
+                return this;
+            }
+            final List<SubjectRef> newParents = new ArrayList<>(parents);
             newParents.remove(parent);
             return new DataEntry(permissions, options, newParents, defaultValue);
         }
 
-        public DataEntry withParents(List<String> transform) {
-            return new DataEntry(permissions, options, ImmutableList.copyOf(transform), defaultValue);
+        public DataEntry withParents(List<SubjectRef> parents) {
+            return new DataEntry(permissions, options, ImmutableList.copyOf(parents), defaultValue);
         }
 
         public DataEntry withoutParents() {
@@ -176,6 +209,31 @@ public class MemoryOptionSubjectData implements ImmutableOptionSubjectData {
         this.contexts = contexts;
     }
 
+    /**
+     * Copy every context of {@code source} into data of this type in a single pass.
+     * Unlike applying each setter in turn, this only creates one new instance for the whole subject.
+     *
+     * @param source The data to copy
+     * @return Data of the same type as this object, holding only the contents of {@code source}
+     */
+    public MemoryOptionSubjectData copyFrom(ImmutableOptionSubjectData source) {
+        final ImmutableMap.Builder<Set<Entry<String, String>>, DataEntry> ret = ImmutableMap.builder();
+        for (Set<Entry<String, String>> context : source.getActiveContexts()) {
+            final Map<String, Integer> permissions = source.getPermissions(context);
+            final Map<String, String> options = source.getOptions(context);
+            final List<Entry<String, String>> parents = source.getParents(context);
+            final ImmutableList.Builder<SubjectRef> parentsBuilder = ImmutableList.builder();
+            for (Entry<String, String> parent : parents) {
+                parentsBuilder.add(SubjectRef.of(parent));
+            }
+            ret.put(immutSet(context), new DataEntry(permissions.isEmpty() ? null : ImmutableMap.copyOf(permissions),
+                    options.isEmpty() ? null : ImmutableMap.copyOf(options),
+                    parents.isEmpty() ? null : parentsBuilder.build(),
+                    source.getDefaultValue(context)));
+        }
+        return newData(ret.build());
+    }
+
     private DataEntry getDataEntryOrNew(Set<Entry<String, String>> contexts) {
         DataEntry res = this.contexts.get(contexts);
         if (res == null) {
@@ -190,13 +248,13 @@ public class MemoryOptionSubjectData implements ImmutableOptionSubjectData {
 
     @Override
     public Map<Set<Entry<String, String>>, Map<String, String>> getAllOptions() {
-        return Maps.transformValues(contexts, new Function<DataEntry, Map<String, String>>() {
+        return Maps.filterValues(Maps.transformValues(contexts, new Function<DataEntry, Map<String, String>>() {
             @Nullable
             @Override
             public Map<String, String> apply(@Nullable DataEntry dataEntry) {
                 return dataEntry.options;
             }
-        });
+        }), Predicates.notNull());
     }
 
     @Override
@@ -240,7 +298,7 @@ public class MemoryOptionSubjectData implements ImmutableOptionSubjectData {
                 return dataEntry.withoutOptions();
             }
         });
-        return newData(newValue);
+        return newData(PersistentMap.copyOf(newValue));
     }
 
     @Override
@@ -287,7 +345,7 @@ public class MemoryOptionSubjectData implements ImmutableOptionSubjectData {
                 return dataEntry.withoutPermissions();
             }
         });
-        return newData(newValue);
+        return newData(PersistentMap.copyOf(newValue));
     }
 
     @Override
@@ -299,62 +357,53 @@ public class MemoryOptionSubjectData implements ImmutableOptionSubjectData {
 
     }
 
-    private static final Function<String, Map.Entry<String, String>> PARENT_TRANSFORM_FUNC = new Function<String, Map.Entry<String, String>>() {
-                    @Nullable
-                    @Override
-                    public Map.Entry<String, String> apply(String input) {
-                        String[] split = input.split(":", 2);
-                        return Maps.immutableEntry(split.length > 1 ? split[0] : "group", split.length > 1 ? split[1]: split[0]);
-                    }
-                };
-
     @Override
     public Map<Set<Entry<String, String>>, List<Entry<String, String>>> getAllParents() {
         return Maps.filterValues(Maps.transformValues(contexts, new Function<DataEntry, List<Map.Entry<String, String>>>() {
             @Nullable
             @Override
+            @SuppressWarnings("unchecked")
             public List<Map.Entry<String, String>> apply(@Nullable DataEntry dataEntry) {
-                return dataEntry.parents == null ? null : Lists.transform(dataEntry.parents, PARENT_TRANSFORM_FUNC);
+                return (List) dataEntry.parents;
             }
         }), Predicates.notNull());
     }
 
     @Override
+    @SuppressWarnings("unchecked")
     public List<Map.Entry<String, String>> getParents(Set<Entry<String, String>> contexts) {
         DataEntry ent = this.contexts.get(contexts);
-        return ent == null || ent.parents == null ? Collections.<Map.Entry<String, String>>emptyList() : Lists.transform(ent.parents, PARENT_TRANSFORM_FUNC);
+        return ent == null || ent.parents == null ? Collections.<Map.Entry<String, String>>emptyList() : (List) ent.parents;
     }
 
     @Override
     public ImmutableOptionSubjectData addParent(Set<Entry<String, String>> contexts, String type, String ident) {
         DataEntry entry = getDataEntryOrNew(contexts);
-        return newWithUpdated(contexts, entry.withAddedParent(type + ":" + ident));
+        return newWithUpdated(contexts, entry.withAddedParent(SubjectRef.of(type, ident)));
     }
 
     @Override
     public ImmutableOptionSubjectData removeParent(Set<Entry<String, String>> contexts, String type, String identifier) {
         DataEntry ent = this.contexts.get(contexts);
-        if (ent == null) {
+        if (ent == null || ent.parents == null) {
             return this;
         }
 
-        final String combined = type + ":" + identifier;
-        if (!ent.parents.contains(combined)) {
+        final SubjectRef parent = SubjectRef.of(type, identifier);
+        if (!ent.parents.contains(parent)) {
             return this;
         }
-        return newWithUpdated(contexts, ent.withRemovedParent(combined));
+        return newWithUpdated(contexts, ent.withRemovedParent(parent));
     }
 
     @Override
     public ImmutableOptionSubjectData setParents(Set<Entry<String, String>> contexts, List<Entry<String, String>> parents) {
         DataEntry entry = getDataEntryOrNew(contexts);
-        return newWithUpdated(contexts, entry.withParents(Lists.transform(parents, new Function<Entry<String,String>, String>() {
-            @Nullable
-            @Override
-            public String apply(@Nullable Entry<String, String> input) {
-                return input.getKey() + ":" + input.getValue();
-            }
-        })));
+        final ImmutableList.Builder<SubjectRef> refs = ImmutableList.builder();
+        for (Entry<String, String> parent : parents) {
+            refs.add(SubjectRef.of(parent));
+        }
+        return newWithUpdated(contexts, entry.withParents(refs.build()));
     }
 
     @Override
@@ -370,7 +419,7 @@ public class MemoryOptionSubjectData implements ImmutableOptionSubjectData {
                 return dataEntry.withoutParents();
             }
         });
-        return newData(newValue);
+        return newData(PersistentMap.copyOf(newValue));
     }
 
     @Override
@@ -0,0 +1,152 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.sql;
+
+import ninja.leaping.configurate.objectmapping.Setting;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.backends.bus.PollingChangeBus;
+import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.NavigableSet;
+import java.util.TreeSet;
+
+/**
+ * A change bus that records changes in a table of a database shared between servers.
+ */
+public class SqlChangeBus extends PollingChangeBus {
+    @Setting(comment = "The JDBC url of the database to share changes through")
+    private String url;
+    @Setting(comment = "Prefix for the names of tables used by PermissionsEx")
+    private String prefix = "pex_";
+    @Setting(comment = "How long changes are kept in the database, in milliseconds")
+    private long retention = 5 * 60 * 1000;
+    @Setting(value = "reorder-window", comment = "Number of changes before the latest one seen to check again, for changes committed out of order")
+    private int reorderWindow = 100;
+
+    private DataSource dataSource;
+    private SqlDialect dialect;
+    private StatementCache conn; // guarded by this
+    private long lastSeenId, lastPrune;
+    private final NavigableSet<Long> seenIds = new TreeSet<>(); // Ids seen within the reorder window, guarded by this
+
+    @Override
+    protected void open(PermissionsEx core) throws PermissionsLoadingException {
+        if (url == null) {
+            throw new PermissionsLoadingException("No url was specified for a SQL change bus");
+        }
+        dataSource = core.getDataSourceForURL(url);
+        if (dataSource == null) {
+            throw new PermissionsLoadingException("Unable to get a data source for url " + url);
+        }
+        dialect = new SqlDialect(url, prefix);
+        try {
+            dialect.deploy(dataSource);
+            synchronized (this) {
+                try (ResultSet rs = getConnection().get("changes.latest").executeQuery()) {
+                    lastSeenId = rs.next() ? rs.getLong(1) : 0;
+                }
+                // Changes already committed are not received, even those within the reorder window
+                final PreparedStatement stmt = getConnection().get("changes.since");
+                stmt.setLong(1, lastSeenId - reorderWindow);
+                try (ResultSet rs = stmt.executeQuery()) {
+                    while (rs.next()) {
+                        seenIds.add(rs.getLong(1));
+                    }
+                }
+            }
+        } catch (IOException | SQLException e) {
+            throw new PermissionsLoadingException("While connecting to SQL change bus at " + url, e);
+        }
+    }
+
+    private StatementCache getConnection() throws SQLException, IOException {
+        if (conn == null) {
+            conn = new StatementCache(dataSource.getConnection(), dialect.loadQueries());
+        }
+        return conn;
+    }
+
+    /**
+     * Close the connection after an error so the next operation starts with a new one
+     */
+    private void resetConnection() {
+        if (conn != null) {
+            try {
+                conn.close();
+            } catch (SQLException ignore) {
+            }
+            conn = null;
+        }
+    }
+
+    @Override
+    public synchronized void publish(String type, String identifier, long revision) {
+        try {
+            final PreparedStatement stmt = getConnection().get("changes.add");
+            stmt.setString(1, getOrigin());
+            stmt.setString(2, type);
+            stmt.setString(3, identifier);
+            stmt.setLong(4, revision);
+            stmt.setLong(5, System.currentTimeMillis());
+            stmt.executeUpdate();
+        } catch (SQLException | IOException e) {
+            resetConnection();
+            getLogger().warn("Unable to publish change to " + type + ":" + identifier + " to " + url, e);
+        }
+    }
+
+    @Override
+    protected synchronized void poll() throws SQLException, IOException {
+        try {
+            // Ids are assigned when changes are added, but a change can be committed after one with a later id,
+            // so the most recent ids already seen are checked again
+            final PreparedStatement stmt = getConnection().get("changes.since");
+            stmt.setLong(1, lastSeenId - reorderWindow);
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    final long id = rs.getLong(1);
+                    if (seenIds.add(id)) {
+                        lastSeenId = Math.max(lastSeenId, id);
+                        receive(rs.getString(2), rs.getString(3), rs.getString(4), rs.getLong(5));
+                    }
+                }
+            }
+            seenIds.headSet(lastSeenId - reorderWindow, true).clear();
+
+            final long now = System.currentTimeMillis();
+            if (now - lastPrune > retention) {
+                final PreparedStatement prune = getConnection().get("changes.prune");
+                prune.setLong(1, now - retention);
+                prune.executeUpdate();
+                lastPrune = now;
+            }
+        } catch (SQLException | IOException e) {
+            resetConnection();
+            throw e;
+        }
+    }
+
+    @Override
+    protected synchronized void closeInternal() {
+        resetConnection();
+    }
+}
@@ -0,0 +1,626 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.sql;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Preconditions;
+import com.google.common.collect.AbstractIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import ninja.leaping.configurate.objectmapping.Setting;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.backends.AbstractDataStore;
+import ninja.leaping.permissionsex.backends.SubjectQuery;
+import ninja.leaping.permissionsex.backends.memory.MemoryOptionSubjectData;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.data.SubjectRef;
+import ninja.leaping.permissionsex.exception.DataStoreException;
+import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+
+import javax.annotation.Nullable;
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * A data store backed by a SQL database.
+ *
+ * <p>Each subject is stored as one segment per context set it has data in. A segment holds the context set's
+ * permissions, options, parents, and default permission value.</p>
+ */
+public class SqlDataStore extends AbstractDataStore {
+    public static final Factory FACTORY = new Factory("sql", SqlDataStore.class);
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+    private static final int QUERY_PAGE_SIZE = 500;
+
+    @Setting(comment = "The JDBC url of the database to connect to")
+    private String url;
+    @Setting(comment = "Prefix for the names of tables used by PermissionsEx")
+    private String prefix = "pex_";
+
+    private DataSource dataSource;
+    private SqlDialect dialect;
+    private Map<String, String> queries;
+    private final Queue<StatementCache> idleConnections = new ConcurrentLinkedQueue<>();
+
+    public SqlDataStore() {
+        super(FACTORY);
+    }
+
+    @Override
+    protected void initializeInternal(PermissionsEx core) throws PermissionsLoadingException {
+        if (url == null) {
+            throw new PermissionsLoadingException("No url was specified for a SQL data store");
+        }
+        dataSource = core.getDataSourceForURL(url);
+        if (dataSource == null) {
+            throw new PermissionsLoadingException("Unable to get a data source for url " + url);
+        }
+
+        dialect = new SqlDialect(url, prefix);
+        try {
+            queries = dialect.loadQueries();
+        } catch (IOException e) {
+            throw new PermissionsLoadingException("While loading queries for SQL dialect " + dialect.getName(), e);
+        }
+
+        try {
+            dialect.deploy(dataSource);
+        } catch (SQLException | IOException e) {
+            throw new PermissionsLoadingException("While creating tables for SQL data store at " + url, e);
+        }
+    }
+
+    @Override
+    protected void closeInternal() {
+        StatementCache conn;
+        while ((conn = idleConnections.poll()) != null) {
+            closeQuietly(conn);
+        }
+    }
+
+    private StatementCache getConnection() throws SQLException {
+        final StatementCache ret = idleConnections.poll();
+        return ret != null ? ret : new StatementCache(dataSource.getConnection(), queries);
+    }
+
+    private void returnConnection(StatementCache conn, boolean failed) {
+        if (failed || idleConnections.size() >= MAX_IDLE_CONNECTIONS) {
+            closeQuietly(conn);
+        } else {
+            idleConnections.offer(conn);
+        }
+    }
+
+    private void closeQuietly(StatementCache conn) {
+        try {
+            conn.close();
+        } catch (SQLException e) {
+            getManager().getLogger().warn("Unable to close connection to " + url, e);
+        }
+    }
+
+    /**
+     * The stored state of one context set of a subject
+     */
+    private static class Segment {
+        private final int id;
+        private int defaultValue;
+        private final ImmutableSet.Builder<Map.Entry<String, String>> contexts = ImmutableSet.builder();
+        private final Map<String, Map.Entry<Integer, Integer>> permissions = new HashMap<>(); // key -> (row, value)
+        private final Map<String, Map.Entry<Integer, String>> options = new HashMap<>(); // key -> (row, value)
+        private final List<Map.Entry<String, String>> parents = new ArrayList<>();
+
+        private Segment(int id, int defaultValue) {
+            this.id = id;
+            this.defaultValue = defaultValue;
+        }
+    }
+
+    private Map<Integer, Segment> getSegments(StatementCache conn, String type, String identifier) throws SQLException {
+        final Map<Integer, Segment> segments = new HashMap<>();
+        PreparedStatement stmt = conn.get("subjects.segments");
+        stmt.setString(1, type);
+        stmt.setString(2, identifier);
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                segments.put(rs.getInt(1), new Segment(rs.getInt(1), rs.getInt(2)));
+            }
+        }
+        if (segments.isEmpty()) {
+            return segments;
+        }
+
+        stmt = conn.get("subjects.contexts");
+        stmt.setString(1, type);
+        stmt.setString(2, identifier);
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                segments.get(rs.getInt(1)).contexts.add(Maps.immutableEntry(rs.getString(2), rs.getString(3)));
+            }
+        }
+
+        stmt = conn.get("subjects.permissions");
+        stmt.setString(1, type);
+        stmt.setString(2, identifier);
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                segments.get(rs.getInt(1)).permissions.put(rs.getString(3), Maps.immutableEntry(rs.getInt(2), rs.getInt(4)));
+            }
+        }
+
+        stmt = conn.get("subjects.options");
+        stmt.setString(1, type);
+        stmt.setString(2, identifier);
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                segments.get(rs.getInt(1)).options.put(rs.getString(3), Maps.immutableEntry(rs.getInt(2), rs.getString(4)));
+            }
+        }
+
+        stmt = conn.get("subjects.inheritance");
+        stmt.setString(1, type);
+        stmt.setString(2, identifier);
+        try (ResultSet rs = stmt.executeQuery()) {
+            while (rs.next()) {
+                segments.get(rs.getInt(1)).parents.add(Maps.immutableEntry(rs.getString(2), rs.getString(3)));
+            }
+        }
+        return segments;
+    }
+
+    private static Map<Set<Map.Entry<String, String>>, Segment> byContexts(Map<Integer, Segment> segments) {
+        final Map<Set<Map.Entry<String, String>>, Segment> ret = new HashMap<>();
+        for (Segment segment : segments.values()) {
+            ret.put(segment.contexts.build(), segment);
+        }
+        return ret;
+    }
+
+    @Override
+    protected ImmutableOptionSubjectData getDataInternal(String type, String identifier) throws PermissionsLoadingException {
+        StatementCache conn = null;
+        boolean failed = true;
+        try {
+            conn = getConnection();
+            final Map<Integer, Segment> segments = getSegments(conn, type, identifier);
+            failed = false;
+
+            ImmutableOptionSubjectData ret = MemoryOptionSubjectData.EMPTY;
+            for (Map.Entry<Set<Map.Entry<String, String>>, Segment> ent : byContexts(segments).entrySet()) {
+                final Segment segment = ent.getValue();
+                if (!segment.permissions.isEmpty()) {
+                    final Map<String, Integer> permissions = new HashMap<>();
+                    for (Map.Entry<String, Map.Entry<Integer, Integer>> perm : segment.permissions.entrySet()) {
+                        permissions.put(perm.getKey(), perm.getValue().getValue());
+                    }
+                    ret = ret.setPermissions(ent.getKey(), permissions);
+                }
+                if (!segment.options.isEmpty()) {
+                    final Map<String, String> options = new HashMap<>();
+                    for (Map.Entry<String, Map.Entry<Integer, String>> option : segment.options.entrySet()) {
+                        options.put(option.getKey(), option.getValue().getValue());
+                    }
+                    ret = ret.setOptions(ent.getKey(), options);
+                }
+                if (!segment.parents.isEmpty()) {
+                    ret = ret.setParents(ent.getKey(), segment.parents);
+                }
+                if (segment.defaultValue != 0) {
+                    ret = ret.setDefaultValue(ent.getKey(), segment.defaultValue);
+                }
+            }
+            return ret;
+        } catch (SQLException e) {
+            throw new PermissionsLoadingException("While loading data for " + type + ":" + identifier + " from " + url, e);
+        } finally {
+            if (conn != null) {
+                returnConnection(conn, failed);
+            }
+        }
+    }
+
+    @Override
+    protected ListenableFuture<ImmutableOptionSubjectData> setDataInternal(final String type, final String identifier, final ImmutableOptionSubjectData data) {
+        final SettableFuture<ImmutableOptionSubjectData> ret = SettableFuture.create();
+        getManager().executeAsyncronously(new Runnable() {
+            @Override
+            public void run() {
+                StatementCache conn = null;
+                boolean failed = true;
+                try {
+                    conn = getConnection();
+                    conn.getConnection().setAutoCommit(false);
+                    try {
+                        writeData(conn, type, identifier, data);
+                        conn.getConnection().commit();
+                    } catch (SQLException | RuntimeException e) {
+                        conn.clearBatches();
+                        conn.getConnection().rollback();
+                        throw e;
+                    } finally {
+                        conn.getConnection().setAutoCommit(true);
+                    }
+                    failed = false;
+                    ret.set(data);
+                } catch (SQLException | RuntimeException e) {
+                    ret.setException(new PermissionsLoadingException("While saving data for " + type + ":" + identifier + " to " + url, e));
+                } finally {
+                    if (conn != null) {
+                        returnConnection(conn, failed);
+                    }
+                }
+            }
+        });
+        return ret;
+    }
+
+    /**
+     * Bring the stored rows for a subject in line with {@code data}, only touching rows that have changed.
+     */
+    private void writeData(StatementCache conn, String type, String identifier, ImmutableOptionSubjectData data) throws SQLException {
+        final Map<Set<Map.Entry<String, String>>, Segment> existing = byContexts(getSegments(conn, type, identifier));
+        final Set<Set<Map.Entry<String, String>>> contexts = new HashSet<>();
+        if (data != null) {
+            for (Set<Map.Entry<String, String>> context : data.getActiveContexts()) {
+                contexts.add(ImmutableSet.copyOf(context));
+            }
+        }
+
+        for (Map.Entry<Set<Map.Entry<String, String>>, Segment> ent : existing.entrySet()) {
+            if (!contexts.contains(ent.getKey())) {
+                deleteSegment(conn, ent.getValue().id);
+            }
+        }
+
+        for (Set<Map.Entry<String, String>> context : contexts) {
+            final Map<String, Integer> permissions = nonNull(data.getPermissions(context));
+            final Map<String, String> options = nonNull(data.getOptions(context));
+            final List<Map.Entry<String, String>> parents = data.getParents(context) == null
+                    ? ImmutableList.<Map.Entry<String, String>>of() : data.getParents(context);
+            final int defaultValue = data.getDefaultValue(context);
+
+            Segment segment = existing.get(context);
+            if (permissions.isEmpty() && options.isEmpty() && parents.isEmpty() && defaultValue == 0) {
+                if (segment != null) {
+                    deleteSegment(conn, segment.id);
+                }
+                continue;
+            } else if (segment == null) {
+                segment = createSegment(conn, type, identifier, context, defaultValue);
+            } else if (segment.defaultValue != defaultValue) {
+                final PreparedStatement stmt = conn.batch("segments.set_default");
+                stmt.setInt(1, defaultValue);
+                stmt.setInt(2, segment.id);
+                stmt.addBatch();
+            }
+
+            for (Map.Entry<String, Integer> perm : permissions.entrySet()) {
+                final Map.Entry<Integer, Integer> row = segment.permissions.get(perm.getKey());
+                if (row == null) {
+                    final PreparedStatement stmt = conn.batch("permissions.add");
+                    stmt.setInt(1, segment.id);
+                    stmt.setString(2, perm.getKey());
+                    stmt.setInt(3, perm.getValue());
+                    stmt.addBatch();
+                } else if (!row.getValue().equals(perm.getValue())) {
+                    final PreparedStatement stmt = conn.batch("permissions.update");
+                    stmt.setInt(1, perm.getValue());
+                    stmt.setInt(2, row.getKey());
+                    stmt.addBatch();
+                }
+            }
+            for (Map.Entry<String, Map.Entry<Integer, Integer>> row : segment.permissions.entrySet()) {
+                if (!permissions.containsKey(row.getKey())) {
+                    final PreparedStatement stmt = conn.batch("permissions.delete");
+                    stmt.setInt(1, row.getValue().getKey());
+                    stmt.addBatch();
+                }
+            }
+
+            for (Map.Entry<String, String> option : options.entrySet()) {
+                final Map.Entry<Integer, String> row = segment.options.get(option.getKey());
+                if (row == null) {
+                    final PreparedStatement stmt = conn.batch("options.add");
+                    stmt.setInt(1, segment.id);
+                    stmt.setString(2, option.getKey());
+                    stmt.setString(3, option.getValue());
+                    stmt.addBatch();
+                } else if (!row.getValue().equals(option.getValue())) {
+                    final PreparedStatement stmt = conn.batch("options.update");
+                    stmt.setString(1, option.getValue());
+                    stmt.setInt(2, row.getKey());
+                    stmt.addBatch();
+                }
+            }
+            for (Map.Entry<String, Map.Entry<Integer, String>> row : segment.options.entrySet()) {
+                if (!options.containsKey(row.getKey())) {
+                    final PreparedStatement stmt = conn.batch("options.delete");
+                    stmt.setInt(1, row.getValue().getKey());
+                    stmt.addBatch();
+                }
+            }
+
+            if (!Objects.equal(segment.parents, parents)) { // Parents are ordered, so any change rewrites the segment's list
+                if (!segment.parents.isEmpty()) {
+                    executeForSegment(conn, "inheritance.clear", segment.id);
+                }
+                for (Map.Entry<String, String> parent : parents) {
+                    final PreparedStatement stmt = conn.batch("inheritance.add");
+                    stmt.setInt(1, segment.id);
+                    stmt.setString(2, parent.getKey());
+                    stmt.setString(3, parent.getValue());
+                    stmt.addBatch();
+                }
+            }
+        }
+        conn.executeBatches();
+    }
+
+    private Segment createSegment(StatementCache conn, String type, String identifier, Set<Map.Entry<String, String>> context, int defaultValue) throws SQLException {
+        final PreparedStatement stmt = conn.get("segments.create");
+        stmt.setString(1, type);
+        stmt.setString(2, identifier);
+        stmt.setInt(3, defaultValue);
+        stmt.executeUpdate();
+        final int id;
+        try (ResultSet keys = stmt.getGeneratedKeys()) {
+            if (!keys.next()) {
+                throw new SQLException("No id was generated for new segment of " + type + ":" + identifier);
+            }
+            id = keys.getInt(1);
+        }
+
+        for (Map.Entry<String, String> ctx : context) {
+            final PreparedStatement contextStmt = conn.batch("contexts.add");
+            contextStmt.setInt(1, id);
+            contextStmt.setString(2, ctx.getKey());
+            contextStmt.setString(3, ctx.getValue());
+            contextStmt.addBatch();
+        }
+        return new Segment(id, defaultValue);
+    }
+
+    private void deleteSegment(StatementCache conn, int id) throws SQLException {
+        // Not every database enforces the cascade, so remove the segment's rows explicitly
+        for (String query : new String[] {"contexts.clear", "permissions.clear", "options.clear", "inheritance.clear", "segments.delete"}) {
+            executeForSegment(conn, query, id);
+        }
+    }
+
+    private void executeForSegment(StatementCache conn, String query, int id) throws SQLException {
+        final PreparedStatement stmt = conn.get(query);
+        stmt.setInt(1, id);
+        stmt.executeUpdate();
+    }
+
+    private static <K, V> Map<K, V> nonNull(Map<K, V> input) {
+        return input == null ? ImmutableMap.<K, V>of() : input;
+    }
+
+    @Override
+    public boolean isRegistered(String type, String identifier) {
+        StatementCache conn = null;
+        boolean failed = true;
+        try {
+            conn = getConnection();
+            final PreparedStatement stmt = conn.get("subjects.registered");
+            stmt.setString(1, type);
+            stmt.setString(2, identifier);
+            try (ResultSet rs = stmt.executeQuery()) {
+                failed = false;
+                return rs.next();
+            }
+        } catch (SQLException e) {
+            throw new DataStoreException("While checking whether " + type + ":" + identifier + " is registered in " + url, e);
+        } finally {
+            if (conn != null) {
+                returnConnection(conn, failed);
+            }
+        }
+    }
+
+    @Override
+    public Iterable<String> getAllIdentifiers(String type) {
+        StatementCache conn = null;
+        boolean failed = true;
+        try {
+            conn = getConnection();
+            final PreparedStatement stmt = conn.get("subjects.identifiers");
+            stmt.setString(1, type);
+            final ImmutableSet.Builder<String> ret = ImmutableSet.builder();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    ret.add(rs.getString(1));
+                }
+            }
+            failed = false;
+            return ret.build();
+        } catch (SQLException e) {
+            throw new DataStoreException("While listing identifiers of type " + type + " from " + url, e);
+        } finally {
+            if (conn != null) {
+                returnConnection(conn, failed);
+            }
+        }
+    }
+
+    @Override
+    public Iterable<String> getRegisteredTypes() {
+        StatementCache conn = null;
+        boolean failed = true;
+        try {
+            conn = getConnection();
+            final PreparedStatement stmt = conn.get("subjects.types");
+            final ImmutableSet.Builder<String> ret = ImmutableSet.builder();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    ret.add(rs.getString(1));
+                }
+            }
+            failed = false;
+            return ret.build();
+        } catch (SQLException e) {
+            throw new DataStoreException("While listing registered subject types from " + url, e);
+        } finally {
+            if (conn != null) {
+                returnConnection(conn, failed);
+            }
+        }
+    }
+
+    /**
+     * Search the database directly, fetching matching subjects a page at a time as results are iterated.
+     */
+    @Override
+    public Iterable<SubjectRef> query(final SubjectQuery query) {
+        Preconditions.checkNotNull(query, "query");
+        final List<Object> params = new ArrayList<>();
+        final String sql = buildQuery(query, params);
+        return new Iterable<SubjectRef>() {
+            @Override
+            public Iterator<SubjectRef> iterator() {
+                return new AbstractIterator<SubjectRef>() {
+                    private int offset = query.getOffset();
+                    private int remaining = query.getLimit() == 0 ? Integer.MAX_VALUE : query.getLimit();
+                    private Iterator<SubjectRef> page = Iterators.emptyIterator();
+                    private boolean lastPage;
+
+                    @Override
+                    protected SubjectRef computeNext() {
+                        if (!page.hasNext()) {
+                            if (lastPage || remaining <= 0) {
+                                return endOfData();
+                            }
+                            final int pageSize = Math.min(remaining, QUERY_PAGE_SIZE);
+                            final List<SubjectRef> results = fetchQueryPage(sql, params, pageSize, offset);
+                            offset += results.size();
+                            lastPage = results.size() < pageSize;
+                            page = results.iterator();
+                            if (!page.hasNext()) {
+                                return endOfData();
+                            }
+                        }
+                        --remaining;
+                        return page.next();
+                    }
+                };
+            }
+        };
+    }
+
+    private String buildQuery(SubjectQuery query, List<Object> params) {
+        final StringBuilder sql = new StringBuilder("SELECT DISTINCT `s`.`type`, `s`.`identifier` FROM `{segments}` `s` WHERE 1 = 1");
+        if (query.getType() != null) {
+            sql.append(" AND `s`.`type` = ?");
+            params.add(query.getType());
+        }
+        if (query.getPermission() != null) {
+            sql.append(" AND EXISTS (SELECT 1 FROM `{permissions}` `p` INNER JOIN `{segments}` `ps` ON `p`.`segment` = `ps`.`id`"
+                    + " WHERE `ps`.`type` = `s`.`type` AND `ps`.`identifier` = `s`.`identifier` AND `p`.`key` = ? AND `p`.`value` <> 0");
+            params.add(query.getPermission());
+            appendContexts(sql, "ps", query.getContexts(), params);
+            sql.append(")");
+        }
+        if (query.getOptionKey() != null) {
+            sql.append(" AND EXISTS (SELECT 1 FROM `{options}` `o` INNER JOIN `{segments}` `os` ON `o`.`segment` = `os`.`id`"
+                    + " WHERE `os`.`type` = `s`.`type` AND `os`.`identifier` = `s`.`identifier` AND `o`.`key` = ?");
+            params.add(query.getOptionKey());
+            if (query.getOptionValue() != null) {
+                sql.append(" AND `o`.`value` = ?");
+                params.add(query.getOptionValue());
+            }
+            appendContexts(sql, "os", query.getContexts(), params);
+            sql.append(")");
+        }
+        if (query.getParent() != null) {
+            sql.append(" AND EXISTS (SELECT 1 FROM `{inheritance}` `i` INNER JOIN `{segments}` `ins` ON `i`.`segment` = `ins`.`id`"
+                    + " WHERE `ins`.`type` = `s`.`type` AND `ins`.`identifier` = `s`.`identifier` AND `i`.`parent_type` = ? AND `i`.`parent_identifier` = ?");
+            params.add(query.getParent().getType());
+            params.add(query.getParent().getIdentifier());
+            appendContexts(sql, "ins", query.getContexts(), params);
+            sql.append(")");
+        }
+        if (!query.hasDataFilter()) {
+            appendContexts(sql, "s", query.getContexts(), params);
+        }
+        sql.append(" ORDER BY `s`.`type`, `s`.`identifier` LIMIT ? OFFSET ?");
+        return dialect.applyPrefix(sql.toString());
+    }
+
+    /**
+     * Restrict a segment to those with exactly the given context set
+     */
+    private static void appendContexts(StringBuilder sql, String segment, @Nullable Set<Map.Entry<String, String>> contexts, List<Object> params) {
+        if (contexts == null) {
+            return;
+        }
+        sql.append(" AND (SELECT COUNT(*) FROM `{contexts}` `c` WHERE `c`.`segment` = `").append(segment).append("`.`id`) = ?");
+        params.add(contexts.size());
+        for (Map.Entry<String, String> context : contexts) {
+            sql.append(" AND EXISTS (SELECT 1 FROM `{contexts}` `c` WHERE `c`.`segment` = `").append(segment)
+                    .append("`.`id` AND `c`.`key` = ? AND `c`.`value` = ?)");
+            params.add(context.getKey());
+            params.add(context.getValue());
+        }
+    }
+
+    private List<SubjectRef> fetchQueryPage(String sql, List<Object> params, int limit, int offset) {
+        StatementCache conn = null;
+        boolean failed = true;
+        try {
+            conn = getConnection();
+            final PreparedStatement stmt = conn.getDynamic(sql);
+            int i = 1;
+            for (Object param : params) {
+                stmt.setObject(i++, param);
+            }
+            stmt.setInt(i++, limit);
+            stmt.setInt(i, offset);
+            final List<SubjectRef> ret = new ArrayList<>();
+            try (ResultSet rs = stmt.executeQuery()) {
+                while (rs.next()) {
+                    ret.add(SubjectRef.of(rs.getString(1), rs.getString(2)));
+                }
+            }
+            failed = false;
+            return ret;
+        } catch (SQLException e) {
+            throw new DataStoreException("While running subject query " + sql + " with parameters " + params + " against " + url, e);
+        } finally {
+            if (conn != null) {
+                returnConnection(conn, failed);
+            }
+        }
+    }
+}
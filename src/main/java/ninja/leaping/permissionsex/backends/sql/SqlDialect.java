@@ -0,0 +1,131 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.sql;
+
+import com.google.common.collect.ImmutableMap;
+import com.google.common.io.Resources;
+
+import javax.sql.DataSource;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * The queries and table definitions for the database at a JDBC url, loaded from the {@code sql/} resources.
+ */
+final class SqlDialect {
+    private static final Pattern TABLE_PATTERN = Pattern.compile("\\{([^}]+)\\}");
+    private final String dialect;
+    private final String prefix;
+
+    SqlDialect(String url, String prefix) {
+        if (url.startsWith("jdbc:mysql:")) {
+            this.dialect = "mysql";
+        } else if (url.startsWith("jdbc:sqlite:")) {
+            this.dialect = "sqlite";
+        } else {
+            this.dialect = "default";
+        }
+        this.prefix = prefix;
+    }
+
+    public String getName() {
+        return dialect;
+    }
+
+    /**
+     * Load the queries for this dialect, falling back to the default queries for any not overridden.
+     *
+     * @return The queries, by name, with table names prefixed
+     * @throws IOException if the queries could not be read
+     */
+    public Map<String, String> loadQueries() throws IOException {
+        final Properties props = new Properties();
+        loadProperties(props, "default");
+        loadProperties(props, dialect);
+        final ImmutableMap.Builder<String, String> queries = ImmutableMap.builder();
+        for (String key : props.stringPropertyNames()) {
+            queries.put(key, applyPrefix(props.getProperty(key)));
+        }
+        return queries.build();
+    }
+
+    private static void loadProperties(Properties props, String dialect) throws IOException {
+        final URL resource = SqlDialect.class.getResource("/sql/" + dialect + "/queries.properties");
+        if (resource != null) {
+            try (InputStream in = resource.openStream()) {
+                props.load(in);
+            }
+        }
+    }
+
+    /**
+     * Replace table names in braces with the prefixed name of the table
+     *
+     * @param query The query to prefix tables in
+     * @return The query with table names replaced
+     */
+    String applyPrefix(String query) {
+        final Matcher match = TABLE_PATTERN.matcher(query);
+        final StringBuffer ret = new StringBuffer();
+        while (match.find()) {
+            match.appendReplacement(ret, Matcher.quoteReplacement(prefix + match.group(1)));
+        }
+        match.appendTail(ret);
+        return ret.toString();
+    }
+
+    /**
+     * Create any tables that do not yet exist
+     *
+     * @param dataSource The database to create tables in
+     * @throws IOException if the table definitions could not be read
+     * @throws SQLException if the tables could not be created
+     */
+    public void deploy(DataSource dataSource) throws IOException, SQLException {
+        URL resource = SqlDialect.class.getResource("/sql/" + dialect + "/deploy.sql");
+        if (resource == null) {
+            resource = SqlDialect.class.getResource("/sql/default/deploy.sql");
+        }
+        final String script = Resources.toString(resource, StandardCharsets.UTF_8)
+                .replaceAll("(?s)/\\*.*?\\*/", "")
+                .replaceAll("(?m)^\\s*(#|--).*$", "");
+        final List<String> statements = new ArrayList<>();
+        for (String statement : script.split(";")) {
+            if (!statement.trim().isEmpty()) {
+                statements.add(applyPrefix(statement.trim()));
+            }
+        }
+
+        try (Connection conn = dataSource.getConnection();
+             Statement stmt = conn.createStatement()) {
+            for (String statement : statements) {
+                stmt.execute(statement);
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.sql;
+
+import com.google.common.collect.Iterables;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A connection along with the statements that have been prepared on it. Not thread-safe.
+ */
+final class StatementCache implements AutoCloseable {
+    private final Connection connection;
+    private final Map<String, String> queries;
+    private final Map<String, PreparedStatement> statements = new HashMap<>();
+    private final Map<String, PreparedStatement> dynamicStatements = new HashMap<>();
+    private final Set<String> pendingBatches = new LinkedHashSet<>();
+
+    StatementCache(Connection connection, Map<String, String> queries) {
+        this.connection = connection;
+        this.queries = queries;
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    /**
+     * Get the prepared statement for a query, preparing it if this is the first time the query has been used on
+     * this connection.
+     *
+     * @param query The name of the query
+     * @return The prepared statement
+     * @throws SQLException if the statement could not be prepared
+     */
+    public PreparedStatement get(String query) throws SQLException {
+        final PreparedStatement ret = prepare(query);
+        ret.clearParameters();
+        return ret;
+    }
+
+    private PreparedStatement prepare(String query) throws SQLException {
+        PreparedStatement ret = statements.get(query);
+        if (ret == null) {
+            final String sql = queries.get(query);
+            if (sql == null) {
+                throw new SQLException("Unknown query " + query);
+            }
+            ret = connection.prepareStatement(sql, Statement.RETURN_GENERATED_KEYS);
+            statements.put(query, ret);
+        }
+        return ret;
+    }
+
+    /**
+     * Get a prepared statement for SQL built at runtime, such as a search whose filters vary.
+     * Statements are cached by their SQL, so searches built from the same filters share a statement.
+     *
+     * @param sql The SQL of the statement, with table names already prefixed
+     * @return The prepared statement
+     * @throws SQLException if the statement could not be prepared
+     */
+    public PreparedStatement getDynamic(String sql) throws SQLException {
+        PreparedStatement ret = dynamicStatements.get(sql);
+        if (ret == null) {
+            ret = connection.prepareStatement(sql);
+            dynamicStatements.put(sql, ret);
+        }
+        ret.clearParameters();
+        return ret;
+    }
+
+    /**
+     * Get the prepared statement for a query that will be executed as part of a batch.
+     *
+     * @see #executeBatches()
+     * @param query The name of the query
+     * @return The prepared statement, with any parameters from earlier in the batch retained
+     * @throws SQLException if the statement could not be prepared
+     */
+    public PreparedStatement batch(String query) throws SQLException {
+        final PreparedStatement ret = prepare(query); // Every parameter is set for each batch entry
+        pendingBatches.add(query);
+        return ret;
+    }
+
+    /**
+     * Execute every batch that has had statements added, in the order the batches were first used.
+     *
+     * @throws SQLException if any batch fails
+     */
+    public void executeBatches() throws SQLException {
+        try {
+            for (String query : pendingBatches) {
+                statements.get(query).executeBatch();
+            }
+        } finally {
+            pendingBatches.clear();
+        }
+    }
+
+    /**
+     * Discard any statements added to batches that have not yet been executed.
+     */
+    public void clearBatches() throws SQLException {
+        try {
+            for (String query : pendingBatches) {
+                statements.get(query).clearBatch();
+            }
+        } finally {
+            pendingBatches.clear();
+        }
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            for (PreparedStatement stmt : Iterables.concat(statements.values(), dynamicStatements.values())) {
+                stmt.close();
+            }
+        } finally {
+            statements.clear();
+            dynamicStatements.clear();
+            connection.close();
+        }
+    }
+}
@@ -0,0 +1,411 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.tiered;
+
+import com.google.common.base.Functions;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.collect.ConcurrentHashMultiset;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
+import com.google.common.collect.Maps;
+import com.google.common.collect.Multiset;
+import com.google.common.util.concurrent.FutureCallback;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.Striped;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+import ninja.leaping.configurate.objectmapping.Setting;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.backends.AbstractDataStore;
+import ninja.leaping.permissionsex.backends.DataStore;
+import ninja.leaping.permissionsex.backends.memory.MemoryOptionSubjectData;
+import ninja.leaping.permissionsex.data.Caching;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+
+/**
+ * A data store that keeps recently used subjects from a slower backend in a faster one.
+ *
+ * <p>Reads are served from the first tier (l1), which subjects are loaded into from the second tier (l2) when first
+ * read. Changes are written to the first tier, and to the second tier either immediately or after a delay. The first
+ * tier holds at most {@code max-size} subjects: the least recently used are written back if changed, removed from
+ * it, and passed on to anything caching them. Both tiers are other backends defined in the configuration.</p>
+ */
+public class TieredDataStore extends AbstractDataStore {
+    public static final Factory FACTORY = new Factory("tiered", TieredDataStore.class);
+
+    public enum WriteMode {
+        /**
+         * Changes are written to both tiers before they are reported as saved
+         */
+        WRITE_THROUGH,
+        /**
+         * Changes are written to the first tier, and to the second tier after a delay
+         */
+        WRITE_BACK
+    }
+
+    @Setting(comment = "Name of the backend to serve reads from")
+    private String l1;
+    @Setting(comment = "Name of the backend holding the persistent copy of data")
+    private String l2;
+    @Setting(value = "max-size", comment = "Maximum number of subjects to hold in the first tier")
+    private int maxSize = 2048;
+    @Setting(value = "write-mode", comment = "How changes are written to the second tier. WRITE_THROUGH or WRITE_BACK")
+    private WriteMode writeMode = WriteMode.WRITE_THROUGH;
+    @Setting(value = "write-back-delay", comment = "Time in milliseconds to wait before writing changes to the second tier, when using WRITE_BACK")
+    private long writeBackDelay = 5000;
+
+    private DataStore first, second;
+    private Cache<Map.Entry<String, String>, Boolean> resident; // Subjects held by the first tier
+    private final Queue<Map.Entry<String, String>> evicted = new ConcurrentLinkedQueue<>();
+    // Guards moving a subject in and out of the first tier
+    private final Striped<Lock> locks = Striped.lock(64);
+    private final Set<Map.Entry<String, String>> dirty = Collections.newSetFromMap(new ConcurrentHashMap<Map.Entry<String, String>, Boolean>());
+    // Subjects with a write to the second tier in progress
+    private final Multiset<Map.Entry<String, String>> writing = ConcurrentHashMultiset.create();
+    // Listeners passing on changes the second tier sees to resident subjects, held here because data stores only hold listeners weakly
+    private final ConcurrentMap<Map.Entry<String, String>, Forwarder> forwarders = new ConcurrentHashMap<>();
+    private ScheduledExecutorService flushScheduler;
+    private ScheduledFuture<?> scheduledFlush; // guarded by this
+
+    public TieredDataStore() {
+        super(FACTORY);
+    }
+
+    @Override
+    protected void initializeInternal(PermissionsEx core) throws PermissionsLoadingException {
+        first = getTier(core, l1);
+        second = getTier(core, l2);
+        resident = CacheBuilder.newBuilder()
+                .maximumSize(maxSize)
+                .removalListener(new RemovalListener<Map.Entry<String, String>, Boolean>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<Map.Entry<String, String>, Boolean> notification) {
+                        if (notification.wasEvicted()) {
+                            evicted.add(notification.getKey()); // Handled once the lock for the subject causing the eviction is released
+                        }
+                    }
+                })
+                .build();
+        if (writeMode == WriteMode.WRITE_BACK) {
+            flushScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                    .setNameFormat("PermissionsEx tiered writer (" + l2 + ")")
+                    .setDaemon(true)
+                    .build());
+        }
+        first.initialize(core);
+        second.initialize(core);
+    }
+
+    @Override
+    protected void setManagerInternal(PermissionsEx core) {
+        first.setManager(core);
+        second.setManager(core);
+    }
+
+    private DataStore getTier(PermissionsEx core, String name) throws PermissionsLoadingException {
+        if (name == null) {
+            throw new PermissionsLoadingException("Both tiers of a tiered backend must be specified");
+        }
+        final DataStore ret = core.getConfig().getDataStore(name);
+        if (ret == null) {
+            throw new PermissionsLoadingException("Backend " + name + " used as a tier does not exist");
+        } else if (ret == this) {
+            throw new PermissionsLoadingException("Tiered backend cannot use itself as a tier");
+        }
+        return ret;
+    }
+
+    /**
+     * Get the names of the backends used as tiers, first tier first
+     *
+     * @return The tier names
+     */
+    public List<String> getTierNames() {
+        return Collections.unmodifiableList(Arrays.asList(l1, l2));
+    }
+
+    @Override
+    protected void closeInternal() {
+        if (flushScheduler != null) {
+            flushScheduler.shutdown();
+            try {
+                flush().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                getManager().getLogger().error("Unable to write changes to " + l2 + " while closing", e.getCause());
+            }
+        }
+        first.close();
+        second.close();
+    }
+
+    @Override
+    public void reload() throws PermissionsLoadingException {
+        first.reload();
+        second.reload(); // Changed subjects are passed on by their forwarders
+    }
+
+    private void processEvictions() {
+        Map.Entry<String, String> key;
+        while ((key = evicted.poll()) != null) {
+            evict(key);
+        }
+    }
+
+    /**
+     * Remove a subject from the first tier, writing it to the second tier first if it has unsaved changes.
+     */
+    private void evict(Map.Entry<String, String> key) {
+        final ImmutableOptionSubjectData data;
+        final Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            if (resident.asMap().containsKey(key)) {
+                return; // Loaded again since being evicted
+            }
+            forwarders.remove(key);
+            data = getFirst(key);
+            writeToSecond(key);
+            first.setData(key.getKey(), key.getValue(), null);
+        } finally {
+            lock.unlock();
+        }
+        // Anything caching the subject is now caching data only held by the second tier
+        refresh(key.getKey(), key.getValue(), data == null ? MemoryOptionSubjectData.EMPTY : data);
+    }
+
+    @Nullable
+    private ImmutableOptionSubjectData getFirst(Map.Entry<String, String> key) {
+        return first.isRegistered(key.getKey(), key.getValue()) ? first.getData(key.getKey(), key.getValue(), null) : null;
+    }
+
+    /**
+     * Write a subject to the second tier if it has unsaved changes.
+     *
+     * @return A future completing once the subject is written, or null if there was nothing to write
+     */
+    @Nullable
+    private ListenableFuture<ImmutableOptionSubjectData> writeToSecond(final Map.Entry<String, String> key) {
+        final Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            if (!dirty.remove(key)) { // Removed before reading so a concurrent change marks the subject again
+                return null;
+            }
+            final ListenableFuture<ImmutableOptionSubjectData> ret = setSecond(key, getFirst(key));
+            Futures.addCallback(ret, new FutureCallback<ImmutableOptionSubjectData>() {
+                @Override
+                public void onSuccess(@Nullable ImmutableOptionSubjectData result) {
+                }
+
+                @Override
+                public void onFailure(Throwable t) {
+                    getManager().getLogger().error("Unable to write " + key.getKey() + ":" + key.getValue() + " to " + l2, t);
+                }
+            });
+            return ret;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ListenableFuture<ImmutableOptionSubjectData> setSecond(final Map.Entry<String, String> key, @Nullable ImmutableOptionSubjectData data) {
+        writing.add(key);
+        final ListenableFuture<ImmutableOptionSubjectData> ret = second.setData(key.getKey(), key.getValue(), data);
+        // The second tier notifies its listeners before the write's future completes
+        ret.addListener(new Runnable() {
+            @Override
+            public void run() {
+                writing.remove(key);
+            }
+        }, MoreExecutors.sameThreadExecutor());
+        return ret;
+    }
+
+    /**
+     * Passes changes the second tier sees to a resident subject, other than those written by this data store, on to
+     * the first tier and to anything listening to this data store.
+     */
+    private class Forwarder implements Caching {
+        private final Map.Entry<String, String> key;
+
+        private Forwarder(Map.Entry<String, String> key) {
+            this.key = key;
+        }
+
+        @Override
+        public void clearCache(ImmutableOptionSubjectData newData) {
+            final Lock lock = locks.get(key);
+            lock.lock();
+            try {
+                if (forwarders.get(key) != this || dirty.contains(key) || writing.contains(key)) {
+                    return; // Evicted, or changes made here are newer or already held here
+                }
+                first.setData(key.getKey(), key.getValue(), newData);
+            } finally {
+                lock.unlock();
+            }
+            refresh(key.getKey(), key.getValue(), newData);
+        }
+    }
+
+    /**
+     * Write every subject with unsaved changes to the second tier.
+     *
+     * @return A future completing once every write has finished
+     */
+    ListenableFuture<List<ImmutableOptionSubjectData>> flush() {
+        synchronized (this) {
+            if (scheduledFlush != null) {
+                scheduledFlush.cancel(false);
+                scheduledFlush = null;
+            }
+        }
+        final List<ListenableFuture<ImmutableOptionSubjectData>> writes = new ArrayList<>();
+        for (Map.Entry<String, String> key : ImmutableList.copyOf(dirty)) {
+            final ListenableFuture<ImmutableOptionSubjectData> write = writeToSecond(key);
+            if (write != null) {
+                writes.add(write);
+            }
+        }
+        return Futures.successfulAsList(writes);
+    }
+
+    private synchronized void scheduleFlush() {
+        if (scheduledFlush == null && !flushScheduler.isShutdown()) {
+            scheduledFlush = flushScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (TieredDataStore.this) {
+                        scheduledFlush = null;
+                    }
+                    flush();
+                }
+            }, writeBackDelay, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    @Override
+    protected ImmutableOptionSubjectData getDataInternal(String type, String identifier) throws PermissionsLoadingException {
+        final Map.Entry<String, String> key = Maps.immutableEntry(type, identifier);
+        final Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            if (resident.getIfPresent(key) != null) {
+                return first.getData(type, identifier, null);
+            }
+
+            final Forwarder forwarder = new Forwarder(key);
+            forwarders.put(key, forwarder);
+            final ImmutableOptionSubjectData ret = second.getData(type, identifier, forwarder);
+            first.setData(type, identifier, ret);
+            resident.put(key, true);
+            return ret;
+        } finally {
+            lock.unlock();
+            processEvictions();
+        }
+    }
+
+    @Override
+    protected ListenableFuture<ImmutableOptionSubjectData> setDataInternal(String type, String identifier, final ImmutableOptionSubjectData data) {
+        final Map.Entry<String, String> key = Maps.immutableEntry(type, identifier);
+        final ListenableFuture<ImmutableOptionSubjectData> firstWrite;
+        final Lock lock = locks.get(key);
+        lock.lock();
+        try {
+            firstWrite = first.setData(type, identifier, data);
+            resident.put(key, true);
+            if (writeMode == WriteMode.WRITE_BACK) {
+                dirty.add(key);
+            }
+        } finally {
+            lock.unlock();
+            processEvictions();
+        }
+        if (writeMode == WriteMode.WRITE_BACK) {
+            scheduleFlush();
+            return firstWrite;
+        }
+
+        return Futures.transform(Futures.allAsList(ImmutableList.of(firstWrite, setSecond(key, data))),
+                Functions.constant(data));
+    }
+
+    @Override
+    public boolean isRegistered(String type, String identifier) {
+        final Map.Entry<String, String> key = Maps.immutableEntry(type, identifier);
+        if (dirty.contains(key)) {
+            return first.isRegistered(type, identifier);
+        }
+        return second.isRegistered(type, identifier);
+    }
+
+    @Override
+    public Iterable<String> getAllIdentifiers(String type) {
+        final Set<String> ret = new HashSet<>();
+        for (String identifier : second.getAllIdentifiers(type)) {
+            ret.add(identifier);
+        }
+        for (Map.Entry<String, String> key : dirty) {
+            if (key.getKey().equals(type)) {
+                if (first.isRegistered(type, key.getValue())) {
+                    ret.add(key.getValue());
+                } else {
+                    ret.remove(key.getValue());
+                }
+            }
+        }
+        return ret;
+    }
+
+    @Override
+    public Iterable<String> getRegisteredTypes() {
+        final Set<String> ret = new HashSet<>();
+        Iterables.addAll(ret, second.getRegisteredTypes());
+        for (Map.Entry<String, String> key : dirty) {
+            ret.add(key.getKey());
+        }
+        return ret;
+    }
+}
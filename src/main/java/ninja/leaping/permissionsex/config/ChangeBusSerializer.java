@@ -0,0 +1,72 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.config;
+
+import com.google.common.base.Optional;
+import com.google.common.reflect.TypeToken;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.objectmapping.InvalidTypeException;
+import ninja.leaping.configurate.objectmapping.ObjectMapper;
+import ninja.leaping.configurate.objectmapping.ObjectMappingException;
+import ninja.leaping.configurate.objectmapping.serialize.TypeSerializer;
+import ninja.leaping.permissionsex.backends.bus.ChangeBus;
+import ninja.leaping.permissionsex.backends.bus.ChangeBuses;
+
+public class ChangeBusSerializer implements TypeSerializer {
+    private static final TypeToken<ChangeBus> CHANGE_BUS_TYPE = TypeToken.of(ChangeBus.class);
+
+    @Override
+    public boolean isApplicable(TypeToken<?> type) {
+        return CHANGE_BUS_TYPE.isAssignableFrom(type);
+    }
+
+    @Override
+    public Object deserialize(TypeToken<?> type, ConfigurationNode value) throws ObjectMappingException {
+        if (!isApplicable(type)) {
+            throw new InvalidTypeException(type);
+        }
+        final String busType = value.getNode("type").getString();
+        if (busType == null) {
+            return null;
+        }
+        Optional<Class<? extends ChangeBus>> clazz = ChangeBuses.get(busType);
+        if (!clazz.isPresent()) {
+            throw new ObjectMappingException("Unknown ChangeBus type " + busType);
+        }
+        return ObjectMapper.forClass(clazz.get()).bindToNew().populate(value);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public void serialize(TypeToken<?> type, Object obj, ConfigurationNode value) throws ObjectMappingException {
+        if (!isApplicable(type)) {
+            throw new InvalidTypeException(type);
+        }
+        if (obj == null) {
+            return;
+        }
+        if (!(obj instanceof ChangeBus)) {
+            throw new ObjectMappingException("Object provided to serializer was a " + obj.getClass() + "; expected a ChangeBus");
+        }
+        final Optional<String> busType = ChangeBuses.getType(((ChangeBus) obj).getClass());
+        if (!busType.isPresent()) {
+            throw new ObjectMappingException("ChangeBus " + obj.getClass() + " has not been registered");
+        }
+        ((ObjectMapper) ObjectMapper.forClass(obj.getClass())).bind(obj).serialize(value);
+        value.getNode("type").setValue(busType.get());
+    }
+}
@@ -22,6 +22,7 @@ import ninja.leaping.configurate.objectmapping.Setting;
 import ninja.leaping.configurate.objectmapping.serialize.TypeSerializers;
 import ninja.leaping.permissionsex.backends.DataStore;
 import ninja.leaping.permissionsex.exception.PEBKACException;
+import ninja.leaping.permissionsex.util.IOExecutor;
 
 import java.util.Collections;
 import java.util.List;
@@ -48,6 +49,31 @@ public class PermissionsExConfiguration {
     @Setting("default-backend") private String defaultBackend;
     @Setting private boolean debug;
     @Setting("server-tags") private List<String> serverTags;
+    @Setting(value = "off-heap-cache-size", comment = "Bytes of memory outside the Java heap used to hold subjects that are no longer actively cached. 0 to disable")
+    private int offHeapCacheSize = 0;
+    @Setting(value = "subject-cache-size", comment = "Maximum number of subjects of each type kept loaded. Subjects of online players are always kept loaded")
+    private int subjectCacheSize = 4096;
+    @Setting(value = "subject-cache-expiry", comment = "Seconds a subject that is not in use is kept loaded. 0 to keep subjects until the cache is full")
+    private int subjectCacheExpiry = 900;
+    @Setting(value = "group-preload", comment = "How groups are loaded at startup: parallel to read them using every core, serial to read them one at a time, or lazy to read each group when it is first used")
+    private GroupPreload groupPreload = GroupPreload.PARALLEL;
+    @Setting(value = "io-threads", comment = "Number of threads used to read and write backend data. 0 to perform backend I/O on the thread making the change")
+    private int ioThreads = 4;
+    @Setting(value = "io-queue-size", comment = "Number of backend writes that may wait for an I/O thread")
+    private int ioQueueSize = 1024;
+    @Setting(value = "io-backpressure", comment = "What to do once the I/O queue is full: caller to perform the write on the thread making the change, or block to wait for room in the queue")
+    private IOExecutor.Backpressure ioBackpressure = IOExecutor.Backpressure.CALLER;
+    @Setting(value = "io-virtual-threads", comment = "Whether to perform backend I/O on virtual threads, when the Java runtime supports them")
+    private boolean ioVirtualThreads = false;
+
+    /**
+     * Ways groups can be loaded when PermissionsEx starts
+     */
+    public enum GroupPreload {
+        PARALLEL,
+        SERIAL,
+        LAZY
+    }
 
     protected PermissionsExConfiguration() {}
 
@@ -63,6 +89,38 @@ public class PermissionsExConfiguration {
         return debug;
     }
 
+    public int getOffHeapCacheSize() {
+        return offHeapCacheSize;
+    }
+
+    public int getSubjectCacheSize() {
+        return subjectCacheSize;
+    }
+
+    public int getSubjectCacheExpiry() {
+        return subjectCacheExpiry;
+    }
+
+    public GroupPreload getGroupPreload() {
+        return groupPreload;
+    }
+
+    public int getIOThreads() {
+        return ioThreads;
+    }
+
+    public int getIOQueueSize() {
+        return ioQueueSize;
+    }
+
+    public IOExecutor.Backpressure getIOBackpressure() {
+        return ioBackpressure;
+    }
+
+    public boolean useIOVirtualThreads() {
+        return ioVirtualThreads;
+    }
+
     public List<String> getServerTags() {
         return Collections.unmodifiableList(serverTags);
     }
@@ -78,5 +136,11 @@ public class PermissionsExConfiguration {
         if (!backends.containsKey(defaultBackend)) {
             throw new PEBKACException("Default backend " + defaultBackend + " is not an available backend! Choices are: " + backends.keySet());
         }
+        if (ioThreads < 0) {
+            throw new PEBKACException("io-threads must not be negative, but was " + ioThreads);
+        }
+        if (ioQueueSize < 1) {
+            throw new PEBKACException("io-queue-size must be at least 1, but was " + ioQueueSize);
+        }
     }
 }
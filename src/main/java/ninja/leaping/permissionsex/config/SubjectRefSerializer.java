@@ -0,0 +1,50 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.config;
+
+import com.google.common.reflect.TypeToken;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.objectmapping.InvalidTypeException;
+import ninja.leaping.configurate.objectmapping.ObjectMappingException;
+import ninja.leaping.configurate.objectmapping.serialize.TypeSerializer;
+import ninja.leaping.permissionsex.data.SubjectRef;
+
+public class SubjectRefSerializer implements TypeSerializer {
+    private static final TypeToken<SubjectRef> SUBJECT_REF_TYPE = TypeToken.of(SubjectRef.class);
+
+    @Override
+    public boolean isApplicable(TypeToken<?> type) {
+        return SUBJECT_REF_TYPE.equals(type);
+    }
+
+    @Override
+    public Object deserialize(TypeToken<?> type, ConfigurationNode value) throws ObjectMappingException {
+        if (!isApplicable(type)) {
+            throw new InvalidTypeException(type);
+        }
+        final String combined = value.getString();
+        return combined == null ? null : SubjectRef.parse(combined);
+    }
+
+    @Override
+    public void serialize(TypeToken<?> type, Object obj, ConfigurationNode value) throws ObjectMappingException {
+        if (!isApplicable(type)) {
+            throw new InvalidTypeException(type);
+        }
+        value.setValue(obj == null ? null : obj.toString());
+    }
+}
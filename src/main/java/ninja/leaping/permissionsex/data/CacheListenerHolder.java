@@ -17,50 +17,133 @@
 package ninja.leaping.permissionsex.data;
 
 import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.MapMaker;
 
 import java.util.Collections;
+import java.util.List;
 import java.util.Set;
 import java.util.concurrent.ConcurrentMap;
 
 public class CacheListenerHolder<Key> {
-    private final ConcurrentMap<Key, Set<Caching>> listeners = new MapMaker().concurrencyLevel(10).makeMap();
+    private final ConcurrentMap<Key, Listeners> listeners = new MapMaker().concurrencyLevel(10).makeMap();
 
-    private Set<Caching> getListeners(Key key) {
+    /**
+     * The listeners for one key, the latest revision seen for them, and the data waiting to be passed to them
+     */
+    private static class Listeners {
+        private final Set<Caching> set = Collections.newSetFromMap(new MapMaker().weakKeys().concurrencyLevel(10).<Caching, Boolean>makeMap());
+        private long revision; // guarded by this
+        private ImmutableOptionSubjectData pending; // guarded by this
+        private boolean delivering; // guarded by this
+    }
+
+    private Listeners getListeners(Key key) {
         Preconditions.checkNotNull(key, "key");
 
-        Set<Caching> set = listeners.get(key);
-        if (set == null) {
-            set = Collections.newSetFromMap(new MapMaker().weakKeys().concurrencyLevel(10).<Caching, Boolean>makeMap());
-            Set<Caching> potentialNewSet = listeners.putIfAbsent(key, set);
-            if (potentialNewSet != null) {
-                set = potentialNewSet;
+        Listeners ret = listeners.get(key);
+        if (ret == null) {
+            ret = new Listeners();
+            Listeners potentialNewListeners = listeners.putIfAbsent(key, ret);
+            if (potentialNewListeners != null) {
+                ret = potentialNewListeners;
             }
         }
-        return set;
+        return ret;
     }
 
     public void call(Key key, ImmutableOptionSubjectData newData) {
         Preconditions.checkNotNull(key, "key");
         Preconditions.checkNotNull(newData, "newData");
 
-        for (Caching listener : getListeners(key)) {
-            listener.clearCache(newData);
+        final Listeners holder = listeners.get(key);
+        if (holder != null) {
+            for (Caching listener : holder.set) {
+                listener.clearCache(newData);
+            }
         }
 
     }
 
+    /**
+     * Pass new data to the listeners for a key, unless data with a later revision has already been passed to them.
+     * Notifications for one key are delivered by one thread at a time, so listeners never see revisions go backwards.
+     * Data arriving while another thread is delivering is left for that thread to pass on, and only the latest of
+     * the data waiting is delivered.
+     *
+     * @param key The key the data is for
+     * @param newData The new data
+     * @param revision The revision of the new data
+     * @return Whether the data was passed on, rather than dropped as out of date
+     */
+    public boolean call(Key key, ImmutableOptionSubjectData newData, long revision) {
+        Preconditions.checkNotNull(key, "key");
+        Preconditions.checkNotNull(newData, "newData");
+
+        final Listeners holder = listeners.get(key);
+        if (holder == null) {
+            return true;
+        }
+        synchronized (holder) {
+            if (revision < holder.revision) {
+                return false;
+            }
+            holder.revision = revision;
+            holder.pending = newData;
+            if (holder.delivering) {
+                return true;
+            }
+            holder.delivering = true;
+        }
+
+        boolean delivered = false;
+        try {
+            while (true) {
+                final ImmutableOptionSubjectData data;
+                final long dataRevision;
+                final List<Caching> targets;
+                synchronized (holder) {
+                    if (holder.pending == null) {
+                        holder.delivering = false;
+                        delivered = true;
+                        return true;
+                    }
+                    data = holder.pending;
+                    dataRevision = holder.revision;
+                    holder.pending = null;
+                    targets = ImmutableList.copyOf(holder.set);
+                }
+                for (Caching listener : targets) {
+                    if (listener instanceof RevisionedCaching) {
+                        ((RevisionedCaching) listener).clearCache(data, dataRevision);
+                    } else {
+                        listener.clearCache(data);
+                    }
+                }
+            }
+        } finally {
+            if (!delivered) { // A listener threw, so let the next caller deliver
+                synchronized (holder) {
+                    holder.delivering = false;
+                }
+            }
+        }
+    }
+
     public void addListener(Key key, Caching listener) {
         Preconditions.checkNotNull(key, "key");
         Preconditions.checkNotNull(listener, "listener");
 
-        getListeners(key).add(listener);
+        getListeners(key).set.add(listener);
     }
 
     public void removeListener(Key key, Caching listener) {
         Preconditions.checkNotNull(key, "key");
         Preconditions.checkNotNull(listener, "listener");
 
-        getListeners(key).remove(listener);
+        final Listeners holder = listeners.get(key);
+        if (holder != null) {
+            holder.set.remove(listener);
+        }
     }
 }
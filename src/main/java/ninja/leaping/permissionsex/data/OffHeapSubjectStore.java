@@ -0,0 +1,283 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.data;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Maps;
+
+import javax.annotation.Nullable;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Holds serialized subject data outside of the Java heap.
+ *
+ * Data is appended to a single direct buffer of fixed capacity, with only a small index entry per subject kept on the
+ * heap. When the buffer fills up, the space used by removed subjects is reclaimed by compacting the buffer, and if that is
+ * not enough the subjects stored longest ago are dropped. Since this is only a cache, dropped subjects are simply read
+ * from their data store again the next time they are needed. Whoever stored a dropped subject is told through the
+ * {@link EvictionListener} registered for its type, so it can release anything it kept for the subject.
+ */
+public class OffHeapSubjectStore {
+    private final ByteBuffer arena;
+    // Insertion order matches the order of records in the arena
+    private final LinkedHashMap<Map.Entry<String, String>, Record> index = new LinkedHashMap<>();
+    private int writePosition, liveBytes;
+    private long hits, misses;
+    private final ConcurrentMap<String, EvictionListener> evictionListeners = new ConcurrentHashMap<>();
+
+    /**
+     * Told about subjects dropped to make space for others
+     */
+    public interface EvictionListener {
+        /**
+         * Called once a subject has been dropped, without holding any lock on the store
+         *
+         * @param identifier The identifier of the dropped subject
+         * @param owner The owner given when the subject's data was stored
+         */
+        void onEviction(String identifier, @Nullable Object owner);
+    }
+
+    private static final class Record {
+        private int offset;
+        private final int length;
+        @Nullable private final Object owner;
+
+        private Record(int offset, int length, @Nullable Object owner) {
+            this.offset = offset;
+            this.length = length;
+            this.owner = owner;
+        }
+    }
+
+    /**
+     * Create a new store
+     *
+     * @param capacity The number of bytes of off-heap memory to use
+     */
+    public OffHeapSubjectStore(int capacity) {
+        Preconditions.checkArgument(capacity > 0, "capacity must be positive");
+        this.arena = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Set the listener told about subjects of a type that are dropped to make space, replacing any previous listener
+     *
+     * @param type The subject type
+     * @param listener The listener, or null to remove the current listener
+     */
+    public void setEvictionListener(String type, @Nullable EvictionListener listener) {
+        Preconditions.checkNotNull(type, "type");
+        if (listener == null) {
+            evictionListeners.remove(type);
+        } else {
+            evictionListeners.put(type, listener);
+        }
+    }
+
+    public void put(String type, String identifier, ImmutableOptionSubjectData data) throws IOException {
+        put(type, identifier, data, null);
+    }
+
+    /**
+     * Store data for a subject, replacing any data already stored for it.
+     * Data too large to fit in a quarter of the store is not stored.
+     *
+     * @param type The subject's type
+     * @param identifier The subject's identifier
+     * @param data The data to store
+     * @param owner An object passed to the eviction listener if the subject is dropped, or null
+     * @throws IOException if the data could not be serialized
+     */
+    public void put(String type, String identifier, ImmutableOptionSubjectData data, @Nullable Object owner) throws IOException {
+        store(type, identifier, data, owner, false);
+    }
+
+    /**
+     * Replace the data stored for a subject, only if data is already stored for it
+     *
+     * @param type The subject's type
+     * @param identifier The subject's identifier
+     * @param data The new data
+     * @param owner An object passed to the eviction listener if the subject is dropped, or null
+     * @return Whether data was stored for the subject and has been replaced
+     * @throws IOException if the data could not be serialized
+     */
+    public boolean replace(String type, String identifier, ImmutableOptionSubjectData data, @Nullable Object owner) throws IOException {
+        return store(type, identifier, data, owner, true);
+    }
+
+    private boolean store(String type, String identifier, ImmutableOptionSubjectData data, @Nullable Object owner, boolean onlyIfPresent) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (DataOutputStream out = new DataOutputStream(bytes)) {
+            SubjectDataCodec.write(data, out);
+        }
+        final Map.Entry<String, String> key = Maps.immutableEntry(type, identifier);
+        final List<Map.Entry<Map.Entry<String, String>, Record>> dropped;
+        synchronized (this) {
+            if (onlyIfPresent && !index.containsKey(key)) {
+                return false;
+            }
+            final Record previous = removeRecord(key);
+            if (bytes.size() > arena.capacity() / 4) {
+                dropped = previous == null ? Collections.<Map.Entry<Map.Entry<String, String>, Record>>emptyList()
+                        : Collections.singletonList(Maps.immutableEntry(key, previous));
+            } else {
+                dropped = makeSpace(bytes.size());
+                final ByteBuffer target = arena.duplicate();
+                target.position(writePosition);
+                target.put(bytes.toByteArray());
+                index.put(key, new Record(writePosition, bytes.size(), owner));
+                writePosition += bytes.size();
+                liveBytes += bytes.size();
+            }
+        }
+        for (Map.Entry<Map.Entry<String, String>, Record> ent : dropped) {
+            final EvictionListener listener = evictionListeners.get(ent.getKey().getKey());
+            if (listener != null) {
+                listener.onEviction(ent.getKey().getValue(), ent.getValue().owner);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Remove a subject's data from this store and return it to the heap.
+     *
+     * @param type The subject's type
+     * @param identifier The subject's identifier
+     * @return The stored data, or null if nothing is stored for the subject
+     */
+    public ImmutableOptionSubjectData take(String type, String identifier) throws IOException {
+        final byte[] bytes;
+        synchronized (this) {
+            final Map.Entry<String, String> key = Maps.immutableEntry(type, identifier);
+            final Record record = index.get(key);
+            if (record == null) {
+                ++misses;
+                return null;
+            }
+            ++hits;
+            bytes = read(record);
+            removeRecord(key);
+        }
+        try (DataInputStream in = new DataInputStream(new ByteArrayInputStream(bytes))) {
+            return SubjectDataCodec.read(in);
+        }
+    }
+
+    /**
+     * Remove a subject's data from this store. The eviction listener is not told about removed subjects.
+     *
+     * @param type The subject's type
+     * @param identifier The subject's identifier
+     * @return Whether any data was stored for the subject
+     */
+    public synchronized boolean remove(String type, String identifier) {
+        return removeRecord(Maps.immutableEntry(type, identifier)) != null;
+    }
+
+    public synchronized boolean contains(String type, String identifier) {
+        return index.containsKey(Maps.immutableEntry(type, identifier));
+    }
+
+    public synchronized int size() {
+        return index.size();
+    }
+
+    /**
+     * @return The number of bytes used by data currently stored
+     */
+    public synchronized int getUsedBytes() {
+        return liveBytes;
+    }
+
+    public int getCapacity() {
+        return arena.capacity();
+    }
+
+    /**
+     * @return The fraction of {@link #take} calls that found stored data
+     */
+    public synchronized double getHitRate() {
+        final long total = hits + misses;
+        return total == 0 ? 0 : (double) hits / total;
+    }
+
+    @Nullable
+    private Record removeRecord(Map.Entry<String, String> key) {
+        final Record record = index.remove(key);
+        if (record != null) {
+            liveBytes -= record.length;
+        }
+        return record;
+    }
+
+    private byte[] read(Record record) {
+        final byte[] ret = new byte[record.length];
+        final ByteBuffer source = arena.duplicate();
+        source.position(record.offset);
+        source.get(ret);
+        return ret;
+    }
+
+    /**
+     * Ensure there is room to append {@code length} bytes, compacting the arena and dropping old records as needed
+     *
+     * @return The records dropped
+     */
+    private List<Map.Entry<Map.Entry<String, String>, Record>> makeSpace(int length) {
+        final List<Map.Entry<Map.Entry<String, String>, Record>> dropped = new ArrayList<>();
+        if (writePosition + length <= arena.capacity()) {
+            return dropped;
+        }
+        for (Iterator<Map.Entry<Map.Entry<String, String>, Record>> it = index.entrySet().iterator(); it.hasNext() && liveBytes + length > arena.capacity();) {
+            final Map.Entry<Map.Entry<String, String>, Record> ent = it.next();
+            liveBytes -= ent.getValue().length;
+            dropped.add(Maps.immutableEntry(ent.getKey(), ent.getValue()));
+            it.remove();
+        }
+
+        // Records are stored in index order, so each one moves towards the start of the arena
+        int position = 0;
+        for (Record record : index.values()) {
+            if (record.offset != position) {
+                final byte[] data = read(record);
+                final ByteBuffer target = arena.duplicate();
+                target.position(position);
+                target.put(data);
+                record.offset = position;
+            }
+            position += record.length;
+        }
+        writePosition = position;
+        return dropped;
+    }
+}
@@ -0,0 +1,363 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.data;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import ninja.leaping.permissionsex.Combinations;
+
+import javax.annotation.Nullable;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+
+/**
+ * An inverted index of the subjects held by a data store. Permission nodes and option keys map to the subjects that
+ * set them in any context, and subjects map to the subjects that directly inherit from them.
+ *
+ * This lets queries for every subject a permission applies to visit only the subjects that set the permission and
+ * their descendants, rather than resolving the permissions of every subject. The values and contexts of indexed
+ * permissions and parents are kept as well, so those subjects can be checked without loading their data.
+ */
+public class PermissionIndex {
+    private static final Indexed REMOVED = new Indexed(Collections.<String, Map<Set<Map.Entry<String, String>>, Integer>>emptyMap(),
+            Collections.<String>emptySet(), Collections.<Set<Map.Entry<String, String>>, List<SubjectRef>>emptyMap());
+
+    private final Object lock = new Object();
+    private final Map<SubjectRef, Indexed> subjects = new HashMap<>(); // guarded by lock
+    private final Map<String, Set<SubjectRef>> byPermission = new HashMap<>(); // guarded by lock
+    private final Map<String, Set<SubjectRef>> byOption = new HashMap<>(); // guarded by lock
+    private final Map<SubjectRef, Set<SubjectRef>> children = new HashMap<>(); // guarded by lock
+
+    /**
+     * The indexed data of a single subject. Never modified once created.
+     */
+    private static class Indexed {
+        private final Map<String, Map<Set<Map.Entry<String, String>>, Integer>> permissions; // node -> contexts -> value
+        private final Set<String> options;
+        private final Map<Set<Map.Entry<String, String>>, List<SubjectRef>> parents;
+        private final Set<SubjectRef> allParents;
+
+        private Indexed(Map<String, Map<Set<Map.Entry<String, String>>, Integer>> permissions, Set<String> options, Map<Set<Map.Entry<String, String>>, List<SubjectRef>> parents) {
+            this.permissions = permissions;
+            this.options = options;
+            this.parents = parents;
+            final ImmutableSet.Builder<SubjectRef> allParents = ImmutableSet.builder();
+            for (List<SubjectRef> segment : parents.values()) {
+                allParents.addAll(segment);
+            }
+            this.allParents = allParents.build();
+        }
+
+        static Indexed of(@Nullable ImmutableOptionSubjectData data) {
+            if (data == null) {
+                return REMOVED;
+            }
+            final Map<String, Map<Set<Map.Entry<String, String>>, Integer>> permissions = new HashMap<>();
+            for (Map.Entry<Set<Map.Entry<String, String>>, Map<String, Integer>> segment : data.getAllPermissions().entrySet()) {
+                for (Map.Entry<String, Integer> ent : segment.getValue().entrySet()) {
+                    if (ent.getValue() != 0) {
+                        final String node = ent.getKey().toLowerCase();
+                        Map<Set<Map.Entry<String, String>>, Integer> values = permissions.get(node);
+                        if (values == null) {
+                            values = new HashMap<>();
+                            permissions.put(node, values);
+                        }
+                        merge(values, segment.getKey(), ent.getValue());
+                    }
+                }
+            }
+            final ImmutableSet.Builder<String> options = ImmutableSet.builder();
+            for (Map<String, String> segment : data.getAllOptions().values()) {
+                options.addAll(segment.keySet());
+            }
+            final ImmutableMap.Builder<Set<Map.Entry<String, String>>, List<SubjectRef>> parents = ImmutableMap.builder();
+            for (Map.Entry<Set<Map.Entry<String, String>>, List<Map.Entry<String, String>>> segment : data.getAllParents().entrySet()) {
+                final ImmutableList.Builder<SubjectRef> segmentParents = ImmutableList.builder();
+                for (Map.Entry<String, String> parent : segment.getValue()) {
+                    segmentParents.add(SubjectRef.of(parent));
+                }
+                parents.put(segment.getKey(), segmentParents.build());
+            }
+            return new Indexed(permissions, options.build(), parents.build());
+        }
+    }
+
+    /**
+     * Combine a permission value into existing values the way subject data is baked: the value with the greatest
+     * magnitude wins, and the first one seen wins ties.
+     */
+    private static <K> void merge(Map<K, Integer> values, K key, int value) {
+        final Integer existing = values.get(key);
+        if (existing == null || Math.abs(value) > Math.abs(existing)) {
+            values.put(key, value);
+        }
+    }
+
+    /**
+     * Replace the indexed data for a subject
+     *
+     * @param type The type of the subject
+     * @param identifier The identifier of the subject
+     * @param data The subject's new data, or null if the subject has been removed
+     */
+    public void update(String type, String identifier, @Nullable ImmutableOptionSubjectData data) {
+        final SubjectRef ref = SubjectRef.of(type, identifier);
+        final Indexed newIndexed = Indexed.of(data);
+        synchronized (lock) {
+            final Indexed old = subjects.put(ref, newIndexed);
+            if (old != null) {
+                unindex(ref, old);
+            }
+            index(ref, newIndexed);
+        }
+    }
+
+    /**
+     * Add the data for a subject when filling the index from stored data. Subjects that have already been updated
+     * are left alone, since the stored data may be older than the latest update.
+     *
+     * @param type The type of the subject
+     * @param identifier The identifier of the subject
+     * @param data The subject's stored data
+     */
+    public void load(String type, String identifier, ImmutableOptionSubjectData data) {
+        final SubjectRef ref = SubjectRef.of(type, identifier);
+        final Indexed newIndexed = Indexed.of(data);
+        synchronized (lock) {
+            if (!subjects.containsKey(ref)) {
+                subjects.put(ref, newIndexed);
+                index(ref, newIndexed);
+            }
+        }
+    }
+
+    private void index(SubjectRef ref, Indexed indexed) {
+        addAll(byPermission, indexed.permissions.keySet(), ref);
+        addAll(byOption, indexed.options, ref);
+        addAll(children, indexed.allParents, ref);
+    }
+
+    private void unindex(SubjectRef ref, Indexed indexed) {
+        removeAll(byPermission, indexed.permissions.keySet(), ref);
+        removeAll(byOption, indexed.options, ref);
+        removeAll(children, indexed.allParents, ref);
+    }
+
+    @Nullable
+    private Indexed get(SubjectRef ref) {
+        synchronized (lock) {
+            return subjects.get(ref);
+        }
+    }
+
+    private static <K> void addAll(Map<K, Set<SubjectRef>> index, Set<K> keys, SubjectRef ref) {
+        for (K key : keys) {
+            Set<SubjectRef> set = index.get(key);
+            if (set == null) {
+                set = new HashSet<>();
+                index.put(key, set);
+            }
+            set.add(ref);
+        }
+    }
+
+    private static <K> void removeAll(Map<K, Set<SubjectRef>> index, Set<K> keys, SubjectRef ref) {
+        for (K key : keys) {
+            final Set<SubjectRef> set = index.get(key);
+            if (set != null && set.remove(ref) && set.isEmpty()) {
+                index.remove(key);
+            }
+        }
+    }
+
+    /**
+     * Get the subjects that set the given permission, or any less specific node that covers it, in any context.
+     *
+     * @param permission The permission to look up
+     * @return The subjects setting the permission
+     */
+    public Set<SubjectRef> getSubjectsSetting(String permission) {
+        Preconditions.checkNotNull(permission, "permission");
+        final Set<SubjectRef> ret = new HashSet<>();
+        synchronized (lock) {
+            for (String node : getNodes(permission)) {
+                final Set<SubjectRef> set = byPermission.get(node);
+                if (set != null) {
+                    ret.addAll(set);
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Get a permission and every less specific node covering it, most specific first
+     */
+    private static List<String> getNodes(String permission) {
+        final List<String> ret = new ArrayList<>();
+        String node = permission.toLowerCase();
+        while (true) {
+            ret.add(node);
+            final int split = node.lastIndexOf('.');
+            if (split == -1) {
+                break;
+            }
+            node = node.substring(0, split);
+        }
+        return ret;
+    }
+
+    /**
+     * Get the subjects that set a value for the given option in any context
+     *
+     * @param key The option key to look up
+     * @return The subjects setting the option
+     */
+    public Set<SubjectRef> getSubjectsWithOption(String key) {
+        Preconditions.checkNotNull(key, "key");
+        synchronized (lock) {
+            final Set<SubjectRef> ret = byOption.get(key);
+            return ret == null ? Collections.<SubjectRef>emptySet() : ImmutableSet.copyOf(ret);
+        }
+    }
+
+    /**
+     * Get the subjects that directly inherit from a subject
+     *
+     * @param parent The parent subject
+     * @return The parent's direct children
+     */
+    public Set<SubjectRef> getChildren(SubjectRef parent) {
+        synchronized (lock) {
+            final Set<SubjectRef> ret = children.get(parent);
+            return ret == null ? Collections.<SubjectRef>emptySet() : ImmutableSet.copyOf(ret);
+        }
+    }
+
+    /**
+     * Get every subject a permission may apply to: those setting it and everything inheriting from them.
+     *
+     * @param permission The permission to look up
+     * @return Every subject the permission may apply to
+     */
+    public Set<SubjectRef> getAffectedSubjects(String permission) {
+        return getAffectedSubjects(permission, this);
+    }
+
+    /**
+     * Get every subject a permission may apply to across several indexes, such as those for persistent and transient
+     * data, following inheritance recorded in any of them.
+     *
+     * @param permission The permission to look up
+     * @param indexes The indexes to search
+     * @return Every subject the permission may apply to
+     */
+    public static Set<SubjectRef> getAffectedSubjects(String permission, PermissionIndex... indexes) {
+        final Set<SubjectRef> ret = new HashSet<>();
+        for (PermissionIndex index : indexes) {
+            ret.addAll(index.getSubjectsSetting(permission));
+        }
+        final Queue<SubjectRef> toVisit = new ArrayDeque<>(ret);
+        SubjectRef next;
+        while ((next = toVisit.poll()) != null) {
+            for (PermissionIndex index : indexes) {
+                for (SubjectRef child : index.getChildren(next)) {
+                    if (ret.add(child)) {
+                        toVisit.add(child);
+                    }
+                }
+            }
+        }
+        return ret;
+    }
+
+    /**
+     * Resolve the value of a permission for a subject from indexed data alone, without loading any subject data.
+     * This follows the rules used when baking subject data: every combination of the active contexts is checked in
+     * each index in turn, followed by the parents set there, and finally the default subject. The strongest value
+     * set for the most specific node covering the permission is used.
+     *
+     * @param subject The subject to check
+     * @param defaults The subject every subject inherits from, if any
+     * @param contexts The active contexts to check in
+     * @param permission The permission to check
+     * @param indexes The indexes to search, in the order subject data is checked
+     * @return The value of the permission: positive if granted, negative if denied, and zero if unset
+     */
+    public static int getPermissionValue(SubjectRef subject, @Nullable SubjectRef defaults, Set<Map.Entry<String, String>> contexts, String permission, PermissionIndex... indexes) {
+        Preconditions.checkNotNull(subject, "subject");
+        Preconditions.checkNotNull(contexts, "contexts");
+        Preconditions.checkNotNull(permission, "permission");
+        final List<String> nodes = getNodes(permission);
+        final List<Set<Map.Entry<String, String>>> combinations = ImmutableList.copyOf(Combinations.of(contexts));
+        final Map<String, Integer> combined = new HashMap<>();
+        final Set<SubjectRef> visited = new HashSet<>();
+        visit(subject, combinations, nodes, combined, visited, indexes);
+        if (defaults != null) {
+            visit(defaults, combinations, nodes, combined, visited, indexes);
+        }
+
+        for (String node : nodes) {
+            final Integer value = combined.get(node);
+            if (value != null) {
+                return value;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Add the values a subject and its parents set for any of the given nodes. Subjects that have already been
+     * visited are skipped, since visiting them again could not change any values.
+     */
+    private static void visit(SubjectRef subject, List<Set<Map.Entry<String, String>>> combinations, List<String> nodes,
+                              Map<String, Integer> combined, Set<SubjectRef> visited, PermissionIndex[] indexes) {
+        if (!visited.add(subject)) {
+            return;
+        }
+        for (Set<Map.Entry<String, String>> combination : combinations) {
+            for (PermissionIndex index : indexes) {
+                final Indexed indexed = index.get(subject);
+                if (indexed == null) {
+                    continue;
+                }
+                for (String node : nodes) {
+                    final Map<Set<Map.Entry<String, String>>, Integer> values = indexed.permissions.get(node);
+                    final Integer value = values == null ? null : values.get(combination);
+                    if (value != null) {
+                        merge(combined, node, value);
+                    }
+                }
+                final List<SubjectRef> parents = indexed.parents.get(combination);
+                if (parents != null) {
+                    for (SubjectRef parent : parents) {
+                        visit(parent, combinations, nodes, combined, visited, indexes);
+                    }
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,30 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.data;
+
+/**
+ * A {@link Caching} that is also told the revision of the data it receives
+ */
+public interface RevisionedCaching extends Caching {
+    /**
+     * Receive new data, along with its revision
+     *
+     * @param newData The new data
+     * @param revision The revision of the new data, as assigned by the data store
+     */
+    void clearCache(ImmutableOptionSubjectData newData, long revision);
+}
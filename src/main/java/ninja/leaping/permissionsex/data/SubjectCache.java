@@ -20,29 +20,103 @@ import com.google.common.base.Preconditions;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalCause;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
+import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.ListenableFutureTask;
 import ninja.leaping.permissionsex.backends.DataStore;
 
+import javax.annotation.Nullable;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
 
 public class SubjectCache {
     private final String type;
     private final DataStore dataStore;
+    private final OffHeapSubjectStore offHeap;
     private final LoadingCache<String, ImmutableOptionSubjectData> cache;
     private final CacheListenerHolder<String> listeners = new CacheListenerHolder<>();
+    // Listeners registered with the data store are only weakly held there, so keep them while their subject is cached
+    private final ConcurrentMap<String, Caching> storeListeners = new ConcurrentHashMap<>();
+    // Data store revision of each subject's data when it was read, kept for as long as its store listener
+    private final ConcurrentMap<String, Long> revisions = new ConcurrentHashMap<>();
 
     public SubjectCache(final String type, final DataStore dataStore) {
+        this(type, dataStore, null);
+    }
+
+    /**
+     * Create a new cache for subjects of one type.
+     *
+     * @param type The type of subject cached
+     * @param dataStore The data store to read subjects from and write them to
+     * @param offHeap Storage to move subjects evicted from this cache into, or null to discard evicted subjects
+     */
+    public SubjectCache(final String type, final DataStore dataStore, @Nullable final OffHeapSubjectStore offHeap) {
         this.type = type;
         this.dataStore = dataStore;
+        this.offHeap = offHeap;
         cache = CacheBuilder.newBuilder()
                 .maximumSize(512)
+                .removalListener(new RemovalListener<String, ImmutableOptionSubjectData>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, ImmutableOptionSubjectData> notification) {
+                        onEviction(notification);
+                    }
+                })
                 .build(new CacheLoader<String, ImmutableOptionSubjectData>() {
                     @Override
                     public ImmutableOptionSubjectData load(String identifier) throws Exception {
-                        return dataStore.getData(type, identifier, clearListener(identifier));
+                        if (offHeap != null && storeListeners.containsKey(identifier)) {
+                            final ImmutableOptionSubjectData ret = offHeap.take(type, identifier);
+                            if (ret != null) {
+                                return ret;
+                            }
+                        }
+                        final Caching listener = createStoreListener(identifier);
+                        // Read the revision first, so a change made while reading leaves the subject looking changed
+                        recordRevision(identifier, dataStore.getRevision(type, identifier));
+                        return dataStore.getData(type, identifier, listener);
                     }
                 });
+        if (offHeap != null) {
+            offHeap.setEvictionListener(type, new OffHeapSubjectStore.EvictionListener() {
+                @Override
+                public void onEviction(String identifier, @Nullable Object owner) {
+                    // Only release the listener the dropped data was stored with, not one registered by a later load
+                    if (owner != null && storeListeners.remove(identifier, owner)) {
+                        revisions.remove(identifier);
+                    }
+                }
+            });
+        }
+    }
+
+    private void onEviction(RemovalNotification<String, ImmutableOptionSubjectData> notification) {
+        final String identifier = notification.getKey();
+        if (notification.getCause() == RemovalCause.REPLACED || identifier == null) {
+            return;
+        }
+        final Caching storeListener = storeListeners.get(identifier);
+        if (notification.wasEvicted() && offHeap != null && notification.getValue() != null && storeListener != null) {
+            try {
+                offHeap.put(type, identifier, notification.getValue(), storeListener);
+                return; // Keep listening for changes so the stored copy does not go stale
+            } catch (IOException e) {
+                // Fall through and read the subject from the data store next time
+            }
+        }
+        storeListeners.remove(identifier);
+        revisions.remove(identifier);
     }
 
     public ImmutableOptionSubjectData getData(String identifier, Caching listener) throws ExecutionException {
@@ -65,6 +139,11 @@ public class SubjectCache {
         Preconditions.checkNotNull(identifier, "identifier");
 
         cache.invalidate(identifier);
+        if (offHeap != null) {
+            offHeap.remove(type, identifier);
+        }
+        storeListeners.remove(identifier);
+        revisions.remove(identifier);
     }
 
     public void cacheAll() {
@@ -73,6 +152,78 @@ public class SubjectCache {
         }
     }
 
+    /**
+     * Load every subject of this type into the cache, reading subjects concurrently on the given executor.
+     * Returns once every subject has been read.
+     *
+     * @param executor The executor to read subjects on
+     * @throws ExecutionException if any subject could not be read
+     * @throws InterruptedException if interrupted while waiting for subjects to be read. Reads that have not
+     *          started yet are cancelled.
+     */
+    public void cacheAll(Executor executor) throws ExecutionException, InterruptedException {
+        Preconditions.checkNotNull(executor, "executor");
+        final List<ListenableFutureTask<ImmutableOptionSubjectData>> tasks = new ArrayList<>();
+        for (final String identifier : dataStore.getAllIdentifiers(type)) {
+            final ListenableFutureTask<ImmutableOptionSubjectData> task = ListenableFutureTask.create(new Callable<ImmutableOptionSubjectData>() {
+                @Override
+                public ImmutableOptionSubjectData call() throws Exception {
+                    return cache.get(identifier);
+                }
+            });
+            executor.execute(task);
+            tasks.add(task);
+        }
+        try {
+            Futures.allAsList(tasks).get();
+        } catch (ExecutionException | InterruptedException e) {
+            for (ListenableFutureTask<ImmutableOptionSubjectData> task : tasks) {
+                task.cancel(false); // Interrupting reads in progress could close the channels backends read from
+            }
+            throw e;
+        }
+    }
+
+    public boolean isCached(String identifier) {
+        Preconditions.checkNotNull(identifier, "identifier");
+
+        return cache.getIfPresent(identifier) != null;
+    }
+
+    /**
+     * Read every cached subject the data store reports as changed again, notifying listeners only for subjects whose
+     * data changed.
+     */
+    public void reload() {
+        for (Map.Entry<String, ImmutableOptionSubjectData> ent : cache.asMap().entrySet()) {
+            final Long cachedRevision = revisions.get(ent.getKey());
+            if (cachedRevision != null && !dataStore.hasChangedSince(type, ent.getKey(), cachedRevision)) {
+                continue;
+            }
+            final long revision = dataStore.getRevision(type, ent.getKey());
+            final ImmutableOptionSubjectData newData = dataStore.getData(type, ent.getKey(), null);
+            if (!isSameData(ent.getValue(), newData) && cache.asMap().replace(ent.getKey(), ent.getValue(), newData)) {
+                recordRevision(ent.getKey(), revision);
+                listeners.call(ent.getKey(), newData, revision);
+            }
+        }
+        if (offHeap != null) { // Subjects held off the heap are read from the data store again when next needed
+            for (Map.Entry<String, Caching> ent : storeListeners.entrySet()) {
+                if (cache.getIfPresent(ent.getKey()) == null && offHeap.remove(type, ent.getKey())
+                        && storeListeners.remove(ent.getKey(), ent.getValue())) {
+                    revisions.remove(ent.getKey());
+                }
+            }
+        }
+    }
+
+    private static boolean isSameData(ImmutableOptionSubjectData a, ImmutableOptionSubjectData b) {
+        return a == b || (a.getAllPermissions().equals(b.getAllPermissions())
+                && a.getAllOptions().equals(b.getAllOptions())
+                && a.getAllParents().equals(b.getAllParents())
+                && a.getAllDefaultValues().equals(b.getAllDefaultValues()));
+    }
+
     public boolean isRegistered(String identifier) {
         Preconditions.checkNotNull(identifier, "identifier");
 
@@ -86,14 +237,60 @@ public class SubjectCache {
         return dataStore.setData(type, identifier, newData);
     }
 
-    private Caching clearListener(final String name) {
-        return new Caching() {
+    /**
+     * Remember the revision of a subject's cached data, unless a later revision has already been recorded
+     */
+    private void recordRevision(String identifier, long revision) {
+        Long existing;
+        do {
+            existing = revisions.get(identifier);
+            if (existing != null && existing >= revision) {
+                return;
+            }
+        } while (existing == null ? revisions.putIfAbsent(identifier, revision) != null : !revisions.replace(identifier, existing, revision));
+    }
+
+    /**
+     * Create the listener that keeps a subject up to date with its data store, replacing any previous listener.
+     * A listener stops passing on changes once it has been replaced or released.
+     */
+    private Caching createStoreListener(final String name) {
+        final Caching ret = new RevisionedCaching() {
             @Override
             public void clearCache(ImmutableOptionSubjectData newData) {
+                if (updateStored(newData)) {
+                    listeners.call(name, newData);
+                }
+            }
+
+            @Override
+            public void clearCache(ImmutableOptionSubjectData newData, long revision) {
+                if (updateStored(newData)) {
+                    recordRevision(name, revision);
+                    listeners.call(name, newData, revision);
+                }
+            }
+
+            private boolean updateStored(ImmutableOptionSubjectData newData) {
+                if (storeListeners.get(name) != this) {
+                    return false;
+                }
+                // Subjects held off the heap are updated there, rather than being brought back onto the heap
+                if (offHeap != null && cache.getIfPresent(name) == null) {
+                    try {
+                        if (offHeap.replace(type, name, newData, this)) {
+                            return true;
+                        }
+                    } catch (IOException e) {
+                        offHeap.remove(type, name);
+                    }
+                }
                 cache.put(name, newData);
-                listeners.call(name, newData);
+                return true;
             }
         };
+        storeListeners.put(name, ret);
+        return ret;
     }
 
     public void addListener(String identifier, Caching listener) {
@@ -104,6 +301,13 @@ public class SubjectCache {
 
     }
 
+    public void removeListener(String identifier, Caching listener) {
+        Preconditions.checkNotNull(identifier, "identifier");
+        Preconditions.checkNotNull(listener, "listener");
+
+        listeners.removeListener(identifier, listener);
+    }
+
     public String getType() {
         return type;
     }
@@ -111,4 +315,8 @@ public class SubjectCache {
     public Iterable<String> getAllIdentifiers() {
         return dataStore.getAllIdentifiers(type);
     }
+
+    public PermissionIndex getPermissionIndex() {
+        return dataStore.getPermissionIndex();
+    }
 }
@@ -0,0 +1,136 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.data;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import ninja.leaping.permissionsex.backends.memory.MemoryOptionSubjectData;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Binary encoding for subject data, written directly from the data's contents without going through a configuration tree.
+ *
+ * <p>Each context with data is written as its context set, followed by its permissions, options, parents, and
+ * default value.</p>
+ */
+public final class SubjectDataCodec {
+    private SubjectDataCodec() {
+    }
+
+    public static void write(ImmutableOptionSubjectData data, DataOutput out) throws IOException {
+        final Map<Set<Map.Entry<String, String>>, Map<String, Integer>> permissions = data.getAllPermissions();
+        final Map<Set<Map.Entry<String, String>>, Map<String, String>> options = data.getAllOptions();
+        final Map<Set<Map.Entry<String, String>>, List<Map.Entry<String, String>>> parents = data.getAllParents();
+        final Map<Set<Map.Entry<String, String>>, Integer> defaultValues = data.getAllDefaultValues();
+
+        final Set<Set<Map.Entry<String, String>>> contexts = ImmutableSet.copyOf(data.getActiveContexts());
+        out.writeInt(contexts.size());
+        for (Set<Map.Entry<String, String>> context : contexts) {
+            out.writeInt(context.size());
+            for (Map.Entry<String, String> ent : context) {
+                out.writeUTF(ent.getKey());
+                out.writeUTF(ent.getValue());
+            }
+
+            final Map<String, Integer> contextPermissions = nonNull(permissions.get(context));
+            out.writeInt(contextPermissions.size());
+            for (Map.Entry<String, Integer> ent : contextPermissions.entrySet()) {
+                out.writeUTF(ent.getKey());
+                out.writeInt(ent.getValue());
+            }
+
+            final Map<String, String> contextOptions = nonNull(options.get(context));
+            out.writeInt(contextOptions.size());
+            for (Map.Entry<String, String> ent : contextOptions.entrySet()) {
+                out.writeUTF(ent.getKey());
+                out.writeUTF(ent.getValue());
+            }
+
+            final List<Map.Entry<String, String>> contextParents = parents.get(context);
+            if (contextParents == null) {
+                out.writeInt(0);
+            } else {
+                out.writeInt(contextParents.size());
+                for (Map.Entry<String, String> parent : contextParents) {
+                    out.writeUTF(parent.getKey());
+                    out.writeUTF(parent.getValue());
+                }
+            }
+
+            final Integer defaultValue = defaultValues.get(context);
+            out.writeInt(defaultValue == null ? 0 : defaultValue);
+        }
+    }
+
+    public static ImmutableOptionSubjectData read(DataInput in) throws IOException {
+        ImmutableOptionSubjectData ret = MemoryOptionSubjectData.EMPTY;
+        final int contextCount = in.readInt();
+        for (int i = 0; i < contextCount; ++i) {
+            final ImmutableSet.Builder<Map.Entry<String, String>> context = ImmutableSet.builder();
+            for (int j = in.readInt(); j > 0; --j) {
+                context.add(Maps.immutableEntry(in.readUTF(), in.readUTF()));
+            }
+            final Set<Map.Entry<String, String>> contextSet = context.build();
+
+            final int permissionCount = in.readInt();
+            if (permissionCount > 0) {
+                final ImmutableMap.Builder<String, Integer> permissions = ImmutableMap.builder();
+                for (int j = 0; j < permissionCount; ++j) {
+                    permissions.put(in.readUTF(), in.readInt());
+                }
+                ret = ret.setPermissions(contextSet, permissions.build());
+            }
+
+            final int optionCount = in.readInt();
+            if (optionCount > 0) {
+                final ImmutableMap.Builder<String, String> options = ImmutableMap.builder();
+                for (int j = 0; j < optionCount; ++j) {
+                    options.put(in.readUTF(), in.readUTF());
+                }
+                ret = ret.setOptions(contextSet, options.build());
+            }
+
+            final int parentCount = in.readInt();
+            if (parentCount > 0) {
+                final ImmutableList.Builder<Map.Entry<String, String>> parents = ImmutableList.builder();
+                for (int j = 0; j < parentCount; ++j) {
+                    parents.add(Maps.immutableEntry(in.readUTF(), in.readUTF()));
+                }
+                ret = ret.setParents(contextSet, parents.build());
+            }
+
+            final int defaultValue = in.readInt();
+            if (defaultValue != 0) {
+                ret = ret.setDefaultValue(contextSet, defaultValue);
+            }
+        }
+        return ret;
+    }
+
+    private static <K, V> Map<K, V> nonNull(Map<K, V> input) {
+        return input == null ? Collections.<K, V>emptyMap() : input;
+    }
+}
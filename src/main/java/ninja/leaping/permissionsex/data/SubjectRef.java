@@ -0,0 +1,153 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.data;
+
+import com.google.common.base.Preconditions;
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.lang.ref.WeakReference;
+import java.util.Map;
+
+/**
+ * A reference to a subject by type and identifier, used for subject parents.
+ *
+ * References are interned, so every reference to the same subject is the same object. This lets implementations cache
+ * whatever they resolve the reference to on the reference itself, rather than looking the subject up again each time.
+ * As a {@link Map.Entry}, the key is the subject's type and the value is its identifier.
+ */
+public final class SubjectRef implements Map.Entry<String, String>, Comparable<SubjectRef> {
+    private static final Interner<SubjectRef> INTERNER = Interners.newWeakInterner();
+    private static final String DEFAULT_TYPE = "group";
+
+    private final String type, identifier;
+    private volatile WeakReference<Object> handle; // Weak, so references held by subject data do not keep old subjects alive
+
+    private SubjectRef(String type, String identifier) {
+        this.type = type;
+        this.identifier = identifier;
+    }
+
+    public static SubjectRef of(String type, String identifier) {
+        Preconditions.checkNotNull(type, "type");
+        Preconditions.checkNotNull(identifier, "identifier");
+        return INTERNER.intern(new SubjectRef(type, identifier));
+    }
+
+    public static SubjectRef of(Map.Entry<String, String> entry) {
+        if (entry instanceof SubjectRef) {
+            return (SubjectRef) entry;
+        }
+        return of(entry.getKey(), entry.getValue());
+    }
+
+    /**
+     * Parse a reference in the form {@code type:identifier}. References with no type are to groups.
+     *
+     * @param combined The serialized reference
+     * @return The parsed reference
+     */
+    public static SubjectRef parse(String combined) {
+        final int split = combined.indexOf(':');
+        return split == -1 ? of(DEFAULT_TYPE, combined) : of(combined.substring(0, split), combined.substring(split + 1));
+    }
+
+    public String getType() {
+        return type;
+    }
+
+    public String getIdentifier() {
+        return identifier;
+    }
+
+    /**
+     * Get the object this reference was last resolved to, as stored by {@link #setHandle(Object)}.
+     * Callers must check that the handle is still valid before using it.
+     * Handles are only weakly held, so one that is not referenced elsewhere may be discarded.
+     *
+     * @return The cached handle, or null if none has been stored or it has been discarded
+     */
+    public Object getHandle() {
+        final WeakReference<Object> handle = this.handle;
+        return handle == null ? null : handle.get();
+    }
+
+    public void setHandle(Object handle) {
+        this.handle = handle == null ? null : new WeakReference<>(handle);
+    }
+
+    /**
+     * Forget the stored handle if it is the given object, such as when that object is no longer valid
+     *
+     * @param handle The handle to forget
+     */
+    public void clearHandle(Object handle) {
+        final WeakReference<Object> current = this.handle;
+        if (current != null && current.get() == handle) {
+            this.handle = null;
+        }
+    }
+
+    @Override
+    public String getKey() {
+        return type;
+    }
+
+    @Override
+    public String getValue() {
+        return identifier;
+    }
+
+    @Override
+    public String setValue(String value) {
+        throw new UnsupportedOperationException("Subject references are immutable");
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (!(o instanceof Map.Entry)) {
+            return false;
+        }
+        final Map.Entry<?, ?> other = (Map.Entry<?, ?>) o;
+        return type.equals(other.getKey()) && identifier.equals(other.getValue());
+    }
+
+    @Override
+    public int hashCode() {
+        return type.hashCode() ^ identifier.hashCode(); // As specified by Map.Entry
+    }
+
+    /**
+     * References are ordered by type, then identifier.
+     */
+    @Override
+    public int compareTo(SubjectRef other) {
+        final int typeCompare = type.compareTo(other.type);
+        return typeCompare != 0 ? typeCompare : identifier.compareTo(other.identifier);
+    }
+
+    /**
+     * @return This reference in the form accepted by {@link #parse(String)}
+     */
+    @Override
+    public String toString() {
+        return type + ":" + identifier;
+    }
+}
@@ -0,0 +1,103 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.sponge;
+
+import com.google.common.base.Optional;
+import com.google.common.collect.ImmutableList;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.backends.DataStoreMigration;
+import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+import org.spongepowered.api.util.command.CommandCallable;
+import org.spongepowered.api.util.command.CommandException;
+import org.spongepowered.api.util.command.CommandSource;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Command to copy all subjects from one configured backend to another
+ */
+class MigrateCommand implements CommandCallable {
+    private static final List<String> DEFAULT_TYPES = ImmutableList.of("group", "user");
+    private final PermissionsExPlugin plugin;
+
+    MigrateCommand(PermissionsExPlugin plugin) {
+        this.plugin = plugin;
+    }
+
+    @Override
+    public boolean call(final CommandSource source, String arguments, List<String> parents) throws CommandException {
+        final String[] args = arguments.trim().split("\\s+");
+        if (args.length < 2 || args[1].isEmpty()) {
+            throw new CommandException("Usage: " + getUsage());
+        }
+        final PermissionsEx manager = plugin.getManager();
+        if (manager == null) {
+            throw new CommandException("PermissionsEx is not currently loaded!");
+        }
+
+        final String from = args[0], to = args[1];
+        final List<String> types = args.length > 2 ? Arrays.asList(args).subList(2, args.length) : DEFAULT_TYPES;
+        final File checkpoint = new File(manager.getBaseDirectory(), "migrate-" + from + "-" + to + ".checkpoint");
+        source.sendMessage("Migrating " + types + " from " + from + " to " + to + (checkpoint.isFile() ? ", resuming from the last checkpoint" : ""));
+        // Migration runs for a long time and submits its own I/O, so it gets its own thread instead of an I/O thread
+        final Thread migration = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    final DataStoreMigration.Result result = manager.migrate(from, to, types, checkpoint);
+                    source.sendMessage("Migrated " + result.getSubjectCount() + " subjects in " + result.getElapsedMillis() + "ms ("
+                            + result.getSubjectsPerSecond() + " subjects/s)");
+                } catch (PermissionsLoadingException e) {
+                    manager.getLogger().error("Unable to migrate from " + from + " to " + to, e);
+                    source.sendMessage("Migration failed: " + e.getLocalizedMessage() + ". Run the command again to resume.");
+                }
+            }
+        }, "PermissionsEx migration (" + from + " to " + to + ")");
+        migration.setDaemon(true);
+        migration.start();
+        return true;
+    }
+
+    @Override
+    public boolean testPermission(CommandSource source) {
+        return source.hasPermission("permissionsex.migrate");
+    }
+
+    @Override
+    public Optional<String> getShortDescription() {
+        return Optional.of("Copy all subjects from one backend to another");
+    }
+
+    @Override
+    public Optional<String> getHelp() {
+        return Optional.of("Copies subjects of the given types (default: group and user) between two backends defined in the configuration. "
+                + "An interrupted migration continues where it left off when run again.");
+    }
+
+    @Override
+    public String getUsage() {
+        return "<source backend> <target backend> [type...]";
+    }
+
+    @Override
+    public List<String> getSuggestions(CommandSource source, String arguments) throws CommandException {
+        return Collections.emptyList();
+    }
+}
@@ -29,7 +29,7 @@ import java.util.Set;
  */
 class PEXContextCalculator implements ContextCalculator {
     public static final String SERVER_TAG_KEY = "server-tag";
-    private Set<Context> serverTags = ImmutableSet.of();
+    private volatile Set<Context> serverTags = ImmutableSet.of();
 
     void update(PermissionsExConfiguration config) {
         final ImmutableSet.Builder<Context> serverTagsBuild = ImmutableSet.builder();
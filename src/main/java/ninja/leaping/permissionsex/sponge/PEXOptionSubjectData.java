@@ -22,9 +22,12 @@ import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.collect.Maps;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 import ninja.leaping.permissionsex.data.Caching;
 import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
 import ninja.leaping.permissionsex.data.SubjectCache;
+import ninja.leaping.permissionsex.data.SubjectRef;
 import ninja.leaping.permissionsex.sponge.option.OptionSubjectData;
 import org.spongepowered.api.service.permission.Subject;
 import org.spongepowered.api.service.permission.context.Context;
@@ -38,6 +41,8 @@ import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
  * Wrapper around ImmutableSubjectData that writes to backend each change
@@ -47,7 +52,10 @@ public class PEXOptionSubjectData implements OptionSubjectData, Caching {
     private final SubjectCache cache;
     private final String identifier;
     private volatile ImmutableOptionSubjectData data;
-    private final ConcurrentMap<Set<Map.Entry<String, String>>, List<Subject>> parentsCache = new ConcurrentHashMap<>();
+    private volatile ParentsCache parentsCache;
+    private final AtomicReference<PendingChanges> pending = new AtomicReference<>(PendingChanges.NONE);
+    private final AtomicInteger writeRequests = new AtomicInteger();
+    private long writtenSequence; // Only accessed by the thread currently submitting writes
 
     public PEXOptionSubjectData(SubjectCache cache, String identifier, PermissionsExPlugin plugin) throws ExecutionException {
         this.plugin = plugin;
@@ -83,23 +91,129 @@ public class PEXOptionSubjectData implements OptionSubjectData, Caching {
         return ret.build();
     }
 
-    private boolean updateIfChanged(ImmutableOptionSubjectData old, ImmutableOptionSubjectData newData) {
-        if (newData == null) {
-            return false; // Change unsuccessful
-        } else if (old == newData) {
-            return false; // Nothing to do?
+    /**
+     * A single modification made as part of a {@link Transaction}
+     */
+    private interface Change {
+        ImmutableOptionSubjectData apply(ImmutableOptionSubjectData data);
+    }
+
+    /**
+     * Start a transaction to make several changes to this subject at once.
+     * The changes are applied together when the transaction is committed, producing one write to the backend and one
+     * notification to listeners rather than one for each change.
+     *
+     * @return A new, empty transaction
+     */
+    public Transaction edit() {
+        return new Transaction();
+    }
+
+    /**
+     * Changes committed here that the backend has not yet confirmed. Replaced as a whole, so it can be updated with a
+     * compare-and-set.
+     */
+    private static class PendingChanges {
+        static final PendingChanges NONE = new PendingChanges(null, 0, 0);
+        /**
+         * The data including every change committed so far, or null if there are no unconfirmed changes
+         */
+        private final ImmutableOptionSubjectData data;
+        private final int unconfirmed;
+        /**
+         * The number of changes ever committed, used to tell which changes have been submitted to the backend
+         */
+        private final long sequence;
+
+        private PendingChanges(ImmutableOptionSubjectData data, int unconfirmed, long sequence) {
+            this.data = data;
+            this.unconfirmed = unconfirmed;
+            this.sequence = sequence;
         }
+    }
 
-        cache.update(identifier, newData);
+    /**
+     * Parents resolved from one version of this subject's data, discarded as a whole when the data changes
+     */
+    private static class ParentsCache {
+        private final ImmutableOptionSubjectData data;
+        private final ConcurrentMap<Set<Map.Entry<String, String>>, List<Subject>> parents = new ConcurrentHashMap<>();
+
+        private ParentsCache(ImmutableOptionSubjectData data) {
+            this.data = data;
+        }
+    }
+
+    private boolean commit(List<Change> changes) {
+        PendingChanges current;
+        do {
+            current = pending.get();
+            // Build on changes that are still being written, rather than the data last confirmed by the backend
+            final ImmutableOptionSubjectData old = current.unconfirmed > 0 ? current.data : data;
+            ImmutableOptionSubjectData newData = old;
+            for (Change change : changes) {
+                newData = change.apply(newData);
+                if (newData == null) {
+                    return false; // Change unsuccessful
+                }
+            }
+            if (newData == old) {
+                return false; // Nothing to do?
+            }
+            if (pending.compareAndSet(current, new PendingChanges(newData, current.unconfirmed + 1, current.sequence + 1))) {
+                break;
+            }
+        } while (true);
+        submitWrites();
         return true;
     }
 
+    /**
+     * Write committed changes to the backend. Only one thread submits writes at a time, so writes reach the backend in
+     * the order their changes were committed. A thread that finds another already submitting leaves its changes to
+     * that thread, which writes them along with any others committed in the meantime.
+     */
+    private void submitWrites() {
+        if (writeRequests.getAndIncrement() != 0) {
+            return;
+        }
+        int requests = 1;
+        do {
+            final PendingChanges current = pending.get();
+            if (current.sequence > writtenSequence) {
+                final int changeCount = (int) (current.sequence - writtenSequence);
+                writtenSequence = current.sequence;
+                cache.update(identifier, current.data).addListener(new Runnable() {
+                    @Override
+                    public void run() {
+                        confirm(changeCount);
+                    }
+                }, MoreExecutors.sameThreadExecutor());
+            }
+            requests = writeRequests.addAndGet(-requests);
+        } while (requests != 0);
+    }
+
+    /**
+     * Mark changes as no longer pending once the write including them has completed
+     */
+    private void confirm(int changeCount) {
+        PendingChanges current, next;
+        do {
+            current = pending.get();
+            final int unconfirmed = current.unconfirmed - changeCount;
+            next = new PendingChanges(unconfirmed == 0 ? null : current.data, unconfirmed, current.sequence);
+        } while (!pending.compareAndSet(current, next));
+    }
+
     @Override
     public void clearCache(ImmutableOptionSubjectData newData) {
-        synchronized (parentsCache) {
-            this.data = newData;
-            parentsCache.clear();
-        }
+        this.data = newData;
+        this.parentsCache = new ParentsCache(newData);
+    }
+
+    void clearParentsCache() {
+        this.parentsCache = new ParentsCache(this.parentsCache.data);
     }
 
     @Override
@@ -114,17 +228,17 @@ public class PEXOptionSubjectData implements OptionSubjectData, Caching {
 
     @Override
     public boolean setOption(Set<Context> contexts, String key, String value) {
-        return updateIfChanged(data, data.setOption(parSet(contexts), key, value));
+        return edit().setOption(contexts, key, value).commit();
     }
 
     @Override
     public boolean clearOptions(Set<Context> contexts) {
-        return updateIfChanged(data, data.clearOptions(parSet(contexts)));
+        return edit().clearOptions(contexts).commit();
     }
 
     @Override
     public boolean clearOptions() {
-        return updateIfChanged(data, data.clearOptions());
+        return edit().clearOptions().commit();
     }
 
     @Override
@@ -158,42 +272,26 @@ public class PEXOptionSubjectData implements OptionSubjectData, Caching {
 
     @Override
     public boolean setPermission(Set<Context> set, String s, Tristate tristate) {
-        int val;
-        switch (tristate) {
-            case TRUE:
-                val = 1;
-                break;
-            case FALSE:
-                val = -1;
-                break;
-            case UNDEFINED:
-                val = 0;
-                break;
-            default:
-                throw new IllegalStateException("Unknown tristate provided " + tristate);
-        }
-
-        return updateIfChanged(data, data.setPermission(parSet(set), s, val));
+        return edit().setPermission(set, s, tristate).commit();
     }
 
     @Override
     public boolean clearPermissions() {
-        return updateIfChanged(data, data.clearPermissions());
+        return edit().clearPermissions().commit();
     }
 
     @Override
     public boolean clearPermissions(Set<Context> set) {
-        return updateIfChanged(data, data.clearPermissions(parSet(set)));
+        return edit().clearPermissions(set).commit();
     }
 
     @Override
     public Map<Set<Context>, List<Subject>> getAllParents() {
-        synchronized (parentsCache) {
-            for (Set<Map.Entry<String, String>> set : data.getActiveContexts()) {
-                getParentsInternal(set);
-            }
-            return tKeys(parentsCache);
+        final ParentsCache parentsCache = this.parentsCache;
+        for (Set<Map.Entry<String, String>> set : parentsCache.data.getActiveContexts()) {
+            getParentsInternal(parentsCache, set);
         }
+        return tKeys(parentsCache.parents);
     }
 
     @Override
@@ -203,45 +301,74 @@ public class PEXOptionSubjectData implements OptionSubjectData, Caching {
 
 
     public List<Subject> getParentsInternal(Set<Map.Entry<String, String>> set) {
-        List<Subject> parents = parentsCache.get(set);
+        return getParentsInternal(this.parentsCache, set);
+    }
+
+    private List<Subject> getParentsInternal(ParentsCache parentsCache, Set<Map.Entry<String, String>> set) {
+        List<Subject> parents = parentsCache.parents.get(set);
         if (parents == null) {
-            synchronized (parentsCache) {
-                List<Map.Entry<String, String>> rawParents = data.getParents(set);
-                if (rawParents == null) {
-                    parents = ImmutableList.of();
-                } else {
-                    parents = new ArrayList<>(rawParents.size());
-                    for (Map.Entry<String, String> ent : rawParents) {
-                        parents.add(plugin.getSubjects(ent.getKey()).get().get(ent.getValue()));
-                    }
-                }
-                List<Subject> existingParents = parentsCache.putIfAbsent(set, parents);
-                if (existingParents != null) {
-                    parents = existingParents;
+            List<Map.Entry<String, String>> rawParents = parentsCache.data.getParents(set);
+            if (rawParents == null) {
+                parents = ImmutableList.of();
+            } else {
+                parents = new ArrayList<>(rawParents.size());
+                for (Map.Entry<String, String> ent : rawParents) {
+                    parents.add(resolve(SubjectRef.of(ent)));
                 }
             }
+            List<Subject> existingParents = parentsCache.parents.putIfAbsent(set, parents);
+            if (existingParents != null) {
+                parents = existingParents;
+            }
         }
         return parents;
     }
 
+    /**
+     * Get the subject a reference points to, reusing the subject cached on the reference while it is still valid.
+     * Subjects forget being cached on their reference once invalidated.
+     */
+    private Subject resolve(SubjectRef ref) {
+        final Object handle = ref.getHandle();
+        if (handle instanceof PEXSubject && ((PEXSubject) handle).isValid()) {
+            return (PEXSubject) handle;
+        }
+        final Subject ret = plugin.getSubjects(ref.getType()).get().get(ref.getIdentifier());
+        ref.setHandle(ret);
+        return ret;
+    }
+
     @Override
     public boolean addParent(Set<Context> set, Subject subject) {
-        return updateIfChanged(data, data.addParent(parSet(set), subject.getContainingCollection().getIdentifier(), subject.getIdentifier()));
+        return edit().addParent(set, subject).commit();
     }
 
     @Override
     public boolean removeParent(Set<Context> set, Subject subject) {
-        return updateIfChanged(data, data.removeParent(parSet(set), subject.getContainingCollection().getIdentifier(), subject.getIdentifier()));
+        return edit().removeParent(set, subject).commit();
     }
 
     @Override
     public boolean clearParents() {
-        return updateIfChanged(data, data.clearParents());
+        return edit().clearParents().commit();
     }
 
     @Override
     public boolean clearParents(Set<Context> set) {
-        return updateIfChanged(data, data.clearParents(parSet(set)));
+        return edit().clearParents(set).commit();
+    }
+
+    private static int permissionValue(Tristate tristate) {
+        switch (tristate) {
+            case TRUE:
+                return 1;
+            case FALSE:
+                return -1;
+            case UNDEFINED:
+                return 0;
+            default:
+                throw new IllegalStateException("Unknown tristate provided " + tristate);
+        }
     }
 
     public ImmutableOptionSubjectData getCurrent() {
@@ -251,4 +378,139 @@ public class PEXOptionSubjectData implements OptionSubjectData, Caching {
     public void addListener(Caching caching) {
         cache.addListener(this.identifier, caching);
     }
+
+    public void removeListener(Caching caching) {
+        cache.removeListener(this.identifier, caching);
+    }
+
+    /**
+     * Stop receiving updates from the backing cache, for when the subject holding this data is discarded.
+     */
+    void detach() {
+        cache.removeListener(this.identifier, this);
+    }
+
+    /**
+     * A set of changes to apply to this subject's data together.
+     * Changes are applied in the order they were added, on top of the subject's latest data at the time of commit,
+     * so changes committed concurrently by other transactions are never lost.
+     */
+    public class Transaction {
+        private final List<Change> changes = new ArrayList<>();
+
+        private Transaction() {
+        }
+
+        public Transaction setOption(final Set<Context> contexts, final String key, final String value) {
+            changes.add(new Change() {
+                @Override
+                public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData data) {
+                    return data.setOption(parSet(contexts), key, value);
+                }
+            });
+            return this;
+        }
+
+        public Transaction clearOptions(final Set<Context> contexts) {
+            changes.add(new Change() {
+                @Override
+                public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData data) {
+                    return data.clearOptions(parSet(contexts));
+                }
+            });
+            return this;
+        }
+
+        public Transaction clearOptions() {
+            changes.add(new Change() {
+                @Override
+                public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData data) {
+                    return data.clearOptions();
+                }
+            });
+            return this;
+        }
+
+        public Transaction setPermission(final Set<Context> contexts, final String permission, Tristate value) {
+            final int intValue = permissionValue(value);
+            changes.add(new Change() {
+                @Override
+                public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData data) {
+                    return data.setPermission(parSet(contexts), permission, intValue);
+                }
+            });
+            return this;
+        }
+
+        public Transaction clearPermissions(final Set<Context> contexts) {
+            changes.add(new Change() {
+                @Override
+                public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData data) {
+                    return data.clearPermissions(parSet(contexts));
+                }
+            });
+            return this;
+        }
+
+        public Transaction clearPermissions() {
+            changes.add(new Change() {
+                @Override
+                public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData data) {
+                    return data.clearPermissions();
+                }
+            });
+            return this;
+        }
+
+        public Transaction addParent(final Set<Context> contexts, Subject parent) {
+            final String type = parent.getContainingCollection().getIdentifier(), identifier = parent.getIdentifier();
+            changes.add(new Change() {
+                @Override
+                public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData data) {
+                    return data.addParent(parSet(contexts), type, identifier);
+                }
+            });
+            return this;
+        }
+
+        public Transaction removeParent(final Set<Context> contexts, Subject parent) {
+            final String type = parent.getContainingCollection().getIdentifier(), identifier = parent.getIdentifier();
+            changes.add(new Change() {
+                @Override
+                public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData data) {
+                    return data.removeParent(parSet(contexts), type, identifier);
+                }
+            });
+            return this;
+        }
+
+        public Transaction clearParents(final Set<Context> contexts) {
+            changes.add(new Change() {
+                @Override
+                public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData data) {
+                    return data.clearParents(parSet(contexts));
+                }
+            });
+            return this;
+        }
+
+        public Transaction clearParents() {
+            changes.add(new Change() {
+                @Override
+                public ImmutableOptionSubjectData apply(ImmutableOptionSubjectData data) {
+                    return data.clearParents();
+                }
+            });
+            return this;
+        }
+
+        /**
+         * Apply every change in this transaction and write the result to the backend.
+         *
+         * @return Whether the subject's data was changed
+         */
+        public boolean commit() {
+            return PEXOptionSubjectData.this.commit(changes);
+        }
+    }
 }
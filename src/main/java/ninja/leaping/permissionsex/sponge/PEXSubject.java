@@ -23,6 +23,7 @@ import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
 import ninja.leaping.permissionsex.data.Caching;
 import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.data.SubjectRef;
 import ninja.leaping.permissionsex.sponge.option.OptionSubject;
 import org.spongepowered.api.service.permission.Subject;
 import org.spongepowered.api.service.permission.context.Context;
@@ -44,6 +45,7 @@ public class PEXSubject implements OptionSubject, Caching {
     private final PEXOptionSubjectData data;
     private final PEXOptionSubjectData transientData;
     private final String identifier;
+    private volatile boolean valid = true;
     private final LoadingCache<Set<Context>, BakedSubjectData> dataCache = CacheBuilder.newBuilder().maximumSize(5)
             .build(new CacheLoader<Set<Context>, BakedSubjectData>() {
                 @Override
@@ -76,6 +78,40 @@ public class PEXSubject implements OptionSubject, Caching {
         return getContainingCollection().getCommandSource(this.identifier);
     }
 
+    /**
+     * Whether this subject is still the one its collection hands out for its identifier.
+     * References to a subject that is no longer valid should be looked up again.
+     */
+    boolean isValid() {
+        return valid;
+    }
+
+    void invalidate() {
+        valid = false;
+        SubjectRef.of(collection.getIdentifier(), identifier).clearHandle(this);
+        data.removeListener(this);
+        transientData.removeListener(this);
+        data.detach();
+        transientData.detach();
+        dataCache.invalidateAll();
+    }
+
+    /**
+     * Forget the parents resolved by this subject's data, and anything baked from them
+     */
+    void clearParentCaches() {
+        data.clearParentsCache();
+        transientData.clearParentsCache();
+        dataCache.invalidateAll();
+    }
+
+    /**
+     * Resolve this subject's data for its current active contexts ahead of the first check that needs it
+     */
+    void prebake() {
+        dataCache.getUnchecked(getActiveContexts());
+    }
+
     @Override
     public PEXSubjectCollection getContainingCollection() {
         return this.collection;
@@ -18,22 +18,36 @@ package ninja.leaping.permissionsex.sponge;
 
 import com.google.common.base.Function;
 import com.google.common.base.Optional;
+import com.google.common.base.Predicate;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.cache.RemovalListener;
+import com.google.common.cache.RemovalNotification;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.config.PermissionsExConfiguration;
+import ninja.leaping.permissionsex.data.PermissionIndex;
 import ninja.leaping.permissionsex.data.SubjectCache;
+import ninja.leaping.permissionsex.data.SubjectRef;
 import org.spongepowered.api.service.permission.Subject;
 import org.spongepowered.api.service.permission.SubjectCollection;
 import org.spongepowered.api.service.permission.context.Context;
-import org.spongepowered.api.util.Tristate;
 import org.spongepowered.api.util.command.CommandSource;
 
 import javax.annotation.Nullable;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import static ninja.leaping.permissionsex.sponge.PEXOptionSubjectData.parSet;
 
 /**
  * Subject collection
@@ -43,18 +57,54 @@ public class PEXSubjectCollection implements SubjectCollection {
     private final SubjectCache cache, transientCache;
     private volatile Function<String, Optional<CommandSource>> commandSourceProvider;
 
-    private final LoadingCache<String, PEXSubject> subjectCache = CacheBuilder.newBuilder().build(new CacheLoader<String, PEXSubject>() {
-        @Override
-        public PEXSubject load(String identifier) throws Exception {
-            return new PEXSubject(identifier, new PEXOptionSubjectData(cache, identifier, plugin),
-                    new PEXOptionSubjectData(transientCache, identifier, plugin), PEXSubjectCollection.this);
-        }
-    });
+    private final LoadingCache<String, PEXSubject> subjectCache;
+    /**
+     * Subjects that must stay loaded regardless of the cache's bounds, such as those of online players
+     */
+    private final ConcurrentMap<String, PEXSubject> pinned = new ConcurrentHashMap<>();
+    private final int maxSize, expiry;
 
-    public PEXSubjectCollection(PermissionsExPlugin plugin, SubjectCache cache, SubjectCache transientCache) {
+    public PEXSubjectCollection(PermissionsExPlugin plugin, PermissionsEx manager, String type) {
         this.plugin = plugin;
-        this.cache = cache;
-        this.transientCache = transientCache;
+        this.cache = manager.getSubjects(type);
+        this.transientCache = manager.getTransientSubjects(type);
+        this.maxSize = manager.getConfig().getSubjectCacheSize();
+        this.expiry = manager.getConfig().getSubjectCacheExpiry();
+
+        CacheBuilder<Object, Object> builder = CacheBuilder.newBuilder();
+        if (maxSize > 0) {
+            builder.maximumSize(maxSize);
+        }
+        if (expiry > 0) {
+            builder.expireAfterAccess(expiry, TimeUnit.SECONDS);
+        }
+        this.subjectCache = builder.removalListener(new RemovalListener<String, PEXSubject>() {
+                    @Override
+                    public void onRemoval(RemovalNotification<String, PEXSubject> notification) {
+                        final PEXSubject subject = notification.getValue();
+                        if (subject != null) {
+                            synchronized (subject) { // Checked together with pinning
+                                if (pinned.get(notification.getKey()) != subject) {
+                                    subject.invalidate();
+                                }
+                            }
+                        }
+                    }
+                })
+                .build(new CacheLoader<String, PEXSubject>() {
+                    @Override
+                    public PEXSubject load(String identifier) throws Exception {
+                        final PEXSubject ret = pinned.get(identifier);
+                        if (ret != null) {
+                            return ret;
+                        }
+                        return createSubject(identifier);
+                    }
+                });
+    }
+
+    private PEXSubject createSubject(String identifier) throws ExecutionException {
+        return new PEXSubject(identifier, new PEXOptionSubjectData(cache, identifier, plugin), new PEXOptionSubjectData(transientCache, identifier, plugin), this);
     }
 
     @Override
@@ -62,13 +112,27 @@ public class PEXSubjectCollection implements SubjectCollection {
         return cache.getType();
     }
 
+    /**
+     * Check whether this collection can be kept after the plugin's manager has been replaced.
+     * This is only possible if the manager kept the same subject caches and the bounds of this collection are unchanged.
+     *
+     * @param manager The new manager
+     * @return Whether this collection is still valid with the new manager
+     */
+    boolean canReuse(PermissionsEx manager) {
+        final PermissionsExConfiguration config = manager.getConfig();
+        return manager.getSubjects(getIdentifier()) == cache
+                && manager.getTransientSubjects(getIdentifier()) == transientCache
+                && config.getSubjectCacheSize() == maxSize
+                && config.getSubjectCacheExpiry() == expiry;
+    }
+
     PermissionsExPlugin getPlugin() {
         return this.plugin;
     }
 
     @Override
     public PEXSubject get(String identifier) {
-        System.out.println("Getting subject for " + identifier);
         try {
             return subjectCache.get(identifier);
         } catch (ExecutionException e) {
@@ -76,7 +140,59 @@ public class PEXSubjectCollection implements SubjectCollection {
         }
     }
 
+    /**
+     * Keep the subject for the given identifier loaded until it is unpinned, regardless of the cache's bounds.
+     *
+     * @param identifier The identifier of the subject to pin
+     * @return The pinned subject
+     */
+    public PEXSubject pin(String identifier) {
+        while (true) {
+            final PEXSubject subject = get(identifier);
+            synchronized (subject) {
+                if (subject.isValid()) {
+                    pinned.put(identifier, subject);
+                    return subject;
+                }
+            }
+            // Evicted from the cache between being looked up and pinned, so look up its replacement
+        }
+    }
+
+    public void unpin(String identifier) {
+        final PEXSubject subject = pinned.remove(identifier);
+        if (subject != null && subjectCache.getIfPresent(identifier) != subject) {
+            subject.invalidate();
+        }
+    }
+
+    Set<String> getPinned() {
+        return pinned.keySet();
+    }
+
+    /**
+     * Drop every subject held by this collection, for when the collection is being replaced
+     */
+    void uncacheAll() {
+        final Set<PEXSubject> pinnedSubjects = ImmutableSet.copyOf(pinned.values());
+        pinned.clear();
+        subjectCache.invalidateAll();
+        for (PEXSubject subject : pinnedSubjects) {
+            subject.invalidate();
+        }
+    }
+
+    /**
+     * Forget the parents resolved by every subject held by this collection, so they are looked up again
+     */
+    void clearParentCaches() {
+        for (PEXSubject subject : Iterables.concat(subjectCache.asMap().values(), ImmutableSet.copyOf(pinned.values()))) {
+            subject.clearParentCaches();
+        }
+    }
+
     public void uncache(String identifier) {
+        unpin(identifier);
         subjectCache.invalidate(identifier);
         cache.invalidate(identifier);
         transientCache.invalidate(identifier);
@@ -103,18 +219,75 @@ public class PEXSubjectCollection implements SubjectCollection {
         return getAllWithPermission(null, permission);
     }
 
+    /**
+     * Get every subject in this collection with a value set for the given permission.
+     * Permission values are resolved from the permission indexes of the backing data stores, and only the subjects
+     * that have a value are looked up. Subjects not already held by this collection are not added to it, and are
+     * checked in the contexts active for the default subject when no contexts are given, having no command source
+     * of their own to calculate contexts from.
+     */
     @Override
-    public Map<Subject, Boolean> getAllWithPermission(Set<Context> contexts, String permission) {
+    public Map<Subject, Boolean> getAllWithPermission(@Nullable Set<Context> contexts, String permission) {
+        final PermissionIndex persistentIndex = cache.getPermissionIndex(), transientIndex = transientCache.getPermissionIndex();
+        final Set<SubjectRef> affected = PermissionIndex.getAffectedSubjects(permission, transientIndex, persistentIndex);
+        final PEXSubject defaults = plugin.getDefaultSubject();
+        final SubjectRef defaultsRef = defaults == null ? null : SubjectRef.of(defaults.getContainingCollection().getIdentifier(), defaults.getIdentifier());
+        final Set<Context> offlineContexts = defaults == null ? ImmutableSet.<Context>of() : defaults.getActiveContexts();
+
+        final Set<String> identifiers = new HashSet<>();
+        if (defaultsRef != null && affected.contains(defaultsRef)) {
+            // Everything inherits from the default subject
+            Iterables.addAll(identifiers, cache.getAllIdentifiers());
+            for (PEXSubject subject : getActiveSubjects()) {
+                identifiers.add(subject.getIdentifier());
+            }
+        } else {
+            for (SubjectRef ref : affected) {
+                if (ref.getType().equals(getIdentifier())) {
+                    identifiers.add(ref.getIdentifier());
+                }
+            }
+        }
+
+        // Subjects only affected through the default subject all share its value in the same contexts
+        final Map<Set<Context>, Integer> inheritedValues = new HashMap<>();
         final ImmutableMap.Builder<Subject, Boolean> ret = ImmutableMap.builder();
-        for (PEXSubject subject : subjectCache.asMap().values()) {
-                Tristate permissionValue = subject.getPermissionValue(contexts == null ? subject.getActiveContexts() : contexts, permission);
-                if (permissionValue != Tristate.UNDEFINED) {
-                    ret.put(subject, permissionValue.asBoolean());
+        for (String identifier : identifiers) {
+            final SubjectRef ref = SubjectRef.of(getIdentifier(), identifier);
+            final PEXSubject active = getActive(identifier);
+            final Set<Context> checkContexts = contexts != null ? contexts : active != null ? active.getActiveContexts() : offlineContexts;
+            final int value;
+            if (affected.contains(ref)) {
+                value = PermissionIndex.getPermissionValue(ref, defaultsRef, parSet(checkContexts), permission, transientIndex, persistentIndex);
+            } else {
+                Integer inherited = inheritedValues.get(checkContexts);
+                if (inherited == null) {
+                    inherited = PermissionIndex.getPermissionValue(defaultsRef, null, parSet(checkContexts), permission, transientIndex, persistentIndex);
+                    inheritedValues.put(checkContexts, inherited);
+                }
+                value = inherited;
+            }
+
+            if (value != 0) {
+                try {
+                    ret.put(active != null ? active : createSubject(identifier), value > 0);
+                } catch (ExecutionException e) {
+                    throw new RuntimeException(e);
                 }
+            }
         }
         return ret.build();
     }
 
+    /**
+     * Get the subject this collection currently holds for an identifier, without loading it
+     */
+    @Nullable
+    private PEXSubject getActive(String identifier) {
+        final PEXSubject ret = pinned.get(identifier);
+        return ret != null ? ret : subjectCache.getIfPresent(identifier);
+    }
+
     public Optional<CommandSource> getCommandSource(String identifier) {
         final Function<String, Optional<CommandSource>> provider = plugin.getCommandSourceProvider(this);
         if (provider != null) {
@@ -126,6 +299,12 @@ public class PEXSubjectCollection implements SubjectCollection {
     }
 
     Iterable<PEXSubject> getActiveSubjects() {
-        return subjectCache.asMap().values();
+        final Map<String, PEXSubject> cached = subjectCache.asMap();
+        return Iterables.concat(cached.values(), Iterables.filter(pinned.values(), new Predicate<PEXSubject>() {
+            @Override
+            public boolean apply(@Nullable PEXSubject input) {
+                return input != null && !cached.containsKey(input.getIdentifier());
+            }
+        }));
     }
 }
@@ -22,9 +22,12 @@ import com.google.common.base.Preconditions;
 import com.google.common.cache.CacheBuilder;
 import com.google.common.cache.CacheLoader;
 import com.google.common.cache.LoadingCache;
+import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
 import com.google.common.util.concurrent.ListenableFuture;
-import com.google.common.util.concurrent.ListenableFutureTask;
+import com.google.common.util.concurrent.ListeningExecutorService;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.inject.Inject;
 import ninja.leaping.configurate.ConfigurationNode;
 import ninja.leaping.configurate.commented.CommentedConfigurationNode;
@@ -39,8 +42,8 @@ import ninja.leaping.permissionsex.exception.PEBKACException;
 import ninja.leaping.permissionsex.config.ConfigTransformations;
 import ninja.leaping.permissionsex.config.PermissionsExConfiguration;
 import ninja.leaping.permissionsex.config.DataStoreSerializer;
-import ninja.leaping.permissionsex.exception.PermissionsException;
 import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+import ninja.leaping.permissionsex.util.StageTimings;
 import org.slf4j.Logger;
 import org.spongepowered.api.Game;
 import org.spongepowered.api.Server;
@@ -72,15 +75,18 @@ import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.sql.SQLException;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 import java.util.UUID;
 import java.util.concurrent.Callable;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
 
 /**
  * PermissionsEx plugin
@@ -98,24 +104,54 @@ public class PermissionsExPlugin implements PermissionService, ImplementationInt
     @Inject private Game game;
 
     @Nullable
-    private PermissionsEx manager;
-    private PermissionsExConfiguration config;
-    private ConfigurationNode rawConfig;
+    private volatile State state;
+    // The state being loaded on the reload thread, which lookups made while preparing it must resolve against
+    private final ThreadLocal<State> loadingState = new ThreadLocal<>();
+    private final ListeningExecutorService reloadExecutor = MoreExecutors.listeningDecorator(Executors.newSingleThreadExecutor(
+            new ThreadFactoryBuilder()
+                    .setNameFormat("PermissionsEx reload")
+                    .setDaemon(true)
+                    .build()));
 
     private final List<ContextCalculator> contextCalculators = new CopyOnWriteArrayList<>();
     private final ConcurrentMap<String, Function<String, Optional<CommandSource>>> commandSourceProviders = new ConcurrentHashMap<>();
-    private final LoadingCache<String, PEXSubjectCollection> subjectCollections = CacheBuilder.newBuilder().build(new CacheLoader<String, PEXSubjectCollection>() {
-        @Override
-        public PEXSubjectCollection load(String type) throws Exception {
-            if (manager == null) {
-                throw new PermissionsException("Manager is not currently loaded!");
-            }
-            return new PEXSubjectCollection(PermissionsExPlugin.this, manager.getSubjects(type), manager.getTransientSubjects(type));
-        }
-    });
-    private PEXSubject defaults;
     private final PEXContextCalculator contextCalculator = new PEXContextCalculator();
 
+    /**
+     * Everything replaced by a reload. A new state is only published once it is fully loaded, in a single write,
+     * so permission checks always see either the complete old state or the complete new state.
+     */
+    private class State {
+        private final PermissionsExConfiguration config;
+        private final ConfigurationNode rawConfig;
+        private final PermissionsEx manager;
+        private final LoadingCache<String, PEXSubjectCollection> subjectCollections;
+        private PEXSubject defaults;
+
+        private State(PermissionsExConfiguration config, ConfigurationNode rawConfig, final PermissionsEx manager) {
+            this.config = config;
+            this.rawConfig = rawConfig;
+            this.manager = manager;
+            this.subjectCollections = CacheBuilder.newBuilder().build(new CacheLoader<String, PEXSubjectCollection>() {
+                @Override
+                public PEXSubjectCollection load(String type) throws Exception {
+                    return new PEXSubjectCollection(PermissionsExPlugin.this, manager, type);
+                }
+            });
+        }
+    }
+
+    private State getState() {
+        State state = loadingState.get();
+        if (state == null) {
+            state = this.state;
+        }
+        if (state == null) {
+            throw new IllegalStateException("PermissionsEx is not currently loaded!");
+        }
+        return state;
+    }
+
     @Subscribe
     public void onPreInit(PreInitializationEvent event) throws PEBKACException {
         logger.info("Pre-init of " + PomData.NAME + " v" + PomData.VERSION);
@@ -125,7 +161,7 @@ public class PermissionsExPlugin implements PermissionService, ImplementationInt
         try {
             convertFromBukkit();
             configDir.mkdirs();
-            reloadSync();
+            logger.info("Loaded " + PomData.NAME + " (" + reloadSync() + ")");
         } catch (PEBKACException e) {
             throw e;
         } catch (Exception e) {
@@ -133,8 +169,9 @@ public class PermissionsExPlugin implements PermissionService, ImplementationInt
         }
 
         try {
-            PermissionsExConfiguration.MAPPER.bind(config).serialize(rawConfig);
-            configLoader.save(rawConfig);
+            final State state = getState();
+            PermissionsExConfiguration.MAPPER.bind(state.config).serialize(state.rawConfig);
+            configLoader.save(state.rawConfig);
         } catch (IOException | ObjectMappingException e) {
             throw new RuntimeException(e);
         }
@@ -143,7 +180,7 @@ public class PermissionsExPlugin implements PermissionService, ImplementationInt
         try {
             services.setProvider(this, PermissionService.class, this);
         } catch (ProviderExistsException e) {
-            manager.close();
+            getState().manager.close();
             throw new PEBKACException("Your appear to already be using a different permissions plugin: " + e.getLocalizedMessage());
         }
 
@@ -205,21 +242,24 @@ public class PermissionsExPlugin implements PermissionService, ImplementationInt
                 return Collections.emptyList();
             }
         }, "pextest");
+        this.game.getCommandDispatcher().register(this, new MigrateCommand(this), "pexmigrate");
     }
 
     @Subscribe
     public void disable(ServerStoppingEvent event) {
         logger.debug("Disabling " + PomData.NAME);
-        if (manager != null) {
-            manager.close();
-            manager = null;
+        reloadExecutor.shutdown();
+        final State state = this.state;
+        if (state != null) {
+            this.state = null;
+            state.manager.close();
         }
     }
 
     @Subscribe
     public void onPlayerJoin(PlayerJoinEvent event) {
         final String identifier = event.getPlayer().getIdentifier();
-        final PEXSubject subject = getUserSubjects().get(identifier);
+        final PEXSubject subject = getUserSubjects().pin(identifier);
         if (getUserSubjects().hasRegistered(identifier)) {
             if (!event.getPlayer().getName().equals(subject.getOption(SubjectData.GLOBAL_CONTEXT, "name").orNull())) {
                 subject.getData().setOption(SubjectData.GLOBAL_CONTEXT, "name", event.getPlayer().getName());
@@ -262,79 +302,163 @@ public class PermissionsExPlugin implements PermissionService, ImplementationInt
         }
     }
 
-    private void reloadSync() throws PEBKACException, ObjectMappingException, PermissionsLoadingException {
+    /**
+     * Load a new state and publish it once it is ready. Only ever called on the reload thread, or before the plugin
+     * is registered as the permission service.
+     *
+     * @return The time taken by each stage of the reload
+     */
+    private synchronized StageTimings reloadSync() throws PEBKACException, ObjectMappingException, PermissionsLoadingException {
+        final StageTimings timings = new StageTimings();
+        final State oldState = this.state;
+
+        final ConfigurationNode rawConfig;
         try {
             rawConfig = configLoader.load();
-            ConfigurationNode fallbackConfig;
-            try {
-                fallbackConfig = loadDefaultConfiguration();
-            } catch (IOException e) {
-                throw new Error("PEX's default configuration could not be loaded!", e);
-            }
-            rawConfig.mergeValuesFrom(fallbackConfig);
-            config = PermissionsExConfiguration.MAPPER.bindToNew().populate(rawConfig);
-            config.validate();
-            PermissionsEx oldManager = manager;
-            manager = new PermissionsEx(config, this);
-            if (oldManager != null) {
-                oldManager.close();
-            }
-            // TODO: Make subject collections persist past reloads
-            subjectCollections.invalidateAll();
-            defaults = (PEXSubject) getSubjects("default").get().get("global");
-            contextCalculator.update(config);
         } catch (IOException e) {
             throw new PEBKACException("Error while loading configuration: " + e.getLocalizedMessage());
         }
+        ConfigurationNode fallbackConfig;
+        try {
+            fallbackConfig = loadDefaultConfiguration();
+        } catch (IOException e) {
+            throw new Error("PEX's default configuration could not be loaded!", e);
+        }
+        rawConfig.mergeValuesFrom(fallbackConfig);
+        final PermissionsExConfiguration config = PermissionsExConfiguration.MAPPER.bindToNew().populate(rawConfig);
+        config.validate();
+        timings.endStage("configuration");
+
+        final PermissionsEx manager = new PermissionsEx(config, this, oldState == null ? null : oldState.manager);
+        timings.endStage("backend");
+
+        final State newState = new State(config, rawConfig, manager);
+        final List<PEXSubjectCollection> replaced = new ArrayList<>();
+        try {
+            manager.preloadGroups();
+            timings.endStage("groups");
+
+            // Keep collections still backed by the same subject caches, so their subjects do not have to be rebuilt
+            if (oldState != null) {
+                for (Map.Entry<String, PEXSubjectCollection> ent : oldState.subjectCollections.asMap().entrySet()) {
+                    if (ent.getValue().canReuse(manager)) {
+                        newState.subjectCollections.put(ent.getKey(), ent.getValue());
+                    } else {
+                        replaced.add(ent.getValue());
+                    }
+                }
+            }
+            newState.defaults = newState.subjectCollections.getUnchecked("default").get("global");
+            if (oldState != null) {
+                // Parents resolved while baking must come from the new state, not the one still published
+                loadingState.set(newState);
+                try {
+                    for (Map.Entry<String, PEXSubjectCollection> ent : oldState.subjectCollections.asMap().entrySet()) {
+                        final PEXSubjectCollection collection = newState.subjectCollections.getUnchecked(ent.getKey());
+                        for (String identifier : ImmutableSet.copyOf(ent.getValue().getPinned())) {
+                            collection.pin(identifier).prebake();
+                        }
+                    }
+                } finally {
+                    loadingState.remove();
+                }
+            }
+            timings.endStage("subjects");
+            manager.takeOver();
+        } catch (PermissionsLoadingException | RuntimeException e) {
+            for (PEXSubjectCollection collection : newState.subjectCollections.asMap().values()) {
+                if (oldState == null || !oldState.subjectCollections.asMap().containsValue(collection)) {
+                    collection.uncacheAll();
+                }
+            }
+            manager.close(); // The previous manager still owns everything shared with this one
+            throw e;
+        }
+
+        this.state = newState;
+        contextCalculator.update(config);
+        if (oldState != null) {
+            oldState.manager.close();
+            for (PEXSubjectCollection collection : replaced) {
+                // Players may have joined or left while the new state was loading
+                final PEXSubjectCollection newCollection = newState.subjectCollections.getUnchecked(collection.getIdentifier());
+                final Set<String> pinned = ImmutableSet.copyOf(collection.getPinned());
+                for (String identifier : pinned) {
+                    newCollection.pin(identifier);
+                }
+                for (String identifier : ImmutableSet.copyOf(newCollection.getPinned())) {
+                    if (!pinned.contains(identifier)) {
+                        newCollection.unpin(identifier);
+                    }
+                }
+                collection.uncacheAll();
+            }
+            if (!replaced.isEmpty()) {
+                // Subjects kept from the old state, or baked while loading, may have resolved parents in the collections just replaced
+                for (PEXSubjectCollection collection : newState.subjectCollections.asMap().values()) {
+                    collection.clearParentCaches();
+                }
+            }
+        }
+        timings.endStage("publish");
+        return timings;
     }
 
-    public ListenableFuture<Void> reload() {
-        return ListenableFutureTask.create(new Callable<Void>() {
+    /**
+     * Reload the configuration and backend in the background. Permission checks keep using the current state until
+     * the new state is fully loaded.
+     *
+     * @return A future completed with the time taken by each stage of the reload
+     */
+    public ListenableFuture<StageTimings> reload() {
+        return reloadExecutor.submit(new Callable<StageTimings>() {
             @Override
-            public Void call() throws Exception {
-                reloadSync();
-                return null;
+            public StageTimings call() throws Exception {
+                final StageTimings ret = reloadSync();
+                logger.info("Reloaded " + PomData.NAME + " (" + ret + ")");
+                return ret;
             }
         });
     }
 
+    @Nullable
     PermissionsEx getManager() {
-        return this.manager;
+        final State state = this.state;
+        return state == null ? null : state.manager;
     }
 
-
-    @Override
-    public PEXSubjectCollection getUserSubjects() {
+    private PEXSubjectCollection getSubjectCollection(String type) {
         try {
-            return subjectCollections.get(SUBJECTS_USER);
+            return getState().subjectCollections.get(type);
         } catch (ExecutionException e) {
             throw new RuntimeException(e);
         }
     }
 
+    @Override
+    public PEXSubjectCollection getUserSubjects() {
+        return getSubjectCollection(SUBJECTS_USER);
+    }
+
     @Override
     public PEXSubjectCollection getGroupSubjects() {
-        try {
-            return subjectCollections.get(SUBJECTS_GROUP);
-        } catch (ExecutionException e) {
-            throw new RuntimeException(e);
-        }
+        return getSubjectCollection(SUBJECTS_GROUP);
     }
 
     @Override
     public PEXOptionSubjectData getDefaultData() {
-        return defaults.getTransientData();
+        return getDefaultSubject().getTransientData();
     }
 
     public PEXSubject getDefaultSubject() {
-        return defaults;
+        return getState().defaults;
     }
 
     @Override
     public Optional<SubjectCollection> getSubjects(String identifier) {
         Preconditions.checkNotNull(identifier, "identifier");
         try {
-            return Optional.<SubjectCollection>fromNullable(subjectCollections.get(identifier));
+            return Optional.<SubjectCollection>fromNullable(getState().subjectCollections.get(identifier));
         } catch (ExecutionException e) {
             logger.error("Unable to get subject collection for type " + identifier, e);
             return Optional.absent();
@@ -344,7 +468,7 @@ public class PermissionsExPlugin implements PermissionService, ImplementationInt
     @Override
     @SuppressWarnings("unchecked")
     public Map<String, SubjectCollection> getKnownSubjects() {
-        return (Map) subjectCollections.asMap();
+        return (Map) getState().subjectCollections.asMap();
     }
 
     @Override
@@ -394,7 +518,7 @@ public class PermissionsExPlugin implements PermissionService, ImplementationInt
     }
 
     public Iterable<PEXSubject> getAllActiveSubjects() {
-        return Iterables.concat(Iterables.transform(subjectCollections.asMap().values(), new Function<PEXSubjectCollection, Iterable<PEXSubject>>() {
+        return Iterables.concat(Iterables.transform(getState().subjectCollections.asMap().values(), new Function<PEXSubjectCollection, Iterable<PEXSubject>>() {
             @Nullable
             @Override
             public Iterable<PEXSubject> apply(@Nullable PEXSubjectCollection input) {
@@ -0,0 +1,294 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.util;
+
+import com.google.common.base.Preconditions;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
+
+import javax.annotation.Nullable;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executor for blocking backend I/O, with a bounded queue and statistics on how long tasks wait and run.
+ * Once the queue is full, submitting more tasks applies the configured {@link Backpressure}.
+ * An executor with no threads runs every task on the thread submitting it.
+ */
+public class IOExecutor implements Executor {
+    /**
+     * What to do with a task submitted while the queue is full
+     */
+    public enum Backpressure {
+        /**
+         * Run the task on the thread submitting it
+         */
+        CALLER,
+        /**
+         * Wait until the queue has room for the task. Tasks submitted by the executor's own threads are run on the
+         * submitting thread instead, since waiting there could leave no thread to empty the queue.
+         */
+        BLOCK
+    }
+
+    @Nullable private final ThreadPoolExecutor executor; // null when tasks run on the submitting thread
+    private final boolean virtualThreads;
+    private final ThreadLocal<Boolean> poolThread = new ThreadLocal<>(); // Set on this executor's own threads
+    private final AtomicLong submitted = new AtomicLong(), completed = new AtomicLong(), ranInCaller = new AtomicLong(),
+            peakQueueDepth = new AtomicLong(), totalWaitNanos = new AtomicLong(), maxWaitNanos = new AtomicLong(), totalRunNanos = new AtomicLong();
+
+    /**
+     * Create a new executor.
+     *
+     * @param name The name given to threads of this executor
+     * @param threads The number of tasks that may run at once, or 0 to run tasks on the submitting thread
+     * @param queueSize The number of tasks that may wait for a thread
+     * @param backpressure What to do when the queue is full
+     * @param useVirtualThreads Whether to run tasks on virtual threads, if the JVM supports them
+     */
+    public IOExecutor(String name, int threads, int queueSize, final Backpressure backpressure, boolean useVirtualThreads) {
+        Preconditions.checkNotNull(name, "name");
+        Preconditions.checkNotNull(backpressure, "backpressure");
+        Preconditions.checkArgument(threads >= 0, "threads must not be negative");
+        Preconditions.checkArgument(queueSize > 0, "queueSize must be positive");
+        if (threads == 0) {
+            this.executor = null;
+            this.virtualThreads = false;
+            return;
+        }
+        ThreadFactory threadFactory = useVirtualThreads ? createVirtualThreadFactory(name) : null;
+        this.virtualThreads = threadFactory != null;
+        if (threadFactory == null) {
+            threadFactory = new ThreadFactoryBuilder()
+                    .setNameFormat(name + " #%d")
+                    .setDaemon(true)
+                    .build();
+        }
+        final ThreadFactory baseFactory = threadFactory;
+        this.executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<Runnable>(queueSize),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(final Runnable r) {
+                        return baseFactory.newThread(new Runnable() {
+                            @Override
+                            public void run() {
+                                poolThread.set(true);
+                                r.run();
+                            }
+                        });
+                    }
+                },
+                new RejectedExecutionHandler() {
+                    @Override
+                    public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+                        // Writes submitted while shutting down must still happen, so run them here rather than dropping them
+                        if (backpressure == Backpressure.CALLER || executor.isShutdown() || poolThread.get() != null) {
+                            ranInCaller.incrementAndGet();
+                            r.run();
+                        } else {
+                            try {
+                                executor.getQueue().put(r);
+                                if (executor.isShutdown() && executor.remove(r)) {
+                                    ranInCaller.incrementAndGet();
+                                    r.run();
+                                }
+                            } catch (InterruptedException e) {
+                                Thread.currentThread().interrupt();
+                                throw new RejectedExecutionException("Interrupted while waiting for room in the queue", e);
+                            }
+                        }
+                    }
+                });
+    }
+
+    /**
+     * Create a factory for virtual threads through reflection, since they are not available on every JVM we run on
+     *
+     * @return The thread factory, or null if virtual threads are not supported
+     */
+    @Nullable
+    private static ThreadFactory createVirtualThreadFactory(String name) {
+        try {
+            final Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, name + " #", 0L);
+            final Method factory = builderClass.getMethod("factory");
+            return (ThreadFactory) factory.invoke(builder);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public void execute(Runnable command) {
+        Preconditions.checkNotNull(command, "command");
+        submitted.incrementAndGet();
+        if (executor == null) {
+            ranInCaller.incrementAndGet();
+            new TimedTask(command).run();
+            return;
+        }
+        executor.execute(new TimedTask(command));
+        updateMax(peakQueueDepth, executor.getQueue().size());
+    }
+
+    /**
+     * Stop accepting new tasks, and wait for tasks that have already been submitted to complete.
+     * Tasks submitted after this call are run on the submitting thread.
+     *
+     * @param timeout The maximum time to wait
+     * @param unit The unit of {@code timeout}
+     * @return Whether every submitted task completed in time
+     */
+    public boolean shutdown(long timeout, TimeUnit unit) {
+        if (executor == null) {
+            return true;
+        }
+        executor.shutdown();
+        try {
+            return executor.awaitTermination(timeout, unit);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+    }
+
+    public boolean isUsingVirtualThreads() {
+        return virtualThreads;
+    }
+
+    public Statistics getStatistics() {
+        return new Statistics(executor == null ? 0 : executor.getQueue().size(), peakQueueDepth.get(), executor == null ? 0 : executor.getActiveCount(),
+                submitted.get(), completed.get(),
+                ranInCaller.get(), totalWaitNanos.get(), maxWaitNanos.get(), totalRunNanos.get());
+    }
+
+    private static void updateMax(AtomicLong max, long value) {
+        long current;
+        do {
+            current = max.get();
+        } while (value > current && !max.compareAndSet(current, value));
+    }
+
+    private class TimedTask implements Runnable {
+        private final Runnable task;
+        private final long submitTime = System.nanoTime();
+
+        private TimedTask(Runnable task) {
+            this.task = task;
+        }
+
+        @Override
+        public void run() {
+            final long start = System.nanoTime();
+            final long wait = start - submitTime;
+            totalWaitNanos.addAndGet(wait);
+            updateMax(maxWaitNanos, wait);
+            try {
+                task.run();
+            } finally {
+                totalRunNanos.addAndGet(System.nanoTime() - start);
+                completed.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * A snapshot of the executor's statistics. Counts include tasks run on the submitting thread.
+     */
+    public static class Statistics {
+        private final long queueDepth, peakQueueDepth, activeTasks, submittedTasks, completedTasks, callerRunTasks, totalWaitNanos, maxWaitNanos, totalRunNanos;
+
+        Statistics(long queueDepth, long peakQueueDepth, long activeTasks, long submittedTasks, long completedTasks, long callerRunTasks,
+                   long totalWaitNanos, long maxWaitNanos, long totalRunNanos) {
+            this.queueDepth = queueDepth;
+            this.peakQueueDepth = peakQueueDepth;
+            this.activeTasks = activeTasks;
+            this.submittedTasks = submittedTasks;
+            this.completedTasks = completedTasks;
+            this.callerRunTasks = callerRunTasks;
+            this.totalWaitNanos = totalWaitNanos;
+            this.maxWaitNanos = maxWaitNanos;
+            this.totalRunNanos = totalRunNanos;
+        }
+
+        /**
+         * @return The number of tasks currently waiting for a thread
+         */
+        public long getQueueDepth() {
+            return queueDepth;
+        }
+
+        /**
+         * @return The largest number of tasks seen waiting for a thread at once
+         */
+        public long getPeakQueueDepth() {
+            return peakQueueDepth;
+        }
+
+        public long getActiveTasks() {
+            return activeTasks;
+        }
+
+        public long getSubmittedTasks() {
+            return submittedTasks;
+        }
+
+        public long getCompletedTasks() {
+            return completedTasks;
+        }
+
+        /**
+         * @return The number of tasks run on the submitting thread because the queue was full or the executor was shut down
+         */
+        public long getCallerRunTasks() {
+            return callerRunTasks;
+        }
+
+        /**
+         * @return The average time in milliseconds a task waited in the queue before it started
+         */
+        public double getAverageWaitMillis() {
+            return completedTasks == 0 ? 0 : totalWaitNanos / (double) completedTasks / 1000000;
+        }
+
+        public double getMaxWaitMillis() {
+            return maxWaitNanos / 1000000d;
+        }
+
+        /**
+         * @return The average time in milliseconds a task took to run
+         */
+        public double getAverageRunMillis() {
+            return completedTasks == 0 ? 0 : totalRunNanos / (double) completedTasks / 1000000;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("queued: %d (peak %d), active: %d, submitted: %d, completed: %d, run by caller: %d, "
+                            + "wait: %.2fms avg/%.2fms max, run: %.2fms avg",
+                    queueDepth, peakQueueDepth, activeTasks, submittedTasks, completedTasks, callerRunTasks,
+                    getAverageWaitMillis(), getMaxWaitMillis(), getAverageRunMillis());
+        }
+    }
+}
@@ -0,0 +1,394 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map where updates return a new map that shares most of its structure with the original.
+ *
+ * This is a hash array mapped trie: each level of the trie consumes five bits of a key's hash, so adding or removing an
+ * entry only copies the nodes on the path to that entry rather than the whole map. Neither keys nor values may be null.
+ *
+ * @param <K> The key type
+ * @param <V> The value type
+ */
+public final class PersistentMap<K, V> extends AbstractMap<K, V> {
+    private static final int BITS = 5, MASK = (1 << BITS) - 1;
+    private static final PersistentMap<Object, Object> EMPTY = new PersistentMap<>(BitmapNode.EMPTY, 0);
+
+    private final Node root;
+    private final int size;
+    private Set<Map.Entry<K, V>> entrySet;
+
+    private PersistentMap(Node root, int size) {
+        this.root = root;
+        this.size = size;
+    }
+
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> of() {
+        return (PersistentMap<K, V>) EMPTY;
+    }
+
+    /**
+     * Get a persistent map with the same entries as {@code map}. If {@code map} is already persistent it is returned as-is.
+     *
+     * @param map The map to copy
+     * @return A persistent map containing every entry of {@code map}
+     */
+    @SuppressWarnings("unchecked")
+    public static <K, V> PersistentMap<K, V> copyOf(Map<? extends K, ? extends V> map) {
+        if (map instanceof PersistentMap) {
+            return (PersistentMap<K, V>) map;
+        }
+        PersistentMap<K, V> ret = of();
+        for (Map.Entry<? extends K, ? extends V> ent : map.entrySet()) {
+            ret = ret.plus(ent.getKey(), ent.getValue());
+        }
+        return ret;
+    }
+
+    private static int hash(Object key) {
+        final int h = key.hashCode();
+        return h ^ (h >>> 16);
+    }
+
+    private static int bit(int hash, int shift) {
+        return 1 << ((hash >>> shift) & MASK);
+    }
+
+    /**
+     * Get a map with {@code key} mapped to {@code value}.
+     *
+     * @return The new map, or this map if {@code key} is already mapped to an equal value
+     */
+    public PersistentMap<K, V> plus(K key, V value) {
+        Preconditions.checkNotNull(key, "key");
+        Preconditions.checkNotNull(value, "value");
+        final boolean[] added = new boolean[1];
+        final Node newRoot = root.plus(key, value, hash(key), 0, added);
+        if (newRoot == root) {
+            return this;
+        }
+        return new PersistentMap<>(newRoot, added[0] ? size + 1 : size);
+    }
+
+    /**
+     * Get a map without any mapping for {@code key}.
+     *
+     * @return The new map, or this map if {@code key} is not present
+     */
+    public PersistentMap<K, V> minus(Object key) {
+        if (key == null) {
+            return this;
+        }
+        final Node newRoot = root.minus(key, hash(key), 0);
+        if (newRoot == root) {
+            return this;
+        }
+        return newRoot == null ? PersistentMap.<K, V>of() : new PersistentMap<K, V>(newRoot, size - 1);
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public V get(Object key) {
+        return key == null ? null : (V) root.get(key, hash(key), 0);
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return get(key) != null;
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    @Override
+    public Set<Map.Entry<K, V>> entrySet() {
+        if (entrySet == null) {
+            entrySet = new AbstractSet<Map.Entry<K, V>>() {
+                @Override
+                public Iterator<Map.Entry<K, V>> iterator() {
+                    return new EntryIterator<>(root);
+                }
+
+                @Override
+                public int size() {
+                    return size;
+                }
+            };
+        }
+        return entrySet;
+    }
+
+    /**
+     * A node in the trie. Nodes hold an array of key-value pairs, where a null key marks a pair whose value is a child node.
+     */
+    private abstract static class Node {
+        protected final Object[] array;
+
+        protected Node(Object[] array) {
+            this.array = array;
+        }
+
+        abstract Object get(Object key, int hash, int shift);
+
+        abstract Node plus(Object key, Object value, int hash, int shift, boolean[] added);
+
+        /**
+         * @return The node without {@code key}, this node if {@code key} is not present, or null if the node is now empty
+         */
+        abstract Node minus(Object key, int hash, int shift);
+    }
+
+    /**
+     * A node holding up to 32 slots, with a bitmap of which slots are occupied so the array only needs space for those
+     */
+    private static final class BitmapNode extends Node {
+        static final BitmapNode EMPTY = new BitmapNode(0, new Object[0]);
+        private final int bitmap;
+
+        BitmapNode(int bitmap, Object[] array) {
+            super(array);
+            this.bitmap = bitmap;
+        }
+
+        private int index(int bit) {
+            return 2 * Integer.bitCount(bitmap & (bit - 1));
+        }
+
+        @Override
+        Object get(Object key, int hash, int shift) {
+            final int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return null;
+            }
+            final int idx = index(bit);
+            final Object existingKey = array[idx];
+            if (existingKey == null) {
+                return ((Node) array[idx + 1]).get(key, hash, shift + BITS);
+            }
+            return key.equals(existingKey) ? array[idx + 1] : null;
+        }
+
+        @Override
+        Node plus(Object key, Object value, int hash, int shift, boolean[] added) {
+            final int bit = bit(hash, shift);
+            final int idx = index(bit);
+            if ((bitmap & bit) == 0) {
+                final Object[] newArray = new Object[array.length + 2];
+                System.arraycopy(array, 0, newArray, 0, idx);
+                newArray[idx] = key;
+                newArray[idx + 1] = value;
+                System.arraycopy(array, idx, newArray, idx + 2, array.length - idx);
+                added[0] = true;
+                return new BitmapNode(bitmap | bit, newArray);
+            }
+
+            final Object existingKey = array[idx], existingValue = array[idx + 1];
+            if (existingKey == null) {
+                final Node child = ((Node) existingValue).plus(key, value, hash, shift + BITS, added);
+                return child == existingValue ? this : new BitmapNode(bitmap, replace(array, idx + 1, child));
+            } else if (key.equals(existingKey)) {
+                return value.equals(existingValue) ? this : new BitmapNode(bitmap, replace(array, idx + 1, value));
+            }
+
+            added[0] = true;
+            final Object[] newArray = replace(array, idx + 1, pair(existingKey, existingValue, key, value, hash, shift + BITS));
+            newArray[idx] = null;
+            return new BitmapNode(bitmap, newArray);
+        }
+
+        @Override
+        Node minus(Object key, int hash, int shift) {
+            final int bit = bit(hash, shift);
+            if ((bitmap & bit) == 0) {
+                return this;
+            }
+            final int idx = index(bit);
+            final Object existingKey = array[idx];
+            if (existingKey == null) {
+                final Node child = ((Node) array[idx + 1]).minus(key, hash, shift + BITS);
+                if (child == array[idx + 1]) {
+                    return this;
+                } else if (child != null) {
+                    return new BitmapNode(bitmap, replace(array, idx + 1, child));
+                }
+            } else if (!key.equals(existingKey)) {
+                return this;
+            }
+
+            if (bitmap == bit) {
+                return null;
+            }
+            final Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, idx);
+            System.arraycopy(array, idx + 2, newArray, idx, array.length - idx - 2);
+            return new BitmapNode(bitmap ^ bit, newArray);
+        }
+
+        /**
+         * Create a node holding two entries that share a slot at the previous level.
+         */
+        private static Node pair(Object key1, Object value1, Object key2, Object value2, int hash2, int shift) {
+            final int hash1 = hash(key1);
+            if (hash1 == hash2) {
+                return new CollisionNode(hash1, new Object[] {key1, value1, key2, value2});
+            }
+            final boolean[] added = new boolean[1];
+            return EMPTY.plus(key1, value1, hash1, shift, added).plus(key2, value2, hash2, shift, added);
+        }
+    }
+
+    /**
+     * A node holding entries whose keys have the same full hash
+     */
+    private static final class CollisionNode extends Node {
+        private final int hash;
+
+        CollisionNode(int hash, Object[] array) {
+            super(array);
+            this.hash = hash;
+        }
+
+        private int find(Object key) {
+            for (int i = 0; i < array.length; i += 2) {
+                if (key.equals(array[i])) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        @Override
+        Object get(Object key, int hash, int shift) {
+            final int idx = find(key);
+            return idx == -1 ? null : array[idx + 1];
+        }
+
+        @Override
+        Node plus(Object key, Object value, int hash, int shift, boolean[] added) {
+            if (hash != this.hash) { // Push this node down a level so the new key can be stored beside it
+                return new BitmapNode(bit(this.hash, shift), new Object[] {null, this}).plus(key, value, hash, shift, added);
+            }
+            final int idx = find(key);
+            if (idx != -1) {
+                return value.equals(array[idx + 1]) ? this : new CollisionNode(hash, replace(array, idx + 1, value));
+            }
+            final Object[] newArray = Arrays.copyOf(array, array.length + 2);
+            newArray[array.length] = key;
+            newArray[array.length + 1] = value;
+            added[0] = true;
+            return new CollisionNode(hash, newArray);
+        }
+
+        @Override
+        Node minus(Object key, int hash, int shift) {
+            final int idx = find(key);
+            if (idx == -1) {
+                return this;
+            } else if (array.length == 2) {
+                return null;
+            }
+            final Object[] newArray = new Object[array.length - 2];
+            System.arraycopy(array, 0, newArray, 0, idx);
+            System.arraycopy(array, idx + 2, newArray, idx, array.length - idx - 2);
+            return new CollisionNode(hash, newArray);
+        }
+    }
+
+    private static Object[] replace(Object[] array, int idx, Object value) {
+        final Object[] ret = array.clone();
+        ret[idx] = value;
+        return ret;
+    }
+
+    /**
+     * Depth-first iterator over the entries of a trie
+     */
+    private static final class EntryIterator<K, V> implements Iterator<Map.Entry<K, V>> {
+        // Nodes can be at most seven levels deep, plus one level for collisions
+        private final Object[][] arrays = new Object[8][];
+        private final int[] positions = new int[8];
+        private int depth;
+
+        EntryIterator(Node root) {
+            arrays[0] = root.array;
+            advance();
+        }
+
+        /**
+         * Move to the next key-value pair that is not a child node
+         */
+        private void advance() {
+            while (depth >= 0) {
+                final Object[] array = arrays[depth];
+                final int pos = positions[depth];
+                if (pos >= array.length) {
+                    --depth;
+                } else if (array[pos] == null) {
+                    positions[depth] += 2;
+                    ++depth;
+                    arrays[depth] = ((Node) array[pos + 1]).array;
+                    positions[depth] = 0;
+                } else {
+                    return;
+                }
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            return depth >= 0;
+        }
+
+        @Override
+        @SuppressWarnings("unchecked")
+        public Map.Entry<K, V> next() {
+            if (!hasNext()) {
+                throw new NoSuchElementException();
+            }
+            final Object[] array = arrays[depth];
+            final int pos = positions[depth];
+            positions[depth] += 2;
+            final Map.Entry<K, V> ret = new SimpleImmutableEntry<>((K) array[pos], (V) array[pos + 1]);
+            advance();
+            return ret;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("PersistentMap is immutable");
+        }
+    }
+}
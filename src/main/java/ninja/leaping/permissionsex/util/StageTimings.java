@@ -0,0 +1,73 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.util;
+
+import com.google.common.base.Preconditions;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Records how long each stage of a multi-stage operation, such as startup or a reload, took.
+ * Each stage starts when the previous one ends.
+ */
+public class StageTimings {
+    private final Map<String, Long> stageTimes = new LinkedHashMap<>();
+    private final long start;
+    private long stageStart;
+
+    public StageTimings() {
+        this.start = this.stageStart = System.nanoTime();
+    }
+
+    /**
+     * Mark the current stage as complete
+     *
+     * @param name The name of the stage that has just finished
+     */
+    public synchronized void endStage(String name) {
+        Preconditions.checkNotNull(name, "name");
+        final long now = System.nanoTime();
+        stageTimes.put(name, TimeUnit.NANOSECONDS.toMillis(now - stageStart));
+        stageStart = now;
+    }
+
+    /**
+     * @return The time in milliseconds each completed stage took, in the order the stages ran
+     */
+    public synchronized Map<String, Long> getStageTimes() {
+        return Collections.unmodifiableMap(new LinkedHashMap<>(stageTimes));
+    }
+
+    /**
+     * @return The time in milliseconds from the start of the first stage to the end of the last completed stage
+     */
+    public synchronized long getTotalTime() {
+        return TimeUnit.NANOSECONDS.toMillis(stageStart - start);
+    }
+
+    @Override
+    public synchronized String toString() {
+        final StringBuilder ret = new StringBuilder();
+        for (Map.Entry<String, Long> stage : stageTimes.entrySet()) {
+            ret.append(stage.getKey()).append(": ").append(stage.getValue()).append("ms, ");
+        }
+        return ret.append("total: ").append(getTotalTime()).append("ms").toString();
+    }
+}
@@ -0,0 +1,53 @@
+CREATE TABLE IF NOT EXISTS `{segments}` (
+  `id` INTEGER NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  `type` VARCHAR(50) NOT NULL,
+  `identifier` VARCHAR(50) NOT NULL,
+  `perm_default` INTEGER NOT NULL DEFAULT 0
+);
+
+CREATE INDEX IF NOT EXISTS `{segments}_subject` ON `{segments}` (`type`, `identifier`);
+
+CREATE TABLE IF NOT EXISTS `{contexts}` (
+  `id` INTEGER NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  `segment` INTEGER NOT NULL REFERENCES `{segments}` (`id`) ON DELETE CASCADE,
+  `key` VARCHAR(50) NOT NULL,
+  `value` VARCHAR(255) NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS `{permissions}` (
+  `id` INTEGER NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  `segment` INTEGER NOT NULL REFERENCES `{segments}` (`id`) ON DELETE CASCADE,
+  `key` TEXT NOT NULL,
+  `value` INTEGER NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS `{options}` (
+  `id` INTEGER NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  `segment` INTEGER NOT NULL REFERENCES `{segments}` (`id`) ON DELETE CASCADE,
+  `key` TEXT NOT NULL,
+  `value` TEXT NOT NULL
+);
+
+CREATE TABLE IF NOT EXISTS `{inheritance}` (
+  `id` INTEGER NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  `segment` INTEGER NOT NULL REFERENCES `{segments}` (`id`) ON DELETE CASCADE,
+  `parent_type` VARCHAR(50) NOT NULL,
+  `parent_identifier` VARCHAR(50) NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS `{contexts}_segment` ON `{contexts}` (`segment`);
+CREATE INDEX IF NOT EXISTS `{permissions}_segment` ON `{permissions}` (`segment`);
+CREATE INDEX IF NOT EXISTS `{options}_segment` ON `{options}` (`segment`);
+CREATE INDEX IF NOT EXISTS `{inheritance}_segment` ON `{inheritance}` (`segment`);
+CREATE INDEX IF NOT EXISTS `{inheritance}_parent` ON `{inheritance}` (`parent_type`, `parent_identifier`);
+
+CREATE TABLE IF NOT EXISTS `{changes}` (
+  `id` BIGINT NOT NULL AUTO_INCREMENT PRIMARY KEY,
+  `origin` VARCHAR(36) NOT NULL,
+  `type` VARCHAR(50) NOT NULL,
+  `identifier` VARCHAR(50) NOT NULL,
+  `revision` BIGINT NOT NULL,
+  `created` BIGINT NOT NULL
+);
+
+CREATE INDEX IF NOT EXISTS `{changes}_created` ON `{changes}` (`created`);
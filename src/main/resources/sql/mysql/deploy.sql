@@ -1,67 +1,56 @@
-# Possible 2.0 Schema
 CREATE TABLE IF NOT EXISTS `{segments}` (
   `id` int(11) NOT NULL AUTO_INCREMENT,
-  `type` VARCHAR(50),
-  `identifier` VARCHAR(50),
-  UNIQUE KEY `unique` (`type`,`identifier`)
+  `type` VARCHAR(50) NOT NULL,
+  `identifier` VARCHAR(50) NOT NULL,
+  `perm_default` int(11) NOT NULL DEFAULT 0,
+  PRIMARY KEY (`id`),
+  KEY `subject` (`type`, `identifier`)
 ) DEFAULT CHARACTER SET utf8 COLLATE utf8_general_ci;
 
-CREATE TABLE IF NOT EXISTS `{permissions}` (
+CREATE TABLE IF NOT EXISTS `{contexts}` (
   `id` int(11) NOT NULL AUTO_INCREMENT,
-  `segment` int(11) REFERENCES `{segments}` (`id`) ON DELETE CASCADE,
-  `key` TEXT,
-  `value` int(11)
-) DEFAULT CHARACTER SET utf8 COLLATE utf8_general_ci;
-
-CREATE TABLE IF NOT EXISTS `{options}` (
-  `id` int(11) NOT NULL AUTO_INCREMENT,
-  `segment` int(11) REFERENCES `{segments}` (`id`) ON DELETE CASCADE,
-  `key` TEXT,
-  `value` TEXT
+  `segment` int(11) NOT NULL REFERENCES `{segments}` (`id`) ON DELETE CASCADE,
+  `key` VARCHAR(50) NOT NULL,
+  `value` VARCHAR(255) NOT NULL,
+  PRIMARY KEY (`id`),
+  KEY `segment` (`segment`)
 ) DEFAULT CHARACTER SET utf8 COLLATE utf8_general_ci;
 
-CREATE TABLE IF NOT EXISTS `{inheritance}` (
+CREATE TABLE IF NOT EXISTS `{permissions}` (
   `id` int(11) NOT NULL AUTO_INCREMENT,
-  `segment` int(11) REFERENCES `{segments}` (`id`) ON DELETE CASCADE,
-  `parent` int(11) REFERENCES `{segments}` (`id`) ON DELETE CASCADE,
-  UNIQUE KEY `unique` (`segment`, `parent`)
+  `segment` int(11) NOT NULL REFERENCES `{segments}` (`id`) ON DELETE CASCADE,
+  `key` TEXT NOT NULL,
+  `value` int(11) NOT NULL,
+  PRIMARY KEY (`id`),
+  KEY `segment` (`segment`)
 ) DEFAULT CHARACTER SET utf8 COLLATE utf8_general_ci;
 
-
-# Current
-
-CREATE TABLE IF NOT EXISTS `{permissions}` (
+CREATE TABLE IF NOT EXISTS `{options}` (
   `id` int(11) NOT NULL AUTO_INCREMENT,
-  `name` varchar(50) NOT NULL,
-  `type` tinyint(1) NOT NULL,
-  `permission` text NOT NULL,
-  `world` varchar(50) NOT NULL,
-  `value` text NOT NULL,
+  `segment` int(11) NOT NULL REFERENCES `{segments}` (`id`) ON DELETE CASCADE,
+  `key` TEXT NOT NULL,
+  `value` TEXT NOT NULL,
   PRIMARY KEY (`id`),
-  #UNIQUE KEY `unique` (`name`,`permission`,`world`,`type`),
-  KEY `user` (`name`,`type`),
-  KEY `world` (`world`,`name`,`type`)
+  KEY `segment` (`segment`)
 ) DEFAULT CHARACTER SET utf8 COLLATE utf8_general_ci;
 
-
-CREATE TABLE IF NOT EXISTS `{permissions_entity}` (
+CREATE TABLE IF NOT EXISTS `{inheritance}` (
   `id` int(11) NOT NULL AUTO_INCREMENT,
-  `name` varchar(50) NOT NULL,
-  `type` tinyint(1) NOT NULL,
-  `default` tinyint(1) NOT NULL DEFAULT '0',
+  `segment` int(11) NOT NULL REFERENCES `{segments}` (`id`) ON DELETE CASCADE,
+  `parent_type` VARCHAR(50) NOT NULL,
+  `parent_identifier` VARCHAR(50) NOT NULL,
   PRIMARY KEY (`id`),
-  UNIQUE KEY `name` (`name`, `type`),
-  KEY `default` (`default`)
+  KEY `segment` (`segment`),
+  KEY `parent` (`parent_type`, `parent_identifier`)
 ) DEFAULT CHARACTER SET utf8 COLLATE utf8_general_ci;
 
-CREATE TABLE IF NOT EXISTS `{permissions_inheritance}` (
-  `id` int(11) NOT NULL AUTO_INCREMENT,
-  `child` varchar(50) NOT NULL,
-  `parent` varchar(50) NOT NULL,
-  `type` tinyint(1) NOT NULL,
-  `world` varchar(50) NULL,
+CREATE TABLE IF NOT EXISTS `{changes}` (
+  `id` BIGINT NOT NULL AUTO_INCREMENT,
+  `origin` VARCHAR(36) NOT NULL,
+  `type` VARCHAR(50) NOT NULL,
+  `identifier` VARCHAR(50) NOT NULL,
+  `revision` BIGINT NOT NULL,
+  `created` BIGINT NOT NULL,
   PRIMARY KEY (`id`),
-  UNIQUE KEY `child` (`child`,`parent`,`type`,`world`),
-  KEY `child_2` (`child`,`type`),
-  KEY `parent` (`parent`,`type`)
+  KEY `created` (`created`)
 ) DEFAULT CHARACTER SET utf8 COLLATE utf8_general_ci;
@@ -1,51 +1,53 @@
-CREATE TABLE IF NOT EXISTS `{pex_groups}` (
-  `id` integer PRIMARY KEY AUTOINCREMENT NOT NULL,
-  `name` TEXT NOT NULL,
+CREATE TABLE IF NOT EXISTS `{segments}` (
+  `id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,
+  `type` VARCHAR(50) NOT NULL,
+  `identifier` VARCHAR(50) NOT NULL,
+  `perm_default` INTEGER NOT NULL DEFAULT 0
 );
 
-CREATE TABLE IF NOT EXISTS `{pex_qualifiers}` (
-  `id` integer PRIMARY KEY NOT NULL AUTOINCREMENT,
-  `group` integer NOT NULL REFERENCES `{pex_groups}` (`id`) ON DELETE CASCADE,
-  `key` TEXT NOT NULL,
-  `value` TEXT NOT NULL,
+CREATE INDEX IF NOT EXISTS `{segments}_subject` ON `{segments}` (`type`, `identifier`);
+
+CREATE TABLE IF NOT EXISTS `{contexts}` (
+  `id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,
+  `segment` INTEGER NOT NULL REFERENCES `{segments}` (`id`) ON DELETE CASCADE,
+  `key` VARCHAR(50) NOT NULL,
+  `value` VARCHAR(255) NOT NULL
 );
 
-CREATE TABLE IF NOT EXISTS `{pex_entries}` (
-  `id` integer PRIMARY KEY NOT NULL AUTOINCREMENT,
-  `group` integer NOT NULL REFERENCES `{pex_groups}` (`id`) ON DELETE CASCADE,
+CREATE TABLE IF NOT EXISTS `{permissions}` (
+  `id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,
+  `segment` INTEGER NOT NULL REFERENCES `{segments}` (`id`) ON DELETE CASCADE,
   `key` TEXT NOT NULL,
-  `value` TEXT NULL,
+  `value` INTEGER NOT NULL
 );
 
-/*CREATE TABLE `{permissions}` (
-  `id`          integer PRIMARY KEY AUTOINCREMENT,
-  `name`        varchar(50) NOT NULL,
-  `type`        int NOT NULL DEFAULT 0,
-  `permission`  TEXT NOT NULL,
-  `world`       varchar(50) NOT NULL,
-  `value`       TEXT NOT NULL
+CREATE TABLE IF NOT EXISTS `{options}` (
+  `id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,
+  `segment` INTEGER NOT NULL REFERENCES `{segments}` (`id`) ON DELETE CASCADE,
+  `key` TEXT NOT NULL,
+  `value` TEXT NOT NULL
 );
 
-CREATE INDEX `permissions_Index01` ON `{permissions}` (`name`, `type`, `world`, `permission`);
-CREATE INDEX `permissions_Index02` ON `{permissions}` (`name`, `type`, `world`);
-
-CREATE TABLE `{permissions_entity}` (
-  `id`         integer PRIMARY KEY AUTOINCREMENT NOT NULL,
-  `name`       varchar(50) NOT NULL,
-  `type`       int NOT NULL DEFAULT 0,
-  `default`   int NOT NULL DEFAULT 0
+CREATE TABLE IF NOT EXISTS `{inheritance}` (
+  `id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,
+  `segment` INTEGER NOT NULL REFERENCES `{segments}` (`id`) ON DELETE CASCADE,
+  `parent_type` VARCHAR(50) NOT NULL,
+  `parent_identifier` VARCHAR(50) NOT NULL
 );
 
-CREATE UNIQUE INDEX `permissions_entity_Index01` ON `{permissions_entity}` (`name`, `type`);
-
-CREATE TABLE `{permissions_inheritance}` (
-  `id`      integer PRIMARY KEY AUTOINCREMENT NOT NULL,
-  `child`   varchar(50) NOT NULL,
-  `parent`  varchar(50) NOT NULL,
-  `type`    int NOT NULL,
-  `world`  varchar(50) NULL
+CREATE INDEX IF NOT EXISTS `{contexts}_segment` ON `{contexts}` (`segment`);
+CREATE INDEX IF NOT EXISTS `{permissions}_segment` ON `{permissions}` (`segment`);
+CREATE INDEX IF NOT EXISTS `{options}_segment` ON `{options}` (`segment`);
+CREATE INDEX IF NOT EXISTS `{inheritance}_segment` ON `{inheritance}` (`segment`);
+CREATE INDEX IF NOT EXISTS `{inheritance}_parent` ON `{inheritance}` (`parent_type`, `parent_identifier`);
+
+CREATE TABLE IF NOT EXISTS `{changes}` (
+  `id` INTEGER PRIMARY KEY AUTOINCREMENT NOT NULL,
+  `origin` VARCHAR(36) NOT NULL,
+  `type` VARCHAR(50) NOT NULL,
+  `identifier` VARCHAR(50) NOT NULL,
+  `revision` BIGINT NOT NULL,
+  `created` BIGINT NOT NULL
 );
 
-CREATE INDEX `permissions_inheritance_Index01` ON `{permissions_inheritance}` (`child`, `type`, `world`);
-
-CREATE INDEX `permissions_inheritance_Index02` ON `{permissions_inheritance}` (`parent`, `type`);*/
+CREATE INDEX IF NOT EXISTS `{changes}_created` ON `{changes}` (`created`);
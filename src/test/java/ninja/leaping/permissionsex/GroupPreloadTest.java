@@ -0,0 +1,75 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex;
+
+import com.google.common.collect.ImmutableSet;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.permissionsex.config.PermissionsExConfiguration;
+import ninja.leaping.permissionsex.data.SubjectCache;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+@RunWith(Parameterized.class)
+public class GroupPreloadTest extends PermissionsExTest {
+    private static final Set<Map.Entry<String, String>> GLOBAL = ImmutableSet.of();
+    private static final int GROUP_COUNT = 20;
+    private final PermissionsExConfiguration.GroupPreload preload;
+
+    @Parameterized.Parameters(name = "{0}")
+    public static List<Object[]> data() {
+        final List<Object[]> ret = new ArrayList<>();
+        for (PermissionsExConfiguration.GroupPreload preload : PermissionsExConfiguration.GroupPreload.values()) {
+            ret.add(new Object[] {preload});
+        }
+        return ret;
+    }
+
+    public GroupPreloadTest(PermissionsExConfiguration.GroupPreload preload) {
+        this.preload = preload;
+    }
+
+    @Override
+    protected void populate(ConfigurationNode node) {
+        node.getNode("backends", "test", "type").setValue("file");
+        node.getNode("backends", "test", "file").setValue("test.conf");
+        node.getNode("default-backend").setValue("test");
+        node.getNode("group-preload").setValue(preload.name().toLowerCase());
+    }
+
+    @Test
+    public void testPreloadGroups() throws Exception {
+        final SubjectCache groups = getManager().getSubjects("group");
+        for (int i = 0; i < GROUP_COUNT; ++i) {
+            groups.update("group" + i, groups.getData("group" + i, null).setPermission(GLOBAL, "perm." + i, 1)).get();
+            groups.invalidate("group" + i);
+        }
+
+        getManager().preloadGroups();
+        for (int i = 0; i < GROUP_COUNT; ++i) {
+            assertEquals("group" + i, preload != PermissionsExConfiguration.GroupPreload.LAZY, groups.isCached("group" + i));
+        }
+        assertEquals(Integer.valueOf(1), groups.getData("group7", null).getPermissions(GLOBAL).get("perm.7"));
+    }
+}
@@ -0,0 +1,118 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.permissionsex.data.SubjectCache;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PermissionsExReloadTest extends PermissionsExTest {
+    private static final Set<Map.Entry<String, String>> GLOBAL = ImmutableSet.of();
+    private String defaultBackend = "test";
+    private String cacheFile = "cache.conf";
+
+    @Override
+    protected void populate(ConfigurationNode node) {
+        node.getNode("backends", "test", "type").setValue("memory");
+        node.getNode("backends", "other", "type").setValue("file");
+        node.getNode("backends", "other", "file").setValue("other.yml");
+        node.getNode("backends", "cache", "type").setValue("file");
+        node.getNode("backends", "cache", "file").setValue(cacheFile);
+        node.getNode("backends", "tiered", "type").setValue("tiered");
+        node.getNode("backends", "tiered", "l1").setValue("cache");
+        node.getNode("backends", "tiered", "l2").setValue("test");
+        node.getNode("default-backend").setValue(defaultBackend);
+    }
+
+    @Test
+    public void testUnchangedBackendKept() throws Exception {
+        final SubjectCache users = getManager().getSubjects("user"), transientUsers = getManager().getTransientSubjects("user");
+        users.update("zml", users.getData("zml", null).setPermission(GLOBAL, "some.perm", 1)).get();
+        transientUsers.update("zml", transientUsers.getData("zml", null).setOption(GLOBAL, "prefix", "[zml]")).get();
+
+        final PermissionsEx reloaded = reloadManager();
+        assertSame(users, reloaded.getSubjects("user"));
+        assertSame(transientUsers, reloaded.getTransientSubjects("user"));
+        assertEquals(Integer.valueOf(1), reloaded.getSubjects("user").getData("zml", null).getPermissions(GLOBAL).get("some.perm"));
+        assertEquals("[zml]", reloaded.getTransientSubjects("user").getData("zml", null).getOptions(GLOBAL).get("prefix"));
+    }
+
+    @Test
+    public void testChangedBackendReplaced() throws Exception {
+        final SubjectCache users = getManager().getSubjects("user"), transientUsers = getManager().getTransientSubjects("user");
+        users.update("zml", users.getData("zml", null).setPermission(GLOBAL, "some.perm", 1)).get();
+
+        defaultBackend = "other";
+        final PermissionsEx reloaded = reloadManager();
+        assertNotSame(users, reloaded.getSubjects("user"));
+        assertSame(transientUsers, reloaded.getTransientSubjects("user"));
+        assertNull(reloaded.getSubjects("user").getData("zml", null).getPermissions(GLOBAL).get("some.perm"));
+    }
+
+    @Test
+    public void testAbandonedReplacementLeavesPreviousManager() throws Exception {
+        final PermissionsEx previous = getManager();
+        final SubjectCache users = previous.getSubjects("user");
+        new PermissionsEx(createConfig(), getImplementation(), previous).close(); // As when a later reload stage fails
+
+        assertSame(users, previous.getSubjects("user"));
+        users.update("zml", users.getData("zml", null).setPermission(GLOBAL, "some.perm", 1)).get();
+        assertEquals(Integer.valueOf(1), users.getData("zml", null).getPermissions(GLOBAL).get("some.perm"));
+
+        final PermissionsEx reloaded = reloadManager();
+        assertSame(users, reloaded.getSubjects("user"));
+    }
+
+    @Test
+    public void testKeptBackendUsesNewManager() throws Exception {
+        defaultBackend = "cache";
+        final SubjectCache users = reloadManager().getSubjects("user");
+        final PermissionsEx reloaded = reloadManager();
+        assertSame(users, reloaded.getSubjects("user"));
+
+        final long submitted = reloaded.getIOExecutor().getStatistics().getSubmittedTasks();
+        users.update("zml", users.getData("zml", null).setPermission(GLOBAL, "some.perm", 1)).get();
+        assertTrue(reloaded.getIOExecutor().getStatistics().getSubmittedTasks() > submitted);
+    }
+
+    @Test
+    public void testMigrateFromKeptBackend() throws Exception {
+        final SubjectCache users = getManager().getSubjects("user");
+        users.update("zml", users.getData("zml", null).setPermission(GLOBAL, "some.perm", 1)).get();
+
+        final PermissionsEx reloaded = reloadManager();
+        assertEquals(1, reloaded.migrate("test", "other", ImmutableList.of("user"), null).getSubjectCount());
+    }
+
+    @Test
+    public void testChangedTierReplaced() throws Exception {
+        defaultBackend = "tiered";
+        final PermissionsEx initial = reloadManager();
+        final SubjectCache users = initial.getSubjects("user");
+        assertSame(users, reloadManager().getSubjects("user"));
+
+        cacheFile = "other-cache.conf";
+        assertNotSame(users, reloadManager().getSubjects("user"));
+    }
+}
@@ -36,14 +36,32 @@ public abstract class PermissionsExTest {
     @Rule
     public TemporaryFolder tempFolder = new TemporaryFolder();
     private PermissionsEx manager;
+    private TestImplementationInterface impl;
+
     @Before
     public void setUp() throws PermissionsLoadingException, ObjectMappingException, IOException, PEBKACException {
+        impl = new TestImplementationInterface(tempFolder.newFolder());
+        manager = new PermissionsEx(createConfig(), impl);
+    }
+
+    protected PermissionsExConfiguration createConfig() throws ObjectMappingException, PEBKACException {
         final ConfigurationNode node = SimpleConfigurationNode.root();
+        node.getNode("io-threads").setValue(0); // Keep backend writes on the test thread
         populate(node);
         final PermissionsExConfiguration config = PermissionsExConfiguration.MAPPER.bindToNew().populate(node);
         config.validate();
+        return config;
+    }
 
-        manager = new PermissionsEx(config, new TestImplementationInterface(tempFolder.newFolder()));
+    /**
+     * Replace the manager with one created from the current output of {@link #populate(ConfigurationNode)}, as a reload would
+     */
+    protected PermissionsEx reloadManager() throws PermissionsLoadingException, ObjectMappingException, PEBKACException {
+        final PermissionsEx oldManager = manager;
+        manager = new PermissionsEx(createConfig(), impl, oldManager);
+        manager.takeOver();
+        oldManager.close();
+        return manager;
     }
 
     @After
@@ -54,6 +72,10 @@ public abstract class PermissionsExTest {
         }
     }
 
+    protected TestImplementationInterface getImplementation() {
+        return impl;
+    }
+
     protected PermissionsEx getManager() {
         return manager;
     }
@@ -16,6 +16,7 @@
  */
 package ninja.leaping.permissionsex;
 
+import org.h2.jdbcx.JdbcDataSource;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -45,6 +46,11 @@ public class TestImplementationInterface implements ImplementationInterface {
 
     @Override
     public DataSource getDataSourceForURL(String url) {
+        if (url.startsWith("jdbc:h2:")) {
+            final JdbcDataSource ret = new JdbcDataSource();
+            ret.setURL(url);
+            return ret;
+        }
         return null;
     }
 
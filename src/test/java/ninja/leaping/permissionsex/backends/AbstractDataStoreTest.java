@@ -0,0 +1,221 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.SettableFuture;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.backends.memory.MemoryDataStore;
+import ninja.leaping.permissionsex.backends.memory.MemoryOptionSubjectData;
+import ninja.leaping.permissionsex.data.Caching;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.data.SubjectCache;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class AbstractDataStoreTest {
+    private static final Set<Map.Entry<String, String>> GLOBAL = ImmutableSet.of();
+
+    /**
+     * A data store whose writes only complete when the test says so
+     */
+    public static class DeferredDataStore extends AbstractDataStore {
+        public static final Factory FACTORY = new Factory("deferred", DeferredDataStore.class);
+        private final List<ImmutableOptionSubjectData> written = new ArrayList<>();
+        private final List<SettableFuture<ImmutableOptionSubjectData>> writes = new ArrayList<>();
+        private int reads;
+
+        public DeferredDataStore() {
+            super(FACTORY);
+        }
+
+        @Override
+        protected void initializeInternal(PermissionsEx core) {
+        }
+
+        @Override
+        protected void closeInternal() {
+        }
+
+        @Override
+        protected ImmutableOptionSubjectData getDataInternal(String type, String identifier) {
+            ++reads;
+            return MemoryOptionSubjectData.EMPTY;
+        }
+
+        @Override
+        protected boolean isChangeTracked() {
+            return true;
+        }
+
+        @Override
+        protected ListenableFuture<ImmutableOptionSubjectData> setDataInternal(String type, String identifier, ImmutableOptionSubjectData data) {
+            written.add(data);
+            final SettableFuture<ImmutableOptionSubjectData> ret = SettableFuture.create();
+            writes.add(ret);
+            return ret;
+        }
+
+        void complete(int write) {
+            writes.get(write).set(written.get(write));
+        }
+
+        @Override
+        public boolean isRegistered(String type, String identifier) {
+            return false;
+        }
+
+        @Override
+        public Iterable<String> getAllIdentifiers(String type) {
+            return Collections.emptySet();
+        }
+
+        @Override
+        public Iterable<String> getRegisteredTypes() {
+            return Collections.emptySet();
+        }
+    }
+
+    private static ImmutableOptionSubjectData data(int value) {
+        return MemoryOptionSubjectData.EMPTY.setPermission(GLOBAL, "perm", value);
+    }
+
+    @Test
+    public void testQueuedWritesMerged() throws Exception {
+        final DeferredDataStore store = new DeferredDataStore();
+        final ListenableFuture<ImmutableOptionSubjectData> first = store.setData("user", "zml", data(1)),
+                second = store.setData("user", "zml", data(2)),
+                third = store.setData("user", "zml", data(3));
+        assertEquals(1, store.written.size()); // Later writes wait for the first
+
+        store.complete(0);
+        assertSame(store.written.get(0), first.get());
+        assertEquals(2, store.written.size());
+        assertEquals(data(3).getPermissions(GLOBAL), store.written.get(1).getPermissions(GLOBAL));
+        assertFalse(second.isDone());
+
+        store.complete(1);
+        assertSame(store.written.get(1), second.get());
+        assertSame(store.written.get(1), third.get());
+        assertEquals(2, store.written.size());
+
+        // Nothing is in progress any more, so the next write starts immediately
+        store.setData("user", "zml", data(4));
+        assertEquals(3, store.written.size());
+    }
+
+    @Test
+    public void testRevisions() {
+        final DeferredDataStore store = new DeferredDataStore();
+        assertEquals(0, store.getRevision("user", "zml"));
+        store.setData("user", "zml", data(1));
+        assertEquals(0, store.getRevision("user", "zml")); // Only assigned once the write succeeds
+
+        store.complete(0);
+        final long revision = store.getRevision("user", "zml");
+        assertTrue(revision > 0);
+        assertTrue(store.hasChangedSince("user", "zml", 0));
+        assertFalse(store.hasChangedSince("user", "zml", revision));
+        assertFalse(store.hasChangedSince("user", "other", 0));
+
+        store.setData("user", "other", data(1));
+        store.complete(1);
+        assertTrue(store.getRevision("user", "other") > revision);
+        assertEquals(revision, store.getRevision("user", "zml"));
+    }
+
+    @Test
+    public void testReloadSkipsUnchangedSubjects() throws Exception {
+        final DeferredDataStore store = new DeferredDataStore();
+        final SubjectCache cache = new SubjectCache("user", store);
+        cache.getData("zml", null);
+        assertEquals(1, store.reads);
+        cache.reload();
+        assertEquals(1, store.reads);
+
+        cache.update("zml", data(1));
+        store.complete(0); // The new data is passed to the cache, so it does not need to be read again
+        cache.reload();
+        assertEquals(1, store.reads);
+        assertEquals(data(1).getPermissions(GLOBAL), cache.getData("zml", null).getPermissions(GLOBAL));
+    }
+
+    @Test
+    public void testRemovalNotifiesListeners() throws Exception {
+        final MemoryDataStore store = new MemoryDataStore();
+        final SubjectCache cache = new SubjectCache("user", store);
+        cache.getData("zml", null);
+        cache.update("zml", data(1)).get();
+        final List<ImmutableOptionSubjectData> updates = new ArrayList<>();
+        cache.addListener("zml", new Caching() {
+            @Override
+            public void clearCache(ImmutableOptionSubjectData newData) {
+                updates.add(newData);
+            }
+        });
+
+        store.setData("user", "zml", null).get();
+        assertEquals(1, updates.size());
+        assertTrue(updates.get(0).getAllPermissions().isEmpty());
+        assertTrue(cache.getData("zml", null).getAllPermissions().isEmpty());
+        assertFalse(store.isRegistered("user", "zml"));
+    }
+
+    @Test
+    public void testInterruptedCacheAllCancelsReads() throws Exception {
+        final MemoryDataStore store = new MemoryDataStore();
+        store.setData("user", "zml", data(1)).get();
+        final SubjectCache cache = new SubjectCache("user", store);
+        final List<Runnable> queued = new ArrayList<>();
+        final Executor queueing = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        };
+
+        Thread.currentThread().interrupt();
+        try {
+            cache.cacheAll(queueing);
+            fail("Interrupt was not passed on");
+        } catch (InterruptedException expected) {
+        } finally {
+            Thread.interrupted();
+        }
+        assertEquals(1, queued.size());
+        queued.get(0).run();
+        assertFalse(cache.isCached("zml"));
+    }
+
+    @Test
+    public void testSubjectsWrittenIndependently() {
+        final DeferredDataStore store = new DeferredDataStore();
+        store.setData("user", "zml", data(1));
+        store.setData("user", "other", data(1));
+        store.setData("group", "zml", data(1));
+        assertEquals(3, store.written.size());
+    }
+}
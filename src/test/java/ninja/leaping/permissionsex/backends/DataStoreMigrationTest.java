@@ -0,0 +1,121 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends;
+
+import com.google.common.base.Charsets;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import com.google.common.io.Files;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.SimpleConfigurationNode;
+import ninja.leaping.permissionsex.PermissionsExTest;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class DataStoreMigrationTest extends PermissionsExTest {
+    private static final Set<Map.Entry<String, String>> GLOBAL = ImmutableSet.of();
+    private static final Set<Map.Entry<String, String>> WORLD = ImmutableSet.of(Maps.immutableEntry("world", "nether"));
+    private static final int USER_COUNT = 100;
+
+    @Override
+    protected void populate(ConfigurationNode node) {
+        node.getNode("backends", "test", "type").setValue("memory");
+        node.getNode("default-backend").setValue("test");
+    }
+
+    private DataStore populateSource() throws Exception {
+        final DataStore source = getManager().getConfig().getDefaultDataStore();
+        source.setData("group", "default", source.getData("group", "default", null)
+                .setPermission(GLOBAL, "some.perm", 1)
+                .setDefaultValue(WORLD, -1)).get();
+        for (int i = 0; i < USER_COUNT; ++i) {
+            source.setData("user", "user" + i, source.getData("user", "user" + i, null)
+                    .setOption(GLOBAL, "name", "User " + i)
+                    .setPermission(WORLD, "world.build", i % 2 == 0 ? 1 : -1)
+                    .addParent(GLOBAL, "group", "default")).get();
+        }
+        return source;
+    }
+
+    private DataStore openTarget() throws Exception {
+        final DataStore target = DataStoreFactories.get("journal").get().createDataStore("target", SimpleConfigurationNode.root());
+        target.initialize(getManager());
+        return target;
+    }
+
+    private void assertSameData(ImmutableOptionSubjectData expected, ImmutableOptionSubjectData actual) {
+        assertEquals(expected.getAllPermissions(), actual.getAllPermissions());
+        assertEquals(expected.getAllOptions(), actual.getAllOptions());
+        assertEquals(expected.getAllParents(), actual.getAllParents());
+        assertEquals(expected.getDefaultValue(WORLD), actual.getDefaultValue(WORLD));
+    }
+
+    @Test
+    public void testMigrate() throws Exception {
+        final DataStore source = populateSource();
+        final DataStore target = openTarget();
+        try {
+            final DataStoreMigration migration = new DataStoreMigration(getManager(), source, target, ImmutableList.of("group", "user"), null);
+            migration.setBatchSize(7);
+            migration.setParallelism(3);
+            assertEquals(USER_COUNT + 1, migration.run().getSubjectCount());
+
+            assertSameData(source.getData("group", "default", null), target.getData("group", "default", null));
+            for (int i = 0; i < USER_COUNT; ++i) {
+                assertSameData(source.getData("user", "user" + i, null), target.getData("user", "user" + i, null));
+            }
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void testResumeFromCheckpoint() throws Exception {
+        final DataStore source = populateSource();
+        final DataStore target = openTarget();
+        final File checkpoint = tempFolder.newFile("migrate.checkpoint");
+        // user0 and user1 were copied by an earlier run, which was interrupted while recording user2
+        Files.write("t group\ns user user0\ns user user1\ns user user2", checkpoint, Charsets.UTF_8);
+        try {
+            final DataStoreMigration migration = new DataStoreMigration(getManager(), source, target, ImmutableList.of("group", "user"), checkpoint);
+            migration.setBatchSize(10);
+            assertEquals(USER_COUNT - 2, migration.run().getSubjectCount());
+
+            assertFalse(target.isRegistered("group", "default"));
+            assertFalse(target.isRegistered("user", "user0"));
+            assertFalse(target.isRegistered("user", "user1"));
+            assertSameData(source.getData("user", "user2", null), target.getData("user", "user2", null));
+            assertFalse(checkpoint.exists());
+        } finally {
+            target.close();
+        }
+    }
+
+    @Test
+    public void testTransferCopiesAllContexts() throws Exception {
+        final DataStore source = populateSource();
+        final ImmutableOptionSubjectData original = source.getData("user", "user1", null);
+        assertSameData(original, ConversionUtils.transfer(original, source.getData("user", "nobody", null)));
+    }
+}
@@ -0,0 +1,84 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.permissionsex.PermissionsExTest;
+import ninja.leaping.permissionsex.data.SubjectRef;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SubjectQueryTest extends PermissionsExTest {
+    private static final Set<Map.Entry<String, String>> GLOBAL = ImmutableSet.of();
+    private static final Set<Map.Entry<String, String>> NETHER = ImmutableSet.of(Maps.immutableEntry("world", "nether"));
+
+    @Override
+    protected void populate(ConfigurationNode node) {
+        node.getNode("backends", "test", "type").setValue("memory");
+        node.getNode("default-backend").setValue("test");
+    }
+
+    /**
+     * Fill a data store with subjects to query, and check the results of queries against it
+     *
+     * @param store The data store to test
+     */
+    public static void testQueries(DataStore store) throws Exception {
+        store.setData("group", "mod", store.getData("group", "mod", null)
+                .setPermission(GLOBAL, "server.kick", 1)).get();
+        for (int i = 0; i < 10; ++i) {
+            store.setData("user", "user" + i, store.getData("user", "user" + i, null)
+                    .setOption(GLOBAL, "rank", i % 2 == 0 ? "vip" : "member")
+                    .setPermission(NETHER, "world.build", i < 3 ? 1 : 0)
+                    .addParent(i < 5 ? GLOBAL : NETHER, "group", "mod")).get();
+        }
+
+        assertEquals(ImmutableList.of(SubjectRef.of("user", "user0"), SubjectRef.of("user", "user2"), SubjectRef.of("user", "user4"),
+                SubjectRef.of("user", "user6"), SubjectRef.of("user", "user8")),
+                ImmutableList.copyOf(store.query(SubjectQuery.builder().type("user").option("rank", "vip").build())));
+        assertEquals(10, ImmutableList.copyOf(store.query(SubjectQuery.builder().option("rank", null).build())).size());
+        assertEquals(ImmutableList.of(SubjectRef.of("user", "user0"), SubjectRef.of("user", "user1"), SubjectRef.of("user", "user2")),
+                ImmutableList.copyOf(store.query(SubjectQuery.builder().permission("world.build").build())));
+        assertTrue(ImmutableList.copyOf(store.query(SubjectQuery.builder().permission("world.build").contexts(GLOBAL).build())).isEmpty());
+        assertEquals(ImmutableList.of(SubjectRef.of("group", "mod")),
+                ImmutableList.copyOf(store.query(SubjectQuery.builder().permission("server.kick").build())));
+
+        assertEquals(10, ImmutableList.copyOf(store.query(SubjectQuery.builder().parent("group", "mod").build())).size());
+        assertEquals(ImmutableList.of(SubjectRef.of("user", "user5"), SubjectRef.of("user", "user6"), SubjectRef.of("user", "user7"),
+                SubjectRef.of("user", "user8"), SubjectRef.of("user", "user9")),
+                ImmutableList.copyOf(store.query(SubjectQuery.builder().parent("group", "mod").contexts(NETHER).build())));
+        assertEquals(ImmutableList.of(SubjectRef.of("user", "user1"), SubjectRef.of("user", "user3")),
+                ImmutableList.copyOf(store.query(SubjectQuery.builder().parent("group", "mod").option("rank", "member")
+                        .contexts(GLOBAL).build())));
+
+        assertEquals(ImmutableList.of(SubjectRef.of("user", "user3"), SubjectRef.of("user", "user4")),
+                ImmutableList.copyOf(store.query(SubjectQuery.builder().type("user").offset(3).limit(2).build())));
+        assertEquals(11, ImmutableList.copyOf(store.query(SubjectQuery.builder().build())).size());
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        testQueries(getManager().getConfig().getDefaultDataStore());
+    }
+}
@@ -0,0 +1,165 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.bus;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.SimpleConfigurationNode;
+import ninja.leaping.configurate.objectmapping.ObjectMapper;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.PermissionsExTest;
+import ninja.leaping.permissionsex.TestImplementationInterface;
+import ninja.leaping.permissionsex.config.PermissionsExConfiguration;
+import ninja.leaping.permissionsex.data.SubjectCache;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class ChangeBusTest extends PermissionsExTest {
+    private static final Set<Map.Entry<String, String>> GLOBAL = ImmutableSet.of();
+
+    @Override
+    protected void populate(ConfigurationNode node) {
+        node.getNode("backends", "test", "type").setValue("sql");
+        node.getNode("backends", "test", "url").setValue("jdbc:h2:" + new File(tempFolder.getRoot(), "pex").getAbsolutePath() + ";MODE=MySQL");
+        node.getNode("backends", "test", "change-bus", "type").setValue("loopback");
+        node.getNode("backends", "test", "change-bus", "channel").setValue(tempFolder.getRoot().getName());
+        node.getNode("default-backend").setValue("test");
+    }
+
+    @Test
+    public void testRemoteChangeRefreshesCache() throws Exception {
+        final ConfigurationNode node = SimpleConfigurationNode.root();
+        populate(node);
+        final PermissionsEx other = new PermissionsEx(PermissionsExConfiguration.MAPPER.bindToNew().populate(node),
+                new TestImplementationInterface(tempFolder.newFolder()));
+        try {
+            final SubjectCache local = getManager().getSubjects("user"), remote = other.getSubjects("user");
+            assertNull(remote.getData("zml", null).getOptions(GLOBAL).get("prefix"));
+            local.update("zml", local.getData("zml", null).setOption(GLOBAL, "prefix", "[Admin]")).get();
+            assertEquals("[Admin]", remote.getData("zml", null).getOptions(GLOBAL).get("prefix"));
+        } finally {
+            other.close();
+        }
+    }
+
+    @Test
+    public void testFileBus() throws Exception {
+        final List<String> received = new ArrayList<>();
+        final ChangeBus.Listener listener = new ChangeBus.Listener() {
+            @Override
+            public void onRemoteChange(String type, String identifier, long revision) {
+                received.add(type + ":" + identifier + "@" + revision);
+            }
+        };
+        final FileChangeBus first = new FileChangeBus(), second = new FileChangeBus();
+        first.start(getManager(), listener);
+        second.start(getManager(), listener);
+        try {
+            first.publish("user", "zml two", 3);
+            second.publish("group", "admin", 1);
+            first.poll();
+            second.poll();
+            assertEquals(ImmutableSet.of("group:admin@1", "user:zml two@3"), ImmutableSet.copyOf(received));
+            assertEquals(2, received.size());
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void testFileBusKeepsUnreadChanges() throws Exception {
+        final List<String> received = new ArrayList<>();
+        final ChangeBus.Listener listener = new ChangeBus.Listener() {
+            @Override
+            public void onRemoteChange(String type, String identifier, long revision) {
+                received.add(identifier + "@" + revision);
+            }
+        };
+        final ConfigurationNode config = SimpleConfigurationNode.root();
+        config.getNode("max-size").setValue(256);
+        final FileChangeBus first = ObjectMapper.forClass(FileChangeBus.class).bindToNew().populate(config),
+                second = ObjectMapper.forClass(FileChangeBus.class).bindToNew().populate(config);
+        first.start(getManager(), listener);
+        second.start(getManager(), listener);
+        try {
+            first.publish("user", "zml", 1);
+            second.poll();
+            assertEquals(ImmutableList.of("zml@1"), received);
+
+            received.clear();
+            final List<String> expected = new ArrayList<>();
+            for (int i = 2; i <= 10; ++i) { // Enough to pass the maximum size, so older changes are moved
+                first.publish("user", "zml", i);
+                expected.add("zml@" + i);
+            }
+            second.poll();
+            assertEquals(expected, received);
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+
+    @Test
+    public void testFileBusFindsPlaceAfterCompaction() throws Exception {
+        final List<Long> received = new ArrayList<>();
+        final ChangeBus.Listener listener = new ChangeBus.Listener() {
+            @Override
+            public void onRemoteChange(String type, String identifier, long revision) {
+                received.add(revision);
+            }
+        };
+        final ConfigurationNode config = SimpleConfigurationNode.root();
+        config.getNode("max-size").setValue(256);
+        config.getNode("retention").setValue(-1000); // Every change is old enough to remove
+        final FileChangeBus first = ObjectMapper.forClass(FileChangeBus.class).bindToNew().populate(config),
+                second = ObjectMapper.forClass(FileChangeBus.class).bindToNew().populate(config);
+        first.start(getManager(), listener);
+        second.start(getManager(), listener);
+        try {
+            for (long i = 1; i <= 3; ++i) {
+                first.publish("user", "zml", i);
+            }
+            second.poll();
+            assertEquals(ImmutableList.of(1L, 2L, 3L), received);
+
+            received.clear();
+            for (long i = 4; i <= 10; ++i) {
+                first.publish("user", "zml", i);
+            }
+            second.poll();
+            assertFalse(received.isEmpty());
+            assertEquals(Long.valueOf(10), received.get(received.size() - 1));
+            for (int i = 1; i < received.size(); ++i) {
+                assertTrue(received.get(i) > received.get(i - 1));
+            }
+            assertTrue(received.get(0) > 3);
+        } finally {
+            first.close();
+            second.close();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.file;
+
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.SimpleConfigurationNode;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+
+import static org.junit.Assert.*;
+
+public class BinarySnapshotTest {
+    @Rule
+    public TemporaryFolder tempFolder = new TemporaryFolder();
+
+    private static ConfigurationNode createTestNode() {
+        final ConfigurationNode node = SimpleConfigurationNode.root();
+        node.getNode("schema-version").setValue(2);
+        final ConfigurationNode admin = node.getNode("groups", "admin").getAppendedNode();
+        admin.getNode("permissions", "permissionsex.test").setValue(1);
+        admin.getNode("permissions", "permissionsex.other").setValue(-1);
+        admin.getNode("options", "prefix").setValue("[Admin]");
+        admin.getNode("parents").getAppendedNode().setValue("group:mod");
+        final ConfigurationNode adminWorld = node.getNode("groups", "admin").getAppendedNode();
+        adminWorld.getNode("context", "world").setValue("nether");
+        adminWorld.getNode("permissions-default").setValue(1);
+        node.getNode("users", "zml").getAppendedNode().getNode("options", "name").setValue("zml");
+        return node;
+    }
+
+    @Test
+    public void testRoundTrip() throws IOException {
+        final File snapshotFile = tempFolder.newFile();
+        final ConfigurationNode original = createTestNode();
+        BinarySnapshot.write(snapshotFile, 42, original);
+
+        final ConfigurationNode read = BinarySnapshot.read(snapshotFile, 42);
+        assertNotNull(read);
+        assertEquals(original.getValue(), read.getValue());
+    }
+
+    @Test
+    public void testOutdatedSnapshotIgnored() throws IOException {
+        final File snapshotFile = tempFolder.newFile();
+        BinarySnapshot.write(snapshotFile, 42, createTestNode());
+        assertNull(BinarySnapshot.read(snapshotFile, 43));
+        assertNull(BinarySnapshot.read(new File(tempFolder.getRoot(), "missing"), 42));
+    }
+
+    @Test
+    public void testIndexLoadsSubjects() throws IOException {
+        final File snapshotFile = tempFolder.newFile();
+        final ConfigurationNode original = createTestNode();
+        BinarySnapshot.write(snapshotFile, 42, original);
+
+        try (SnapshotIndex index = SnapshotIndex.open(snapshotFile, 42)) {
+            assertNotNull(index);
+            assertEquals(2, index.getGlobals().getNode("schema-version").getInt());
+            assertTrue(index.contains("groups", "admin"));
+            assertFalse(index.contains("groups", "zml"));
+            assertEquals(original.getNode("groups", "admin").getValue(), index.load("groups", "admin").getValue());
+            assertEquals(original.getNode("users", "zml").getValue(), index.load("users", "zml").getValue());
+            assertNull(index.load("users", "admin"));
+        }
+        assertNull(SnapshotIndex.open(snapshotFile, 43));
+    }
+}
@@ -0,0 +1,259 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.file;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.util.concurrent.ListenableFuture;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.SimpleConfigurationNode;
+import ninja.leaping.configurate.commented.CommentedConfigurationNode;
+import ninja.leaping.configurate.hocon.HoconConfigurationLoader;
+import ninja.leaping.configurate.loader.ConfigurationLoader;
+import ninja.leaping.permissionsex.PermissionsEx;
+import ninja.leaping.permissionsex.PermissionsExTest;
+import ninja.leaping.permissionsex.backends.DataStore;
+import ninja.leaping.permissionsex.backends.DataStoreFactories;
+import ninja.leaping.permissionsex.backends.memory.MemoryOptionSubjectData;
+import ninja.leaping.permissionsex.data.Caching;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.data.SubjectCache;
+import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class FileDataStoreTest extends PermissionsExTest {
+    @Override
+    protected void populate(ConfigurationNode node) {
+        node.getNode("backends", "test", "type").setValue("file");
+        node.getNode("backends", "test", "file").setValue("permissions.conf");
+        node.getNode("backends", "test", "save-interval").setValue(60000);
+        node.getNode("backends", "test", "max-unsaved-changes").setValue(3);
+        node.getNode("backends", "test", "watch-file").setValue(false);
+        node.getNode("default-backend").setValue("test");
+    }
+
+    private static final Set<Map.Entry<String, String>> GLOBAL = ImmutableSet.of();
+
+    private ListenableFuture<ImmutableOptionSubjectData> setName(String identifier) throws ExecutionException {
+        final SubjectCache users = getManager().getSubjects("user");
+        return users.update(identifier, users.getData(identifier, null).setOption(ImmutableSet.<Map.Entry<String, String>>of(), "name", identifier));
+    }
+
+    @Test
+    public void testSavesCoalesced() throws ExecutionException {
+        final ListenableFuture<ImmutableOptionSubjectData> first = setName("a"), second = setName("b");
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+
+        final ListenableFuture<ImmutableOptionSubjectData> third = setName("c");
+        assertTrue(first.isDone());
+        assertTrue(second.isDone());
+        assertTrue(third.isDone());
+        assertTrue(new File(getManager().getBaseDirectory(), "permissions.conf").isFile());
+    }
+
+    @Test
+    public void testSaveReplacesFile() throws ExecutionException, InterruptedException, IOException {
+        setName("a");
+        setName("b");
+        setName("c").get();
+        final File permissionsFile = new File(getManager().getBaseDirectory(), "permissions.conf");
+        assertFalse(new File(getManager().getBaseDirectory(), "permissions.conf.tmp").exists());
+        final ConfigurationNode saved = HoconConfigurationLoader.builder().setFile(permissionsFile).build().load();
+        assertEquals("b", saved.getNode("users", "b", 0, "options", "name").getString());
+    }
+
+    @Test
+    public void testCloseFlushes() throws ExecutionException, IOException {
+        final ListenableFuture<ImmutableOptionSubjectData> pending = setName("a");
+        assertFalse(pending.isDone());
+        getManager().close();
+        assertTrue(pending.isDone());
+        final ConfigurationNode saved = HoconConfigurationLoader.builder().setFile(new File(getManager().getBaseDirectory(), "permissions.conf")).build().load();
+        assertEquals("a", saved.getNode("users", "a", 0, "options", "name").getString());
+    }
+
+    private static class RecordingListener implements Caching {
+        private final List<ImmutableOptionSubjectData> updates = new CopyOnWriteArrayList<>();
+
+        @Override
+        public void clearCache(ImmutableOptionSubjectData newData) {
+            updates.add(newData);
+        }
+    }
+
+    private void renameInFile(File permissionsFile, String identifier, String name) throws IOException {
+        final ConfigurationLoader<CommentedConfigurationNode> loader = HoconConfigurationLoader.builder().setFile(permissionsFile).build();
+        final ConfigurationNode node = loader.load();
+        node.getNode("users", identifier, 0, "options", "name").setValue(name);
+        loader.save(node);
+    }
+
+    @Test
+    public void testWritesAppliedBeforeSaving() throws Exception {
+        final DataStore store = getManager().getConfig().getDefaultDataStore();
+        final RecordingListener listener = new RecordingListener();
+        store.getData("user", "a", listener);
+
+        final ListenableFuture<ImmutableOptionSubjectData> first = store.setData("user", "a", MemoryOptionSubjectData.EMPTY.setOption(GLOBAL, "name", "a")),
+                second = store.setData("user", "a", MemoryOptionSubjectData.EMPTY.setOption(GLOBAL, "name", "b"));
+        assertFalse(first.isDone());
+        assertFalse(second.isDone());
+        assertEquals("b", store.getData("user", "a", null).getOptions(GLOBAL).get("name"));
+        assertEquals(2, listener.updates.size());
+        assertEquals("b", listener.updates.get(1).getOptions(GLOBAL).get("name"));
+    }
+
+    @Test
+    public void testReloadNotifiesChangedSubjects() throws Exception {
+        setName("a");
+        setName("b");
+        setName("c").get();
+        final DataStore store = getManager().getConfig().getDefaultDataStore();
+        final RecordingListener aListener = new RecordingListener(), bListener = new RecordingListener();
+        store.getData("user", "a", aListener);
+        store.getData("user", "b", bListener);
+
+        renameInFile(new File(getManager().getBaseDirectory(), "permissions.conf"), "b", "bee");
+        ((FileDataStore) store).reload();
+        assertTrue(aListener.updates.isEmpty());
+        assertEquals(1, bListener.updates.size());
+        assertEquals("bee", bListener.updates.get(0).getOptions(GLOBAL).get("name"));
+        assertEquals("bee", store.getData("user", "b", null).getOptions(GLOBAL).get("name"));
+
+        ((FileDataStore) store).reload(); // Unchanged file
+        assertEquals(1, bListener.updates.size());
+    }
+
+    @Test
+    public void testReloadKeepsUnsavedChanges() throws Exception {
+        setName("a");
+        setName("b");
+        setName("c").get();
+        final DataStore store = getManager().getConfig().getDefaultDataStore();
+        final ListenableFuture<ImmutableOptionSubjectData> pending = store.setData("user", "a", MemoryOptionSubjectData.EMPTY.setOption(GLOBAL, "name", "changed"));
+        assertFalse(pending.isDone());
+
+        final File permissionsFile = new File(getManager().getBaseDirectory(), "permissions.conf");
+        renameInFile(permissionsFile, "a", "ay");
+        renameInFile(permissionsFile, "b", "bee");
+        ((FileDataStore) store).reload();
+        assertEquals("changed", store.getData("user", "a", null).getOptions(GLOBAL).get("name"));
+        assertEquals("bee", store.getData("user", "b", null).getOptions(GLOBAL).get("name"));
+    }
+
+    @Test
+    public void testManagerReloadAppliedOnTakeOver() throws Exception {
+        setName("a");
+        setName("b");
+        setName("c").get();
+        final SubjectCache users = getManager().getSubjects("user");
+        renameInFile(new File(getManager().getBaseDirectory(), "permissions.conf"), "b", "bee");
+
+        final PermissionsEx reloaded = new PermissionsEx(createConfig(), getImplementation(), getManager());
+        try {
+            assertEquals("b", users.getData("b", null).getOptions(GLOBAL).get("name"));
+            reloaded.takeOver();
+            assertSame(users, reloaded.getSubjects("user"));
+            assertEquals("bee", users.getData("b", null).getOptions(GLOBAL).get("name"));
+        } finally {
+            reloaded.close();
+        }
+    }
+
+    @Test
+    public void testWatcherReloadsEditedFile() throws Exception {
+        final ConfigurationNode config = SimpleConfigurationNode.root();
+        config.getNode("file").setValue("watched.conf");
+        config.getNode("watch-file").setValue(true);
+        final DataStore store = DataStoreFactories.get("file").get().createDataStore("watched", config);
+        store.initialize(getManager());
+        try {
+            store.setData("user", "a", store.getData("user", "a", null).setOption(GLOBAL, "name", "a")).get();
+            final RecordingListener listener = new RecordingListener();
+            store.getData("user", "a", listener);
+
+            renameInFile(new File(getManager().getBaseDirectory(), "watched.conf"), "a", "ay");
+            final long deadline = System.currentTimeMillis() + 10000;
+            while (listener.updates.isEmpty() && System.currentTimeMillis() < deadline) {
+                Thread.sleep(50);
+            }
+            assertEquals(1, listener.updates.size());
+            assertEquals("ay", listener.updates.get(0).getOptions(GLOBAL).get("name"));
+        } finally {
+            store.close();
+        }
+    }
+
+    private DataStore openLazyStore() throws PermissionsLoadingException {
+        final ConfigurationNode config = SimpleConfigurationNode.root();
+        config.getNode("file").setValue("lazy.conf");
+        config.getNode("lazy-load").setValue(true);
+        config.getNode("watch-file").setValue(false);
+        final DataStore store = DataStoreFactories.get("file").get().createDataStore("lazy", config);
+        store.initialize(getManager());
+        return store;
+    }
+
+    @Test
+    public void testLazyLoadAroundClose() throws Exception {
+        DataStore store = openLazyStore();
+        store.setData("user", "a", store.getData("user", "a", null).setOption(GLOBAL, "name", "a")).get();
+        store.setData("user", "b", store.getData("user", "b", null).setOption(GLOBAL, "name", "b")).get();
+        store.close();
+
+        store = openLazyStore(); // Subjects are now read from the snapshot index
+        assertEquals("a", store.getData("user", "a", null).getOptions(GLOBAL).get("name"));
+        store.setData("user", "c", store.getData("user", "c", null).setOption(GLOBAL, "name", "c")).get();
+        store.close();
+        store.getData("user", "b", null); // Must not fail once the index is closed
+
+        store = openLazyStore();
+        try {
+            assertEquals("a", store.getData("user", "a", null).getOptions(GLOBAL).get("name"));
+            assertEquals("b", store.getData("user", "b", null).getOptions(GLOBAL).get("name"));
+            assertEquals("c", store.getData("user", "c", null).getOptions(GLOBAL).get("name"));
+        } finally {
+            store.close();
+        }
+    }
+
+    @Test
+    public void testSyncDurabilitySave() throws Exception {
+        final ConfigurationNode config = SimpleConfigurationNode.root();
+        config.getNode("file").setValue("sync.conf");
+        config.getNode("durability").setValue("SYNC");
+        config.getNode("watch-file").setValue(false);
+        final DataStore store = DataStoreFactories.get("file").get().createDataStore("sync", config);
+        store.initialize(getManager());
+        try {
+            store.setData("user", "a", store.getData("user", "a", null).setOption(GLOBAL, "name", "a")).get();
+            assertTrue(new File(getManager().getBaseDirectory(), "sync.conf").isFile());
+        } finally {
+            store.close();
+        }
+    }
+}
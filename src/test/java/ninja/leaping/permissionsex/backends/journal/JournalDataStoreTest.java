@@ -0,0 +1,97 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.journal;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.SimpleConfigurationNode;
+import ninja.leaping.permissionsex.PermissionsExTest;
+import ninja.leaping.permissionsex.backends.DataStore;
+import ninja.leaping.permissionsex.backends.DataStoreFactories;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.exception.PermissionsLoadingException;
+import org.junit.Test;
+
+import java.io.File;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+
+import static org.junit.Assert.*;
+
+public class JournalDataStoreTest extends PermissionsExTest {
+    private static final Set<Map.Entry<String, String>> GLOBAL = ImmutableSet.of();
+
+    @Override
+    protected void populate(ConfigurationNode node) {
+        node.getNode("backends", "test", "type").setValue("memory");
+        node.getNode("default-backend").setValue("test");
+    }
+
+    private DataStore openStore() throws PermissionsLoadingException {
+        final ConfigurationNode config = SimpleConfigurationNode.root();
+        config.getNode("compaction-threshold").setValue(4096);
+        final DataStore store = DataStoreFactories.get("journal").get().createDataStore("journal", config);
+        store.initialize(getManager());
+        return store;
+    }
+
+    private void setName(DataStore store, String identifier, String name) throws ExecutionException, InterruptedException {
+        store.setData("user", identifier, store.getData("user", identifier, null).setOption(GLOBAL, "name", name)).get();
+    }
+
+    @Test
+    public void testReplay() throws Exception {
+        DataStore store = openStore();
+        setName(store, "a", "first");
+        setName(store, "b", "second");
+        setName(store, "a", "third");
+        store.setData("user", "b", null).get();
+        store.setData("group", "admin", store.getData("group", "admin", null)
+                .setPermission(ImmutableSet.of(Maps.immutableEntry("world", "nether")), "permissionsex.test", 1)
+                .addParent(GLOBAL, "group", "mod")).get();
+        store.close();
+
+        store = openStore();
+        assertEquals("third", store.getData("user", "a", null).getOptions(GLOBAL).get("name"));
+        assertFalse(store.isRegistered("user", "b"));
+        final ImmutableOptionSubjectData admin = store.getData("group", "admin", null);
+        assertEquals(Integer.valueOf(1), admin.getPermissions(ImmutableSet.of(Maps.immutableEntry("world", "nether"))).get("permissionsex.test"));
+        assertEquals(Maps.immutableEntry("group", "mod"), admin.getParents(GLOBAL).get(0));
+        store.close();
+    }
+
+    @Test
+    public void testCompaction() throws Exception {
+        DataStore store = openStore();
+        for (int i = 0; i < 200; ++i) {
+            setName(store, "user" + (i % 10), "name" + i);
+        }
+        store.setData("user", "user0", null).get();
+        assertTrue(new File(getManager().getBaseDirectory(), "journal/snapshot.dat").isFile());
+        assertEquals("name199", store.getData("user", "user9", null).getOptions(GLOBAL).get("name"));
+        store.close();
+
+        store = openStore();
+        assertFalse(store.isRegistered("user", "user0"));
+        for (int i = 1; i < 10; ++i) {
+            assertEquals("name" + (190 + i), store.getData("user", "user" + i, null).getOptions(GLOBAL).get("name"));
+        }
+        store.close();
+    }
+}
@@ -0,0 +1,155 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.sql;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.configurate.SimpleConfigurationNode;
+import ninja.leaping.configurate.objectmapping.ObjectMapper;
+import ninja.leaping.permissionsex.PermissionsExTest;
+import ninja.leaping.permissionsex.backends.SubjectQueryTest;
+import ninja.leaping.permissionsex.backends.bus.ChangeBus;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.data.SubjectCache;
+import org.junit.Test;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class SqlDataStoreTest extends PermissionsExTest {
+    private static final Set<Map.Entry<String, String>> GLOBAL = ImmutableSet.of(),
+            NETHER = ImmutableSet.of(Maps.immutableEntry("world", "nether"));
+
+    @Override
+    protected void populate(ConfigurationNode node) {
+        node.getNode("backends", "test", "type").setValue("sql");
+        node.getNode("backends", "test", "url").setValue(getUrl());
+        node.getNode("default-backend").setValue("test");
+    }
+
+    private String getUrl() {
+        return "jdbc:h2:" + new File(tempFolder.getRoot(), "pex").getAbsolutePath() + ";MODE=MySQL";
+    }
+
+    private Connection getConnection() throws SQLException {
+        return getManager().getDataSourceForURL(getUrl()).getConnection();
+    }
+
+    @Test
+    public void testRoundTrip() throws Exception {
+        final SubjectCache groups = getManager().getSubjects("group");
+        assertFalse(groups.isRegistered("admin"));
+        groups.update("admin", groups.getData("admin", null)
+                .setPermission(GLOBAL, "permissionsex.test", 1)
+                .setPermission(NETHER, "permissionsex.nether", -1)
+                .setOption(GLOBAL, "prefix", "[Admin]")
+                .setParents(GLOBAL, ImmutableList.of(Maps.immutableEntry("group", "mod"), Maps.immutableEntry("group", "default")))
+                .setDefaultValue(NETHER, 1)).get();
+        groups.invalidate("admin");
+
+        final ImmutableOptionSubjectData admin = groups.getData("admin", null);
+        assertTrue(groups.isRegistered("admin"));
+        assertEquals(ImmutableSet.of("admin"), ImmutableSet.copyOf(groups.getAllIdentifiers()));
+        assertEquals(Integer.valueOf(1), admin.getPermissions(GLOBAL).get("permissionsex.test"));
+        assertEquals(Integer.valueOf(-1), admin.getPermissions(NETHER).get("permissionsex.nether"));
+        assertEquals("[Admin]", admin.getOptions(GLOBAL).get("prefix"));
+        assertEquals(ImmutableList.of(Maps.immutableEntry("group", "mod"), Maps.immutableEntry("group", "default")), admin.getParents(GLOBAL));
+        assertEquals(1, admin.getDefaultValue(NETHER));
+    }
+
+    @Test
+    public void testOnlyChangedRowsWritten() throws Exception {
+        final SubjectCache users = getManager().getSubjects("user");
+        users.update("zml", users.getData("zml", null)
+                .setPermission(GLOBAL, "permissionsex.a", 1)
+                .setPermission(GLOBAL, "permissionsex.b", 1)
+                .setPermission(NETHER, "permissionsex.c", 1)).get();
+        final int originalId = getPermissionId("permissionsex.a");
+
+        users.update("zml", users.getData("zml", null)
+                .setPermission(GLOBAL, "permissionsex.a", -1)
+                .setPermission(GLOBAL, "permissionsex.b", 0)
+                .clearPermissions(NETHER)).get();
+        assertEquals(originalId, getPermissionId("permissionsex.a"));
+        assertEquals(-1, getPermissionId("permissionsex.b"));
+        try (Connection conn = getConnection(); Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT COUNT(*) FROM `pex_segments`")) {
+            assertTrue(rs.next());
+            assertEquals(1, rs.getInt(1));
+        }
+
+        users.invalidate("zml");
+        assertEquals(Integer.valueOf(-1), users.getData("zml", null).getPermissions(GLOBAL).get("permissionsex.a"));
+    }
+
+    private int getPermissionId(String permission) throws SQLException {
+        try (Connection conn = getConnection();
+             Statement stmt = conn.createStatement();
+             ResultSet rs = stmt.executeQuery("SELECT `id` FROM `pex_permissions` WHERE `key` = '" + permission + "'")) {
+            return rs.next() ? rs.getInt(1) : -1;
+        }
+    }
+
+    @Test
+    public void testQuery() throws Exception {
+        SubjectQueryTest.testQueries(getManager().getConfig().getDefaultDataStore());
+    }
+
+    private void addChange(Statement stmt, long id, long revision) throws SQLException {
+        stmt.executeUpdate("INSERT INTO pex_changes (id, origin, type, identifier, revision, created) VALUES ("
+                + id + ", 'remote', 'user', 'zml', " + revision + ", " + System.currentTimeMillis() + ")");
+    }
+
+    @Test
+    public void testChangeBusReceivesLateCommits() throws Exception {
+        final List<Long> received = new ArrayList<>();
+        final ConfigurationNode config = SimpleConfigurationNode.root();
+        config.getNode("url").setValue(getUrl());
+        final SqlChangeBus bus = ObjectMapper.forClass(SqlChangeBus.class).bindToNew().populate(config);
+        bus.start(getManager(), new ChangeBus.Listener() {
+            @Override
+            public void onRemoteChange(String type, String identifier, long revision) {
+                received.add(revision);
+            }
+        });
+        try (Connection conn = getConnection(); Statement stmt = conn.createStatement()) {
+            addChange(stmt, 1, 1);
+            addChange(stmt, 3, 3);
+            bus.poll();
+            assertEquals(ImmutableList.of(1L, 3L), received);
+
+            addChange(stmt, 2, 2); // Committed after a change with a later id
+            bus.poll();
+            assertEquals(ImmutableList.of(1L, 3L, 2L), received);
+            bus.poll();
+            assertEquals(3, received.size());
+        } finally {
+            bus.close();
+        }
+    }
+}
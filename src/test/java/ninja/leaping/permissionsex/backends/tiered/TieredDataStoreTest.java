@@ -0,0 +1,133 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.backends.tiered;
+
+import com.google.common.collect.ImmutableSet;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.permissionsex.PermissionsExTest;
+import ninja.leaping.permissionsex.backends.DataStore;
+import ninja.leaping.permissionsex.data.Caching;
+import ninja.leaping.permissionsex.data.ImmutableOptionSubjectData;
+import ninja.leaping.permissionsex.data.SubjectCache;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class TieredDataStoreTest extends PermissionsExTest {
+    private static final Set<Map.Entry<String, String>> GLOBAL = ImmutableSet.of();
+
+    @Override
+    protected void populate(ConfigurationNode node) {
+        node.getNode("backends", "cache", "type").setValue("memory");
+        node.getNode("backends", "persistent", "type").setValue("file");
+        node.getNode("backends", "persistent", "file").setValue("permissions.conf");
+        node.getNode("backends", "test", "type").setValue("tiered");
+        node.getNode("backends", "test", "l1").setValue("cache");
+        node.getNode("backends", "test", "l2").setValue("persistent");
+        node.getNode("backends", "test", "max-size").setValue(2);
+        node.getNode("backends", "test", "write-mode").setValue("WRITE_BACK");
+        node.getNode("backends", "test", "write-back-delay").setValue(60000);
+        node.getNode("default-backend").setValue("test");
+    }
+
+    private void setName(String identifier) throws Exception {
+        final SubjectCache users = getManager().getSubjects("user");
+        users.update(identifier, users.getData(identifier, null).setOption(GLOBAL, "name", identifier)).get();
+    }
+
+    @Test
+    public void testWriteBack() throws Exception {
+        final DataStore persistent = getManager().getConfig().getDataStore("persistent");
+        setName("a");
+        assertFalse(persistent.isRegistered("user", "a"));
+        assertTrue(getManager().getSubjects("user").isRegistered("a"));
+
+        ((TieredDataStore) getManager().getConfig().getDefaultDataStore()).flush().get();
+        assertEquals("a", persistent.getData("user", "a", null).getOptions(GLOBAL).get("name"));
+    }
+
+    @Test
+    public void testEvictionWritesBack() throws Exception {
+        final DataStore persistent = getManager().getConfig().getDataStore("persistent");
+        final String[] names = {"a", "b", "c", "d"};
+        for (String name : names) {
+            setName(name);
+        }
+
+        int written = 0;
+        for (String name : names) {
+            if (persistent.isRegistered("user", name)) {
+                ++written;
+            }
+            getManager().getSubjects("user").invalidate(name);
+            assertEquals(name, getManager().getSubjects("user").getData(name, null).getOptions(GLOBAL).get("name"));
+        }
+        assertTrue(written >= 2);
+    }
+
+    @Test
+    public void testFirstTierBounded() throws Exception {
+        final DataStore tiered = getManager().getConfig().getDefaultDataStore();
+        final DataStore cache = getManager().getConfig().getDataStore("cache");
+        final DataStore persistent = getManager().getConfig().getDataStore("persistent");
+        final String[] names = {"a", "b", "c", "d"};
+        final AtomicInteger evicted = new AtomicInteger();
+        final Caching listener = new Caching() {
+            @Override
+            public void clearCache(ImmutableOptionSubjectData newData) {
+                evicted.incrementAndGet();
+            }
+        };
+        for (String name : names) {
+            persistent.setData("user", name, persistent.getData("user", name, null).setOption(GLOBAL, "name", name)).get();
+        }
+
+        for (String name : names) {
+            assertEquals(name, tiered.getData("user", name, listener).getOptions(GLOBAL).get("name"));
+        }
+        int held = 0;
+        for (String name : names) {
+            if (cache.isRegistered("user", name)) {
+                assertEquals(name, cache.getData("user", name, null).getOptions(GLOBAL).get("name"));
+                ++held;
+            }
+        }
+        assertTrue(held > 0 && held <= 2);
+        assertEquals(names.length - held, evicted.get());
+    }
+
+    @Test
+    public void testSecondTierChangesForwarded() throws Exception {
+        final DataStore persistent = getManager().getConfig().getDataStore("persistent");
+        final SubjectCache users = getManager().getSubjects("user");
+        assertNull(users.getData("a", null).getOptions(GLOBAL).get("name"));
+
+        persistent.setData("user", "a", persistent.getData("user", "a", null).setOption(GLOBAL, "name", "a")).get();
+        assertEquals("a", users.getData("a", null).getOptions(GLOBAL).get("name"));
+    }
+
+    @Test
+    public void testCloseFlushes() throws Exception {
+        setName("a");
+        getManager().close();
+        assertTrue(getManager().getConfig().getDataStore("persistent").isRegistered("user", "a"));
+    }
+}
@@ -16,9 +16,13 @@
  */
 package ninja.leaping.permissionsex.data;
 
+import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Uninterruptibles;
 import org.junit.Test;
 import org.mockito.Mockito;
 
+import java.util.ArrayList;
+import java.util.List;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import static org.junit.Assert.*;
@@ -47,6 +51,45 @@ public class CacheListenerHolderTest {
         assertEquals(0, listener.getCount());
     }
 
+    @Test
+    public void testOutOfOrderRevisionDropped() {
+        final CacheListenerHolder<String> holder = new CacheListenerHolder<>();
+        final CountingListener listener = new CountingListener();
+        holder.addListener("test", listener);
+
+        assertTrue(holder.call("test", testData, 2));
+        assertFalse(holder.call("test", testData, 1));
+        assertTrue(holder.call("test", testData, 2));
+        assertTrue(holder.call("other", testData, 1)); // Revisions are tracked separately for each key
+        assertEquals(2, listener.getCount());
+    }
+
+    @Test
+    public void testListenersCalledOutsideLock() {
+        final CacheListenerHolder<String> holder = new CacheListenerHolder<>();
+        final ImmutableOptionSubjectData laterData = Mockito.mock(ImmutableOptionSubjectData.class);
+        final List<ImmutableOptionSubjectData> received = new ArrayList<>();
+        holder.addListener("test", new Caching() {
+            @Override
+            public void clearCache(ImmutableOptionSubjectData newData) {
+                received.add(newData);
+                if (newData == testData) {
+                    final Thread other = new Thread() {
+                        @Override
+                        public void run() {
+                            holder.call("test", laterData, 2);
+                        }
+                    };
+                    other.start();
+                    Uninterruptibles.joinUninterruptibly(other); // Would deadlock if the holder was locked here
+                }
+            }
+        });
+
+        assertTrue(holder.call("test", testData, 1));
+        assertEquals(ImmutableList.of(testData, laterData), received);
+    }
+
     private static class CountingListener implements Caching {
         private final AtomicInteger count = new AtomicInteger();
 
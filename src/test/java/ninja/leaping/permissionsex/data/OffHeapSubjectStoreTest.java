@@ -0,0 +1,142 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.data;
+
+import com.google.common.collect.ImmutableSet;
+import ninja.leaping.permissionsex.backends.memory.MemoryDataStore;
+import ninja.leaping.permissionsex.backends.memory.MemoryOptionSubjectData;
+import org.junit.Test;
+
+import javax.annotation.Nullable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class OffHeapSubjectStoreTest {
+    private static final Set<Map.Entry<String, String>> GLOBAL = ImmutableSet.of();
+
+    private static ImmutableOptionSubjectData named(String name) {
+        return MemoryOptionSubjectData.EMPTY.setOption(GLOBAL, "name", name).setPermission(GLOBAL, "some.permission", 1);
+    }
+
+    @Test
+    public void testTakeRemoves() throws Exception {
+        final OffHeapSubjectStore store = new OffHeapSubjectStore(4096);
+        store.put("user", "a", named("a"));
+        assertTrue(store.contains("user", "a"));
+
+        final ImmutableOptionSubjectData data = store.take("user", "a");
+        assertEquals("a", data.getOptions(GLOBAL).get("name"));
+        assertEquals(Integer.valueOf(1), data.getPermissions(GLOBAL).get("some.permission"));
+        assertFalse(store.contains("user", "a"));
+        assertNull(store.take("user", "a"));
+        assertEquals(0, store.getUsedBytes());
+    }
+
+    @Test
+    public void testCompactsAndDropsOldest() throws Exception {
+        final OffHeapSubjectStore store = new OffHeapSubjectStore(1024);
+        for (int i = 0; i < 200; ++i) {
+            store.put("user", "user" + i, named("user" + i));
+            if (i % 3 == 0) {
+                store.remove("user", "user" + i);
+            }
+        }
+        assertTrue(store.getUsedBytes() <= store.getCapacity());
+        assertFalse(store.contains("user", "user1")); // Dropped to make space
+        assertEquals("user199", store.take("user", "user199").getOptions(GLOBAL).get("name"));
+        assertEquals("user197", store.take("user", "user197").getOptions(GLOBAL).get("name"));
+    }
+
+    @Test
+    public void testEvictionListenerToldOfDroppedSubjects() throws Exception {
+        final OffHeapSubjectStore store = new OffHeapSubjectStore(1024);
+        final List<String> dropped = new ArrayList<>();
+        store.setEvictionListener("user", new OffHeapSubjectStore.EvictionListener() {
+            @Override
+            public void onEviction(String identifier, @Nullable Object owner) {
+                assertEquals("owner of " + identifier, owner);
+                dropped.add(identifier);
+            }
+        });
+        for (int i = 0; i < 50; ++i) {
+            store.put("user", "user" + i, named("user" + i), "owner of user" + i);
+            store.put("group", "group" + i, named("group" + i), "owner of group" + i);
+        }
+        assertFalse(dropped.isEmpty());
+        assertEquals("user0", dropped.get(0));
+        for (String identifier : dropped) {
+            assertFalse(store.contains("user", identifier));
+        }
+    }
+
+    @Test
+    public void testOffloadedSubjectsStayOffHeap() throws Exception {
+        final MemoryDataStore dataStore = new MemoryDataStore();
+        final OffHeapSubjectStore store = new OffHeapSubjectStore(64 * 1024);
+        final SubjectCache cache = new SubjectCache("user", dataStore, store);
+        for (int i = 0; i < 1024; ++i) {
+            cache.getData("user" + i, null);
+        }
+        String offloaded = null;
+        for (int i = 0; i < 1024 && offloaded == null; ++i) {
+            if (store.contains("user", "user" + i)) {
+                offloaded = "user" + i;
+            }
+        }
+        assertNotNull(offloaded);
+
+        final AtomicReference<ImmutableOptionSubjectData> received = new AtomicReference<>();
+        cache.addListener(offloaded, new Caching() {
+            @Override
+            public void clearCache(ImmutableOptionSubjectData newData) {
+                received.set(newData);
+            }
+        });
+        dataStore.setData("user", offloaded, named("changed")).get();
+        assertEquals("changed", received.get().getOptions(GLOBAL).get("name"));
+        assertFalse(cache.isCached(offloaded));
+        assertTrue(store.contains("user", offloaded));
+        assertEquals("changed", cache.getData(offloaded, null).getOptions(GLOBAL).get("name"));
+    }
+
+    @Test
+    public void testDroppedSubjectsNotReloadedOnChange() throws Exception {
+        final MemoryDataStore dataStore = new MemoryDataStore();
+        final OffHeapSubjectStore store = new OffHeapSubjectStore(1024);
+        final SubjectCache cache = new SubjectCache("user", dataStore, store);
+        for (int i = 0; i < 1024; ++i) {
+            dataStore.setData("user", "user" + i, named("user" + i)).get();
+            cache.getData("user" + i, null);
+        }
+        String dropped = null;
+        for (int i = 0; i < 1024 && dropped == null; ++i) {
+            if (!cache.isCached("user" + i) && !store.contains("user", "user" + i)) {
+                dropped = "user" + i;
+            }
+        }
+        assertNotNull(dropped);
+
+        dataStore.setData("user", dropped, named("changed")).get();
+        assertFalse(cache.isCached(dropped));
+        assertEquals("changed", cache.getData(dropped, null).getOptions(GLOBAL).get("name"));
+    }
+}
@@ -0,0 +1,130 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.data;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Maps;
+import ninja.leaping.configurate.ConfigurationNode;
+import ninja.leaping.permissionsex.PermissionsExTest;
+import ninja.leaping.permissionsex.backends.DataStore;
+import ninja.leaping.permissionsex.backends.memory.MemoryOptionSubjectData;
+import org.junit.Test;
+
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+public class PermissionIndexTest extends PermissionsExTest {
+    private static final Set<Map.Entry<String, String>> GLOBAL = ImmutableSet.of();
+    private static final Set<Map.Entry<String, String>> WORLD = ImmutableSet.of(Maps.immutableEntry("world", "nether"));
+
+    @Override
+    protected void populate(ConfigurationNode node) {
+        node.getNode("backends", "test", "type").setValue("memory");
+        node.getNode("default-backend").setValue("test");
+    }
+
+    @Test
+    public void testNodeHierarchy() {
+        final PermissionIndex index = new PermissionIndex();
+        index.update("group", "builders", MemoryOptionSubjectData.EMPTY.setPermission(WORLD, "world.build", 1));
+        index.update("group", "admins", MemoryOptionSubjectData.EMPTY.setPermission(GLOBAL, "world", 1));
+        index.update("group", "guests", MemoryOptionSubjectData.EMPTY.setPermission(GLOBAL, "world.build.nether", -1));
+
+        assertEquals(ImmutableSet.of(SubjectRef.of("group", "builders"), SubjectRef.of("group", "admins")), index.getSubjectsSetting("world.build"));
+        assertEquals(ImmutableSet.of(SubjectRef.of("group", "admins")), index.getSubjectsSetting("WORLD.fly"));
+        assertTrue(index.getSubjectsSetting("other").isEmpty());
+    }
+
+    @Test
+    public void testInheritance() {
+        final PermissionIndex index = new PermissionIndex();
+        index.update("group", "builders", MemoryOptionSubjectData.EMPTY.setPermission(GLOBAL, "world.build", 1));
+        index.update("group", "moderators", MemoryOptionSubjectData.EMPTY.addParent(WORLD, "group", "builders"));
+        index.update("user", "mod", MemoryOptionSubjectData.EMPTY.addParent(GLOBAL, "group", "moderators"));
+        index.update("user", "guest", MemoryOptionSubjectData.EMPTY.setOption(GLOBAL, "name", "guest"));
+
+        assertEquals(ImmutableSet.of(SubjectRef.of("group", "builders"), SubjectRef.of("group", "moderators"), SubjectRef.of("user", "mod")),
+                index.getAffectedSubjects("world.build"));
+
+        index.update("group", "moderators", MemoryOptionSubjectData.EMPTY);
+        assertEquals(ImmutableSet.of(SubjectRef.of("group", "builders")), index.getAffectedSubjects("world.build"));
+
+        index.update("group", "builders", null);
+        assertTrue(index.getAffectedSubjects("world.build").isEmpty());
+    }
+
+    @Test
+    public void testAcrossIndexes() {
+        final PermissionIndex persistent = new PermissionIndex(), transientIndex = new PermissionIndex();
+        persistent.update("user", "mod", MemoryOptionSubjectData.EMPTY.addParent(GLOBAL, "group", "moderators"));
+        transientIndex.update("group", "moderators", MemoryOptionSubjectData.EMPTY.setPermission(GLOBAL, "world.build", 1));
+
+        assertEquals(ImmutableSet.of(SubjectRef.of("group", "moderators"), SubjectRef.of("user", "mod")),
+                PermissionIndex.getAffectedSubjects("world.build", persistent, transientIndex));
+    }
+
+    @Test
+    public void testPermissionValue() {
+        final PermissionIndex persistent = new PermissionIndex(), transientIndex = new PermissionIndex();
+        final SubjectRef defaults = SubjectRef.of("system", "defaults");
+        persistent.update("system", "defaults", MemoryOptionSubjectData.EMPTY.setPermission(GLOBAL, "world", 1));
+        persistent.update("group", "builders", MemoryOptionSubjectData.EMPTY.setPermission(WORLD, "world.build", -1)
+                .setPermission(GLOBAL, "world.build.stone", 1));
+        persistent.update("user", "builder", MemoryOptionSubjectData.EMPTY.addParent(GLOBAL, "group", "builders"));
+        transientIndex.update("user", "builder", MemoryOptionSubjectData.EMPTY.setPermission(WORLD, "WORLD.Build", 2));
+        final SubjectRef builder = SubjectRef.of("user", "builder");
+
+        assertEquals(1, PermissionIndex.getPermissionValue(builder, defaults, GLOBAL, "world.build.dirt", transientIndex, persistent));
+        assertEquals(1, PermissionIndex.getPermissionValue(builder, defaults, WORLD, "world.build.stone", transientIndex, persistent));
+        assertEquals(2, PermissionIndex.getPermissionValue(builder, defaults, WORLD, "world.build.dirt", transientIndex, persistent));
+        assertEquals(-1, PermissionIndex.getPermissionValue(SubjectRef.of("group", "builders"), defaults, WORLD, "world.build", transientIndex, persistent));
+        assertEquals(0, PermissionIndex.getPermissionValue(builder, null, GLOBAL, "world.fly", transientIndex, persistent));
+        assertEquals(0, PermissionIndex.getPermissionValue(builder, defaults, GLOBAL, "other", transientIndex, persistent));
+    }
+
+    @Test
+    public void testPermissionValueWithInheritanceCycle() {
+        final PermissionIndex index = new PermissionIndex();
+        index.update("group", "a", MemoryOptionSubjectData.EMPTY.addParent(GLOBAL, "group", "b"));
+        index.update("group", "b", MemoryOptionSubjectData.EMPTY.addParent(GLOBAL, "group", "a").setPermission(GLOBAL, "world.build", 1));
+        assertEquals(1, PermissionIndex.getPermissionValue(SubjectRef.of("group", "a"), null, GLOBAL, "world.build", index));
+    }
+
+    @Test
+    public void testLoadDoesNotOverwriteUpdates() {
+        final PermissionIndex index = new PermissionIndex();
+        index.update("group", "builders", null);
+        index.load("group", "builders", MemoryOptionSubjectData.EMPTY.setPermission(GLOBAL, "world.build", 1));
+        assertTrue(index.getSubjectsSetting("world.build").isEmpty());
+    }
+
+    @Test
+    public void testDataStoreIndex() throws Exception {
+        final DataStore store = getManager().getConfig().getDefaultDataStore();
+        store.setData("group", "builders", MemoryOptionSubjectData.EMPTY.setPermission(GLOBAL, "world.build", 1)).get();
+        store.setData("user", "builder", MemoryOptionSubjectData.EMPTY.addParent(GLOBAL, "group", "builders")).get();
+        assertEquals(ImmutableSet.of("group", "user"), ImmutableSet.copyOf(store.getRegisteredTypes()));
+
+        final PermissionIndex index = store.getPermissionIndex();
+        assertEquals(ImmutableSet.of(SubjectRef.of("group", "builders"), SubjectRef.of("user", "builder")), index.getAffectedSubjects("world.build"));
+
+        store.setData("user", "builder", MemoryOptionSubjectData.EMPTY).get();
+        assertEquals(ImmutableSet.of(SubjectRef.of("group", "builders")), index.getAffectedSubjects("world.build"));
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.data;
+
+import com.google.common.collect.Maps;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class SubjectRefTest {
+    @Test
+    public void testInterned() {
+        assertSame(SubjectRef.of("group", "admin"), SubjectRef.of("group", "admin"));
+        assertSame(SubjectRef.of("group", "admin"), SubjectRef.parse("group:admin"));
+        assertSame(SubjectRef.of("group", "admin"), SubjectRef.of(Maps.immutableEntry("group", "admin")));
+    }
+
+    @Test
+    public void testParse() {
+        final SubjectRef ref = SubjectRef.parse("user:some:name");
+        assertEquals("user", ref.getType());
+        assertEquals("some:name", ref.getIdentifier());
+        assertEquals("group", SubjectRef.parse("admin").getType());
+        assertEquals("user:some:name", ref.toString());
+    }
+
+    @Test
+    public void testEqualToEntries() {
+        assertEquals(Maps.immutableEntry("group", "admin"), SubjectRef.of("group", "admin"));
+        assertEquals(SubjectRef.of("group", "admin"), Maps.immutableEntry("group", "admin"));
+        assertEquals(Maps.immutableEntry("group", "admin").hashCode(), SubjectRef.of("group", "admin").hashCode());
+    }
+
+    @Test
+    public void testHandleNotRetained() throws InterruptedException {
+        final SubjectRef ref = SubjectRef.of("group", "handle-test");
+        Object handle = new Object();
+        ref.setHandle(handle);
+        assertSame(handle, ref.getHandle());
+
+        handle = null;
+        for (int i = 0; i < 50 && ref.getHandle() != null; ++i) {
+            System.gc();
+            Thread.sleep(10);
+        }
+        assertNull(ref.getHandle());
+    }
+
+    @Test
+    public void testClearHandle() {
+        final SubjectRef ref = SubjectRef.of("group", "clear-test");
+        final Object handle = new Object(), other = new Object();
+        ref.setHandle(handle);
+        ref.clearHandle(other);
+        assertSame(handle, ref.getHandle());
+        ref.clearHandle(handle);
+        assertNull(ref.getHandle());
+    }
+}
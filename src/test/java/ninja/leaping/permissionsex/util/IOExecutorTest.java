@@ -0,0 +1,153 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.util;
+
+import org.junit.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class IOExecutorTest {
+    private static Runnable await(final CountDownLatch latch) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+    }
+
+    @Test
+    public void testCallerRunsWhenFull() throws InterruptedException {
+        final IOExecutor executor = new IOExecutor("test", 1, 1, IOExecutor.Backpressure.CALLER, false);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(await(release)); // Occupies the only thread
+        executor.execute(await(release)); // Fills the queue
+
+        final AtomicReference<Thread> ranOn = new AtomicReference<>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ranOn.set(Thread.currentThread());
+            }
+        });
+        assertSame(Thread.currentThread(), ranOn.get());
+
+        release.countDown();
+        assertTrue(executor.shutdown(5, TimeUnit.SECONDS));
+        final IOExecutor.Statistics stats = executor.getStatistics();
+        assertEquals(3, stats.getSubmittedTasks());
+        assertEquals(3, stats.getCompletedTasks());
+        assertEquals(1, stats.getCallerRunTasks());
+        assertEquals(1, stats.getPeakQueueDepth());
+        assertEquals(0, stats.getQueueDepth());
+    }
+
+    @Test
+    public void testBlockWhenFull() throws InterruptedException {
+        final IOExecutor executor = new IOExecutor("test", 1, 1, IOExecutor.Backpressure.BLOCK, false);
+        final CountDownLatch release = new CountDownLatch(1);
+        executor.execute(await(release));
+        executor.execute(await(release));
+
+        final AtomicInteger ran = new AtomicInteger();
+        final Thread submitter = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ran.incrementAndGet();
+                    }
+                });
+            }
+        });
+        submitter.start();
+        submitter.join(100);
+        assertTrue(submitter.isAlive()); // Waiting for room in the queue
+
+        release.countDown();
+        submitter.join(5000);
+        assertFalse(submitter.isAlive());
+        assertTrue(executor.shutdown(5, TimeUnit.SECONDS));
+        assertEquals(1, ran.get());
+        assertEquals(0, executor.getStatistics().getCallerRunTasks());
+    }
+
+    @Test
+    public void testBlockRunsInPoolThreadWhenFull() throws InterruptedException {
+        final IOExecutor executor = new IOExecutor("test", 1, 1, IOExecutor.Backpressure.BLOCK, false);
+        final CountDownLatch release = new CountDownLatch(1), done = new CountDownLatch(1);
+        final AtomicReference<Thread> poolThread = new AtomicReference<>(), ranOn = new AtomicReference<>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                poolThread.set(Thread.currentThread());
+                executor.execute(await(release)); // Fills the queue
+                executor.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        ranOn.set(Thread.currentThread());
+                    }
+                });
+                done.countDown();
+            }
+        });
+
+        assertTrue(done.await(5, TimeUnit.SECONDS)); // Would wait forever for its own thread to empty the queue
+        assertSame(poolThread.get(), ranOn.get());
+        release.countDown();
+        assertTrue(executor.shutdown(5, TimeUnit.SECONDS));
+        assertEquals(1, executor.getStatistics().getCallerRunTasks());
+    }
+
+    @Test
+    public void testTasksAfterShutdownStillRun() {
+        final IOExecutor executor = new IOExecutor("test", 1, 1, IOExecutor.Backpressure.BLOCK, false);
+        assertTrue(executor.shutdown(5, TimeUnit.SECONDS));
+        final AtomicInteger ran = new AtomicInteger();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ran.incrementAndGet();
+            }
+        });
+        assertEquals(1, ran.get());
+    }
+
+    @Test
+    public void testNoThreadsRunsInCaller() {
+        final IOExecutor executor = new IOExecutor("test", 0, 1, IOExecutor.Backpressure.CALLER, true);
+        final AtomicReference<Thread> ranOn = new AtomicReference<>();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                ranOn.set(Thread.currentThread());
+            }
+        });
+        assertSame(Thread.currentThread(), ranOn.get());
+        assertEquals(1, executor.getStatistics().getCompletedTasks());
+    }
+}
@@ -0,0 +1,101 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.util;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class PersistentMapTest {
+    /**
+     * Key with a deliberately poor hash so that tries contain collision nodes
+     */
+    private static class CollidingKey {
+        private final int value;
+
+        private CollidingKey(int value) {
+            this.value = value;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof CollidingKey && ((CollidingKey) o).value == value;
+        }
+
+        @Override
+        public int hashCode() {
+            return value % 7;
+        }
+    }
+
+    @Test
+    public void testMatchesHashMap() {
+        final Random rand = new Random(42);
+        final Map<Integer, Integer> expected = new HashMap<>();
+        PersistentMap<Integer, Integer> actual = PersistentMap.of();
+        for (int i = 0; i < 20000; ++i) {
+            final int key = rand.nextInt(2000) * (rand.nextBoolean() ? 1 : 65536);
+            if (rand.nextInt(3) == 0) {
+                expected.remove(key);
+                actual = actual.minus(key);
+            } else {
+                expected.put(key, i);
+                actual = actual.plus(key, i);
+            }
+        }
+        assertEquals(expected.size(), actual.size());
+        assertEquals(expected, actual);
+        assertEquals(actual, expected);
+        assertEquals(expected.hashCode(), actual.hashCode());
+        assertEquals(expected, new HashMap<>(actual)); // Iteration visits every entry exactly once
+    }
+
+    @Test
+    public void testCollisions() {
+        PersistentMap<CollidingKey, String> map = PersistentMap.of();
+        for (int i = 0; i < 50; ++i) {
+            map = map.plus(new CollidingKey(i), "v" + i);
+        }
+        assertEquals(50, map.size());
+        assertEquals("v21", map.get(new CollidingKey(21)));
+        for (int i = 0; i < 50; i += 2) {
+            map = map.minus(new CollidingKey(i));
+        }
+        assertEquals(25, map.size());
+        assertNull(map.get(new CollidingKey(20)));
+        assertEquals("v21", map.get(new CollidingKey(21)));
+        assertEquals(25, new HashMap<>(map).size());
+    }
+
+    @Test
+    public void testUpdatesShareUnchangedVersions() {
+        final PersistentMap<String, Integer> original = PersistentMap.<String, Integer>of().plus("a", 1).plus("b", 2);
+        final PersistentMap<String, Integer> updated = original.plus("a", 3).minus("b");
+        assertEquals(Integer.valueOf(1), original.get("a"));
+        assertEquals(Integer.valueOf(2), original.get("b"));
+        assertEquals(Integer.valueOf(3), updated.get("a"));
+        assertFalse(updated.containsKey("b"));
+
+        assertSame(original, original.plus("a", 1));
+        assertSame(original, original.minus("c"));
+        assertTrue(original.minus("a").minus("b").isEmpty());
+    }
+}
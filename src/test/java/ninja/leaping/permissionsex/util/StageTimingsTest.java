@@ -0,0 +1,40 @@
+/**
+ * PermissionsEx
+ * Copyright (C) zml and PermissionsEx contributors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *    http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package ninja.leaping.permissionsex.util;
+
+import com.google.common.collect.ImmutableList;
+import org.junit.Test;
+
+import java.util.Map;
+
+import static org.junit.Assert.*;
+
+public class StageTimingsTest {
+    @Test
+    public void testStages() throws InterruptedException {
+        final StageTimings timings = new StageTimings();
+        Thread.sleep(20);
+        timings.endStage("first");
+        timings.endStage("second");
+
+        final Map<String, Long> stages = timings.getStageTimes();
+        assertEquals(ImmutableList.of("first", "second"), ImmutableList.copyOf(stages.keySet()));
+        assertTrue(stages.get("first") >= 20);
+        assertTrue(timings.getTotalTime() >= stages.get("first") + stages.get("second") - 1);
+        assertTrue(timings.toString().startsWith("first: "));
+    }
+}